@@ -0,0 +1,99 @@
+package net.powermatcher.api.data.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+
+/**
+ * Simple benchmark that compares the loops over demand arrays that {@link ArrayBid} uses with the same loops inlined
+ * in the caller, for a growing number of price steps. The descending check is measured through the constructor,
+ * against a copy and a plain check. This is not a unit test; run it using the main method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class DemandKernelsBenchmark {
+    private static final int[] PRICE_STEPS = { 100, 1000, 10000 };
+    private static final long TOTAL_ELEMENTS = 200000000L;
+
+    public static void main(String[] args) {
+        System.out.println("priceSteps;loop;plain (ns/element);ArrayBid (ns/element)");
+        for (int priceSteps : PRICE_STEPS) {
+            MarketBasis marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 10);
+            double[] demand = new double[priceSteps];
+            Random random = new Random(1);
+            double last = priceSteps;
+            for (int ix = 0; ix < priceSteps; ix++) {
+                last -= random.nextDouble();
+                demand[ix] = last;
+            }
+            ArrayBid bid = new ArrayBid(marketBasis, demand);
+            double[] accumulator = new double[priceSteps];
+            int rounds = (int) (TOTAL_ELEMENTS / priceSteps);
+
+            // Warm up, then measure
+            runAdd(bid, demand, accumulator, rounds, false);
+            runAdd(bid, demand, accumulator, rounds, true);
+            System.out.printf("%d;add;%.3f;%.3f%n",
+                              priceSteps,
+                              runAdd(bid, demand, accumulator, rounds, false),
+                              runAdd(bid, demand, accumulator, rounds, true));
+
+            runCreate(marketBasis, demand, rounds, false);
+            runCreate(marketBasis, demand, rounds, true);
+            System.out.printf("%d;copy and check descending;%.3f;%.3f%n",
+                              priceSteps,
+                              runCreate(marketBasis, demand, rounds, false),
+                              runCreate(marketBasis, demand, rounds, true));
+        }
+    }
+
+    private static double runAdd(ArrayBid bid, double[] demand, double[] accumulator, int rounds, boolean arrayBid) {
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            if (arrayBid) {
+                bid.addTo(accumulator);
+            } else {
+                for (int ix = 0; ix < accumulator.length; ix++) {
+                    accumulator[ix] += demand[ix];
+                }
+            }
+        }
+        return (double) (System.nanoTime() - start) / rounds / accumulator.length;
+    }
+
+    private static double runCreate(MarketBasis marketBasis, double[] demand, int rounds, boolean arrayBid) {
+        long start = System.nanoTime();
+        double sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            if (arrayBid) {
+                sum += new ArrayBid(marketBasis, demand).getMaximumDemand();
+            } else {
+                double[] copy = Arrays.copyOf(demand, demand.length);
+                if (!isDescendingPlain(copy)) {
+                    throw new IllegalStateException("The demand should be descending");
+                }
+                sum += copy[0];
+            }
+        }
+        double result = (double) (System.nanoTime() - start) / rounds / demand.length;
+        // Uses the sum, so the loop is not optimized away
+        if (sum <= 0) {
+            throw new IllegalStateException("The maximum demand should be positive");
+        }
+        return result;
+    }
+
+    private static boolean isDescendingPlain(double[] demandArray) {
+        double last = Double.POSITIVE_INFINITY;
+        for (double demand : demandArray) {
+            if (demand > last) {
+                return false;
+            }
+            last = demand;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,18 @@
+package net.powermatcher.api;
+
+import java.util.Collection;
+
+/**
+ * {@link AgentEndpointGroup} defines the interface for a service that hosts many {@link AgentEndpoint}s, which are
+ * connected by the runtime just like the {@link AgentEndpoint}s that are registered as a service of their own. This
+ * avoids the overhead of a service per agent when a very large number of (simulated) devices runs in a single JVM.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public interface AgentEndpointGroup {
+    /**
+     * @return the {@link AgentEndpoint}s in this group, which should not change while the group is registered
+     */
+    Collection<? extends AgentEndpoint> getAgentEndpoints();
+}
@@ -20,6 +20,11 @@ public class ArrayBid
      */
     private static final int PRECISION = 5;
 
+    /**
+     * The maximum difference between 2 floating points that are considered equal, based on the {@link #PRECISION}.
+     */
+    private static final double EPSILON = Math.pow(10, PRECISION * -1);
+
     /**
      * The array of <code>double</code> values that make up the bid curve.
      */
@@ -168,12 +173,8 @@ public class ArrayBid
      *             is the demand is not ascending.
      */
     private static void checkDescending(double[] demandArray) {
-        double last = Double.POSITIVE_INFINITY;
-        for (double demand : demandArray) {
-            if (demand > last) {
-                throw new IllegalArgumentException("The demand can not be ascending");
-            }
-            last = demand;
+        if (!DemandKernels.isDescending(demandArray)) {
+            throw new IllegalArgumentException("The demand can not be ascending");
         }
     }
 
@@ -194,6 +195,28 @@ public class ArrayBid
         this.demandArray = Arrays.copyOf(demandArray, demandArray.length);
     }
 
+    /**
+     * A constructor that takes ownership of the given demand array, without copying it. This should only be used by
+     * code that has just created the array and does not use the array after this call.
+     *
+     * @param marketBasis
+     *            the {@link MarketBasis} of the cluster
+     * @param demandArray
+     *            the demandArray that belongs to this bid, which is not copied.
+     * @param trusted
+     *            <code>true</code> when the caller knows that the demand is descending, so it is not checked.
+     */
+    protected ArrayBid(MarketBasis marketBasis, double[] demandArray, boolean trusted) {
+        super(marketBasis);
+        if (demandArray.length != marketBasis.getPriceSteps()) {
+            throw new IllegalArgumentException("Length of the demandArray is not equal to the number of price steps");
+        }
+        if (!trusted) {
+            checkDescending(demandArray);
+        }
+        this.demandArray = demandArray;
+    }
+
     /**
      * A copy constructor to create a copy of the given ArrayBid and its bidNumber.
      *
@@ -218,7 +241,7 @@ public class ArrayBid
         demandArray = new double[priceSteps];
 
         for (int ix = 0; ix < priceSteps; ix++) {
-            demandArray[ix] = base.getDemandAt(new PriceStep(marketBasis, ix));
+            demandArray[ix] = base.getDemandAt(marketBasis.priceOf(ix));
         }
 
         pointBid = base;
@@ -232,13 +255,11 @@ public class ArrayBid
         if (!other.marketBasis.equals(marketBasis)) {
             throw new IllegalArgumentException("The marketbasis of the supplied bid does not equal this market basis");
         }
-        ArrayBid otherBid = other.toArrayBid();
-
-        double[] aggregatedDemand = otherBid.getDemand();
-        for (int i = 0; i < aggregatedDemand.length; i++) {
-            aggregatedDemand[i] += demandArray[i];
-        }
-        return new ArrayBid(marketBasis, aggregatedDemand);
+        double[] aggregatedDemand = new double[demandArray.length];
+        other.copyDemandInto(aggregatedDemand);
+        addTo(aggregatedDemand);
+        // The sum of 2 descending arrays is always descending
+        return new ArrayBid(marketBasis, aggregatedDemand, true);
     }
 
     /**
@@ -293,10 +314,9 @@ public class ArrayBid
 
     private Price interpolate(int leftIx, int rightIx, double targetDemand) {
         double leftPrice = rightIx == 0 ? marketBasis.getMinimumPrice()
-                                       : new PriceStep(marketBasis, leftIx).toPrice().getPriceValue();
+                                       : marketBasis.priceValueOf(leftIx);
         double rightPrice = leftIx == demandArray.length - 1 ? marketBasis.getMaximumPrice()
-                                                            : new PriceStep(marketBasis, rightIx).toPrice()
-                                                                                                 .getPriceValue();
+                                                            : marketBasis.priceValueOf(rightIx);
 
         double leftDemand = demandArray[leftIx];
         double rightDemand = demandArray[rightIx];
@@ -361,6 +381,55 @@ public class ArrayBid
         return demandArray[priceStep.getPriceStep()];
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double demandAt(int priceStep) {
+        return demandArray[priceStep];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void copyDemandInto(double[] destination) {
+        checkLength(destination);
+        System.arraycopy(demandArray, 0, destination, 0, demandArray.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addTo(double[] accumulator) {
+        checkLength(accumulator);
+        DemandKernels.add(demandArray, accumulator);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void subtractFrom(double[] accumulator) {
+        checkLength(accumulator);
+        DemandKernels.subtract(demandArray, accumulator);
+    }
+
+    /**
+     * Checks if the given array has the same length as the demand array.
+     *
+     * @param array
+     *            the array that has to be checked
+     * @throws IllegalArgumentException
+     *             when the length of the array is different
+     */
+    private void checkLength(double[] array) {
+        if (array.length != demandArray.length) {
+            throw new IllegalArgumentException("The length of the array is not equal to the number of price steps");
+        }
+    }
+
     /**
      * @return a {@link PricePoint} <code>array</code> representation of the demand array.
      */
@@ -409,14 +478,12 @@ public class ArrayBid
              * If not at the end of the demand array, check if the following segment is a step or an inclining segment.
              */
             if (i < priceSteps - 1) {
-                if (Math.abs((demandArray[i] - demandArray[i + 1]) - delta) < Math.pow(10, PRECISION * -1)) {
+                if (Math.abs((demandArray[i] - demandArray[i + 1]) - delta) < EPSILON) {
                     /*
                      * Here i is in a constantly inclining or declining segment. Search for the last price step in the
                      * segment.
                      */
-                    while (i < priceSteps - 1
-                           && Math.abs((demandArray[i] - demandArray[i + 1]) - delta) < Math.pow(10,
-                                                                                                 PRECISION * -1)) {
+                    while (i < priceSteps - 1 && Math.abs((demandArray[i] - demandArray[i + 1]) - delta) < EPSILON) {
                         i += 1;
                     }
                     /*
@@ -473,7 +540,7 @@ public class ArrayBid
      * @return a {@link PricePoint}, based on on the priceStep paramater.
      */
     private PricePoint newPoint(int priceStep) {
-        return new PricePoint(new PriceStep(marketBasis, priceStep).toPrice(), demandArray[priceStep]);
+        return new PricePoint(marketBasis.priceOf(priceStep), demandArray[priceStep]);
     }
 
     /**
@@ -485,12 +552,10 @@ public class ArrayBid
      * @return A copy of this bid with the other bid subtracted from it.
      */
     public ArrayBid subtract(final ArrayBid other) {
-        double[] otherDemand = other.getDemand();
         double[] newDemand = getDemand();
-        for (int i = 0; i < newDemand.length; i++) {
-            newDemand[i] -= otherDemand[i];
-        }
-        return new ArrayBid(marketBasis, newDemand);
+        other.subtractFrom(newDemand);
+        checkDescending(newDemand);
+        return new ArrayBid(marketBasis, newDemand, true);
     }
 
     /**
@@ -502,10 +567,9 @@ public class ArrayBid
      */
     public ArrayBid transpose(final double offset) {
         double[] newDemand = getDemand();
-        for (int i = 0; i < newDemand.length; i++) {
-            newDemand[i] += offset;
-        }
-        return new ArrayBid(marketBasis, newDemand);
+        DemandKernels.addOffset(offset, newDemand);
+        // Adding the same offset to each demand keeps the array descending
+        return new ArrayBid(marketBasis, newDemand, true);
     }
 
     /**
@@ -528,7 +592,7 @@ public class ArrayBid
         } else {
             ArrayBid other = (ArrayBid) obj;
             return marketBasis.equals(other.marketBasis)
-                   && Arrays.equals(other.getDemand(), getDemand());
+                   && Arrays.equals(other.demandArray, demandArray);
         }
     }
 
@@ -129,4 +129,55 @@ public abstract class Bid {
     public double getDemandAt(Price price) {
         return getDemandAt(price.toPriceStep());
     }
+
+    /**
+     * Gets the demand at the given price step index, without the need to create a {@link PriceStep} object.
+     *
+     * @param priceStep
+     *            the index of the price step, between 0 (inclusive) and the number of price steps in the
+     *            {@link MarketBasis} (exclusive).
+     * @return the demand at the given price step
+     */
+    public double demandAt(int priceStep) {
+        return toArrayBid().demandAt(priceStep);
+    }
+
+    /**
+     * Copies the demand for each price step into the given array, without creating a new array.
+     *
+     * @param destination
+     *            the array in which the demand will be copied. Its length should be equal to the number of price steps
+     *            in the {@link MarketBasis}.
+     * @throws IllegalArgumentException
+     *             when the length of the destination array does not match the number of price steps
+     */
+    public void copyDemandInto(double[] destination) {
+        toArrayBid().copyDemandInto(destination);
+    }
+
+    /**
+     * Adds the demand for each price step to the given accumulator array.
+     *
+     * @param accumulator
+     *            the array to which the demand will be added. Its length should be equal to the number of price steps in
+     *            the {@link MarketBasis}.
+     * @throws IllegalArgumentException
+     *             when the length of the accumulator array does not match the number of price steps
+     */
+    public void addTo(double[] accumulator) {
+        toArrayBid().addTo(accumulator);
+    }
+
+    /**
+     * Subtracts the demand for each price step from the given accumulator array.
+     *
+     * @param accumulator
+     *            the array from which the demand will be subtracted. Its length should be equal to the number of price
+     *            steps in the {@link MarketBasis}.
+     * @throws IllegalArgumentException
+     *             when the length of the accumulator array does not match the number of price steps
+     */
+    public void subtractFrom(double[] accumulator) {
+        toArrayBid().subtractFrom(accumulator);
+    }
 }
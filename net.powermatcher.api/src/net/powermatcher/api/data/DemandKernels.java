@@ -0,0 +1,76 @@
+package net.powermatcher.api.data;
+
+/**
+ * Helper class with the loops over demand arrays that are used when bids are aggregated, subtracted, transposed and
+ * checked. The loops are kept as simple counted loops over the whole array, because that is the form that the JIT
+ * compiler unrolls and turns into SIMD instructions on platforms that support it. Unrolling them by hand turned out to
+ * prevent this (see the DemandKernelsBenchmark in the benchmark folder).
+ *
+ * None of these methods check the length of the arrays, so the caller should make sure they are the same.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+final class DemandKernels {
+    private DemandKernels() {
+    }
+
+    /**
+     * Adds each element of the source array to the same element of the destination array.
+     *
+     * @param source
+     *            the array that is added
+     * @param destination
+     *            the array to which the source is added
+     */
+    static void add(double[] source, double[] destination) {
+        for (int ix = 0; ix < destination.length; ix++) {
+            destination[ix] += source[ix];
+        }
+    }
+
+    /**
+     * Subtracts each element of the source array from the same element of the destination array.
+     *
+     * @param source
+     *            the array that is subtracted
+     * @param destination
+     *            the array from which the source is subtracted
+     */
+    static void subtract(double[] source, double[] destination) {
+        for (int ix = 0; ix < destination.length; ix++) {
+            destination[ix] -= source[ix];
+        }
+    }
+
+    /**
+     * Adds the same offset to each element of the destination array.
+     *
+     * @param offset
+     *            the value that is added
+     * @param destination
+     *            the array to which the offset is added
+     */
+    static void addOffset(double offset, double[] destination) {
+        for (int ix = 0; ix < destination.length; ix++) {
+            destination[ix] += offset;
+        }
+    }
+
+    /**
+     * Tests if the demand is descending, which means that no element is higher than the element before it. A NaN value
+     * is never seen as higher, which is the same as a plain comparison.
+     *
+     * @param demand
+     *            the demand array that is tested
+     * @return true when the demand is descending
+     */
+    static boolean isDescending(double[] demand) {
+        for (int ix = 1; ix < demand.length; ix++) {
+            if (demand[ix] > demand[ix - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -4,12 +4,20 @@ import java.security.InvalidParameterException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * {@link MarketBasis} is an immutable data object specifying the settings for the market. This includes the price
  * range, the commodity being exchanges, the currency being used and the number of price steps used in the demand
  * arrays.
  *
+ * Instances can be created using the constructor, but the preferred way is to use the {@link #of(String, String, int,
+ * double, double)} factory method. This returns a single canonical instance for each distinct market basis, which makes
+ * the equality check an identity check and lets the instance cache the {@link Price} and {@link PriceStep} of each
+ * price step. Market bases that are received from remote agents should only be resolved with
+ * {@link #canonicalIfPresent(MarketBasis)}, since the number of canonical instances is limited.
+ *
  * @author FAN
  * @version 2.0
  */
@@ -27,6 +35,90 @@ public class MarketBasis {
      */
     public static final DecimalFormat DEMAND_FORMAT = new DecimalFormat("0.###E0", ROOT_SYMBOLS);
 
+    /**
+     * The maximum number of canonical instances. The number of distinct market bases in a system is expected to be
+     * very small, so when there are more, the other market bases are not made canonical.
+     */
+    static final int MAX_CANONICAL_INSTANCES = 64;
+
+    /**
+     * The maximum number of price steps of which a canonical instance caches the {@link Price} and {@link PriceStep}.
+     */
+    static final int MAX_CACHED_PRICE_STEPS = 4096;
+
+    /**
+     * The canonical instances that have been created by {@link #of(String, String, int, double, double)}, mapped to
+     * themselves. These are never removed, so there are at most {@link #MAX_CANONICAL_INSTANCES} of them.
+     */
+    private static final ConcurrentMap<MarketBasis, MarketBasis> CANONICAL_INSTANCES
+        = new ConcurrentHashMap<MarketBasis, MarketBasis>();
+
+    /**
+     * Gets the canonical {@link MarketBasis} with the given settings. Calling this method multiple times with the same
+     * arguments returns the same instance. When there already are {@link #MAX_CANONICAL_INSTANCES} canonical instances,
+     * a market basis that is not canonical is returned instead.
+     *
+     * @param commodity
+     *            the commodity that is to be handled by this market.
+     * @param currency
+     *            the 3 character currency code.
+     * @param priceSteps
+     *            the number of price steps used when converting a {@link PointBid} to an {@link ArrayBid}
+     * @param minimumPrice
+     *            the minimum price that is valid in this market (inclusive)
+     * @param maximumPrice
+     *            the maximum price that is valid in this market (inclusive)
+     * @return the canonical {@link MarketBasis} instance
+     */
+    public static MarketBasis of(final String commodity, final String currency, final int priceSteps,
+                                 final double minimumPrice, final double maximumPrice) {
+        return canonical(new MarketBasis(commodity, currency, priceSteps, minimumPrice, maximumPrice));
+    }
+
+    /**
+     * Gets the canonical {@link MarketBasis} that is equal to the given market basis. When there already are
+     * {@link #MAX_CANONICAL_INSTANCES} canonical instances and none of them is equal, marketBasis itself is returned.
+     *
+     * @param marketBasis
+     *            the market basis for which the canonical instance should be returned
+     * @return the canonical {@link MarketBasis} instance that is equal to marketBasis, or marketBasis itself
+     */
+    public static MarketBasis canonical(final MarketBasis marketBasis) {
+        if (marketBasis.canonical) {
+            return marketBasis;
+        }
+        MarketBasis result = CANONICAL_INSTANCES.get(marketBasis);
+        if (result == null) {
+            if (CANONICAL_INSTANCES.size() >= MAX_CANONICAL_INSTANCES) {
+                return marketBasis;
+            }
+            MarketBasis candidate = new MarketBasis(marketBasis, true);
+            result = CANONICAL_INSTANCES.putIfAbsent(candidate, candidate);
+            if (result == null) {
+                result = candidate;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the canonical {@link MarketBasis} that is equal to the given market basis, but only when it already exists.
+     * Unlike {@link #canonical(MarketBasis)}, this never adds a canonical instance, so market bases that are received
+     * from remote agents can share the canonical instance without being able to fill the table.
+     *
+     * @param marketBasis
+     *            the market basis for which the canonical instance should be returned
+     * @return the canonical {@link MarketBasis} instance that is equal to marketBasis, or marketBasis itself when there
+     *         is none
+     */
+    public static MarketBasis canonicalIfPresent(final MarketBasis marketBasis) {
+        if (marketBasis.canonical) {
+            return marketBasis;
+        }
+        MarketBasis result = CANONICAL_INSTANCES.get(marketBasis);
+        return result == null ? marketBasis : result;
+    }
+
     /**
      * The commodity that is to be handled by this market. E.g. electricity
      */
@@ -52,6 +144,38 @@ public class MarketBasis {
      */
     private final double maximumPrice;
 
+    /**
+     * The difference in market price between a price step.
+     */
+    private final double priceIncrement;
+
+    /**
+     * The inverse of the price increment, such that a price can be converted to a price step without a division.
+     */
+    private final double inversePriceIncrement;
+
+    /**
+     * The cached hash code of this market basis.
+     */
+    private final int hashCode;
+
+    /**
+     * True when this is the canonical instance, as returned by {@link #of(String, String, int, double, double)}.
+     */
+    private final boolean canonical;
+
+    /**
+     * The lazily created {@link Price} of each price step. Only used for the canonical instance with at most
+     * {@link #MAX_CACHED_PRICE_STEPS} price steps, otherwise <code>null</code>.
+     */
+    private final Price[] stepPrices;
+
+    /**
+     * The lazily created {@link PriceStep} of each price step. Only used for the canonical instance with at most
+     * {@link #MAX_CACHED_PRICE_STEPS} price steps, otherwise <code>null</code>.
+     */
+    private final PriceStep[] stepTable;
+
     /**
      * A constructor used to create an instance of this class.
      *
@@ -87,6 +211,46 @@ public class MarketBasis {
         this.priceSteps = priceSteps;
         this.minimumPrice = minimumPrice;
         this.maximumPrice = maximumPrice;
+        priceIncrement = (maximumPrice - minimumPrice) / (priceSteps - 1);
+        inversePriceIncrement = 1 / priceIncrement;
+        hashCode = calculateHashCode();
+        canonical = false;
+        stepPrices = null;
+        stepTable = null;
+    }
+
+    /**
+     * Creates a copy of the given market basis, which will be the canonical instance.
+     *
+     * @param other
+     *            the market basis that is copied
+     * @param canonical
+     *            should be <code>true</code>, to distinguish this constructor from a copy constructor.
+     */
+    private MarketBasis(final MarketBasis other, final boolean canonical) {
+        commodity = other.commodity;
+        currency = other.currency;
+        priceSteps = other.priceSteps;
+        minimumPrice = other.minimumPrice;
+        maximumPrice = other.maximumPrice;
+        priceIncrement = other.priceIncrement;
+        inversePriceIncrement = other.inversePriceIncrement;
+        hashCode = other.hashCode;
+        this.canonical = canonical;
+        if (priceSteps <= MAX_CACHED_PRICE_STEPS) {
+            stepPrices = new Price[priceSteps];
+            stepTable = new PriceStep[priceSteps];
+        } else {
+            stepPrices = null;
+            stepTable = null;
+        }
+    }
+
+    /**
+     * @return true when this is the canonical instance, as returned by {@link #of(String, String, int, double, double)}
+     */
+    public boolean isCanonical() {
+        return canonical;
     }
 
     /**
@@ -121,7 +285,88 @@ public class MarketBasis {
      * @return The difference in market price between a price step.
      */
     public final double getPriceIncrement() {
-        return (maximumPrice - minimumPrice) / (priceSteps - 1);
+        return priceIncrement;
+    }
+
+    /**
+     * Gets the {@link Price} that belongs to a price step. For the canonical instance, the same {@link Price} object is
+     * returned for each call with the same price step.
+     *
+     * @param priceStep
+     *            the index of the price step, between 0 (inclusive) and the number of price steps (exclusive)
+     * @return the {@link Price} of the price step
+     */
+    Price priceOf(int priceStep) {
+        if (stepPrices == null) {
+            return new Price(this, priceValueOf(priceStep));
+        }
+        Price price = stepPrices[priceStep];
+        if (price == null) {
+            // Price is immutable, so when 2 threads race here they both store an equal object
+            price = new Price(this, priceValueOf(priceStep));
+            stepPrices[priceStep] = price;
+        }
+        return price;
+    }
+
+    /**
+     * Gets the {@link PriceStep} object for a price step. For the canonical instance, the same {@link PriceStep} object
+     * is returned for each call with the same price step. The bounds of the priceStep should have been checked by the
+     * caller.
+     *
+     * @param priceStep
+     *            the index of the price step, between 0 (inclusive) and the number of price steps (exclusive)
+     * @return the {@link PriceStep} of the price step
+     */
+    PriceStep priceStepOf(int priceStep) {
+        if (stepTable == null) {
+            return new PriceStep(this, priceStep);
+        }
+        PriceStep result = stepTable[priceStep];
+        if (result == null) {
+            // PriceStep is immutable, so when 2 threads race here they both store an equal object
+            result = new PriceStep(this, priceStep);
+            stepTable[priceStep] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Calculates the price value of a price step, without creating any objects.
+     *
+     * @param priceStep
+     *            the index of the price step
+     * @return the price value of the price step, which is the minimum price plus priceStep times the price increment.
+     */
+    public double priceValueOf(int priceStep) {
+        return minimumPrice + priceStep * priceIncrement;
+    }
+
+    /**
+     * Converts a price value to the index of a price step. This is the lowest price step of which the price value (as
+     * given by {@link #priceValueOf(int)}) is not lower than the given price, limited to the range of price steps. This
+     * avoids the division and rounding of the straightforward calculation and is exact for the prices of price steps.
+     *
+     * @param price
+     *            the price value
+     * @return the index of the price step, between 0 (inclusive) and the number of price steps (exclusive)
+     */
+    public int priceToStep(double price) {
+        int lastStep = priceSteps - 1;
+        // The estimate is at most 1 step off, which is corrected below
+        int step = (int) ((price - minimumPrice) * inversePriceIncrement);
+        if (step < 0) {
+            step = 0;
+        } else if (step > lastStep) {
+            step = lastStep;
+        }
+        while (step < lastStep && priceValueOf(step) < price) {
+            step++;
+        }
+        while (step > 0 && priceValueOf(step - 1) >= price) {
+            step--;
+        }
+        return step;
     }
 
     /**
@@ -142,7 +387,11 @@ public class MarketBasis {
             return false;
         } else {
             MarketBasis other = (MarketBasis) obj;
-            return commodity.equals(other.commodity) && currency.equals(other.currency)
+            if (canonical && other.canonical) {
+                // There is only one canonical instance for each market basis
+                return false;
+            }
+            return hashCode == other.hashCode && commodity.equals(other.commodity) && currency.equals(other.currency)
                    && maximumPrice == other.maximumPrice && minimumPrice == other.minimumPrice
                    && priceSteps == other.priceSteps;
         }
@@ -153,6 +402,13 @@ public class MarketBasis {
      */
     @Override
     public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * @return the hash code, based on all the fields of this market basis
+     */
+    private int calculateHashCode() {
         final int prime = 31;
         int result = prime + ((commodity == null) ? 0 : commodity.hashCode());
         result = prime * result + ((currency == null) ? 0 : currency.hashCode());
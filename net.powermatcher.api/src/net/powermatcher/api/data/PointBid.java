@@ -299,7 +299,7 @@ public class PointBid
                     if (price.equals(nextPoint.getPrice())) {
                         return nextPoint.getDemand();
                     } else {
-                        middle.getDemand();
+                        return middle.getDemand();
                     }
                 }
             }
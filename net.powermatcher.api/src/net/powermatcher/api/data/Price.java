@@ -58,11 +58,11 @@ public class Price
     }
 
     /**
-     * @return The {@link PriceStep} representation of this Price.
+     * @return The {@link PriceStep} representation of this Price, which is the lowest price step that has a price that
+     *         is not lower than this price. See {@link MarketBasis#priceToStep(double)}.
      */
     public PriceStep toPriceStep() {
-        double priceStep = (priceValue - marketBasis.getMinimumPrice()) / marketBasis.getPriceIncrement();
-        return new PriceStep(marketBasis, (int) Math.ceil(priceStep));
+        return marketBasis.priceStepOf(marketBasis.priceToStep(priceValue));
     }
 
     /**
@@ -39,6 +39,26 @@ public class PriceStep {
         this.priceStep = priceStep;
     }
 
+    /**
+     * Gets the {@link PriceStep} for the given market basis. When the {@link MarketBasis} is the canonical instance, a
+     * cached object is returned instead of a new one.
+     *
+     * @param marketBasis
+     *            the marketbasis of this cluster.
+     * @param priceStep
+     *            the value of the priceStep.
+     * @return the {@link PriceStep}
+     */
+    public static PriceStep of(MarketBasis marketBasis, int priceStep) {
+        if (marketBasis == null) {
+            throw new NullPointerException("marketBasis can not be null");
+        } else if (priceStep < 0 || priceStep >= marketBasis.getPriceSteps()) {
+            throw new IllegalArgumentException("PriceStep " + priceStep + " is out of bounds [0, "
+                                               + marketBasis.getPriceSteps() + ")");
+        }
+        return marketBasis.priceStepOf(priceStep);
+    }
+
     /**
      * @return the current value of marketBasis.
      */
@@ -76,7 +96,7 @@ public class PriceStep {
         if (isMaximum()) {
             throw new IllegalStateException("The priceStep is already at its maximum");
         }
-        return new PriceStep(marketBasis, priceStep + 1);
+        return marketBasis.priceStepOf(priceStep + 1);
     }
 
     /**
@@ -88,16 +108,17 @@ public class PriceStep {
         if (isMinimum()) {
             throw new IllegalStateException("The priceStep is already at its minimum");
         }
-        return new PriceStep(marketBasis, priceStep - 1);
+        return marketBasis.priceStepOf(priceStep - 1);
     }
 
     /**
-     * Creates a {@link Price}, based on the {@link MarketBasis} as the priceStep.
+     * Creates a {@link Price}, based on the {@link MarketBasis} as the priceStep. When the {@link MarketBasis} is the
+     * canonical instance, a cached {@link Price} is returned.
      *
-     * @return the new {@link Price}
+     * @return the {@link Price} of this priceStep
      */
     public Price toPrice() {
-        return new Price(marketBasis, marketBasis.getMinimumPrice() + priceStep * marketBasis.getPriceIncrement());
+        return marketBasis.priceOf(priceStep);
     }
 
     /**
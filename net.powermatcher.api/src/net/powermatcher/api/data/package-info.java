@@ -1,5 +1,5 @@
 /**
  * This package contains all the data objects that are used in the PowerMatcher, for example to represent bids and prices.
  */
-@aQute.bnd.annotation.Version("2.0.0.${tstamp}")
+@aQute.bnd.annotation.Version("2.1.0.${tstamp}")
 package net.powermatcher.api.data;
\ No newline at end of file
@@ -2,5 +2,5 @@
  * The main API package that contains the interfaces for an {@link Agent}, {@link AgentEndpoint} and
  * {@link MatcherEndpoint}. Also it given an interface for the {@link net.powermatcher.api.Session} between agents.
  */
-@aQute.bnd.annotation.Version("2.0.0.${tstamp}")
+@aQute.bnd.annotation.Version("2.1.0.${tstamp}")
 package net.powermatcher.api;
\ No newline at end of file
@@ -416,6 +416,51 @@ public class ArrayBidTest {
         assertThat(one.hashCode(), is(not(equalTo(other.hashCode()))));
     }
 
+    @Test
+    public void testDemandAt() {
+        for (int ix = 0; ix < demandFive.length; ix++) {
+            assertEquals(demandFive[ix], bid1.demandAt(ix), 0);
+        }
+    }
+
+    @Test
+    public void testCopyDemandInto() {
+        double[] destination = new double[marketBasisFiveSteps.getPriceSteps()];
+        bid1.copyDemandInto(destination);
+        Assert.assertArrayEquals(demandFive, destination, 0);
+    }
+
+    @Test
+    public void testAddToAndSubtractFrom() {
+        double[] accumulator = new double[] { 1.0, 1.0, 1.0, 1.0, 1.0 };
+        bid1.addTo(accumulator);
+        Assert.assertArrayEquals(new double[] { 101.0, 51.0, 51.0, 1.0, 1.0 }, accumulator, 0);
+        bid1.subtractFrom(accumulator);
+        Assert.assertArrayEquals(new double[] { 1.0, 1.0, 1.0, 1.0, 1.0 }, accumulator, 0);
+    }
+
+    @Test
+    public void testAddToWrongLength() {
+        expectedException.expect(IllegalArgumentException.class);
+        bid1.addTo(new double[marketBasisTenSteps.getPriceSteps()]);
+    }
+
+    @Test
+    public void testUntrustedSubclassAscending() {
+        expectedException.expect(IllegalArgumentException.class);
+        new ArrayBid(marketBasisFiveSteps, ascendingDemand.clone(), false) {
+        };
+    }
+
+    @Test
+    public void testPointBidAddTo() {
+        PointBid pointBid = new PointBid.Builder(marketBasisFiveSteps).add(0, 10).add(4, 10).build();
+        double[] accumulator = new double[marketBasisFiveSteps.getPriceSteps()];
+        pointBid.addTo(accumulator);
+        Assert.assertArrayEquals(pointBid.toArrayBid().getDemand(), accumulator, 0);
+        assertEquals(10, pointBid.demandAt(2), 0);
+    }
+
     @Test
     public void testToString() {
         String bid1String = bid1.toString();
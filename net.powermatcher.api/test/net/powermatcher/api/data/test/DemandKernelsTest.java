@@ -0,0 +1,100 @@
+package net.powermatcher.api.data.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the loops over demand arrays that the {@link ArrayBid} class uses to add, subtract, transpose and
+ * check its demand. They are tested through the public methods of {@link ArrayBid}, for every number of price steps up
+ * to {@link #MAX_PRICE_STEPS}, so any unrolled or vectorized tail of the loops is covered.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class DemandKernelsTest {
+    private static final int MAX_PRICE_STEPS = 20;
+
+    private static MarketBasis marketBasis(int priceSteps) {
+        return new MarketBasis("electricity", "EUR", priceSteps, 0, 10);
+    }
+
+    private static double[] randomDescending(Random random, int length) {
+        double[] demand = new double[length];
+        double last = 100;
+        for (int ix = 0; ix < length; ix++) {
+            last -= random.nextDouble() * 5;
+            demand[ix] = last;
+        }
+        return demand;
+    }
+
+    @Test
+    public void testAddToAndSubtractFrom() {
+        Random random = new Random(1);
+        for (int priceSteps = 1; priceSteps <= MAX_PRICE_STEPS; priceSteps++) {
+            double[] demand = randomDescending(random, priceSteps);
+            double[] accumulator = randomDescending(random, priceSteps);
+            double[] expected = Arrays.copyOf(accumulator, priceSteps);
+            for (int ix = 0; ix < priceSteps; ix++) {
+                expected[ix] += demand[ix];
+            }
+
+            ArrayBid bid = new ArrayBid(marketBasis(priceSteps), demand);
+            bid.addTo(accumulator);
+            assertArrayEquals(expected, accumulator, 0);
+
+            for (int ix = 0; ix < priceSteps; ix++) {
+                expected[ix] -= demand[ix];
+            }
+            bid.subtractFrom(accumulator);
+            assertArrayEquals(expected, accumulator, 0);
+        }
+    }
+
+    @Test
+    public void testTranspose() {
+        Random random = new Random(2);
+        for (int priceSteps = 1; priceSteps <= MAX_PRICE_STEPS; priceSteps++) {
+            double[] demand = randomDescending(random, priceSteps);
+            double[] expected = new double[priceSteps];
+            for (int ix = 0; ix < priceSteps; ix++) {
+                expected[ix] = demand[ix] + 2.5;
+            }
+
+            assertArrayEquals(expected, new ArrayBid(marketBasis(priceSteps), demand).transpose(2.5).getDemand(), 0);
+        }
+    }
+
+    @Test
+    public void testDescendingCheck() {
+        for (int priceSteps = 1; priceSteps <= MAX_PRICE_STEPS; priceSteps++) {
+            MarketBasis marketBasis = marketBasis(priceSteps);
+            double[] demand = new double[priceSteps];
+            for (int ix = 0; ix < priceSteps; ix++) {
+                demand[ix] = priceSteps - ix / 2;
+            }
+            // Equal neighbours are allowed
+            new ArrayBid(marketBasis, demand);
+
+            // Every position where the demand goes up should be found
+            for (int ix = 1; ix < priceSteps; ix++) {
+                double[] ascending = Arrays.copyOf(demand, priceSteps);
+                ascending[ix] = ascending[ix - 1] + 1;
+                try {
+                    new ArrayBid(marketBasis, ascending);
+                    fail("Expected an IllegalArgumentException for an ascending step at " + ix);
+                } catch (IllegalArgumentException e) {
+                    // Expected
+                }
+            }
+        }
+    }
+}
@@ -2,11 +2,14 @@ package net.powermatcher.api.data.test;
 
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
 import static org.junit.Assert.assertThat;
 
 import java.security.InvalidParameterException;
 
 import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PriceStep;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -19,6 +22,10 @@ import org.junit.rules.ExpectedException;
  * @version 2.0
  */
 public class MarketBasisTest {
+    /**
+     * Created before any test runs, so it exists even after testCanonicalInstancesBounded has filled the table.
+     */
+    private static final MarketBasis CANONICAL = MarketBasis.of("electricity", "EUR", 10, 0, 9);
 
     @Rule
     public ExpectedException expectedException = ExpectedException.none();
@@ -51,4 +58,83 @@ public class MarketBasisTest {
         expectedException.expectMessage("Maximum price must be > minimum price.");
         new MarketBasis("electricity", "EUR", 10, 2, 1);
     }
+
+    @Test
+    public void testOfReturnsCanonicalInstance() {
+        MarketBasis first = MarketBasis.of("electricity", "EUR", 10, 0, 1);
+        MarketBasis second = MarketBasis.of("electricity", "EUR", 10, 0, 1);
+        assertThat(second, is(sameInstance(first)));
+        assertThat(first.isCanonical(), is(true));
+        assertThat(MarketBasis.of("electricity", "EUR", 11, 0, 1), is(not(equalTo(first))));
+    }
+
+    @Test
+    public void testCanonicalEqualsConstructedInstance() {
+        MarketBasis constructed = new MarketBasis("electricity", "EUR", 10, 0, 1);
+        MarketBasis canonical = MarketBasis.of("electricity", "EUR", 10, 0, 1);
+        assertThat(constructed.isCanonical(), is(false));
+        assertThat(constructed, is(equalTo(canonical)));
+        assertThat(canonical, is(equalTo(constructed)));
+        assertThat(constructed.hashCode(), is(equalTo(canonical.hashCode())));
+        assertThat(MarketBasis.canonical(constructed), is(sameInstance(canonical)));
+    }
+
+    @Test
+    public void testCanonicalCachesPrices() {
+        MarketBasis canonical = MarketBasis.of("electricity", "EUR", 10, 0, 9);
+        PriceStep priceStep = new PriceStep(canonical, 3);
+        assertThat(priceStep.toPrice(), is(sameInstance(new PriceStep(canonical, 3).toPrice())));
+        assertThat(priceStep.toPrice().getPriceValue(), is(equalTo(3.0)));
+    }
+
+    @Test
+    public void testPriceToStep() {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 11, -1, 1);
+        for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
+            assertThat(marketBasis.priceToStep(marketBasis.priceValueOf(ix)), is(equalTo(ix)));
+        }
+        assertThat(marketBasis.priceToStep(-1), is(equalTo(0)));
+        assertThat(marketBasis.priceToStep(-0.99), is(equalTo(1)));
+        assertThat(marketBasis.priceToStep(0.05), is(equalTo(6)));
+        assertThat(marketBasis.priceToStep(1), is(equalTo(10)));
+    }
+
+    @Test
+    public void testCanonicalCachesPriceSteps() {
+        MarketBasis canonical = MarketBasis.of("electricity", "EUR", 10, 0, 9);
+        PriceStep priceStep = PriceStep.of(canonical, 3);
+        assertThat(priceStep, is(sameInstance(PriceStep.of(canonical, 3))));
+        assertThat(priceStep.increment(), is(sameInstance(PriceStep.of(canonical, 4))));
+        assertThat(priceStep.toPrice().toPriceStep(), is(sameInstance(priceStep)));
+    }
+
+    @Test
+    public void testCanonicalLargePriceSteps() {
+        // Must not allocate tables for all the price steps
+        MarketBasis canonical = MarketBasis.of("electricity", "EUR", 400000000, 0, 1);
+        assertThat(canonical.isCanonical(), is(true));
+        assertThat(PriceStep.of(canonical, 3).getPriceStep(), is(equalTo(3)));
+    }
+
+    @Test
+    public void testCanonicalInstancesBounded() {
+        MarketBasis last = null;
+        for (int ix = 0; ix < 1000; ix++) {
+            last = MarketBasis.of("bounded" + ix, "EUR", 10, 0, 1);
+        }
+        assertThat(last.isCanonical(), is(false));
+        assertThat(last, is(equalTo(new MarketBasis("bounded999", "EUR", 10, 0, 1))));
+    }
+
+    @Test
+    public void testCanonicalIfPresent() {
+        assertThat(MarketBasis.canonicalIfPresent(new MarketBasis("electricity", "EUR", 10, 0, 9)),
+                   is(sameInstance(CANONICAL)));
+
+        // Never adds a canonical instance
+        MarketBasis unknown = new MarketBasis("lookup-only", "EUR", 10, 0, 9);
+        assertThat(MarketBasis.canonicalIfPresent(unknown), is(sameInstance(unknown)));
+        assertThat(MarketBasis.canonicalIfPresent(new MarketBasis("lookup-only", "EUR", 10, 0, 9)).isCanonical(),
+                   is(false));
+    }
 }
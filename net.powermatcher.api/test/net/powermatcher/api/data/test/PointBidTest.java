@@ -113,6 +113,13 @@ public class PointBidTest {
         assertThat(buildBid.getPricePoints().length, is(equalTo(1)));
     }
 
+    @Test
+    public void testGetDemandAtInteriorPoint() {
+        PointBid bid = new PointBid.Builder(marketBasisFiveSteps).add(-1, 10).add(3, 5).add(7, 0).build();
+        assertEquals(5.0, bid.getDemandAt(new Price(marketBasisFiveSteps, 3)), DEMAND_ACCURACY);
+        assertArrayEquals(new double[] { 10, 7.5, 5, 2.5, 0 }, bid.toArrayBid().getDemand(), DEMAND_ACCURACY);
+    }
+
     @Test
     public void testCalculateIntersection() {
     }
@@ -0,0 +1,80 @@
+package net.powermatcher.core.bidcache.test;
+
+import java.util.Random;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.core.bidcache.BidCache;
+
+/**
+ * Simple benchmark that compares the cost of a single bid update followed by an aggregation in the full and the
+ * incremental mode of the {@link BidCache}, with a single shard and with 8 shards, for a growing number of agents.
+ * This is not a unit test; run it using the main method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class BidCacheBenchmark {
+    private static final MarketBasis MB = new MarketBasis("Electricity", "EUR", 100, 0, 1);
+    private static final int[] AGENT_COUNTS = { 1000, 20000, 100000 };
+    private static final int[] INTERVALS = { 0, 10000 };
+    private static final int[] SHARD_COUNTS = { 1, 8 };
+    private static final int UPDATES = 2000;
+
+    public static void main(String[] args) {
+        Bid[] bids = createBids(new Random(1), 64);
+
+        System.out.println("agents;mode;shards;update (us);update+aggregate (us)");
+        for (int agents : AGENT_COUNTS) {
+            for (int interval : INTERVALS) {
+                for (int shards : SHARD_COUNTS) {
+                    benchmark(bids, agents, interval, shards);
+                }
+            }
+        }
+    }
+
+    private static void benchmark(Bid[] bids, int agents, int interval, int shards) {
+        BidCache bidCache = new BidCache(MB, interval, shards);
+        for (int ix = 0; ix < agents; ix++) {
+            bidCache.updateAgentBid("agent" + ix, new BidUpdate(bids[ix % bids.length], 0));
+        }
+        bidCache.aggregate();
+
+        // Warm up, then measure
+        run(bidCache, bids, agents, false);
+        double update = run(bidCache, bids, agents, false);
+        double round = run(bidCache, bids, agents, true);
+        System.out.printf("%d;%s;%d;%.2f;%.2f%n",
+                          agents,
+                          bidCache.isIncremental() ? "incremental" : "full",
+                          shards,
+                          update,
+                          round);
+    }
+
+    private static double run(BidCache bidCache, Bid[] bids, int agents, boolean aggregate) {
+        Random random = new Random(2);
+        long start = System.nanoTime();
+        for (int ix = 0; ix < UPDATES; ix++) {
+            bidCache.updateAgentBid("agent" + random.nextInt(agents),
+                                    new BidUpdate(bids[random.nextInt(bids.length)], ix));
+            if (aggregate) {
+                bidCache.aggregate();
+            }
+        }
+        return (System.nanoTime() - start) / 1000.0 / UPDATES;
+    }
+
+    private static Bid[] createBids(Random random, int count) {
+        Bid[] bids = new Bid[count];
+        for (int ix = 0; ix < count; ix++) {
+            double maxDemand = random.nextDouble() * 1000;
+            int priceStep = 1 + random.nextInt(MB.getPriceSteps() - 1);
+            bids[ix] = new ArrayBid.Builder(MB).demand(maxDemand).fillTo(priceStep).demand(0).build();
+        }
+        return bids;
+    }
+}
@@ -70,6 +70,14 @@ public abstract class BaseAgent
         observers.remove(observer);
     }
 
+    /**
+     * @return true when at least one {@link Observer} service is attached, which can be used to skip creating events
+     *         that nobody would receive
+     */
+    protected final boolean hasObservers() {
+        return !observers.isEmpty();
+    }
+
     /**
      * Publish an {@link AgentEvent} to the attached {@link Observer} services.
      *
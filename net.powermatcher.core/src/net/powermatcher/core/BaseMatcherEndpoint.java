@@ -1,6 +1,7 @@
 package net.powermatcher.core;
 
 import java.security.InvalidParameterException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -21,6 +22,8 @@ import net.powermatcher.api.monitoring.events.IncomingBidUpdateEvent;
 import net.powermatcher.api.monitoring.events.OutgoingPriceUpdateEvent;
 import net.powermatcher.core.bidcache.AggregatedBid;
 import net.powermatcher.core.bidcache.BidCache;
+import net.powermatcher.core.bidcache.CoalescingSlots;
+import net.powermatcher.core.fanout.PriceFanOut;
 
 public abstract class BaseMatcherEndpoint
     extends BaseAgent
@@ -106,7 +109,7 @@ public abstract class BaseMatcherEndpoint
             final Agent.Status currentStatus = getStatus();
             try {
                 if (currentStatus.isConnected()) {
-                    AggregatedBid aggregatedBid = bidCache.aggregate();
+                    AggregatedBid aggregatedBid = aggregate();
                     publishEvent(new AggregatedBidEvent(currentStatus.getClusterId(),
                                                         getAgentId(),
                                                         now(),
@@ -119,6 +122,11 @@ public abstract class BaseMatcherEndpoint
                 synchronized (this) {
                     bidUpdateSchedule = null;
                     coolDownEnds = context.currentTimeMillis() + minTimeBetweenUpdates;
+                    // Bids that arrived during this round could not schedule a new one
+                    CoalescingSlots<PendingBid> currentPendingBids = pendingBids;
+                    if (currentPendingBids != null && !currentPendingBids.isEmpty()) {
+                        schedule();
+                    }
                 }
             }
         }
@@ -149,12 +157,23 @@ public abstract class BaseMatcherEndpoint
     private volatile Agent.Status status;
     private volatile BidCache bidCache;
     private volatile RateLimitedBidPublisher bidUpdater;
+    private volatile PriceFanOut priceFanOut;
+    private volatile CoalescingSlots<PendingBid> pendingBids;
+
+    private final PriceFanOut.SlowConsumerListener slowConsumerListener = new PriceFanOut.SlowConsumerListener() {
+        @Override
+        public void slowConsumerDetected(Session session, long deliveryMillis) {
+            BaseMatcherEndpoint.this.slowConsumerDetected(session, deliveryMillis);
+        }
+    };
 
     public BaseMatcherEndpoint() {
         status = NOT_CONNECTED;
         agentId = null;
         bidCache = null;
         bidUpdater = null;
+        priceFanOut = null;
+        pendingBids = null;
     }
 
     @Override
@@ -186,25 +205,142 @@ public abstract class BaseMatcherEndpoint
     }
 
     public void configure(MarketBasis marketBasis, String clusterId, long minTimeBetweenUpdates) {
-        bidCache = new BidCache(marketBasis);
+        bidCache = createBidCache(marketBasis);
         status = new Connected(clusterId, marketBasis);
         bidUpdater = new RateLimitedBidPublisher(minTimeBetweenUpdates);
+        int priceFanOutParallelism = getPriceFanOutParallelism();
+        priceFanOut = priceFanOutParallelism > 0 ? new PriceFanOut(agentId,
+                                                                   priceFanOutParallelism,
+                                                                   getSlowConsumerTimeout(),
+                                                                   slowConsumerListener)
+                                                 : null;
+        pendingBids = coalesceIncomingBids() ? new CoalescingSlots<PendingBid>() : null;
+    }
+
+    /**
+     * Creates the {@link BidCache} that is used to aggregate the bids of the connected agents. This is called during
+     * {@link #configure(MarketBasis, String, long)} and can be overridden to configure the {@link BidCache}
+     * differently.
+     *
+     * @param marketBasis
+     *            The {@link MarketBasis} of the cluster this matcher is connected to
+     * @return The new {@link BidCache}
+     */
+    protected BidCache createBidCache(MarketBasis marketBasis) {
+        return new BidCache(marketBasis);
+    }
+
+    /**
+     * Determines if the incoming bids are coalesced. This is called during
+     * {@link #configure(MarketBasis, String, long)}. When this returns true,
+     * {@link #handleBidUpdate(Session, BidUpdate)} only validates the bid and keeps it as the latest pending bid of the
+     * agent. The pending bids are added to the {@link BidCache} once per aggregation round, where a bid that has been
+     * replaced by a newer bid of the same agent is dropped without an {@link IncomingBidUpdateEvent}.
+     *
+     * @return true when the incoming bids should be coalesced. By default this returns false.
+     */
+    protected boolean coalesceIncomingBids() {
+        return false;
+    }
+
+    /**
+     * Determines the number of threads that deliver the prices to the connected agents. This is called during
+     * {@link #configure(MarketBasis, String, long)}. When this is 0, {@link #publishPrice(Price, AggregatedBid)}
+     * delivers the prices itself, one session after the other.
+     *
+     * @return The number of threads that deliver the prices. By default this returns 0.
+     */
+    protected int getPriceFanOutParallelism() {
+        return 0;
+    }
+
+    /**
+     * Determines after how many milliseconds a price delivery is seen as slow. This is called during
+     * {@link #configure(MarketBasis, String, long)} and is only used when {@link #getPriceFanOutParallelism()} is more
+     * than 0.
+     *
+     * @return The slow consumer timeout in milliseconds. By default this returns 60000.
+     */
+    protected long getSlowConsumerTimeout() {
+        return 60000;
+    }
+
+    /**
+     * Called when the asynchronous price delivery detects that an agent takes longer than the slow consumer timeout to
+     * handle a price. By default the session is disconnected, which happens as soon as the agent has handled the price.
+     *
+     * @param session
+     *            The session of the slow agent
+     * @param deliveryMillis
+     *            The number of milliseconds that the agent is already handling the price
+     */
+    protected void slowConsumerDetected(final Session session, long deliveryMillis) {
+        LOGGER.warn("Agent [{}] is handling a price for {} ms, disconnecting it", session.getAgentId(), deliveryMillis);
+        context.submit(new Runnable() {
+            @Override
+            public void run() {
+                session.disconnect();
+            }
+        });
+    }
+
+    /**
+     * @return A snapshot of the statistics of the price delivery per agentId, which is empty when the prices are
+     *         delivered synchronously.
+     */
+    public Map<String, PriceDeliveryStatistics> getPriceDeliveryStatistics() {
+        PriceFanOut currentPriceFanOut = priceFanOut;
+        if (currentPriceFanOut == null) {
+            return Collections.emptyMap();
+        }
+        return currentPriceFanOut.getStatistics();
     }
 
     public void unconfigure() {
-        for (Iterator<Session> it = sessions.values().iterator(); it.hasNext();) {
-            Session session = it.next();
+        for (Iterator<ConnectedSession> it = sessions.values().iterator(); it.hasNext();) {
+            Session session = it.next().session;
             session.disconnect();
             it.remove();
         }
 
         bidUpdater.cancel();
         bidUpdater = null;
+        pendingBids = null;
+        if (priceFanOut != null) {
+            priceFanOut.shutdown();
+            priceFanOut = null;
+        }
         bidCache = null;
         status = NOT_CONNECTED;
     }
 
-    private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    /**
+     * A connected {@link Session}, together with the slot of its agent in the {@link BidCache}.
+     */
+    private static final class ConnectedSession {
+        final Session session;
+        final int slot;
+
+        ConnectedSession(Session session, int slot) {
+            this.session = session;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * A bid that has been received, but has not been added to the {@link BidCache} yet.
+     */
+    private static final class PendingBid {
+        final ConnectedSession connectedSession;
+        final BidUpdate bidUpdate;
+
+        PendingBid(ConnectedSession connectedSession, BidUpdate bidUpdate) {
+            this.connectedSession = connectedSession;
+            this.bidUpdate = bidUpdate;
+        }
+    }
+
+    private final Map<String, ConnectedSession> sessions = new ConcurrentHashMap<String, ConnectedSession>();
 
     @Override
     public void connectToAgent(Session session) {
@@ -214,7 +350,8 @@ public abstract class BaseMatcherEndpoint
                 throw new IllegalStateException("This matcher is not yet connected to the cluster");
             } else if (!sessions.containsKey(session.getAgentId())) {
                 session.setMarketBasis(currentStatus.getMarketBasis());
-                sessions.put(session.getAgentId(), session);
+                sessions.put(session.getAgentId(),
+                             new ConnectedSession(session, bidCache.getSlot(session.getAgentId())));
                 LOGGER.info("Agent connected with session [{}]", session.getSessionId());
             } else {
                 throw new IllegalStateException("An agent with id [" + session.getAgentId() + "] was already connected");
@@ -225,22 +362,35 @@ public abstract class BaseMatcherEndpoint
     @Override
     public void agentEndpointDisconnected(Session session) {
         synchronized (sessions) {
-            Session foundSession = sessions.get(session.getAgentId());
-            if (session.equals(foundSession)) {
+            ConnectedSession foundSession = sessions.get(session.getAgentId());
+            if (foundSession != null && session.equals(foundSession.session)) {
                 sessions.remove(session.getAgentId());
-                bidCache.removeBidOfAgent(session.getAgentId());
+                if (priceFanOut != null) {
+                    priceFanOut.remove(session);
+                }
+                bidCache.removeAgent(session.getAgentId());
                 bidUpdater.schedule();
                 LOGGER.info("Agent disconnected with session [{}]", session.getSessionId());
             }
         }
     }
 
+    /**
+     * Sends a price to all the connected agents of which the bid is part of the aggregated bid. When
+     * {@link #getPriceFanOutParallelism()} is more than 0, the prices are only queued and this method does not wait for
+     * the agents.
+     *
+     * @param price
+     *            The price that has to be sent
+     * @param aggregatedBid
+     *            The aggregated bid on which the price is based, which determines the bid number for each agent
+     */
     public void publishPrice(Price price, AggregatedBid aggregatedBid) {
-        Map<String, Integer> references = aggregatedBid.getAgentBidReferences();
-
-        for (Session session : sessions.values()) {
-            Integer bidNumber = references.get(session.getAgentId());
-            if (bidNumber != null) {
+        PriceFanOut currentPriceFanOut = priceFanOut;
+        for (ConnectedSession connectedSession : sessions.values()) {
+            Session session = connectedSession.session;
+            if (aggregatedBid.hasBid(connectedSession.slot, session.getAgentId())) {
+                int bidNumber = aggregatedBid.getBidNumber(connectedSession.slot, session.getAgentId());
                 PriceUpdate priceUpdate = new PriceUpdate(price, bidNumber);
                 publishEvent(new OutgoingPriceUpdateEvent(status.getClusterId(),
                                                           getAgentId(),
@@ -249,37 +399,67 @@ public abstract class BaseMatcherEndpoint
                                                           priceUpdate));
                 LOGGER.debug("New price: {}, session {}", priceUpdate, session.getSessionId());
 
-                try {
-                    session.updatePrice(priceUpdate);
-                } catch (RuntimeException ex) {
-                    LOGGER.warn("Unexpected exception while send priceupdate to " + session.getAgentId(), ex);
+                if (currentPriceFanOut != null) {
+                    currentPriceFanOut.deliver(session, priceUpdate);
+                } else {
+                    try {
+                        session.updatePrice(priceUpdate);
+                    } catch (RuntimeException ex) {
+                        LOGGER.warn("Unexpected exception while send priceupdate to " + session.getAgentId(), ex);
+                    }
                 }
             }
         }
     }
 
     public final AggregatedBid aggregate() {
+        applyPendingBids();
         return bidCache.aggregate();
     }
 
-    protected abstract void performUpdate(AggregatedBid aggregatedBid);
-
-    @Override
-    public void handleBidUpdate(Session session, BidUpdate bidUpdate) {
-        Agent.Status currentStatus = getStatus();
-
-        if (!currentStatus.isConnected()) {
-            throw new IllegalStateException("Not connected to the cluster");
-        }
+    /**
+     * @return The number of incoming bids that have been replaced by a newer bid of the same agent before they were
+     *         aggregated. This is always 0 when the incoming bids are not coalesced.
+     */
+    public long getSupersededBidCount() {
+        CoalescingSlots<PendingBid> currentPendingBids = pendingBids;
+        return currentPendingBids == null ? 0 : currentPendingBids.getSupersededCount();
+    }
 
-        if (session == null || !sessions.containsKey(session.getAgentId())) {
-            throw new IllegalStateException("No session found");
+    /**
+     * Adds the pending bids to the {@link BidCache}, when the incoming bids are coalesced.
+     */
+    private void applyPendingBids() {
+        CoalescingSlots<PendingBid> currentPendingBids = pendingBids;
+        if (currentPendingBids == null) {
+            return;
         }
 
-        if (bidUpdate == null || !bidUpdate.getBid().getMarketBasis().equals(currentStatus.getMarketBasis())) {
-            throw new InvalidParameterException("Marketbasis new bid differs from marketbasis auctioneer");
+        Agent.Status currentStatus = getStatus();
+        synchronized (currentPendingBids) {
+            PendingBid pendingBid;
+            while ((pendingBid = currentPendingBids.poll()) != null) {
+                Session session = pendingBid.connectedSession.session;
+                // Skip the bid when the agent has been disconnected since it was sent
+                if (sessions.get(session.getAgentId()) == pendingBid.connectedSession
+                    && currentStatus.isConnected()) {
+                    applyBidUpdate(currentStatus, session, pendingBid.bidUpdate);
+                }
+            }
         }
+    }
 
+    /**
+     * Adds a bid to the {@link BidCache} and publishes the {@link IncomingBidUpdateEvent}.
+     *
+     * @param currentStatus
+     *            The current status of this matcher
+     * @param session
+     *            The session through which the bid has been sent
+     * @param bidUpdate
+     *            The bid that has been sent
+     */
+    private void applyBidUpdate(Agent.Status currentStatus, Session session, BidUpdate bidUpdate) {
         // Update agent in aggregatedBids
         bidCache.updateAgentBid(session.getAgentId(), bidUpdate);
 
@@ -291,7 +471,34 @@ public abstract class BaseMatcherEndpoint
                                                 context.currentTime(),
                                                 session.getAgentId(),
                                                 bidUpdate));
+    }
+
+    protected abstract void performUpdate(AggregatedBid aggregatedBid);
+
+    @Override
+    public void handleBidUpdate(Session session, BidUpdate bidUpdate) {
+        Agent.Status currentStatus = getStatus();
 
-        bidUpdater.schedule();
+        if (!currentStatus.isConnected()) {
+            throw new IllegalStateException("Not connected to the cluster");
+        }
+
+        ConnectedSession connectedSession = session == null ? null : sessions.get(session.getAgentId());
+        if (connectedSession == null) {
+            throw new IllegalStateException("No session found");
+        }
+
+        if (bidUpdate == null || !bidUpdate.getBid().getMarketBasis().equals(currentStatus.getMarketBasis())) {
+            throw new InvalidParameterException("Marketbasis new bid differs from marketbasis auctioneer");
+        }
+
+        CoalescingSlots<PendingBid> currentPendingBids = pendingBids;
+        if (currentPendingBids == null) {
+            applyBidUpdate(currentStatus, session, bidUpdate);
+            bidUpdater.schedule();
+        } else if (currentPendingBids.offer(connectedSession.slot, new PendingBid(connectedSession, bidUpdate))) {
+            // Only the first pending bid of the agent has to schedule the next round
+            bidUpdater.schedule();
+        }
     }
 }
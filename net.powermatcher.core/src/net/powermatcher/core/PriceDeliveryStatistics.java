@@ -0,0 +1,104 @@
+package net.powermatcher.core;
+
+import net.powermatcher.api.Session;
+import net.powermatcher.api.messages.PriceUpdate;
+
+/**
+ * A snapshot of the statistics of the delivery of {@link PriceUpdate}s to a single {@link Session}, as kept by a
+ * {@link BaseMatcherEndpoint} that delivers its prices asynchronously.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public final class PriceDeliveryStatistics {
+    private final long delivered, coalesced, failed, slowConsumerCount;
+    private final long totalLatencyNanos, maxLatencyNanos;
+
+    /**
+     * @param delivered
+     *            The number of {@link PriceUpdate}s that have been handed to the session
+     * @param coalesced
+     *            The number of {@link PriceUpdate}s that have been replaced by a newer one before they were delivered
+     * @param failed
+     *            The number of deliveries that ended with an exception
+     * @param slowConsumerCount
+     *            The number of deliveries that took longer than the slow consumer timeout
+     * @param totalLatencyNanos
+     *            The sum of the latencies of the delivered {@link PriceUpdate}s, in nanoseconds
+     * @param maxLatencyNanos
+     *            The highest latency of a delivered {@link PriceUpdate}, in nanoseconds
+     */
+    public PriceDeliveryStatistics(long delivered,
+                                   long coalesced,
+                                   long failed,
+                                   long slowConsumerCount,
+                                   long totalLatencyNanos,
+                                   long maxLatencyNanos) {
+        this.delivered = delivered;
+        this.coalesced = coalesced;
+        this.failed = failed;
+        this.slowConsumerCount = slowConsumerCount;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+    }
+
+    /**
+     * @return The number of {@link PriceUpdate}s that have been handed to the session
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return The number of {@link PriceUpdate}s that have been replaced by a newer one before they were delivered
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return The number of deliveries that ended with an exception
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return The number of deliveries that took longer than the slow consumer timeout
+     */
+    public long getSlowConsumerCount() {
+        return slowConsumerCount;
+    }
+
+    /**
+     * @return The average time in microseconds between the moment a price was queued and the moment the
+     *         session has handled it
+     */
+    public double getAverageLatencyMicros() {
+        return delivered == 0 ? 0 : totalLatencyNanos / 1000.0 / delivered;
+    }
+
+    /**
+     * @return The highest time in microseconds between the moment a price was queued and the moment the
+     *         session has handled it
+     */
+    public double getMaxLatencyMicros() {
+        return maxLatencyNanos / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "PriceDeliveryStatistics [delivered=" + delivered
+               + ", coalesced="
+               + coalesced
+               + ", failed="
+               + failed
+               + ", slowConsumerCount="
+               + slowConsumerCount
+               + ", averageLatencyMicros="
+               + getAverageLatencyMicros()
+               + ", maxLatencyMicros="
+               + getMaxLatencyMicros()
+               + "]";
+    }
+}
@@ -9,6 +9,7 @@ import net.powermatcher.api.data.Price;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.core.BaseMatcherEndpoint;
 import net.powermatcher.core.bidcache.AggregatedBid;
+import net.powermatcher.core.bidcache.BidCache;
 import net.powermatcher.core.concentrator.Concentrator;
 import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
@@ -62,8 +63,40 @@ public class Auctioneer
         @Meta.AD(deflt = "1000",
                  description = "Mimimum time between two PriceUpdates generated by the Auctioneer in milliseconds")
         long minTimeBetweenPriceUpdates();
+
+        @Meta.AD(deflt = "0",
+                 required = false,
+                 description = "Number of bid updates that are aggregated incrementally before the aggregated bid is "
+                               + "calculated in full again. When 0, every aggregation is done in full.")
+        int fullAggregationInterval();
+
+        @Meta.AD(deflt = "1",
+                 required = false,
+                 description = "Number of shards over which the bids of the connected agents are divided. When more "
+                               + "than 1, the shards are aggregated in parallel.")
+        int bidCacheShards();
+
+        @Meta.AD(deflt = "false",
+                 required = false,
+                 description = "When true, only the latest bid of each agent is kept until the next aggregation "
+                               + "round, older bids that have not been aggregated yet are dropped.")
+        boolean coalesceBids();
+
+        @Meta.AD(deflt = "0",
+                 required = false,
+                 description = "Number of threads that deliver the prices to the connected agents. When 0, the prices "
+                               + "are delivered one agent after the other on the thread that determines the price.")
+        int priceFanOutParallelism();
+
+        @Meta.AD(deflt = "60000",
+                 required = false,
+                 description = "Time in milliseconds after which an agent that is still handling a price is "
+                               + "disconnected. Only used when the priceFanOutParallelism is more than 0.")
+        long slowConsumerTimeout();
     }
 
+    private Config config;
+
     /**
      * OSGi calls this method to activate a managed service.
      *
@@ -72,18 +105,50 @@ public class Auctioneer
      */
     @Activate
     public void activate(final Map<String, ?> properties) {
-        Config config = Configurable.createConfigurable(Config.class, properties);
+        config = Configurable.createConfigurable(Config.class, properties);
         super.init(config.agentId());
 
-        MarketBasis marketBasis = new MarketBasis(config.commodity(),
-                                                  config.currency(),
-                                                  config.priceSteps(),
-                                                  config.minimumPrice(),
-                                                  config.maximumPrice());
+        MarketBasis marketBasis = MarketBasis.of(config.commodity(),
+                                                 config.currency(),
+                                                 config.priceSteps(),
+                                                 config.minimumPrice(),
+                                                 config.maximumPrice());
 
         configure(marketBasis, config.clusterId(), config.minTimeBetweenPriceUpdates());
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BidCache createBidCache(MarketBasis marketBasis) {
+        return new BidCache(marketBasis, config.fullAggregationInterval(), config.bidCacheShards());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean coalesceIncomingBids() {
+        return config.coalesceBids();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int getPriceFanOutParallelism() {
+        return config.priceFanOutParallelism();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected long getSlowConsumerTimeout() {
+        return config.slowConsumerTimeout();
+    }
+
     /**
      * OSGi calls this method to deactivate a managed service.
      */
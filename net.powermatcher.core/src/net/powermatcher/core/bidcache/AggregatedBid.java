@@ -2,11 +2,16 @@ package net.powermatcher.core.bidcache;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import net.powermatcher.api.data.ArrayBid;
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBid;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.data.PricePoint;
 import net.powermatcher.api.messages.BidUpdate;
 
 /**
@@ -29,6 +34,11 @@ public final class AggregatedBid
      *                                                          .build();
      * </pre>
      *
+     * A {@link PointBid} is not converted to an {@link ArrayBid} before it is added. Instead its flat demand is added to
+     * a single offset and each of its segments is added as a change in level and slope at the price steps where the
+     * segment starts and ends. The {@link #build()} method then calculates the demand of all these bids in a single
+     * pass over the price steps. This makes adding a {@link PointBid} independent of the number of price steps.
+     *
      * This class is not thread-safe.
      */
     public static final class Builder {
@@ -36,6 +46,22 @@ public final class AggregatedBid
         private final Map<String, Integer> agentBidReferences;
         private final double[] aggregatedBid;
 
+        /**
+         * The demand that has to be added to every price step.
+         */
+        private double offset;
+
+        /**
+         * The change in demand level at each price step, or <code>null</code> when no segments have been added.
+         */
+        private double[] levelDifference;
+
+        /**
+         * The change in the slope of the demand (per price step) at each price step, or <code>null</code> when no
+         * segments have been added.
+         */
+        private double[] slopeDifference;
+
         /**
          * Creates a new {@link Builder} that should be used to generate a new {@link AggregatedBid}.
          *
@@ -72,9 +98,104 @@ public final class AggregatedBid
 
         public Builder addBid(Bid bid) {
             if (bid.getMarketBasis().equals(marketBasis)) {
-                double[] demand = bid.toArrayBid().getDemand();
-                for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
-                    aggregatedBid[ix] += demand[ix];
+                if (bid instanceof PointBid) {
+                    addPointBid((PointBid) bid);
+                } else {
+                    bid.addTo(aggregatedBid);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Adds a {@link PointBid} as an offset and a segment between each pair of price points.
+         *
+         * @param bid
+         *            The {@link PointBid} that has to be added
+         */
+        private void addPointBid(PointBid bid) {
+            Iterator<PricePoint> iterator = bid.iterator();
+            PricePoint previous = iterator.next();
+            offset += previous.getDemand();
+            while (iterator.hasNext()) {
+                PricePoint next = iterator.next();
+                addSegment(previous.getPrice().getPriceValue(),
+                           next.getPrice().getPriceValue(),
+                           next.getDemand() - previous.getDemand());
+                previous = next;
+            }
+        }
+
+        /**
+         * Adds a segment of a {@link PointBid}, in the same way as {@link PointBid#getDemandAt(Price)} interpolates the
+         * demand: nothing changes up to and including the start price, the demand changes linearly up to the end price
+         * and from the end price on the full change in demand applies.
+         *
+         * @param startPrice
+         *            The price at which the segment starts
+         * @param endPrice
+         *            The price at which the segment ends, which is equal to the startPrice for a step
+         * @param demandChange
+         *            The difference between the demand at the end and at the start of the segment
+         */
+        private void addSegment(double startPrice, double endPrice, double demandChange) {
+            if (demandChange == 0) {
+                return;
+            } else if (levelDifference == null) {
+                levelDifference = new double[aggregatedBid.length];
+                slopeDifference = new double[aggregatedBid.length];
+            }
+
+            int endStep = firstStepFrom(endPrice);
+            if (endPrice > startPrice) {
+                int startStep = firstStepFrom(startPrice);
+                if (startStep < aggregatedBid.length && marketBasis.priceValueOf(startStep) == startPrice) {
+                    startStep++;
+                }
+                if (startStep < endStep) {
+                    // The demand at step ix is level + slope * ix
+                    double width = endPrice - startPrice;
+                    double slope = demandChange * marketBasis.getPriceIncrement() / width;
+                    double level = demandChange * (marketBasis.getMinimumPrice() - startPrice) / width;
+                    levelDifference[startStep] += level;
+                    slopeDifference[startStep] += slope;
+                    if (endStep < aggregatedBid.length) {
+                        levelDifference[endStep] -= level;
+                        slopeDifference[endStep] -= slope;
+                    }
+                }
+            }
+            if (endStep < aggregatedBid.length) {
+                levelDifference[endStep] += demandChange;
+            }
+        }
+
+        /**
+         * @param price
+         *            The price value
+         * @return The first price step of which the price is not lower than the given price, or the number of price
+         *         steps when there is none.
+         */
+        private int firstStepFrom(double price) {
+            int priceStep = marketBasis.priceToStep(price);
+            return marketBasis.priceValueOf(priceStep) < price ? aggregatedBid.length : priceStep;
+        }
+
+        /**
+         * Adds an already aggregated demand array. Because a running sum of the demand will contain rounding errors,
+         * demand values that are higher than the demand of the previous price step are flattened. This should therefore
+         * be the only demand that is added to this {@link Builder}.
+         *
+         * @param demand
+         *            The demand array, which should have the same length as the number of price steps in the market
+         *            basis.
+         * @return This {@link Builder}
+         */
+        Builder addDemand(double[] demand) {
+            for (int ix = 0; ix < aggregatedBid.length; ix++) {
+                aggregatedBid[ix] += demand[ix];
+                if (ix > 0 && aggregatedBid[ix] > aggregatedBid[ix - 1]) {
+                    aggregatedBid[ix] = aggregatedBid[ix - 1];
                 }
             }
             return this;
@@ -85,32 +206,184 @@ public final class AggregatedBid
          *         called, the {@link Builder} should not be used any further.
          */
         public AggregatedBid build() {
-            return new AggregatedBid(marketBasis, aggregatedBid, agentBidReferences);
+            return new AggregatedBid(marketBasis, buildDemand(), agentBidReferences);
+        }
+
+        /**
+         * Calculates the demand of all the added bids, without the references to the bids of the agents. This is used by
+         * the {@link BidCache}, which keeps track of the references itself.
+         *
+         * @return The aggregated demand array. After this method has been called, the {@link Builder} should not be used
+         *         any further.
+         */
+        double[] buildDemand() {
+            if (offset != 0 || levelDifference != null) {
+                double level = offset;
+                double slope = 0;
+                for (int ix = 0; ix < aggregatedBid.length; ix++) {
+                    if (levelDifference != null) {
+                        level += levelDifference[ix];
+                        slope += slopeDifference[ix];
+                    }
+                    aggregatedBid[ix] += level + slope * ix;
+                    // The interpolation can add some rounding errors, which should not make the demand ascending
+                    if (ix > 0 && aggregatedBid[ix] > aggregatedBid[ix - 1]) {
+                        aggregatedBid[ix] = aggregatedBid[ix - 1];
+                    }
+                }
+            }
+            return aggregatedBid;
         }
     }
 
-    private final Map<String, Integer> agentBidReferences;
+    /**
+     * The bid numbers per slot. The slots are divided over the arrays, where slot s is found at index s / length of the
+     * array with index s % length. These arrays are shared with the {@link BidCache} and should never be changed.
+     */
+    private final int[][] bidNumbers;
+
+    /**
+     * The agentId of the bid in each slot, or <code>null</code> when the slot has no bid. These arrays are divided in
+     * the same way as the bid numbers, are shared with the {@link BidCache} and should never be changed.
+     */
+    private final String[][] agentIds;
+
+    /**
+     * True when the slots are those of the {@link BidCache} that created this bid. A slot of that cache then tells
+     * whether the agent has a bid, without a lookup by agentId.
+     */
+    private final boolean cacheSlots;
+
+    /**
+     * The {@link Map} of agentId to bid number, which is only created when it is needed.
+     */
+    private volatile Map<String, Integer> agentBidReferences;
 
     AggregatedBid(MarketBasis marketBasis, double[] demand, Map<String, Integer> agentBidReferences) {
-        super(marketBasis, demand);
+        // The sum of descending bids is always descending, so the demand array of the Builder can be used directly
+        super(marketBasis, demand, true);
         this.agentBidReferences = Collections.unmodifiableMap(agentBidReferences);
+        agentIds = new String[][] { new String[agentBidReferences.size()] };
+        bidNumbers = new int[][] { new int[agentBidReferences.size()] };
+        cacheSlots = false;
+        int slot = 0;
+        for (Entry<String, Integer> entry : agentBidReferences.entrySet()) {
+            agentIds[0][slot] = entry.getKey();
+            bidNumbers[0][slot] = entry.getValue();
+            slot++;
+        }
+    }
+
+    AggregatedBid(MarketBasis marketBasis, double[] demand, int[][] bidNumbers, String[][] agentIds) {
+        super(marketBasis, demand, true);
+        this.bidNumbers = bidNumbers;
+        this.agentIds = agentIds;
+        cacheSlots = true;
     }
 
     public AggregatedBid(ArrayBid bid, Map<String, Integer> agentBidReferences) {
-        super(bid);
-        this.agentBidReferences = Collections.unmodifiableMap(new HashMap<String, Integer>(agentBidReferences));
+        this(bid.getMarketBasis(), bid.getDemand(), new HashMap<String, Integer>(agentBidReferences));
+    }
+
+    /**
+     * Determines if this {@link AggregatedBid} contains a bid of an agent. When the slot has been given by the
+     * {@link BidCache} that created this {@link AggregatedBid}, only that slot is checked, so this does not need a
+     * lookup by agentId.
+     *
+     * @param slot
+     *            The slot of the agent, as given by {@link BidCache#getSlot(String)}, or a negative number when the
+     *            agent has no slot in that cache.
+     * @param agentId
+     *            The unique identifier of the agent, which is looked up when there is no slot.
+     * @return true when this {@link AggregatedBid} contains a bid of the agent
+     */
+    public boolean hasBid(int slot, String agentId) {
+        if (hasCacheSlot(slot)) {
+            return isSlotOf(slot, agentId);
+        }
+        return getAgentBidReferences().containsKey(agentId);
+    }
+
+    /**
+     * Gets the number of the bid of an agent that has been used in this {@link AggregatedBid}. When the slot has been
+     * given by the {@link BidCache} that created this {@link AggregatedBid}, only that slot is checked, so this does
+     * not need a lookup by agentId.
+     *
+     * @param slot
+     *            The slot of the agent, as given by {@link BidCache#getSlot(String)}, or a negative number when the
+     *            agent has no slot in that cache.
+     * @param agentId
+     *            The unique identifier of the agent, which is looked up when there is no slot.
+     * @return The bid number
+     * @throws IllegalArgumentException
+     *             When this {@link AggregatedBid} does not contain a bid of the agent. See
+     *             {@link #hasBid(int, String)}.
+     */
+    public int getBidNumber(int slot, String agentId) {
+        Integer bidNumber;
+        if (hasCacheSlot(slot)) {
+            bidNumber = isSlotOf(slot, agentId) ? bidNumbers[slot % bidNumbers.length][slot / bidNumbers.length] : null;
+        } else {
+            bidNumber = getAgentBidReferences().get(agentId);
+        }
+        if (bidNumber == null) {
+            throw new IllegalArgumentException("The aggregated bid does not contain a bid of agent " + agentId);
+        }
+        return bidNumber;
+    }
+
+    /**
+     * @param slot
+     *            The slot of the agent
+     * @return true when the slot has been given by the {@link BidCache} that created this bid, so it is the only place
+     *         where the bid of the agent can be
+     */
+    private boolean hasCacheSlot(int slot) {
+        return cacheSlots && slot >= 0;
+    }
+
+    /**
+     * @param slot
+     *            The slot of the agent, which is not negative
+     * @param agentId
+     *            The unique identifier of the agent
+     * @return true when the slot holds a bid of the agent
+     */
+    private boolean isSlotOf(int slot, String agentId) {
+        String[] shardAgentIds = agentIds[slot % agentIds.length];
+        int index = slot / agentIds.length;
+        if (index >= shardAgentIds.length) {
+            return false;
+        }
+        String slotAgentId = shardAgentIds[index];
+        return slotAgentId == agentId || (slotAgentId != null && slotAgentId.equals(agentId));
     }
 
     /**
      * @return A {@link Map} of agentId to bid number reference.
      */
     public Map<String, Integer> getAgentBidReferences() {
-        return agentBidReferences;
+        Map<String, Integer> references = agentBidReferences;
+        if (references == null) {
+            references = new HashMap<String, Integer>();
+            for (int shard = 0; shard < bidNumbers.length; shard++) {
+                int[] shardBidNumbers = bidNumbers[shard];
+                String[] shardAgentIds = agentIds[shard];
+                for (int index = 0; index < shardBidNumbers.length; index++) {
+                    if (shardAgentIds[index] != null) {
+                        references.put(shardAgentIds[index], shardBidNumbers[index]);
+                    }
+                }
+            }
+            references = Collections.unmodifiableMap(references);
+            agentBidReferences = references;
+        }
+        return references;
     }
 
     @Override
     public int hashCode() {
-        return 31 * agentBidReferences.hashCode() + 63 * super.hashCode();
+        return 31 * getAgentBidReferences().hashCode() + 63 * super.hashCode();
     }
 
     @Override
@@ -119,12 +392,12 @@ public final class AggregatedBid
             return false;
         } else {
             AggregatedBid other = (AggregatedBid) obj;
-            return other.agentBidReferences.equals(agentBidReferences);
+            return other.getAgentBidReferences().equals(getAgentBidReferences());
         }
     }
 
     @Override
     public String toString() {
-        return "AggregatedBid [agentBidReferences=" + agentBidReferences + ", aggregatedBid=" + super.toString() + "]";
+        return "AggregatedBid [agentBidReferences=" + getAgentBidReferences() + ", aggregatedBid=" + super.toString() + "]";
     }
 }
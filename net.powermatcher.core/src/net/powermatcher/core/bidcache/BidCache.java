@@ -1,8 +1,11 @@
 package net.powermatcher.core.bidcache;
 
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.powermatcher.api.Agent;
 import net.powermatcher.api.data.MarketBasis;
@@ -13,29 +16,358 @@ import net.powermatcher.api.messages.BidUpdate;
  * {@link AggregatedBid}. This also stores all the generated {@link AggregatedBid}s such that they can easily be
  * recalled later.
  *
+ * The cache can work in 2 modes. By default every call to {@link #aggregate()} after a change adds up all the stored
+ * bids again. When a full aggregation interval is given, the cache keeps a running sum of the demand instead and only
+ * applies the difference between the old and the new bid of an agent. To correct the floating point drift that this
+ * introduces, the sum is recalculated in full after the given number of updates.
+ *
+ * Each agent gets a slot (a small integer) the first time it is seen, which it keeps until it is removed with
+ * {@link #removeAgent(String)}. The slot is then reused for the next new agent. The bids, their bid numbers and the
+ * agentId of each bid are stored in arrays that are indexed by that slot. An {@link AggregatedBid} shares the arrays of
+ * bid numbers and agentIds with the cache, which are only copied when a bid changes after the aggregation
+ * (copy-on-write). An older {@link AggregatedBid} therefore keeps the agentId of each bid number, even when the slot
+ * has been reused since.
+ *
+ * The slots are divided over a number of shards. Each shard has its own lock and keeps the sum of its own bids, which
+ * is only recalculated when one of its bids has changed. When there is more than 1 shard, the {@link #aggregate()}
+ * method calculates and adds up the sums of the shards in parallel. This helps for matchers that have a very large
+ * number of directly connected agents.
+ *
  * This class is thread-safe.
  */
 public class BidCache {
+    /**
+     * The {@link ForkJoinPool} that is used to aggregate the shards in parallel. It is only created when it is needed
+     * and its threads are daemon threads, so it does not need to be shut down.
+     */
+    private static final class AggregationPool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * A part of the agent bids, with its own lock and its own (partial) aggregated demand. A shard contains the slots
+     * for which slot % shards.length is the index of the shard, at index slot / shards.length. All the fields are
+     * guarded by the lock on the shard itself.
+     */
+    private final class Shard {
+        private BidUpdate[] bids = new BidUpdate[INITIAL_CAPACITY];
+
+        /**
+         * The bid number and the agentId of each bid, where the agentId is <code>null</code> when there is no bid.
+         * These arrays are shared with the last partial aggregation when bidNumbersShared is true, in which case they
+         * should be copied before they are changed.
+         */
+        private int[] bidNumbers = new int[INITIAL_CAPACITY];
+        private String[] bidAgentIds = new String[INITIAL_CAPACITY];
+        private boolean bidNumbersShared;
+
+        /**
+         * The running sum of the demand of the bids in this shard. Only used in the incremental mode.
+         */
+        private final double[] demandSum = isIncremental() ? new double[marketBasis.getPriceSteps()] : null;
+
+        /**
+         * The number of incremental updates that have been applied to the demandSum since the last full aggregation.
+         */
+        private int updatesSinceFullAggregation;
+
+        /**
+         * The aggregated demand of only this shard, or <code>null</code> if a bid has changed since it was created.
+         * This array is never changed after it has been created.
+         */
+        private double[] partialDemand;
+
+        /**
+         * Replaces the bid of an agent.
+         *
+         * @param index
+         *            The index of the slot of the agent in this shard.
+         * @param agentId
+         *            The unique identifier of the agent.
+         * @param bid
+         *            The new bid of the agent, or <code>null</code> when its bid should be removed.
+         */
+        synchronized void update(int index, String agentId, BidUpdate bid) {
+            if (index >= bids.length) {
+                if (bid == null) {
+                    return;
+                }
+                int capacity = Math.max(index + 1, bids.length * 2);
+                bids = Arrays.copyOf(bids, capacity);
+                bidNumbers = Arrays.copyOf(bidNumbers, capacity);
+                bidAgentIds = Arrays.copyOf(bidAgentIds, capacity);
+                bidNumbersShared = false;
+            } else if (bidNumbersShared) {
+                bidNumbers = bidNumbers.clone();
+                bidAgentIds = bidAgentIds.clone();
+                bidNumbersShared = false;
+            }
+
+            BidUpdate oldBid = bids[index];
+            if (oldBid != null || bid != null) {
+                bids[index] = bid;
+                bidNumbers[index] = bid == null ? 0 : bid.getBidNumber();
+                bidAgentIds[index] = bid == null ? null : agentId;
+                if (demandSum != null) {
+                    applyDelta(oldBid, bid);
+                }
+                partialDemand = null;
+            }
+        }
+
+        /**
+         * Subtracts the old bid from and adds the new bid to the running demand sum.
+         *
+         * @param oldBid
+         *            The bid that has to be removed from the sum, or <code>null</code> if there was none.
+         * @param newBid
+         *            The bid that has to be added to the sum, or <code>null</code> if there is none.
+         */
+        private void applyDelta(BidUpdate oldBid, BidUpdate newBid) {
+            if (oldBid != null) {
+                oldBid.getBid().subtractFrom(demandSum);
+            }
+            if (newBid != null) {
+                newBid.getBid().addTo(demandSum);
+            }
+            updatesSinceFullAggregation++;
+        }
+
+        /**
+         * Aggregates the bids of this shard and stores the result at the given index.
+         *
+         * @param shardIndex
+         *            The index of this shard
+         * @param partialDemands
+         *            The array in which the aggregated demand of this shard is stored. This array should not be changed.
+         * @param partialBidNumbers
+         *            The array in which the bid numbers of this shard are stored. This array should not be changed.
+         * @param partialAgentIds
+         *            The array in which the agentIds of the bids of this shard are stored. This array should not be
+         *            changed.
+         */
+        synchronized void aggregate(int shardIndex,
+                                    double[][] partialDemands,
+                                    int[][] partialBidNumbers,
+                                    String[][] partialAgentIds) {
+            if (partialDemand == null) {
+                AggregatedBid.Builder builder = new AggregatedBid.Builder(marketBasis);
+                if (demandSum == null || updatesSinceFullAggregation >= fullAggregationInterval) {
+                    for (BidUpdate bidUpdate : bids) {
+                        if (bidUpdate != null) {
+                            builder.addBid(bidUpdate.getBid());
+                        }
+                    }
+                    partialDemand = builder.buildDemand();
+                    if (demandSum != null) {
+                        System.arraycopy(partialDemand, 0, demandSum, 0, demandSum.length);
+                        updatesSinceFullAggregation = 0;
+                    }
+                } else {
+                    partialDemand = builder.addDemand(demandSum).buildDemand();
+                }
+            }
+
+            bidNumbersShared = true;
+            partialDemands[shardIndex] = partialDemand;
+            partialBidNumbers[shardIndex] = bidNumbers;
+            partialAgentIds[shardIndex] = bidAgentIds;
+        }
+    }
+
+    /**
+     * The last {@link AggregatedBid}, together with the number of bid changes that it includes. Both are published in
+     * a single volatile write, so a reader never sees a new change count with an old bid.
+     */
+    private static final class Snapshot {
+        final AggregatedBid aggregatedBid;
+        final long changeCount;
+
+        Snapshot(AggregatedBid aggregatedBid, long changeCount) {
+            this.aggregatedBid = aggregatedBid;
+            this.changeCount = changeCount;
+        }
+    }
+
+    /**
+     * The task that aggregates a range of shards and adds up their demand. The range is split in half until a single
+     * shard is left.
+     */
+    private final class AggregateTask
+        extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] partialDemands;
+        private final int[][] partialBidNumbers;
+        private final String[][] partialAgentIds;
+        private final int from, to;
+
+        AggregateTask(double[][] partialDemands,
+                      int[][] partialBidNumbers,
+                      String[][] partialAgentIds,
+                      int from,
+                      int to) {
+            this.partialDemands = partialDemands;
+            this.partialBidNumbers = partialBidNumbers;
+            this.partialAgentIds = partialAgentIds;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected double[] compute() {
+            if (to - from == 1) {
+                shards[from].aggregate(from, partialDemands, partialBidNumbers, partialAgentIds);
+                // The partial demand is kept by the shard, so return a copy that can be added to
+                return Arrays.copyOf(partialDemands[from], partialDemands[from].length);
+            }
+
+            int middle = (from + to) >>> 1;
+            AggregateTask left = new AggregateTask(partialDemands, partialBidNumbers, partialAgentIds, from, middle);
+            left.fork();
+            AggregateTask right = new AggregateTask(partialDemands, partialBidNumbers, partialAgentIds, middle, to);
+            double[] demand = right.compute();
+            double[] leftDemand = left.join();
+            for (int ix = 0; ix < demand.length; ix++) {
+                demand[ix] += leftDemand[ix];
+            }
+            return demand;
+        }
+    }
+
     private final MarketBasis marketBasis;
 
-    private final Map<String, BidUpdate> agentBids;
+    /**
+     * The number of incremental updates after which the demand of a shard is aggregated in full again. When this is 0,
+     * the incremental mode is disabled.
+     */
+    private final int fullAggregationInterval;
 
-    private volatile boolean bidChanged;
-    private transient AggregatedBid lastBid;
+    private final Shard[] shards;
 
     /**
-     * Creates a new {@link BidCache} based on the {@link MarketBasis}.
+     * The slot of each agent that has been seen by this cache and has not been removed. Writes are guarded by the lock
+     * on slots, as are the fields that keep track of the free slots.
+     */
+    private final Map<String, Integer> slots;
+
+    /**
+     * The number of slots that have been handed out, including the free slots.
+     */
+    private int slotCount;
+
+    /**
+     * The slots of removed agents, of which the first freeSlotCount elements are used as a stack.
+     */
+    private int[] freeSlots;
+    private int freeSlotCount;
+
+    /**
+     * The number of bid changes since this cache was created, which is incremented after each change.
+     */
+    private final AtomicLong changeCount = new AtomicLong();
+
+    /**
+     * The last aggregation, or <code>null</code> if nothing has been aggregated yet.
+     */
+    private volatile Snapshot lastSnapshot;
+
+    /**
+     * Creates a new {@link BidCache} based on the {@link MarketBasis}, which aggregates all the bids in full.
      *
      * @param marketBasis
      *            The {@link MarketBasis} that is used to match the bids.
      */
     public BidCache(MarketBasis marketBasis) {
+        this(marketBasis, 0);
+    }
+
+    /**
+     * Creates a new {@link BidCache} based on the {@link MarketBasis}, which keeps all the bids in a single shard.
+     *
+     * @param marketBasis
+     *            The {@link MarketBasis} that is used to match the bids.
+     * @param fullAggregationInterval
+     *            The number of bid updates that are applied incrementally before all the bids are aggregated in full
+     *            again. When this is 0, every aggregation is done in full.
+     */
+    public BidCache(MarketBasis marketBasis, int fullAggregationInterval) {
+        this(marketBasis, fullAggregationInterval, 1);
+    }
+
+    /**
+     * Creates a new {@link BidCache} based on the {@link MarketBasis}.
+     *
+     * @param marketBasis
+     *            The {@link MarketBasis} that is used to match the bids.
+     * @param fullAggregationInterval
+     *            The number of bid updates that are applied incrementally to a shard before all the bids of that shard
+     *            are aggregated in full again. When this is 0, every aggregation is done in full.
+     * @param shardCount
+     *            The number of shards over which the bids are divided. When this is 1, the aggregation is done on the
+     *            calling thread.
+     */
+    public BidCache(MarketBasis marketBasis, int fullAggregationInterval, int shardCount) {
         if (marketBasis == null) {
             throw new NullPointerException("marketBasis");
+        } else if (fullAggregationInterval < 0) {
+            throw new IllegalArgumentException("fullAggregationInterval should be >= 0");
+        } else if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount should be > 0");
         }
         this.marketBasis = marketBasis;
-        agentBids = new ConcurrentHashMap<String, BidUpdate>();
-        bidChanged = true;
+        this.fullAggregationInterval = fullAggregationInterval;
+        shards = new Shard[shardCount];
+        for (int ix = 0; ix < shardCount; ix++) {
+            shards[ix] = new Shard();
+        }
+        slots = new ConcurrentHashMap<String, Integer>();
+        freeSlots = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @return true when this cache keeps a running sum of the demand instead of aggregating all the bids in full.
+     */
+    public boolean isIncremental() {
+        return fullAggregationInterval > 0;
+    }
+
+    /**
+     * @return The number of shards over which the bids are divided.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the slot of an agent, which can be used to get its bid number from an {@link AggregatedBid} that has been
+     * created by this cache, using {@link AggregatedBid#getBidNumber(int, String)}. When the agent does not have a slot
+     * yet, a new one is assigned, which is the slot of a removed agent when there is one. The slot does not change
+     * until the agent is removed with {@link #removeAgent(String)}.
+     *
+     * @param agentId
+     *            The unique identifier of the agent. See {@link Agent#getAgentId()}.
+     * @return The slot of the agent
+     */
+    public int getSlot(String agentId) {
+        Integer slot = slots.get(agentId);
+        if (slot != null) {
+            return slot;
+        }
+
+        synchronized (slots) {
+            slot = slots.get(agentId);
+            if (slot == null) {
+                slot = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : slotCount++;
+                slots.put(agentId, slot);
+            }
+            return slot;
+        }
     }
 
     /**
@@ -54,12 +386,15 @@ public class BidCache {
      */
     public void updateAgentBid(String agentId, BidUpdate bid) {
         if (bid == null) {
-            agentBids.remove(agentId);
+            removeBidOfAgent(agentId);
         } else if (!bid.getBid().getMarketBasis().equals(marketBasis)) {
             throw new IllegalArgumentException("The marketBasis of the bid does not match the marketBasis of this BidCache");
         } else {
-            bidChanged = true;
-            agentBids.put(agentId, bid);
+            int slot = getSlot(agentId);
+            while (!update(slot, agentId, bid)) {
+                // The agent has been removed concurrently, so it gets a new slot
+                slot = getSlot(agentId);
+            }
         }
     }
 
@@ -70,8 +405,60 @@ public class BidCache {
      *            The unique identifier of the agent. See {@link Agent#getAgentId()}.
      */
     public void removeBidOfAgent(String agentId) {
-        bidChanged = true;
-        agentBids.remove(agentId);
+        Integer slot = slots.get(agentId);
+        if (slot != null) {
+            update(slot, agentId, null);
+        }
+    }
+
+    /**
+     * Removes the bid and the slot of the agent from this cache, after which the slot can be given to another agent.
+     * This should be called when the agent has been disconnected. When the agent is not known, this method does
+     * nothing.
+     *
+     * @param agentId
+     *            The unique identifier of the agent. See {@link Agent#getAgentId()}.
+     */
+    public void removeAgent(String agentId) {
+        Integer slot;
+        synchronized (slots) {
+            slot = slots.remove(agentId);
+        }
+        if (slot != null) {
+            shards[slot % shards.length].update(slot / shards.length, agentId, null);
+            changeCount.incrementAndGet();
+            synchronized (slots) {
+                if (freeSlotCount == freeSlots.length) {
+                    freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+                }
+                freeSlots[freeSlotCount++] = slot;
+            }
+        }
+    }
+
+    /**
+     * Updates the bid in the slot of an agent, unless the slot no longer belongs to the agent.
+     *
+     * @param slot
+     *            The slot of the agent
+     * @param agentId
+     *            The unique identifier of the agent.
+     * @param bid
+     *            The {@link BidUpdate} that the agent has sent, or <code>null</code> when it has to be removed.
+     * @return false when the agent has been removed since the slot was looked up, in which case nothing is changed.
+     */
+    private boolean update(int slot, String agentId, BidUpdate bid) {
+        Shard shard = shards[slot % shards.length];
+        synchronized (shard) {
+            // Checked while holding the lock of the shard, so removeAgent can only clear the slot after this update
+            Integer currentSlot = slots.get(agentId);
+            if (currentSlot == null || currentSlot != slot) {
+                return false;
+            }
+            shard.update(slot / shards.length, agentId, bid);
+        }
+        changeCount.incrementAndGet();
+        return true;
     }
 
     /**
@@ -81,20 +468,38 @@ public class BidCache {
      * @return The new {@link AggregatedBid}.
      */
     public AggregatedBid aggregate() {
-        if (!bidChanged && lastBid != null) {
-            return lastBid;
-        }
-
-        AggregatedBid.Builder builder = new AggregatedBid.Builder(marketBasis);
-        for (Entry<String, BidUpdate> entry : agentBids.entrySet()) {
-            builder.addAgentBid(entry.getKey(), entry.getValue());
+        Snapshot snapshot = lastSnapshot;
+        if (snapshot != null && snapshot.changeCount == changeCount.get()) {
+            return snapshot.aggregatedBid;
         }
 
         synchronized (this) {
-            lastBid = builder.build();
-            bidChanged = false;
+            // Read the count before the shards, such that a bid that changes during the aggregation triggers a new one
+            long currentChangeCount = changeCount.get();
+            snapshot = lastSnapshot;
+            if (snapshot != null && snapshot.changeCount == currentChangeCount) {
+                return snapshot.aggregatedBid;
+            }
+
+            double[][] partialDemands = new double[shards.length][];
+            int[][] partialBidNumbers = new int[shards.length][];
+            String[][] partialAgentIds = new String[shards.length][];
+            double[] demand;
+            if (shards.length == 1) {
+                shards[0].aggregate(0, partialDemands, partialBidNumbers, partialAgentIds);
+                // The demand of the shard is never changed, so it can be shared
+                demand = partialDemands[0];
+            } else {
+                demand = AggregationPool.INSTANCE.invoke(new AggregateTask(partialDemands,
+                                                                           partialBidNumbers,
+                                                                           partialAgentIds,
+                                                                           0,
+                                                                           shards.length));
+            }
 
-            return lastBid;
+            AggregatedBid aggregatedBid = new AggregatedBid(marketBasis, demand, partialBidNumbers, partialAgentIds);
+            lastSnapshot = new Snapshot(aggregatedBid, currentChangeCount);
+            return aggregatedBid;
         }
     }
 }
@@ -0,0 +1,133 @@
+package net.powermatcher.core.bidcache;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The {@link CoalescingSlots} keep only the latest value that has been offered for each slot, until it is polled. It
+ * is used to collect the incoming bids of the agents (by their slot in the {@link BidCache}) between two aggregation
+ * rounds: when an agent sends a new bid before the previous one has been used, the previous one is superseded and
+ * dropped. The work that is needed to poll all the values is therefore bounded by the number of slots, not by the
+ * number of offered values.
+ *
+ * Offering a value does not take a lock. The slots are stored in chunks that are never moved, so growing the number of
+ * slots does not need to copy the values. The slots that hold a value are kept in a queue, which contains each slot at
+ * most once.
+ *
+ * This class is thread-safe, but the values should be polled by a single thread at a time to keep them in order.
+ *
+ * @param <T>
+ *            The type of the values
+ */
+public class CoalescingSlots<T> {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * The chunks of slots. A new array is created when it grows, but the chunks themselves are never replaced. Writes
+     * are guarded by the lock on this object.
+     */
+    private volatile AtomicReferenceArray<Object>[] chunks;
+
+    /**
+     * The slots that (probably) hold a value that has not been polled yet.
+     */
+    private final Queue<Integer> filledSlots = new ConcurrentLinkedQueue<Integer>();
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+
+    public CoalescingSlots() {
+        // A generic array can not be created directly
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        AtomicReferenceArray<Object>[] noChunks = new AtomicReferenceArray[0];
+        chunks = noChunks;
+    }
+
+    /**
+     * Stores the value of a slot, replacing the value that it held before.
+     *
+     * @param slot
+     *            The slot, which should not be negative
+     * @param value
+     *            The new value of the slot, which may not be <code>null</code>
+     * @return true when the slot did not hold a value yet, which means that it should be polled again.
+     */
+    public boolean offer(int slot, T value) {
+        if (slot < 0) {
+            throw new IllegalArgumentException("slot should be >= 0");
+        } else if (value == null) {
+            throw new NullPointerException("value");
+        }
+        offered.incrementAndGet();
+        if (chunkOf(slot).getAndSet(slot & CHUNK_MASK, value) != null) {
+            superseded.incrementAndGet();
+            return false;
+        }
+        filledSlots.add(slot);
+        return true;
+    }
+
+    /**
+     * Takes the value of one of the slots that hold a value.
+     *
+     * @return The value, or <code>null</code> when none of the slots hold a value.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        Integer slot;
+        while ((slot = filledSlots.poll()) != null) {
+            Object value = chunkOf(slot).getAndSet(slot & CHUNK_MASK, null);
+            if (value != null) {
+                return (T) value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true when none of the slots hold a value
+     */
+    public boolean isEmpty() {
+        return filledSlots.isEmpty();
+    }
+
+    /**
+     * @return The number of values that have been offered
+     */
+    public long getOfferedCount() {
+        return offered.get();
+    }
+
+    /**
+     * @return The number of values that have been replaced by a newer value before they were polled
+     */
+    public long getSupersededCount() {
+        return superseded.get();
+    }
+
+    private AtomicReferenceArray<Object> chunkOf(int slot) {
+        int index = slot >>> CHUNK_BITS;
+        AtomicReferenceArray<Object>[] currentChunks = chunks;
+        if (index < currentChunks.length) {
+            return currentChunks[index];
+        }
+
+        synchronized (this) {
+            currentChunks = chunks;
+            if (index >= currentChunks.length) {
+                int oldLength = currentChunks.length;
+                currentChunks = Arrays.copyOf(currentChunks, Math.max(index + 1, oldLength * 2));
+                for (int ix = oldLength; ix < currentChunks.length; ix++) {
+                    currentChunks[ix] = new AtomicReferenceArray<Object>(CHUNK_SIZE);
+                }
+                chunks = currentChunks;
+            }
+            return currentChunks[index];
+        }
+    }
+}
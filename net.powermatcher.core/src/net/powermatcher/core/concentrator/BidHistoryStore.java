@@ -1,53 +1,111 @@
 package net.powermatcher.core.concentrator;
 
-import java.util.Deque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.core.bidcache.AggregatedBid;
 
 /**
- * This store keeps track of send bids to be able to retrieve them later
+ * This store keeps track of send bids to be able to retrieve them later.
+ *
+ * The bids are stored in a fixed-capacity ring buffer that is indexed by the bid number. Since the bid numbers of sent
+ * bids are increasing, a newer bid will overwrite the bid that was sent capacity bid numbers earlier. Saving and
+ * retrieving a bid are both constant time operations and retrieving does not need a lock.
+ *
+ * Once a bid has been retrieved, the bids that were sent before it are no longer available, so a price update that
+ * refers to an older bid than the previous price update is rejected. Bid numbers wrap around after
+ * {@link Integer#MAX_VALUE}, so they are compared by their difference: a bid is older when its number is less than 2^31
+ * before the other one.
  *
  * @author FAN
  * @version 2.0
  *
  */
 public class BidHistoryStore {
-    private static final int MAX_BIDS = 900;
+    /**
+     * The default number of bids that are kept in the store.
+     */
+    public static final int DEFAULT_CAPACITY = 900;
 
-    private final Deque<SentBidInformation> sentBids = new LinkedBlockingDeque<SentBidInformation>();
+    private final AtomicReferenceArray<SentBidInformation> sentBids;
 
-    public synchronized void saveBid(final AggregatedBid aggregatedBid, final BidUpdate sentBidUpdate) {
-        SentBidInformation info = new SentBidInformation(aggregatedBid, sentBidUpdate);
+    /**
+     * The bid number of the most recently retrieved bid, or <code>null</code> when no bid has been retrieved yet. Older
+     * bids are no longer available.
+     */
+    private final AtomicReference<Integer> oldestBidNumber = new AtomicReference<Integer>();
 
-        sentBids.add(info);
+    /**
+     * Creates a new {@link BidHistoryStore} that keeps the last {@link #DEFAULT_CAPACITY} bids.
+     */
+    public BidHistoryStore() {
+        this(DEFAULT_CAPACITY);
+    }
 
-        while (sentBids.size() > MAX_BIDS) {
-            sentBids.removeFirst();
+    /**
+     * Creates a new {@link BidHistoryStore}.
+     *
+     * @param capacity
+     *            The number of bids that are kept in the store.
+     */
+    public BidHistoryStore(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity should be > 0");
         }
+        sentBids = new AtomicReferenceArray<SentBidInformation>(capacity);
+    }
+
+    /**
+     * @return The number of bids that are kept in the store.
+     */
+    public int getCapacity() {
+        return sentBids.length();
+    }
+
+    public synchronized void saveBid(final AggregatedBid aggregatedBid, final BidUpdate sentBidUpdate) {
+        SentBidInformation info = new SentBidInformation(aggregatedBid, sentBidUpdate);
+        sentBids.set(indexOf(info.getBidNumber()), info);
     }
 
-    public synchronized SentBidInformation retrieveAggregatedBid(int bidNumberReference) {
-        // First check if we have actually sent a bid with that number
-        boolean found = false;
-        for (SentBidInformation info : sentBids) {
-            if (info.getBidNumber() == bidNumberReference) {
-                found = true;
+    public SentBidInformation retrieveAggregatedBid(int bidNumberReference) {
+        Integer oldest = oldestBidNumber.get();
+        if (oldest != null && isOlder(bidNumberReference, oldest)) {
+            throw new IllegalArgumentException("No bid with bidNumber " + bidNumberReference
+                                               + " is available, a newer bid has already been retrieved");
+        }
+        SentBidInformation info = sentBids.get(indexOf(bidNumberReference));
+        if (info == null || info.getBidNumber() != bidNumberReference) {
+            // The bid could be in the process of being saved while holding the lock on this store, so check again
+            synchronized (this) {
+                info = sentBids.get(indexOf(bidNumberReference));
             }
         }
 
-        // If we haven't, then throw an exception
-        if (!found) {
+        if (info == null || info.getBidNumber() != bidNumberReference) {
             throw new IllegalArgumentException("No bid with bidNumber " + bidNumberReference + " is available");
         }
 
-        // If we have, drop all older bids and return the found info
-        SentBidInformation info = sentBids.peek();
-        while (info.getBidNumber() != bidNumberReference) {
-            sentBids.removeFirst();
-            info = sentBids.peek();
+        // Drop the older bids
+        Integer newOldest = bidNumberReference;
+        oldest = oldestBidNumber.get();
+        while ((oldest == null || isOlder(oldest, bidNumberReference))
+               && !oldestBidNumber.compareAndSet(oldest, newOldest)) {
+            oldest = oldestBidNumber.get();
         }
         return info;
     }
+
+    /**
+     * @return true when the first bid number is older than the second one, also when the numbers have wrapped around
+     *         in between
+     */
+    private static boolean isOlder(int bidNumber, int other) {
+        return bidNumber - other < 0;
+    }
+
+    private int indexOf(int bidNumber) {
+        int index = bidNumber % sentBids.length();
+        return index < 0 ? index + sentBids.length() : index;
+    }
 }
@@ -6,6 +6,7 @@ import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.MatcherEndpoint;
 import net.powermatcher.api.Session;
 import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.data.Price;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
@@ -15,6 +16,7 @@ import net.powermatcher.core.BaseAgentEndpoint;
 import net.powermatcher.core.BaseMatcherEndpoint;
 import net.powermatcher.core.auctioneer.Auctioneer;
 import net.powermatcher.core.bidcache.AggregatedBid;
+import net.powermatcher.core.bidcache.BidCache;
 
 import org.flexiblepower.context.FlexiblePowerContext;
 
@@ -43,7 +45,7 @@ public class Concentrator
     extends BaseAgentEndpoint
     implements MatcherEndpoint {
 
-    private final BidHistoryStore sentBids = new BidHistoryStore();
+    private volatile BidHistoryStore sentBids = new BidHistoryStore();
 
     private final class MatcherPart
         extends BaseMatcherEndpoint {
@@ -52,6 +54,26 @@ public class Concentrator
             super.init(agentId);
         }
 
+        @Override
+        protected BidCache createBidCache(MarketBasis marketBasis) {
+            return new BidCache(marketBasis, config.fullAggregationInterval(), config.bidCacheShards());
+        }
+
+        @Override
+        protected boolean coalesceIncomingBids() {
+            return config.coalesceBids();
+        }
+
+        @Override
+        protected int getPriceFanOutParallelism() {
+            return config.priceFanOutParallelism();
+        }
+
+        @Override
+        protected long getSlowConsumerTimeout() {
+            return config.slowConsumerTimeout();
+        }
+
         @Override
         protected void performUpdate(AggregatedBid aggregatedBid) {
             Bid bid = transformBid(aggregatedBid);
@@ -75,6 +97,42 @@ public class Concentrator
         @Meta.AD(deflt = "1000",
                  description = "Mimimum time between two BidUpdates generated by the Concentratro in milliseconds")
         long minTimeBetweenBidUpdates();
+
+        @Meta.AD(deflt = "0",
+                 required = false,
+                 description = "Number of bid updates that are aggregated incrementally before the aggregated bid is "
+                               + "calculated in full again. When 0, every aggregation is done in full.")
+        int fullAggregationInterval();
+
+        @Meta.AD(deflt = "1",
+                 required = false,
+                 description = "Number of shards over which the bids of the connected agents are divided. When more "
+                               + "than 1, the shards are aggregated in parallel.")
+        int bidCacheShards();
+
+        @Meta.AD(deflt = "false",
+                 required = false,
+                 description = "When true, only the latest bid of each agent is kept until the next aggregation "
+                               + "round, older bids that have not been aggregated yet are dropped.")
+        boolean coalesceBids();
+
+        @Meta.AD(deflt = "0",
+                 required = false,
+                 description = "Number of threads that deliver the prices to the connected agents. When 0, the prices "
+                               + "are delivered one agent after the other on the thread that determines the price.")
+        int priceFanOutParallelism();
+
+        @Meta.AD(deflt = "60000",
+                 required = false,
+                 description = "Time in milliseconds after which an agent that is still handling a price is "
+                               + "disconnected. Only used when the priceFanOutParallelism is more than 0.")
+        long slowConsumerTimeout();
+
+        @Meta.AD(deflt = "900",
+                 required = false,
+                 description = "Number of sent BidUpdates that are remembered to handle the PriceUpdates that "
+                               + "refer to them")
+        int bidHistorySize();
     }
 
     private final MatcherPart matcherPart = new MatcherPart();
@@ -100,6 +158,7 @@ public class Concentrator
      */
     public void activate(Config config) {
         this.config = config;
+        sentBids = new BidHistoryStore(config.bidHistorySize());
         matcherPart.init(config.agentId());
         super.init(config.agentId(), config.desiredParentId());
         LOGGER.info("Concentrator [{}], activated", config.agentId());
@@ -0,0 +1,354 @@
+package net.powermatcher.core.fanout;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.powermatcher.api.Session;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.PriceDeliveryStatistics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link PriceFanOut} delivers {@link PriceUpdate}s to a set of {@link Session}s on a fixed number of threads,
+ * such that a slow agent does not hold up the delivery to the other agents.
+ *
+ * Each {@link Session} has its own delivery queue that holds at most 1 {@link PriceUpdate}: when a new price is
+ * delivered before the previous one has been handed to the session, the previous one is replaced (coalesced). This
+ * means that a session always gets the latest price, in order, and that a slow session never builds up a backlog. At
+ * most 1 delivery per session is in progress at a time and the number of tasks waiting for a thread is never more than
+ * the number of sessions.
+ *
+ * When a delivery to a session takes longer than the slow consumer timeout, the {@link SlowConsumerListener} is
+ * notified. A watchdog thread checks the deliveries that are in progress every half timeout, so a session that has
+ * stalled is detected even when no new price is delivered to it.
+ *
+ * A removed session keeps its queue until the delivery that is in progress has finished. Prices that are delivered to
+ * it in the meantime are dropped, so a session that is removed and then used again can never get 2 prices at the same
+ * time.
+ *
+ * This class is thread-safe.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PriceFanOut {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PriceFanOut.class);
+
+    /**
+     * A listener that is notified when a {@link Session} takes longer than the slow consumer timeout to handle a
+     * {@link PriceUpdate}.
+     */
+    public interface SlowConsumerListener {
+        /**
+         * Called (once per delivery) when the delivery to a session takes too long. This is called on the watchdog
+         * thread or on the thread that delivers the next price, so it should not block.
+         *
+         * @param session
+         *            The session that is still handling a {@link PriceUpdate}
+         * @param deliveryMillis
+         *            The number of milliseconds that the current delivery is already in progress
+         */
+        void slowConsumerDetected(Session session, long deliveryMillis);
+    }
+
+    /**
+     * A price that is waiting to be delivered, with the moment it was given to the {@link PriceFanOut}.
+     */
+    private static final class PendingPrice {
+        final PriceUpdate priceUpdate;
+        final long enqueuedNanos;
+
+        PendingPrice(PriceUpdate priceUpdate, long enqueuedNanos) {
+            this.priceUpdate = priceUpdate;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * The delivery queue of a single session. The statistics are guarded by the lock on the queue itself.
+     */
+    private final class SessionQueue
+        implements Runnable {
+        private final Session session;
+        private final AtomicReference<PendingPrice> pending = new AtomicReference<PendingPrice>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * The System.nanoTime() at which the current delivery started, or 0 when no delivery is in progress.
+         */
+        private volatile long deliveryStartedNanos;
+        private final AtomicBoolean slowConsumerReported = new AtomicBoolean();
+
+        /**
+         * Set when the session has been removed. The queue stays in the map until its drain has finished.
+         */
+        private volatile boolean removed;
+
+        private long delivered, coalesced, failed, slowConsumerCount;
+        private long totalLatencyNanos, maxLatencyNanos;
+
+        SessionQueue(Session session) {
+            this.session = session;
+        }
+
+        void offer(PriceUpdate priceUpdate) {
+            if (removed) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (pending.getAndSet(new PendingPrice(priceUpdate, now)) != null) {
+                synchronized (this) {
+                    coalesced++;
+                }
+            }
+            checkSlowConsumer(now);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException ex) {
+                    // The executor has been shut down
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        void checkSlowConsumer(long now) {
+            long started = deliveryStartedNanos;
+            if (started != 0 && now - started > slowConsumerTimeoutNanos
+                && slowConsumerReported.compareAndSet(false, true)) {
+                synchronized (this) {
+                    slowConsumerCount++;
+                }
+                long deliveryMillis = TimeUnit.NANOSECONDS.toMillis(now - started);
+                LOGGER.warn("Delivery of a price to agent [{}] is in progress for {} ms",
+                            session.getAgentId(),
+                            deliveryMillis);
+                if (slowConsumerListener != null) {
+                    try {
+                        slowConsumerListener.slowConsumerDetected(session, deliveryMillis);
+                    } catch (RuntimeException ex) {
+                        LOGGER.warn("Unexpected exception in the slow consumer listener", ex);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Delivers the pending prices until there are none left.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                PendingPrice pendingPrice = pending.getAndSet(null);
+                if (pendingPrice == null) {
+                    scheduled.set(false);
+                    if (removed) {
+                        // remove() may have seen the flag still set, so the last drain removes the tombstone
+                        queues.remove(session, this);
+                        return;
+                    }
+                    // A price may have been offered after the getAndSet, but before the flag was reset
+                    if (pending.get() == null || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                } else if (!removed) {
+                    deliver(pendingPrice);
+                }
+            }
+        }
+
+        private void deliver(PendingPrice pendingPrice) {
+            boolean success = false;
+            deliveryStartedNanos = System.nanoTime();
+            try {
+                session.updatePrice(pendingPrice.priceUpdate);
+                success = true;
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Unexpected exception while send priceupdate to " + session.getAgentId(), ex);
+            } finally {
+                long latency = System.nanoTime() - pendingPrice.enqueuedNanos;
+                deliveryStartedNanos = 0;
+                slowConsumerReported.set(false);
+                synchronized (this) {
+                    if (success) {
+                        delivered++;
+                        totalLatencyNanos += latency;
+                        maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                    } else {
+                        failed++;
+                    }
+                }
+            }
+        }
+
+        synchronized PriceDeliveryStatistics getStatistics() {
+            return new PriceDeliveryStatistics(delivered,
+                                               coalesced,
+                                               failed,
+                                               slowConsumerCount,
+                                               totalLatencyNanos,
+                                               maxLatencyNanos);
+        }
+    }
+
+    private final ConcurrentMap<Session, SessionQueue> queues = new ConcurrentHashMap<Session, SessionQueue>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final long slowConsumerTimeoutNanos;
+    private final SlowConsumerListener slowConsumerListener;
+
+    /**
+     * Creates a new {@link PriceFanOut} with its own threads.
+     *
+     * @param name
+     *            The name that is used as a prefix for the names of the threads
+     * @param parallelism
+     *            The number of threads that deliver prices, which is the maximum number of sessions that are handling
+     *            a price at the same time.
+     * @param slowConsumerTimeoutMillis
+     *            The number of milliseconds after which a delivery is seen as slow
+     * @param slowConsumerListener
+     *            The listener that is notified of slow deliveries, or <code>null</code> if they should only be logged
+     */
+    public PriceFanOut(final String name,
+                       int parallelism,
+                       long slowConsumerTimeoutMillis,
+                       SlowConsumerListener slowConsumerListener) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism should be > 0");
+        } else if (slowConsumerTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("slowConsumerTimeoutMillis should be > 0");
+        }
+        slowConsumerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(slowConsumerTimeoutMillis);
+        this.slowConsumerListener = slowConsumerListener;
+        // The queue can not hold more tasks than there are sessions, because each session has at most 1 task
+        executor = new ThreadPoolExecutor(parallelism,
+                                          parallelism,
+                                          0,
+                                          TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<Runnable>(),
+                                          new ThreadFactory() {
+                                              private final AtomicInteger threadCount = new AtomicInteger();
+
+                                              @Override
+                                              public Thread newThread(Runnable runnable) {
+                                                  Thread thread = new Thread(runnable, name + "-price-fanout-"
+                                                                                       + threadCount.incrementAndGet());
+                                                  thread.setDaemon(true);
+                                                  return thread;
+                                              }
+                                          });
+        watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-price-fanout-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long checkIntervalMillis = Math.max(1, slowConsumerTimeoutMillis / 2);
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkSlowConsumers();
+            }
+        }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkSlowConsumers() {
+        long now = System.nanoTime();
+        for (SessionQueue queue : queues.values()) {
+            try {
+                queue.checkSlowConsumer(now);
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Unexpected exception while checking for slow consumers", ex);
+            }
+        }
+    }
+
+    /**
+     * Queues a {@link PriceUpdate} for a session. When the previous {@link PriceUpdate} for this session has not been
+     * delivered yet, it is replaced by this one. This method does not wait for the delivery. The price is dropped when
+     * the session has been removed.
+     *
+     * @param session
+     *            The session to which the price should be delivered
+     * @param priceUpdate
+     *            The {@link PriceUpdate} that should be delivered
+     */
+    public void deliver(Session session, PriceUpdate priceUpdate) {
+        SessionQueue queue = queues.get(session);
+        if (queue == null) {
+            synchronized (queues) {
+                queue = queues.get(session);
+                if (queue == null) {
+                    queue = new SessionQueue(session);
+                    queues.put(session, queue);
+                }
+            }
+        }
+        queue.offer(priceUpdate);
+    }
+
+    /**
+     * Removes the queue of a session. A price that has not been delivered yet, is dropped. When a delivery to the
+     * session is in progress, the queue is kept until that delivery has finished.
+     *
+     * @param session
+     *            The session that has been disconnected
+     */
+    public void remove(Session session) {
+        SessionQueue queue = queues.get(session);
+        if (queue != null) {
+            queue.removed = true;
+            queue.pending.set(null);
+            if (!queue.scheduled.get()) {
+                queues.remove(session, queue);
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of the delivery statistics, per agentId of the session.
+     */
+    public Map<String, PriceDeliveryStatistics> getStatistics() {
+        Map<String, PriceDeliveryStatistics> statistics = new HashMap<String, PriceDeliveryStatistics>();
+        for (SessionQueue queue : queues.values()) {
+            if (!queue.removed) {
+                statistics.put(queue.session.getAgentId(), queue.getStatistics());
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Stops the threads of this {@link PriceFanOut}. Prices that have not been delivered yet are dropped. Deliveries
+     * that are in progress are not interrupted.
+     */
+    public void shutdown() {
+        for (SessionQueue queue : queues.values()) {
+            queue.pending.set(null);
+        }
+        queues.clear();
+        watchdog.shutdownNow();
+        executor.shutdown();
+    }
+}
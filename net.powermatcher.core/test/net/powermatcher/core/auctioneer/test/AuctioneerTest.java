@@ -7,10 +7,14 @@ import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+
 import net.powermatcher.api.Session;
 import net.powermatcher.api.data.ArrayBid;
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.monitoring.AgentObserver;
 import net.powermatcher.api.monitoring.events.AgentEvent;
@@ -18,6 +22,7 @@ import net.powermatcher.api.monitoring.events.AggregatedBidEvent;
 import net.powermatcher.api.monitoring.events.IncomingBidUpdateEvent;
 import net.powermatcher.api.monitoring.events.OutgoingPriceUpdateEvent;
 import net.powermatcher.core.auctioneer.Auctioneer;
+import net.powermatcher.core.bidcache.AggregatedBid;
 import net.powermatcher.mock.MockContext;
 import net.powermatcher.mock.MockDeviceAgent;
 import net.powermatcher.mock.SimpleSession;
@@ -182,4 +187,73 @@ public class AuctioneerTest {
         assertThat(mockAgent.getLastPriceUpdate(), is(notNullValue()));
         assertThat(observer.outgoingPriceEvent.getPriceUpdate(), is(equalTo(mockAgent.getLastPriceUpdate())));
     }
+
+    @Test
+    public void testPublishPriceUpdateWithFanOut() throws InterruptedException {
+        auctioneer.deactivate();
+        auctioneer.activate(new PropertiesBuilder().agentId(AUCTIONEER_ID)
+                                                   .clusterId(CLUSTER_ID)
+                                                   .marketBasis(marketBasis)
+                                                   .minTimeBetweenPriceUpdates(1000)
+                                                   .add("priceFanOutParallelism", 2)
+                                                   .build());
+
+        MockDeviceAgent mockAgent = new MockDeviceAgent("mockAgent", AUCTIONEER_ID);
+        new SimpleSession(mockAgent, auctioneer).connect();
+        mockAgent.sendBid(new ArrayBid(marketBasis, new double[] { 2, 1, 0, -1, -2 }), 0);
+        mockContext.doTaskOnce();
+
+        // The price is delivered on another thread
+        for (int ix = 0; ix < 500; ix++) {
+            if (auctioneer.getPriceDeliveryStatistics().get("mockAgent").getDelivered() > 0) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertThat(auctioneer.getPriceDeliveryStatistics().get("mockAgent").getDelivered(), is(equalTo(1L)));
+        assertThat(mockAgent.getLastPriceUpdate(), is(notNullValue()));
+        auctioneer.deactivate();
+    }
+
+    @Test
+    public void testCoalesceBids() {
+        auctioneer.deactivate();
+        auctioneer.activate(new PropertiesBuilder().agentId(AUCTIONEER_ID)
+                                                   .clusterId(CLUSTER_ID)
+                                                   .marketBasis(marketBasis)
+                                                   .minTimeBetweenPriceUpdates(1000)
+                                                   .add("coalesceBids", true)
+                                                   .build());
+
+        MockDeviceAgent mockAgent = new MockDeviceAgent("mockAgent", AUCTIONEER_ID);
+        new SimpleSession(mockAgent, auctioneer).connect();
+        for (int bidNumber = 1; bidNumber <= 3; bidNumber++) {
+            mockAgent.sendBid(new ArrayBid(marketBasis, new double[] { 2, 1, 0, -1, -bidNumber }), bidNumber);
+        }
+        assertThat(auctioneer.getSupersededBidCount(), is(equalTo(2L)));
+
+        // Only the latest bid is aggregated, so the price refers to it
+        mockContext.doTaskOnce();
+        assertThat(mockAgent.getLastPriceUpdate().getBidNumber(), is(equalTo(3)));
+        assertThat(auctioneer.aggregate().getAgentBidReferences().get("mockAgent"), is(equalTo(3)));
+    }
+
+    @Test
+    public void testPublishPriceToAgentWithoutBid() throws Exception {
+        MockDeviceAgent withBid = new MockDeviceAgent("withBid", AUCTIONEER_ID);
+        MockDeviceAgent withoutBid = new MockDeviceAgent("withoutBid", AUCTIONEER_ID);
+        new SimpleSession(withBid, auctioneer).connect();
+        new SimpleSession(withoutBid, auctioneer).connect();
+        withBid.sendBid(new ArrayBid(marketBasis, new double[] { 2, 1, 0, -1, -2 }), 7);
+
+        AggregatedBid aggregatedBid = auctioneer.aggregate();
+        auctioneer.publishPrice(new Price(marketBasis, 5), aggregatedBid);
+        assertThat(withBid.getLastPriceUpdate().getBidNumber(), is(equalTo(7)));
+        assertThat(withoutBid.getLastPriceUpdate(), is(nullValue()));
+
+        // The slots of the agents are enough, so the map of agentId to bid number is never built
+        Field agentBidReferences = AggregatedBid.class.getDeclaredField("agentBidReferences");
+        agentBidReferences.setAccessible(true);
+        assertNull(agentBidReferences.get(aggregatedBid));
+    }
 }
@@ -5,8 +5,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.powermatcher.api.data.ArrayBid;
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBid;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.core.bidcache.AggregatedBid;
 import net.powermatcher.core.bidcache.BidCache;
@@ -49,4 +55,328 @@ public class BidCacheTest {
 
         assertSame(aggregatedBid, bidCache.aggregate());
     }
+
+    @Test
+    public void testIncrementalMatchesFullAggregation() {
+        BidCache fullCache = new BidCache(MB);
+        BidCache incrementalCache = new BidCache(MB, 1000);
+        assertTrue(incrementalCache.isIncremental());
+
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            String agentId = "agent" + random.nextInt(20);
+            BidUpdate bidUpdate = new BidUpdate(randomBid(random), round);
+            fullCache.updateAgentBid(agentId, bidUpdate);
+            incrementalCache.updateAgentBid(agentId, bidUpdate);
+
+            if (round % 7 == 0) {
+                String removedId = "agent" + random.nextInt(20);
+                fullCache.removeBidOfAgent(removedId);
+                incrementalCache.removeBidOfAgent(removedId);
+            }
+
+            AggregatedBid expected = fullCache.aggregate();
+            AggregatedBid actual = incrementalCache.aggregate();
+            assertEquals(expected.getAgentBidReferences(), actual.getAgentBidReferences());
+            assertArrayEquals(expected.getDemand(), actual.getDemand(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testIncrementalFullAggregationCorrectsDrift() {
+        BidCache bidCache = new BidCache(MB, 3);
+
+        bidCache.updateAgentBid("agent1", new BidUpdate(Bid.flatDemand(MB, 0.1), 1));
+        bidCache.updateAgentBid("agent2", new BidUpdate(Bid.flatDemand(MB, 0.2), 1));
+        bidCache.updateAgentBid("agent2", new BidUpdate(Bid.flatDemand(MB, 0.7), 2));
+        // The interval has passed, so this should be the exact sum
+        AggregatedBid aggregatedBid = bidCache.aggregate();
+        assertArrayEquals(Bid.flatDemand(MB, 0.1 + 0.7).toArrayBid().getDemand(), aggregatedBid.getDemand(), 0);
+        assertSame(aggregatedBid, bidCache.aggregate());
+
+        bidCache.removeBidOfAgent("agent1");
+        aggregatedBid = bidCache.aggregate();
+        assertEquals(1, aggregatedBid.getAgentBidReferences().size());
+        assertEquals(Integer.valueOf(2), aggregatedBid.getAgentBidReferences().get("agent2"));
+        assertArrayEquals(Bid.flatDemand(MB, 0.7).toArrayBid().getDemand(), aggregatedBid.getDemand(), 1e-12);
+    }
+
+    @Test
+    public void testIncrementalNeverAscending() {
+        BidCache bidCache = new BidCache(MB, Integer.MAX_VALUE);
+        Random random = new Random(7);
+        for (int round = 0; round < 1000; round++) {
+            bidCache.updateAgentBid("agent" + random.nextInt(50), new BidUpdate(randomBid(random), round));
+            double[] demand = bidCache.aggregate().getDemand();
+            for (int ix = 1; ix < demand.length; ix++) {
+                assertTrue("Ascending demand at step " + ix + " of round " + round, demand[ix] <= demand[ix - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void testShardedMatchesSingleShard() {
+        BidCache singleCache = new BidCache(MB);
+        BidCache shardedCache = new BidCache(MB, 0, 8);
+        BidCache incrementalShardedCache = new BidCache(MB, 10, 8);
+        assertEquals(8, shardedCache.getShardCount());
+
+        Random random = new Random(11);
+        for (int round = 0; round < 300; round++) {
+            String agentId = "agent" + random.nextInt(100);
+            BidUpdate bidUpdate = new BidUpdate(randomBid(random), round);
+            singleCache.updateAgentBid(agentId, bidUpdate);
+            shardedCache.updateAgentBid(agentId, bidUpdate);
+            incrementalShardedCache.updateAgentBid(agentId, bidUpdate);
+
+            if (round % 5 == 0) {
+                String removedId = "agent" + random.nextInt(100);
+                singleCache.removeBidOfAgent(removedId);
+                shardedCache.removeBidOfAgent(removedId);
+                incrementalShardedCache.removeBidOfAgent(removedId);
+            }
+
+            if (round % 3 == 0) {
+                AggregatedBid expected = singleCache.aggregate();
+                for (BidCache bidCache : new BidCache[] { shardedCache, incrementalShardedCache }) {
+                    AggregatedBid actual = bidCache.aggregate();
+                    assertEquals(expected.getAgentBidReferences(), actual.getAgentBidReferences());
+                    assertArrayEquals(expected.getDemand(), actual.getDemand(), 1e-9);
+                    assertSame(actual, bidCache.aggregate());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testShardedConcurrentUpdates() throws InterruptedException {
+        final BidCache bidCache = new BidCache(MB, 0, 4);
+        final int threadCount = 4;
+        final int agentsPerThread = 250;
+        Thread[] threads = new Thread[threadCount];
+        for (int ix = 0; ix < threadCount; ix++) {
+            final int threadIx = ix;
+            threads[ix] = new Thread() {
+                @Override
+                public void run() {
+                    for (int agent = 0; agent < agentsPerThread; agent++) {
+                        bidCache.updateAgentBid("agent" + threadIx + "-" + agent,
+                                                new BidUpdate(Bid.flatDemand(MB, 1), agent));
+                        if (agent % 50 == 0) {
+                            bidCache.aggregate();
+                        }
+                    }
+                }
+            };
+            threads[ix].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        AggregatedBid aggregatedBid = bidCache.aggregate();
+        assertEquals(threadCount * agentsPerThread, aggregatedBid.getAgentBidReferences().size());
+        assertEquals(threadCount * agentsPerThread, aggregatedBid.getMaximumDemand(), 0);
+    }
+
+    @Test
+    public void testAggregateIncludesOwnUpdate() throws InterruptedException {
+        // Many price steps make each aggregation take longer, so they overlap more often
+        final MarketBasis marketBasis = new MarketBasis("Electricity", "EUR", 10000, 0, 1);
+        final BidCache bidCache = new BidCache(marketBasis, 0, 2);
+        final int threadCount = 4;
+        final AtomicReference<AssertionError> failure = new AtomicReference<AssertionError>();
+        Thread[] threads = new Thread[threadCount];
+        for (int ix = 0; ix < threadCount; ix++) {
+            final String agentId = "agent" + ix;
+            threads[ix] = new Thread() {
+                @Override
+                public void run() {
+                    for (int bidNumber = 0; bidNumber < 2000 && failure.get() == null; bidNumber++) {
+                        bidCache.updateAgentBid(agentId, new BidUpdate(Bid.flatDemand(marketBasis, 1), bidNumber));
+                        // An aggregation that starts after the update should never return an older aggregated bid
+                        Integer aggregatedBidNumber = bidCache.aggregate().getAgentBidReferences().get(agentId);
+                        if (aggregatedBidNumber == null || aggregatedBidNumber != bidNumber) {
+                            failure.compareAndSet(null, new AssertionError("Expected bid " + bidNumber
+                                                                           + " of "
+                                                                           + agentId
+                                                                           + ", but got "
+                                                                           + aggregatedBidNumber));
+                        }
+                    }
+                }
+            };
+            threads[ix].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @Test
+    public void testSlotBidNumbers() {
+        BidCache bidCache = new BidCache(MB, 0, 3);
+        for (int ix = 0; ix < 40; ix++) {
+            bidCache.updateAgentBid("agent" + ix, new BidUpdate(Bid.flatDemand(MB, ix), ix));
+        }
+        int slot = bidCache.getSlot("agent7");
+        assertEquals(slot, bidCache.getSlot("agent7"));
+
+        AggregatedBid first = bidCache.aggregate();
+        for (int ix = 0; ix < 40; ix++) {
+            assertEquals(ix, first.getBidNumber(bidCache.getSlot("agent" + ix), "agent" + ix));
+        }
+
+        // Changing a bid after the aggregation should not change the earlier aggregated bid
+        bidCache.updateAgentBid("agent7", new BidUpdate(Bid.flatDemand(MB, 7), 100));
+        bidCache.removeBidOfAgent("agent8");
+        AggregatedBid second = bidCache.aggregate();
+        assertEquals(7, first.getBidNumber(slot, "agent7"));
+        assertEquals(8, first.getBidNumber(bidCache.getSlot("agent8"), "agent8"));
+        assertEquals(100, second.getBidNumber(slot, "agent7"));
+        assertFalse(second.hasBid(bidCache.getSlot("agent8"), "agent8"));
+        assertEquals(39, second.getAgentBidReferences().size());
+
+        // A slot of this cache is the only place where the bid of the agent can be
+        assertFalse(second.hasBid(slot, "agent9"));
+        assertFalse(second.hasBid(slot, "unknown"));
+        assertFalse(second.hasBid(bidCache.getSlot("new"), "new"));
+        assertFalse(second.hasBid(1000, "agent9"));
+
+        // Without a slot, the bid is looked up by agentId
+        assertTrue(second.hasBid(-1, "agent9"));
+        assertEquals(9, second.getBidNumber(-1, "agent9"));
+        assertFalse(second.hasBid(-1, "unknown"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetBidNumberWithSlotOfOtherAgent() {
+        BidCache bidCache = new BidCache(MB);
+        bidCache.updateAgentBid("agent1", new BidUpdate(Bid.flatDemand(MB, 1), 1));
+        bidCache.updateAgentBid("agent2", new BidUpdate(Bid.flatDemand(MB, 1), 2));
+        bidCache.aggregate().getBidNumber(bidCache.getSlot("agent1"), "agent2");
+    }
+
+    @Test
+    public void testBuiltBidLooksUpAgentId() {
+        // The slots of a bid that has not been created by a cache say nothing about the agents
+        BidUpdate bidUpdate = new BidUpdate(Bid.flatDemand(MB, 1), 5);
+        AggregatedBid aggregatedBid = new AggregatedBid.Builder(MB).addAgentBid("agent1", bidUpdate).build();
+        assertTrue(aggregatedBid.hasBid(3, "agent1"));
+        assertEquals(5, aggregatedBid.getBidNumber(3, "agent1"));
+        assertFalse(aggregatedBid.hasBid(0, "agent2"));
+    }
+
+    @Test
+    public void testAnyBidNumberIsValid() {
+        // Bid numbers wrap around, so every int value can be used as a bid number
+        BidCache bidCache = new BidCache(MB, 0, 2);
+        bidCache.updateAgentBid("agent1", new BidUpdate(Bid.flatDemand(MB, 1), Integer.MIN_VALUE));
+        bidCache.updateAgentBid("agent2", new BidUpdate(Bid.flatDemand(MB, 1), 0));
+
+        AggregatedBid aggregatedBid = bidCache.aggregate();
+        int slot = bidCache.getSlot("agent1");
+        assertTrue(aggregatedBid.hasBid(slot, "agent1"));
+        assertEquals(Integer.MIN_VALUE, aggregatedBid.getBidNumber(slot, "agent1"));
+        assertEquals(Integer.valueOf(Integer.MIN_VALUE), aggregatedBid.getAgentBidReferences().get("agent1"));
+        assertEquals(2, aggregatedBid.getAgentBidReferences().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetBidNumberWithoutBid() {
+        BidCache bidCache = new BidCache(MB);
+        bidCache.aggregate().getBidNumber(bidCache.getSlot("agent1"), "agent1");
+    }
+
+    @Test
+    public void testChurningAgentsReuseSlots() {
+        BidCache bidCache = new BidCache(MB, 0, 3);
+        int connectedAgents = 10;
+        for (int ix = 0; ix < connectedAgents; ix++) {
+            bidCache.updateAgentBid("agent" + ix, new BidUpdate(Bid.flatDemand(MB, 1), ix));
+        }
+        int removedSlot = bidCache.getSlot("agent0");
+        AggregatedBid before = bidCache.aggregate();
+
+        // Replace the agents one by one, such that there are never more than connectedAgents + 1 of them
+        for (int ix = connectedAgents; ix < 10000; ix++) {
+            bidCache.updateAgentBid("agent" + ix, new BidUpdate(Bid.flatDemand(MB, 1), ix));
+            bidCache.removeAgent("agent" + (ix - connectedAgents));
+            assertTrue(bidCache.getSlot("agent" + ix) <= connectedAgents);
+        }
+
+        AggregatedBid after = bidCache.aggregate();
+        assertEquals(connectedAgents, after.getAgentBidReferences().size());
+        assertEquals(connectedAgents, after.getMaximumDemand(), 0);
+        for (int ix = 10000 - connectedAgents; ix < 10000; ix++) {
+            String agentId = "agent" + ix;
+            assertEquals(ix, after.getBidNumber(bidCache.getSlot(agentId), agentId));
+        }
+
+        // An older aggregated bid still attributes its bid numbers to the agents that were in the slots at that time
+        assertEquals(0, before.getBidNumber(removedSlot, "agent0"));
+        for (int ix = 0; ix < connectedAgents; ix++) {
+            String agentId = "agent" + (10000 - connectedAgents + ix);
+            assertFalse(before.hasBid(ix, agentId));
+        }
+        assertEquals(connectedAgents, before.getAgentBidReferences().size());
+        assertFalse(after.hasBid(removedSlot, "agent0"));
+    }
+
+    @Test
+    public void testPointBidAggregationMatchesArrayBids() {
+        Random random = new Random(3);
+        AggregatedBid.Builder builder = new AggregatedBid.Builder(MB);
+        double[] expected = new double[MB.getPriceSteps()];
+        for (int ix = 0; ix < 200; ix++) {
+            Bid bid = randomPointBid(random);
+            builder.addBid(bid);
+            bid.addTo(expected);
+        }
+        builder.addBid(Bid.flatDemand(MB, 25));
+        Bid.flatDemand(MB, 25).addTo(expected);
+
+        assertArrayEquals(expected, builder.build().getDemand(), 1e-6);
+    }
+
+    @Test
+    public void testPointBidStepAndLinearSegment() {
+        Bid step = new PointBid.Builder(MB).add(0.5, 100).add(0.5, 0).build();
+        Bid linear = new PointBid.Builder(MB).add(0.25, 40).add(0.75, 0).build();
+        AggregatedBid aggregatedBid = new AggregatedBid.Builder(MB).addBid(step).addBid(linear).build();
+        assertArrayEquals(step.aggregate(linear).toArrayBid().getDemand(), aggregatedBid.getDemand(), 1e-9);
+    }
+
+    private static Bid randomPointBid(Random random) {
+        PointBid.Builder builder = new PointBid.Builder(MB);
+        double demand = random.nextDouble() * 1000;
+        builder.add(0, demand);
+        int points = 1 + random.nextInt(4);
+        double price = 0;
+        for (int ix = 0; ix < points; ix++) {
+            // Use some prices that are exactly on a price step and some that are in between
+            price += random.nextBoolean() ? 0.1 * (1 + random.nextInt(2)) : random.nextDouble() * 0.2;
+            if (price > 1) {
+                break;
+            }
+            builder.add(price, demand);
+            demand -= random.nextDouble() * 200;
+            if (random.nextInt(3) == 0) {
+                // Make this a step
+                builder.add(price, demand);
+                demand -= random.nextDouble() * 200;
+            }
+        }
+        return builder.build();
+    }
+
+    private static Bid randomBid(Random random) {
+        double maxDemand = random.nextDouble() * 1000;
+        double minDemand = maxDemand - random.nextDouble() * 1000;
+        int priceStep = 1 + random.nextInt(MB.getPriceSteps() - 1);
+        return new ArrayBid.Builder(MB).demand(maxDemand).fillTo(priceStep).demand(minDemand).build();
+    }
 }
@@ -0,0 +1,71 @@
+package net.powermatcher.core.bidcache.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import net.powermatcher.core.bidcache.CoalescingSlots;
+
+import org.junit.Test;
+
+public class CoalescingSlotsTest {
+    @Test
+    public void testLatestValueIsKept() {
+        CoalescingSlots<String> slots = new CoalescingSlots<String>();
+        assertTrue(slots.isEmpty());
+        assertNull(slots.poll());
+
+        assertTrue(slots.offer(3, "a1"));
+        assertFalse(slots.offer(3, "a2"));
+        assertFalse(slots.offer(3, "a3"));
+        assertTrue(slots.offer(5000, "b1"));
+        assertFalse(slots.isEmpty());
+
+        assertEquals("a3", slots.poll());
+        assertEquals("b1", slots.poll());
+        assertNull(slots.poll());
+        assertTrue(slots.isEmpty());
+        assertEquals(4, slots.getOfferedCount());
+        assertEquals(2, slots.getSupersededCount());
+
+        // After it has been polled, the slot has to be polled again
+        assertTrue(slots.offer(3, "a4"));
+        assertEquals("a4", slots.poll());
+    }
+
+    @Test
+    public void testConcurrentOffers() throws InterruptedException {
+        final CoalescingSlots<Integer> slots = new CoalescingSlots<Integer>();
+        final int slotCount = 3000;
+        Thread[] threads = new Thread[4];
+        for (int ix = 0; ix < threads.length; ix++) {
+            threads[ix] = new Thread() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 10; round++) {
+                        for (int slot = 0; slot < slotCount; slot++) {
+                            slots.offer(slot, slot);
+                        }
+                    }
+                }
+            };
+            threads[ix].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<Integer> polled = new HashSet<Integer>();
+        Integer value;
+        while ((value = slots.poll()) != null) {
+            assertTrue("Slot polled twice", polled.add(value));
+        }
+        assertEquals(slotCount, polled.size());
+        assertEquals(threads.length * 10 * slotCount, slots.getOfferedCount());
+        assertEquals(slots.getOfferedCount() - slotCount, slots.getSupersededCount());
+    }
+}
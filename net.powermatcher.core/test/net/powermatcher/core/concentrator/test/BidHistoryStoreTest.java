@@ -0,0 +1,101 @@
+package net.powermatcher.core.concentrator.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.core.bidcache.AggregatedBid;
+import net.powermatcher.core.bidcache.BidCache;
+import net.powermatcher.core.concentrator.BidHistoryStore;
+import net.powermatcher.core.concentrator.SentBidInformation;
+
+import org.junit.Test;
+
+/**
+ * JUnit test for the {@link BidHistoryStore} class.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class BidHistoryStoreTest {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 5, 0, 10);
+
+    private final AggregatedBid aggregatedBid = new BidCache(MB).aggregate();
+
+    @Test
+    public void testSaveAndRetrieve() {
+        BidHistoryStore store = new BidHistoryStore(4);
+        for (int bidNumber = 1; bidNumber <= 3; bidNumber++) {
+            store.saveBid(aggregatedBid, new BidUpdate(Bid.flatDemand(MB, bidNumber), bidNumber));
+        }
+
+        for (int bidNumber = 1; bidNumber <= 3; bidNumber++) {
+            SentBidInformation info = store.retrieveAggregatedBid(bidNumber);
+            assertEquals(bidNumber, info.getBidNumber());
+            assertSame(aggregatedBid, info.getOriginalBid());
+        }
+        // Retrieving the same bid again is possible
+        assertEquals(3, store.retrieveAggregatedBid(3).getBidNumber());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRetrieveOlderAfterNewer() {
+        BidHistoryStore store = new BidHistoryStore(4);
+        for (int bidNumber = 1; bidNumber <= 3; bidNumber++) {
+            store.saveBid(aggregatedBid, new BidUpdate(Bid.flatDemand(MB, 0), bidNumber));
+        }
+        assertEquals(3, store.retrieveAggregatedBid(3).getBidNumber());
+        // Bid 2 has been dropped when bid 3 was retrieved
+        store.retrieveAggregatedBid(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRetrieveUnknown() {
+        BidHistoryStore store = new BidHistoryStore(4);
+        store.saveBid(aggregatedBid, new BidUpdate(Bid.flatDemand(MB, 0), 1));
+        store.retrieveAggregatedBid(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRetrieveOverwritten() {
+        BidHistoryStore store = new BidHistoryStore(4);
+        for (int bidNumber = 1; bidNumber <= 5; bidNumber++) {
+            store.saveBid(aggregatedBid, new BidUpdate(Bid.flatDemand(MB, 0), bidNumber));
+        }
+        // Bid 1 has been overwritten by bid 5
+        store.retrieveAggregatedBid(1);
+    }
+
+    @Test
+    public void testNegativeBidNumber() {
+        BidHistoryStore store = new BidHistoryStore(4);
+        store.saveBid(aggregatedBid, new BidUpdate(Bid.flatDemand(MB, 0), Integer.MIN_VALUE));
+        assertEquals(Integer.MIN_VALUE, store.retrieveAggregatedBid(Integer.MIN_VALUE).getBidNumber());
+    }
+
+    @Test
+    public void testBidNumbersWrapAround() {
+        BidHistoryStore store = new BidHistoryStore(4);
+        int[] bidNumbers = { Integer.MAX_VALUE - 1, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1 };
+        for (int bidNumber : bidNumbers) {
+            store.saveBid(aggregatedBid, new BidUpdate(Bid.flatDemand(MB, 0), bidNumber));
+        }
+
+        // The bids after Integer.MAX_VALUE are newer, so they are still available after it has been retrieved
+        for (int bidNumber : bidNumbers) {
+            assertEquals(bidNumber, store.retrieveAggregatedBid(bidNumber).getBidNumber());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRetrieveOlderAfterWrapAround() {
+        BidHistoryStore store = new BidHistoryStore(4);
+        for (int bidNumber = Integer.MAX_VALUE - 1; bidNumber != Integer.MIN_VALUE + 1; bidNumber++) {
+            store.saveBid(aggregatedBid, new BidUpdate(Bid.flatDemand(MB, 0), bidNumber));
+        }
+        assertEquals(Integer.MIN_VALUE, store.retrieveAggregatedBid(Integer.MIN_VALUE).getBidNumber());
+        // Integer.MAX_VALUE was sent before Integer.MIN_VALUE, so it has been dropped
+        store.retrieveAggregatedBid(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,271 @@
+package net.powermatcher.core.fanout.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.PriceDeliveryStatistics;
+import net.powermatcher.core.fanout.PriceFanOut;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link PriceFanOut} class.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PriceFanOutTest {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 10, 0, 10);
+
+    /**
+     * A {@link Session} that records the prices it receives and that can block while it is handling a price.
+     */
+    private static class RecordingSession
+        implements Session {
+        private final String agentId;
+        private final List<PriceUpdate> received = new ArrayList<PriceUpdate>();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release;
+        private final CountDownLatch expected;
+        private final AtomicInteger active = new AtomicInteger();
+        private volatile int maxActive;
+
+        RecordingSession(String agentId, boolean blocking, int expectedPrices) {
+            this.agentId = agentId;
+            release = new CountDownLatch(blocking ? 1 : 0);
+            expected = new CountDownLatch(expectedPrices);
+        }
+
+        @Override
+        public void updatePrice(PriceUpdate priceUpdate) {
+            maxActive = Math.max(maxActive, active.incrementAndGet());
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (received) {
+                received.add(priceUpdate);
+            }
+            active.decrementAndGet();
+            expected.countDown();
+        }
+
+        List<PriceUpdate> awaitPrices() throws InterruptedException {
+            assertTrue("Prices were not delivered in time", expected.await(5, TimeUnit.SECONDS));
+            synchronized (received) {
+                return new ArrayList<PriceUpdate>(received);
+            }
+        }
+
+        @Override
+        public String getAgentId() {
+            return agentId;
+        }
+
+        @Override
+        public String getMatcherId() {
+            return "matcher";
+        }
+
+        @Override
+        public String getClusterId() {
+            return "cluster";
+        }
+
+        @Override
+        public String getSessionId() {
+            return agentId;
+        }
+
+        @Override
+        public MarketBasis getMarketBasis() {
+            return MB;
+        }
+
+        @Override
+        public void setMarketBasis(MarketBasis marketBasis) {
+        }
+
+        @Override
+        public void updateBid(BidUpdate newBid) {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+
+    private PriceFanOut priceFanOut;
+
+    @After
+    public void tearDown() {
+        if (priceFanOut != null) {
+            priceFanOut.shutdown();
+        }
+    }
+
+    private static PriceUpdate priceUpdate(int bidNumber) {
+        return new PriceUpdate(new Price(MB, bidNumber), bidNumber);
+    }
+
+    /**
+     * Waits until the statistics show the expected number of deliveries, which are updated just after the session has
+     * handled the price.
+     */
+    private PriceDeliveryStatistics awaitDelivered(String agentId, long delivered) throws InterruptedException {
+        for (int ix = 0; ix < 500; ix++) {
+            PriceDeliveryStatistics statistics = priceFanOut.getStatistics().get(agentId);
+            if (statistics.getDelivered() >= delivered) {
+                return statistics;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Expected " + delivered + " deliveries to " + agentId);
+    }
+
+    @Test
+    public void testDeliverToAllSessions() throws InterruptedException {
+        priceFanOut = new PriceFanOut("test", 2, 1000, null);
+        RecordingSession[] sessions = new RecordingSession[5];
+        PriceUpdate priceUpdate = priceUpdate(1);
+        for (int ix = 0; ix < sessions.length; ix++) {
+            sessions[ix] = new RecordingSession("agent" + ix, false, 1);
+            priceFanOut.deliver(sessions[ix], priceUpdate);
+        }
+
+        for (RecordingSession session : sessions) {
+            List<PriceUpdate> received = session.awaitPrices();
+            assertEquals(1, received.size());
+            assertSame(priceUpdate, received.get(0));
+        }
+        assertEquals(5, priceFanOut.getStatistics().size());
+    }
+
+    @Test
+    public void testSlowSessionCoalescesAndDoesNotBlockOthers() throws InterruptedException {
+        priceFanOut = new PriceFanOut("test", 2, 60000, null);
+        RecordingSession slow = new RecordingSession("slow", true, 2);
+        RecordingSession fast = new RecordingSession("fast", false, 1);
+
+        priceFanOut.deliver(slow, priceUpdate(1));
+        assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+        priceFanOut.deliver(slow, priceUpdate(2));
+        priceFanOut.deliver(slow, priceUpdate(3));
+        priceFanOut.deliver(fast, priceUpdate(3));
+        // The fast session gets its price while the slow session is still handling the first one
+        assertEquals(1, fast.awaitPrices().size());
+
+        slow.release.countDown();
+        List<PriceUpdate> received = slow.awaitPrices();
+        assertEquals(2, received.size());
+        assertEquals(1, received.get(0).getBidNumber());
+        assertEquals(3, received.get(1).getBidNumber());
+
+        PriceDeliveryStatistics statistics = awaitDelivered("slow", 2);
+        assertEquals(2, statistics.getDelivered());
+        assertEquals(1, statistics.getCoalesced());
+        assertEquals(0, statistics.getSlowConsumerCount());
+        assertTrue(statistics.getMaxLatencyMicros() >= statistics.getAverageLatencyMicros());
+    }
+
+    @Test
+    public void testSlowConsumerDetected() throws InterruptedException {
+        final AtomicInteger detected = new AtomicInteger();
+        priceFanOut = new PriceFanOut("test", 1, 1, new PriceFanOut.SlowConsumerListener() {
+            @Override
+            public void slowConsumerDetected(Session session, long deliveryMillis) {
+                assertEquals("slow", session.getAgentId());
+                detected.incrementAndGet();
+            }
+        });
+        RecordingSession slow = new RecordingSession("slow", true, 2);
+
+        priceFanOut.deliver(slow, priceUpdate(1));
+        assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        priceFanOut.deliver(slow, priceUpdate(2));
+        priceFanOut.deliver(slow, priceUpdate(3));
+        // Only reported once for the same delivery
+        assertEquals(1, detected.get());
+
+        slow.release.countDown();
+        slow.awaitPrices();
+        assertEquals(1, priceFanOut.getStatistics().get("slow").getSlowConsumerCount());
+    }
+
+    @Test
+    public void testStalledConsumerDetectedWithoutNewPrice() throws InterruptedException {
+        final CountDownLatch detected = new CountDownLatch(1);
+        priceFanOut = new PriceFanOut("test", 1, 50, new PriceFanOut.SlowConsumerListener() {
+            @Override
+            public void slowConsumerDetected(Session session, long deliveryMillis) {
+                detected.countDown();
+            }
+        });
+        RecordingSession slow = new RecordingSession("slow", true, 1);
+
+        priceFanOut.deliver(slow, priceUpdate(1));
+        // Nothing else is delivered, so only the watchdog can detect it
+        assertTrue("Stalled consumer was not detected", detected.await(5, TimeUnit.SECONDS));
+
+        slow.release.countDown();
+        slow.awaitPrices();
+        assertEquals(1, priceFanOut.getStatistics().get("slow").getSlowConsumerCount());
+    }
+
+    @Test
+    public void testRemoveKeepsQueueUntilDeliveryFinished() throws InterruptedException {
+        priceFanOut = new PriceFanOut("test", 2, 60000, null);
+        RecordingSession session = new RecordingSession("agent", true, 2);
+
+        priceFanOut.deliver(session, priceUpdate(1));
+        assertTrue(session.entered.await(5, TimeUnit.SECONDS));
+        priceFanOut.remove(session);
+        // The delivery of the first price is still in progress, so this one is dropped instead of delivered next to it
+        priceFanOut.deliver(session, priceUpdate(2));
+        assertTrue(priceFanOut.getStatistics().isEmpty());
+
+        session.release.countDown();
+        // Once the delivery has finished, the session gets a new queue
+        while (!session.expected.await(10, TimeUnit.MILLISECONDS)) {
+            priceFanOut.deliver(session, priceUpdate(3));
+        }
+        List<PriceUpdate> received = session.awaitPrices();
+        assertEquals(1, received.get(0).getBidNumber());
+        assertEquals(3, received.get(1).getBidNumber());
+        assertEquals(1, session.maxActive);
+    }
+
+    @Test
+    public void testFailedDelivery() throws InterruptedException {
+        priceFanOut = new PriceFanOut("test", 1, 1000, null);
+        Session failing = new RecordingSession("failing", false, 0) {
+            @Override
+            public void updatePrice(PriceUpdate priceUpdate) {
+                throw new IllegalStateException("Expected");
+            }
+        };
+        RecordingSession next = new RecordingSession("next", false, 1);
+
+        priceFanOut.deliver(failing, priceUpdate(1));
+        priceFanOut.deliver(next, priceUpdate(1));
+        next.awaitPrices();
+        assertEquals(1, priceFanOut.getStatistics().get("failing").getFailed());
+        assertEquals(0, priceFanOut.getStatistics().get("failing").getDelivered());
+    }
+}
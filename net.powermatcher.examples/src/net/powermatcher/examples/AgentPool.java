@@ -0,0 +1,292 @@
+package net.powermatcher.examples;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import net.powermatcher.api.Agent;
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.AgentEndpointGroup;
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBid;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.api.monitoring.ObservableAgent;
+import net.powermatcher.api.monitoring.events.IncomingPriceUpdateEvent;
+import net.powermatcher.api.monitoring.events.OutgoingBidUpdateEvent;
+import net.powermatcher.core.BaseAgent;
+import net.powermatcher.core.BaseAgentEndpoint;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
+import aQute.bnd.annotation.metatype.Configurable;
+import aQute.bnd.annotation.metatype.Meta;
+
+/**
+ * {@link AgentPool} hosts a configurable number of lightweight device agents, which all behave like a {@link Freezer}
+ * with the same configuration: at a set interval each of them sends a {@link PointBid} with a random demand. It is
+ * meant to load-test and simulate very large clusters in a single JVM.
+ *
+ * The agents are registered as a single {@link AgentEndpointGroup} service instead of a service per agent. Each agent
+ * only holds its agentId, its {@link Session} and its bid number. One task updates the bids of all the agents at
+ * once, the agents share a small set of {@link Bid}s and their events are published to the observers of the pool.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+@Component(designateFactory = AgentPool.Config.class,
+           immediate = true,
+           provide = { ObservableAgent.class, AgentEndpointGroup.class })
+public class AgentPool
+    extends BaseAgent
+    implements AgentEndpointGroup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentPool.class);
+
+    /**
+     * The number of different demands that the agents choose from.
+     */
+    private static final int BID_VARIANTS = 64;
+
+    public static interface Config {
+        @Meta.AD(deflt = "pool",
+                 description = "The unique identifier of the pool, which is followed by a number to get the "
+                               + "identifiers of the agents")
+        String agentId();
+
+        @Meta.AD(deflt = "concentrator",
+                 description = "The agent identifier of the parent matcher to which the agents should be connected")
+        String desiredParentId();
+
+        @Meta.AD(deflt = "1000", description = "The number of agents in the pool")
+        int agentCount();
+
+        @Meta.AD(deflt = "30", description = "Number of seconds between bid updates")
+        long bidUpdateRate();
+
+        @Meta.AD(deflt = "100", description = "The mimimum value of the random demand.")
+        double minimumDemand();
+
+        @Meta.AD(deflt = "121", description = "The maximum value the random demand.")
+        double maximumDemand();
+    }
+
+    /**
+     * A device agent in the pool. Everything but its connection is shared with the other agents in the pool.
+     */
+    private class PooledAgent
+        implements AgentEndpoint {
+        private final String agentId;
+        private volatile Session session;
+
+        /**
+         * The number of the last bid, which is only changed by the bid update task of the pool (and reset when it
+         * connects).
+         */
+        private int bidNumber;
+
+        PooledAgent(String agentId) {
+            this.agentId = agentId;
+        }
+
+        @Override
+        public String getAgentId() {
+            return agentId;
+        }
+
+        @Override
+        public String getDesiredParentId() {
+            return desiredParentId;
+        }
+
+        @Override
+        public AgentEndpoint.Status getStatus() {
+            Session currentSession = session;
+            return currentSession == null ? BaseAgentEndpoint.NOT_CONNECTED
+                                         : new BaseAgentEndpoint.Connected(currentSession);
+        }
+
+        @Override
+        public void setContext(FlexiblePowerContext context) {
+            AgentPool.this.setContext(context);
+        }
+
+        @Override
+        public synchronized void connectToMatcher(Session session) {
+            if (this.session != null) {
+                throw new IllegalStateException("Already connected to agent " + session.getMatcherId());
+            }
+            bidNumber = 0;
+            this.session = session;
+        }
+
+        @Override
+        public void matcherEndpointDisconnected(Session session) {
+            this.session = null;
+        }
+
+        @Override
+        public void handlePriceUpdate(PriceUpdate priceUpdate) {
+            Session currentSession = session;
+            // Like the Freezer, the agent does nothing with the price
+            if (currentSession != null && hasObservers()) {
+                publishEvent(new IncomingPriceUpdateEvent(currentSession.getClusterId(),
+                                                          agentId,
+                                                          currentSession.getSessionId(),
+                                                          now(),
+                                                          priceUpdate));
+            }
+        }
+
+        void doBidUpdate(Bid bid) {
+            Session currentSession = session;
+            if (currentSession != null) {
+                BidUpdate update = new BidUpdate(bid, ++bidNumber);
+                if (hasObservers()) {
+                    publishEvent(new OutgoingBidUpdateEvent(currentSession.getClusterId(),
+                                                            agentId,
+                                                            currentSession.getSessionId(),
+                                                            now(),
+                                                            update));
+                }
+                currentSession.updateBid(update);
+            }
+        }
+    }
+
+    private final Random generator = new Random();
+
+    private Config config;
+    private String agentId;
+    private String desiredParentId;
+    private PooledAgent[] agents;
+    private ScheduledFuture<?> scheduledFuture;
+
+    /**
+     * The bids that the agents choose from, which are created again when the {@link MarketBasis} changes.
+     */
+    private MarketBasis bidVariantsMarketBasis;
+    private Bid[] bidVariants;
+
+    /**
+     * OSGi calls this method to activate a managed service.
+     *
+     * @param properties
+     *            the configuration properties
+     */
+    @Activate
+    public void activate(Map<String, Object> properties) {
+        config = Configurable.createConfigurable(Config.class, properties);
+        agentId = config.agentId();
+        desiredParentId = config.desiredParentId();
+        if (config.agentCount() < 0) {
+            throw new IllegalArgumentException("The agentCount may not be negative");
+        }
+
+        agents = new PooledAgent[config.agentCount()];
+        for (int ix = 0; ix < agents.length; ix++) {
+            agents[ix] = new PooledAgent(agentId + "-" + ix);
+        }
+        LOGGER.info("Agent pool [{}] with {} agents, activated", agentId, agents.length);
+    }
+
+    /**
+     * OSGi calls this method to deactivate a managed service.
+     */
+    @Deactivate
+    public synchronized void deactivate() {
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+            scheduledFuture = null;
+        }
+        for (PooledAgent agent : agents) {
+            Session session = agent.session;
+            if (session != null) {
+                session.disconnect();
+            }
+        }
+        LOGGER.info("Agent pool [{}], deactivated", agentId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getAgentId() {
+        return agentId;
+    }
+
+    /**
+     * The pool itself is never connected, only its agents are.
+     */
+    @Override
+    public Agent.Status getStatus() {
+        return BaseAgentEndpoint.NOT_CONNECTED;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<? extends AgentEndpoint> getAgentEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(agents));
+    }
+
+    /**
+     * Each agent of the pool gets the context, so the bid update task is only scheduled the first time.
+     */
+    @Override
+    public synchronized void setContext(FlexiblePowerContext context) {
+        super.setContext(context);
+        if (scheduledFuture == null) {
+            scheduledFuture = context.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    doBidUpdates();
+                }
+            }, Measure.valueOf(0, SI.SECOND), Measure.valueOf(config.bidUpdateRate(), SI.SECOND));
+        }
+    }
+
+    /**
+     * Sends a new bid for each agent that is connected.
+     */
+    void doBidUpdates() {
+        for (PooledAgent agent : agents) {
+            Session session = agent.session;
+            if (session != null) {
+                Bid[] bids = getBidVariants(session.getMarketBasis());
+                agent.doBidUpdate(bids[generator.nextInt(bids.length)]);
+            }
+        }
+    }
+
+    private Bid[] getBidVariants(MarketBasis marketBasis) {
+        if (!marketBasis.equals(bidVariantsMarketBasis)) {
+            double minimumDemand = config.minimumDemand();
+            double maximumDemand = config.maximumDemand();
+            Bid[] bids = new Bid[BID_VARIANTS];
+            for (int ix = 0; ix < BID_VARIANTS; ix++) {
+                double demand = minimumDemand + (maximumDemand - minimumDemand) * ix / (BID_VARIANTS - 1);
+                bids[ix] = new PointBid.Builder(marketBasis).add(marketBasis.getMinimumPrice(), demand)
+                                                            .add(marketBasis.getMaximumPrice(), minimumDemand)
+                                                            .build();
+            }
+            bidVariants = bids;
+            bidVariantsMarketBasis = marketBasis;
+        }
+        return bidVariants;
+    }
+}
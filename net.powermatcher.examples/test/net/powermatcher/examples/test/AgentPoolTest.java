@@ -0,0 +1,200 @@
+package net.powermatcher.examples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.examples.AgentPool;
+import net.powermatcher.mock.MockContext;
+import net.powermatcher.mock.MockMatcherAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.test.helpers.PropertiesBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link AgentPool} class. The agents of the pool are connected to a matcher that keeps the bids
+ * that it receives for each agent, and the bid update task of the pool is run by a {@link MockContext}.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class AgentPoolTest {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("electricity", "EUR", 11, 0, 10);
+    private static final String POOL_ID = "pool";
+    private static final String MATCHER_ID = "concentrator";
+    private static final double MINIMUM_DEMAND = 100;
+    private static final double MAXIMUM_DEMAND = 121;
+
+    /**
+     * A matcher that keeps all the bids it receives, for each agent that sent them.
+     */
+    private static class RecordingMatcher
+        extends MockMatcherAgent {
+        private final Map<String, List<BidUpdate>> bidUpdates = new HashMap<String, List<BidUpdate>>();
+
+        RecordingMatcher() {
+            super(MATCHER_ID, "cluster", MARKET_BASIS);
+        }
+
+        @Override
+        public synchronized void handleBidUpdate(Session session, BidUpdate bidUpdate) {
+            super.handleBidUpdate(session, bidUpdate);
+            List<BidUpdate> updates = bidUpdates.get(session.getAgentId());
+            if (updates == null) {
+                updates = new ArrayList<BidUpdate>();
+                bidUpdates.put(session.getAgentId(), updates);
+            }
+            updates.add(bidUpdate);
+        }
+
+        synchronized List<BidUpdate> getBidUpdates(String agentId) {
+            List<BidUpdate> updates = bidUpdates.get(agentId);
+            return updates == null ? new ArrayList<BidUpdate>() : new ArrayList<BidUpdate>(updates);
+        }
+    }
+
+    private final MockContext context = new MockContext(0);
+    private final RecordingMatcher matcher = new RecordingMatcher();
+    private final AgentPool pool = new AgentPool();
+
+    private List<AgentEndpoint> agents;
+
+    @Before
+    public void setUp() {
+        pool.activate(new PropertiesBuilder().agentId(POOL_ID)
+                                             .desiredParentId(MATCHER_ID)
+                                             .add("agentCount", 3)
+                                             .add("bidUpdateRate", 30)
+                                             .add("minimumDemand", MINIMUM_DEMAND)
+                                             .add("maximumDemand", MAXIMUM_DEMAND)
+                                             .build());
+        pool.setContext(context);
+        agents = new ArrayList<AgentEndpoint>(pool.getAgentEndpoints());
+    }
+
+    private SimpleSession connect(AgentEndpoint agent) {
+        SimpleSession session = new SimpleSession(agent, matcher);
+        session.connect();
+        return session;
+    }
+
+    private List<Integer> bidNumbers(AgentEndpoint agent) {
+        List<Integer> bidNumbers = new ArrayList<Integer>();
+        for (BidUpdate bidUpdate : matcher.getBidUpdates(agent.getAgentId())) {
+            bidNumbers.add(bidUpdate.getBidNumber());
+        }
+        return bidNumbers;
+    }
+
+    @Test
+    public void testActivate() {
+        assertEquals(POOL_ID, pool.getAgentId());
+        assertFalse(pool.getStatus().isConnected());
+        assertEquals(3, agents.size());
+        for (int ix = 0; ix < agents.size(); ix++) {
+            assertEquals(POOL_ID + "-" + ix, agents.get(ix).getAgentId());
+            assertEquals(MATCHER_ID, agents.get(ix).getDesiredParentId());
+            assertFalse(agents.get(ix).getStatus().isConnected());
+        }
+        assertEquals(30, context.getUpdateRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeAgentCount() {
+        new AgentPool().activate(new PropertiesBuilder().agentId(POOL_ID)
+                                                        .desiredParentId(MATCHER_ID)
+                                                        .add("agentCount", -1)
+                                                        .build());
+    }
+
+    @Test
+    public void testContextOfAgentDoesNotScheduleAgain() {
+        MockContext.MockFuture future = context.getMockFuture();
+        agents.get(0).setContext(context);
+        assertSame(future, context.getMockFuture());
+    }
+
+    @Test
+    public void testOnlyConnectedAgentsSendBids() {
+        connect(agents.get(0));
+        connect(agents.get(2));
+        context.doTaskOnce();
+
+        assertEquals(1, matcher.getBidUpdates(agents.get(0).getAgentId()).size());
+        assertEquals(0, matcher.getBidUpdates(agents.get(1).getAgentId()).size());
+        assertEquals(1, matcher.getBidUpdates(agents.get(2).getAgentId()).size());
+
+        double demand = matcher.getLastReceivedBid().getBid().getMaximumDemand();
+        assertTrue(demand >= MINIMUM_DEMAND && demand <= MAXIMUM_DEMAND);
+        assertEquals(MINIMUM_DEMAND, matcher.getLastReceivedBid().getBid().getMinimumDemand(), 1e-9);
+        assertEquals(MARKET_BASIS, matcher.getLastReceivedBid().getBid().getMarketBasis());
+    }
+
+    @Test
+    public void testBidNumbersIncrease() {
+        connect(agents.get(0));
+        context.doTaskOnce();
+        context.doTaskOnce();
+        context.doTaskOnce();
+
+        assertEquals(Arrays.asList(1, 2, 3), bidNumbers(agents.get(0)));
+    }
+
+    @Test
+    public void testAgentSurvivesDisconnectAndReconnect() {
+        AgentEndpoint agent = agents.get(1);
+        SimpleSession session = connect(agent);
+        context.doTaskOnce();
+        context.doTaskOnce();
+
+        session.disconnect();
+        assertFalse(agent.getStatus().isConnected());
+        context.doTaskOnce();
+        assertEquals(2, matcher.getBidUpdates(agent.getAgentId()).size());
+
+        // The matcher forgets the agent on a disconnect, so the bid numbers start again, like in BaseAgentEndpoint
+        SimpleSession newSession = connect(agent);
+        assertTrue(agent.getStatus().isConnected());
+        assertSame(newSession, agent.getStatus().getSession());
+        context.doTaskOnce();
+        context.doTaskOnce();
+        assertEquals(Arrays.asList(1, 2, 1, 2), bidNumbers(agent));
+
+        // The other agents of the pool are not affected
+        assertEquals(0, matcher.getBidUpdates(agents.get(0).getAgentId()).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConnectTwice() {
+        AgentEndpoint agent = agents.get(0);
+        connect(agent);
+        agent.connectToMatcher(new SimpleSession(agent, matcher));
+    }
+
+    @Test
+    public void testDeactivateDisconnectsAgents() {
+        SimpleSession session0 = connect(agents.get(0));
+        SimpleSession session2 = connect(agents.get(2));
+
+        pool.deactivate();
+        assertTrue(context.getMockFuture().isCancelled());
+        assertFalse(session0.isConnected());
+        assertFalse(session2.isConnected());
+        for (AgentEndpoint agent : agents) {
+            assertFalse(agent.getStatus().isConnected());
+        }
+    }
+}
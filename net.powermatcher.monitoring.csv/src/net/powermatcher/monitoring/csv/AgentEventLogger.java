@@ -1,11 +1,13 @@
 package net.powermatcher.monitoring.csv;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import net.powermatcher.api.monitoring.events.AgentEvent;
@@ -19,6 +21,10 @@ import org.slf4j.LoggerFactory;
  * This is the basic class to store incoming {@link AgentEvent}s. Subclasses of this abstract class implements their
  * specific logging method in the dumpLogs() method.
  *
+ * The events are kept in a bounded {@link EventRingBuffer} until they are dumped, and the {@link LogRecord}s are only
+ * created on the thread that dumps them. When the events arrive faster than they can be written, events are dropped
+ * according to the {@link OverflowPolicy}, so the logger never blocks the agents nor runs out of memory.
+ *
  * @author FAN
  * @version 2.0
  */
@@ -27,6 +33,11 @@ public abstract class AgentEventLogger
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AgentEventLogger.class);
 
+    /**
+     * The time in seconds that deactivation waits for a running dump.
+     */
+    private static final long DEACTIVATE_TIMEOUT = 30;
+
     /**
      * The id of this {@link AgentEventLogger} instance
      */
@@ -38,9 +49,19 @@ public abstract class AgentEventLogger
     private DateFormat dateFormat;
 
     /**
-     * A set containing all {@link PriceLogRecord} instances that haven't been written to file yet.
+     * The default number of {@link AgentEvent}s that can wait to be written.
      */
-    private final BlockingQueue<LogRecord> logRecords = new LinkedBlockingQueue<LogRecord>();
+    public static final int DEFAULT_BUFFER_CAPACITY = 65536;
+
+    /**
+     * The {@link AgentEvent}s that haven't been written yet.
+     */
+    private volatile EventRingBuffer events = new EventRingBuffer(DEFAULT_BUFFER_CAPACITY, OverflowPolicy.DROP_OLDEST);
+
+    /**
+     * The number of {@link AgentEvent}s dropped by the buffers that have been replaced.
+     */
+    private volatile long droppedByPreviousBuffers;
 
     /**
      * A delayed result-bearing action that can be cancelled. It's used to dump the logs at a set interval.
@@ -70,6 +91,16 @@ public abstract class AgentEventLogger
      */
     public synchronized void baseActivate(Map<String, Object> properties) {
         processConfig(properties);
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "AgentEventLogger-" + loggerId);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
         createScheduledFuture();
     }
 
@@ -89,7 +120,7 @@ public abstract class AgentEventLogger
             public void run() {
                 dumpLogs();
             }
-        }, 0, logUpdateRate, TimeUnit.SECONDS);
+        }, logUpdateRate, logUpdateRate, TimeUnit.SECONDS);
     }
 
     /**
@@ -99,26 +130,31 @@ public abstract class AgentEventLogger
     public void handleAgentEvent(AgentEvent event) {
 
         if (eventType.getClassType().isAssignableFrom(event.getClass())) {
-
-            LogRecord logRecord = null;
-
-            if (event instanceof BidUpdateEvent) {
-                logRecord = new BidUpdateLogRecord((BidUpdateEvent) event, event.getTimestamp(), getDateFormat());
-            } else if (event instanceof PriceUpdateEvent) {
-                logRecord = new PriceUpdateLogRecord((PriceUpdateEvent) event, event.getTimestamp(),
-                                                     getDateFormat());
+            EventRingBuffer buffer = events;
+            while (!buffer.add(event)) {
+                // The buffer has been replaced by setBuffer, which has already published the new one
+                buffer = events;
             }
-
-            addLogRecord(logRecord);
-            getLogger().info("AgentEventLogger [{}] received event: {}", getLoggerId(), event);
+            LOGGER.debug("AgentEventLogger [{}] received event: {}", loggerId, event);
         }
     }
 
     /**
-     * This method will be called by the annotated Deactivate() method of the subclasses.
+     * This method will be called by the annotated Deactivate() method of the subclasses. It waits for a dump that is
+     * running and then dumps the {@link LogRecord}s that are left.
      */
     public void baseDeactivate() {
         scheduledFuture.cancel(false);
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(DEACTIVATE_TIMEOUT, TimeUnit.SECONDS)) {
+                LOGGER.warn("AgentEventLogger [{}] could not finish its last dump in time", loggerId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+        dumpLogs();
     }
 
     /**
@@ -183,13 +219,6 @@ public abstract class AgentEventLogger
         this.loggerId = loggerId;
     }
 
-    /**
-     * @return the current value of priceLogRecords.
-     */
-    protected BlockingQueue<LogRecord> getPriceLogRecords() {
-        return logRecords;
-    }
-
     /**
      * @return the current value of LOGGER.
      */
@@ -198,30 +227,78 @@ public abstract class AgentEventLogger
     }
 
     /**
-     * @return the current value of logRecords.
+     * Sets the capacity of the buffer and what happens when it is full. The buffer is only replaced when one of them
+     * changes, in which case the waiting {@link AgentEvent}s are moved to the new buffer.
+     *
+     * @param capacity
+     *            the maximum number of {@link AgentEvent}s that can wait to be written
+     * @param overflowPolicy
+     *            which {@link AgentEvent} is dropped when the buffer is full
      */
-    protected BlockingQueue<LogRecord> getLogRecords() {
-        return logRecords;
+    protected synchronized void setBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        EventRingBuffer oldEvents = events;
+        if (oldEvents.getCapacity() != capacity || oldEvents.getOverflowPolicy() != overflowPolicy) {
+            EventRingBuffer newEvents = new EventRingBuffer(capacity, overflowPolicy);
+            // Publish the new buffer first, so an agent that finds the old buffer closed adds its event to the new one
+            events = newEvents;
+            List<AgentEvent> waiting = new ArrayList<AgentEvent>(oldEvents.size());
+            oldEvents.close(waiting);
+            for (AgentEvent event : waiting) {
+                newEvents.add(event);
+            }
+            droppedByPreviousBuffers += oldEvents.getDropped();
+        }
     }
 
     /**
-     * Removed the given {@link LogRecord} from logRecords.
+     * Takes at most maxRecords {@link AgentEvent}s from the buffer, oldest first, and adds a {@link LogRecord} for each
+     * of them to the given list.
      *
-     * @param logRecord
-     *            the {@link LogRecord} that will be removed.
+     * @param batch
+     *            the list the {@link LogRecord}s are added to
+     * @param maxRecords
+     *            the maximum number of {@link LogRecord}s to add
+     * @return the number of {@link LogRecord}s that have been added
      */
-    protected void removeLogRecord(LogRecord logRecord) {
-        logRecords.remove(logRecord);
+    protected int drainLogRecords(List<LogRecord> batch, int maxRecords) {
+        List<AgentEvent> drained = new ArrayList<AgentEvent>(Math.min(maxRecords, events.size()));
+        int count = events.drainTo(drained, maxRecords);
+        for (AgentEvent event : drained) {
+            if (event instanceof BidUpdateEvent) {
+                batch.add(new BidUpdateLogRecord((BidUpdateEvent) event, event.getTimestamp(), getDateFormat()));
+            } else if (event instanceof PriceUpdateEvent) {
+                batch.add(new PriceUpdateLogRecord((PriceUpdateEvent) event, event.getTimestamp(), getDateFormat()));
+            }
+        }
+        return count;
     }
 
     /**
-     * Adds the given {@link LogRecord} from logRecords.
-     *
-     * @param logRecord
-     *            the new {@link LogRecord}.
+     * @return the number of {@link AgentEvent}s that have been dropped because the buffer was full
+     */
+    public long getDroppedEvents() {
+        return droppedByPreviousBuffers + events.getDropped();
+    }
+
+    /**
+     * @return the number of {@link AgentEvent}s that are waiting to be written
+     */
+    public int getPendingEvents() {
+        return events.size();
+    }
+
+    /**
+     * @return the largest number of {@link AgentEvent}s that have been waiting to be written at the same time
+     */
+    public int getMaxPendingEvents() {
+        return events.getMaxSize();
+    }
+
+    /**
+     * @return how long the oldest waiting {@link AgentEvent} has been waiting in milliseconds, or 0 if there is none
      */
-    protected void addLogRecord(LogRecord logRecord) {
-        logRecords.add(logRecord);
+    public long getLagMillis() {
+        return events.getOldestAgeMillis();
     }
 
     /**
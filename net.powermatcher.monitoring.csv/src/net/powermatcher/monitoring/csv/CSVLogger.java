@@ -1,17 +1,12 @@
 package net.powermatcher.monitoring.csv;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.powermatcher.api.data.ArrayBid;
 import net.powermatcher.api.data.Bid;
@@ -33,6 +28,10 @@ import aQute.bnd.annotation.metatype.Meta;
  * {@link CSVLogger} is an implementation of {@link AgentEventLogger} where the {@link AgentEvent}s are logged to a
  * comma separated file.
  *
+ * The log file stays open between the dumps and the lines are written through a large buffer. Each dump takes the
+ * {@link LogRecord}s from the queue in batches, moves on to a new log file when the date in its name changes and
+ * reports the number of records and bytes per second that it has written.
+ *
  * @author FAN
  * @version 2.0
  */
@@ -40,7 +39,15 @@ import aQute.bnd.annotation.metatype.Meta;
 public class CSVLogger
     extends AgentEventLogger {
 
-    private static final String LINE_SEPERATOR = System.getProperty("line.seperator");
+    /**
+     * The size of the write buffer in characters.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of {@link LogRecord}s that are taken from the queue at once.
+     */
+    private static final int BATCH_SIZE = 1024;
 
     /**
      * The header for the bidlog file
@@ -104,6 +111,21 @@ public class CSVLogger
 
         @Meta.AD(deflt = "csvLogger")
         String loggerId();
+
+        @Meta.AD(deflt = "ON_CLOSE",
+                 required = false,
+                 description = "When the log lines are forced to the storage device: NEVER, ON_CLOSE or EVERY_DUMP")
+        FsyncPolicy fsyncPolicy();
+
+        @Meta.AD(deflt = "65536",
+                 required = false,
+                 description = "The maximum number of events that can wait to be written to the log file.")
+        int bufferCapacity();
+
+        @Meta.AD(deflt = "DROP_OLDEST",
+                 required = false,
+                 description = "Which event is dropped when the buffer is full: DROP_OLDEST or DROP_NEWEST")
+        OverflowPolicy overflowPolicy();
     }
 
     /**
@@ -112,14 +134,24 @@ public class CSVLogger
     private List<String> filter;
 
     /**
-     * The log file {@link BidUpdateLogRecord} will be written to.
+     * The writer of the log files the {@link LogRecord}s will be written to.
+     */
+    private RollingCSVWriter writer;
+
+    /**
+     * The time of the previous dump, as given by {@link System#nanoTime()}.
+     */
+    private long previousDumpNanos;
+
+    /**
+     * The number of records written per second during the previous dump interval.
      */
-    private File logFile;
+    private volatile double recordsPerSecond;
 
     /**
-     * The field separator the logger will use.
+     * The number of bytes written per second during the previous dump interval.
      */
-    private String separator;
+    private volatile double bytesPerSecond;
 
     /**
      * OSGi calls this method to activate a managed service.
@@ -139,6 +171,7 @@ public class CSVLogger
     @Deactivate
     public void deactivate() {
         super.baseDeactivate();
+        closeWriter();
         getLogger().info("CSVLogger [{}], deactivated", getLoggerId());
     }
 
@@ -182,110 +215,122 @@ public class CSVLogger
         setLogUpdateRate(config.logUpdateRate());
         setLoggerId(config.loggerId());
         setDateFormat(new SimpleDateFormat(config.dateFormat()));
-        separator = config.separator();
-
-        logFile = createLogFile(config.logFilenamePattern(), config.logLocation());
-        if (!logFile.exists()) {
-            String[] header = null;
-
-            switch (getEventType()) {
-            case PRICE_EVENT:
-                header = PRICE_HEADER_ROW;
-                break;
-            case BID_EVENT:
-                header = BID_HEADER_ROW;
-                break;
-            default:
-                break;
-            }
-            if (header != null) {
-                writeLineToCSV(header, logFile);
-            }
+        setBuffer(config.bufferCapacity(), config.overflowPolicy());
+
+        String[] header = null;
+        switch (getEventType()) {
+        case PRICE_EVENT:
+            header = PRICE_HEADER_ROW;
+            break;
+        case BID_EVENT:
+            header = BID_HEADER_ROW;
+            break;
+        default:
+            break;
         }
+
+        closeWriter();
+        writer = new RollingCSVWriter(new File(config.logLocation()),
+                                      config.logFilenamePattern(),
+                                      header,
+                                      config.separator(),
+                                      config.fsyncPolicy(),
+                                      BUFFER_SIZE);
+        try {
+            writer.rollOver(new Date());
+        } catch (IOException e) {
+            getLogger().error("CSVLogger [" + getLoggerId() + "] could not open its log file", e);
+        }
+        previousDumpNanos = System.nanoTime();
         updateObservables();
     }
 
     /**
-     * Creates a new {@link File} to write the csv lines to. It also parses possible {@link DateFormat} strings in the
-     * fileName parameter.
-     *
-     * @param fileName
-     *            the name of the {@link File} that has to be created
-     * @param logLocation
-     *            the location of the {@link File} that has to be created
-     * @return The {@link File} with the fileName name and the logLocation as location
+     * Closes the current log file, if any.
      */
-    private File createLogFile(String fileName, String logLocation) {
-        String newFileName = fileName;
-
-        // in case somebody forgets the extention
-        if (!fileName.endsWith(".csv")) {
-            newFileName = newFileName.concat(".csv");
-        }
-
-        if (fileName.matches("\\S*::\\w*::*.csv")) {
-
-            String logDateFormat = fileName.substring(fileName.indexOf("::") + 2, fileName.lastIndexOf("::"));
-            String date = new SimpleDateFormat(logDateFormat).format(new Date());
-
-            Pattern pattern = Pattern.compile("::\\w*::");
-            Matcher matcher = pattern.matcher(fileName);
-            newFileName = matcher.replaceAll(date);
+    private synchronized void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                getLogger().error("CSVLogger [" + getLoggerId() + "] could not close " + writer.getCurrentFile(), e);
+            }
         }
-
-        return new File(logLocation + File.separator + newFileName);
     }
 
     /**
-     * Write a comma separated line to a specified file
-     *
-     * @param line
-     *            the comma separated line that has to be written to the outputFile
-     * @param outputFile
-     *            the csv log file where to line has to be written to
+     * {@inheritDoc}
      */
-    private void writeLineToCSV(String[] line, File outputFile) {
-        BufferedWriter w = null;
+    @Override
+    protected synchronized void dumpLogs() {
+        long bytesBefore = writer.getBytesWritten();
+        long recordsBefore = writer.getRecordsWritten();
+        List<LogRecord> batch = new ArrayList<LogRecord>(BATCH_SIZE);
         try {
-            w = new BufferedWriter(new FileWriter(outputFile, true));
+            writer.rollOver(new Date());
+            while (drainLogRecords(batch, BATCH_SIZE) > 0) {
+                for (LogRecord logRecord : batch) {
+                    String[] output = null;
+
+                    if (logRecord instanceof BidUpdateLogRecord) {
+                        output = createLineForBidLogRecord((BidUpdateLogRecord) logRecord);
+                    } else if (logRecord instanceof PriceUpdateLogRecord) {
+                        output = createLineForPriceUpdateLog((PriceUpdateLogRecord) logRecord);
+                    }
 
-            for (String s : line) {
-                w.write(s);
-                w.write(separator);
-            }
-            w.write(LINE_SEPERATOR);
-        } catch (IOException e) {
-        } finally {
-            if (w != null) {
-                try {
-                    w.close();
-                } catch (IOException e) {
+                    if (output != null) {
+                        writer.writeLine(output);
+                    }
                 }
+                batch.clear();
             }
+            writer.flush();
+        } catch (IOException e) {
+            // The records of the failed batch are lost, the next dump tries again with the records after it
+            getLogger().error("CSVLogger [" + getLoggerId() + "] could not write to " + writer.getCurrentFile(), e);
         }
+
+        long now = System.nanoTime();
+        double seconds = Math.max(now - previousDumpNanos, 1) / 1e9;
+        previousDumpNanos = now;
+        long records = writer.getRecordsWritten() - recordsBefore;
+        recordsPerSecond = records / seconds;
+        bytesPerSecond = (writer.getBytesWritten() - bytesBefore) / seconds;
+        getLogger().info("CSVLogger [{}] wrote {} records to {} ({} records/s, {} bytes/s, {} events dropped so far)",
+                         new Object[] { getLoggerId(),
+                                       records,
+                                       writer.getCurrentFile(),
+                                       Math.round(recordsPerSecond),
+                                       Math.round(bytesPerSecond),
+                                       getDroppedEvents() });
     }
 
     /**
-     * {@inheritDoc}
+     * @return the number of records written per second during the previous dump interval
      */
-    @Override
-    protected void dumpLogs() {
-        for (LogRecord logRecord : getLogRecords().toArray(new LogRecord[getLogRecords().size()])) {
+    public double getRecordsPerSecond() {
+        return recordsPerSecond;
+    }
 
-            String[] output = null;
+    /**
+     * @return the number of bytes written per second during the previous dump interval
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
 
-            if (logRecord instanceof BidUpdateLogRecord) {
-                output = createLineForBidLogRecord((BidUpdateLogRecord) logRecord);
-            } else if (logRecord instanceof PriceUpdateLogRecord) {
-                output = createLineForPriceUpdateLog((PriceUpdateLogRecord) logRecord);
-            }
+    /**
+     * @return the total number of records written since the logger was configured
+     */
+    public synchronized long getRecordsWritten() {
+        return writer == null ? 0 : writer.getRecordsWritten();
+    }
 
-            if (output != null) {
-                writeLineToCSV(output, logFile);
-            }
-            removeLogRecord(logRecord);
-        }
-        getLogger().info("CSVLogger [{}] wrote to {}", getLoggerId(), logFile);
+    /**
+     * @return the total number of bytes written since the logger was configured, including the header rows
+     */
+    public synchronized long getBytesWritten() {
+        return writer == null ? 0 : writer.getBytesWritten();
     }
 
     /**
@@ -298,7 +343,7 @@ public class CSVLogger
 
     /**
      * Creates a <code>String[]</code> out of a {@link BidUpdateLogRecord} to be used in
-     * {@link CSVLogger#writeLineToCSV(String[], File)}
+     * {@link RollingCSVWriter#writeLine(String[])}
      *
      * @param logRecord
      *            the {@link BidUpdateLogRecord} that has to be transformed
@@ -360,7 +405,7 @@ public class CSVLogger
 
     /**
      * Creates a <code>String[]</code> out of a {@link PriceUpdateLogRecord} to be used in
-     * {@link CSVLogger#writeLineToCSV(String[], File)}
+     * {@link RollingCSVWriter#writeLine(String[])}
      *
      * @param logRecord
      *            the {@link PriceUpdateLogRecord} that has to be transformed
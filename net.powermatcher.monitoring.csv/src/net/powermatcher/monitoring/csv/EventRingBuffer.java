@@ -0,0 +1,161 @@
+package net.powermatcher.monitoring.csv;
+
+import java.util.List;
+
+import net.powermatcher.api.monitoring.events.AgentEvent;
+
+/**
+ * {@link EventRingBuffer} is a bounded buffer of {@link AgentEvent}s with a fixed capacity that is allocated up front.
+ * When it is full, an event is dropped according to its {@link OverflowPolicy}, so adding an event never blocks and
+ * never allocates.
+ *
+ * Any thread may add events; the events are expected to be taken out by a single thread. The lock is only held to
+ * copy a reference, so the agents that publish the events hardly wait for each other or for the writer.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+final class EventRingBuffer {
+
+    private final AgentEvent[] events;
+    private final long[] addedMillis;
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * The index of the oldest event.
+     */
+    private int head;
+    private int size;
+    private long dropped;
+    private int maxSize;
+    private boolean closed;
+
+    /**
+     * @param capacity
+     *            the maximum number of events in the buffer
+     * @param overflowPolicy
+     *            which event is dropped when the buffer is full
+     */
+    EventRingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity should be positive");
+        }
+        events = new AgentEvent[capacity];
+        addedMillis = new long[capacity];
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds an event to the buffer, or drops an event if the buffer is full.
+     *
+     * @param event
+     *            the event to add
+     * @return false when the buffer has been closed, in which case the event has been neither added nor dropped
+     */
+    synchronized boolean add(AgentEvent event) {
+        if (closed) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (size == events.length) {
+            dropped++;
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                return true;
+            }
+            events[head] = event;
+            addedMillis[head] = now;
+            head = next(head);
+            return true;
+        }
+        int tail = head + size;
+        if (tail >= events.length) {
+            tail -= events.length;
+        }
+        events[tail] = event;
+        addedMillis[tail] = now;
+        size++;
+        if (size > maxSize) {
+            maxSize = size;
+        }
+        return true;
+    }
+
+    /**
+     * Moves at most maxEvents events to the given list, oldest first.
+     *
+     * @param target
+     *            the list the events are added to
+     * @param maxEvents
+     *            the maximum number of events to move
+     * @return the number of events that have been moved
+     */
+    synchronized int drainTo(List<AgentEvent> target, int maxEvents) {
+        int count = Math.min(size, maxEvents);
+        for (int ix = 0; ix < count; ix++) {
+            target.add(events[head]);
+            events[head] = null;
+            head = next(head);
+        }
+        size -= count;
+        return count;
+    }
+
+    /**
+     * Moves all the events to the given list, oldest first, and closes the buffer, so no events can be added to it
+     * anymore.
+     *
+     * @param target
+     *            the list the events are added to
+     * @return the number of events that have been moved
+     */
+    synchronized int close(List<AgentEvent> target) {
+        closed = true;
+        return drainTo(target, size);
+    }
+
+    private int next(int index) {
+        return index + 1 == events.length ? 0 : index + 1;
+    }
+
+    /**
+     * @return the maximum number of events in the buffer
+     */
+    int getCapacity() {
+        return events.length;
+    }
+
+    /**
+     * @return the {@link OverflowPolicy} of the buffer
+     */
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return the number of events that are waiting in the buffer
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the largest number of events that have been waiting in the buffer at the same time
+     */
+    synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of events that have been dropped because the buffer was full
+     */
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return how long the oldest event has been waiting in the buffer in milliseconds, or 0 when it is empty
+     */
+    synchronized long getOldestAgeMillis() {
+        return size == 0 ? 0 : Math.max(0, System.currentTimeMillis() - addedMillis[head]);
+    }
+}
@@ -0,0 +1,28 @@
+package net.powermatcher.monitoring.csv;
+
+/**
+ * This <code>enum</code> determines when the {@link CSVLogger} forces the lines it has written to the storage device.
+ * The lines are always handed to the operating system at the end of each dump, so they are visible to other processes
+ * right away. Forcing them to the storage device only matters when the machine itself may crash.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public enum FsyncPolicy {
+
+    /**
+     * The lines are never forced to the storage device, which is left to the operating system.
+     */
+    NEVER,
+
+    /**
+     * The lines are forced to the storage device when a log file is closed, at a rollover or when the logger is
+     * deactivated.
+     */
+    ON_CLOSE,
+
+    /**
+     * The lines are forced to the storage device at the end of every dump.
+     */
+    EVERY_DUMP
+}
@@ -0,0 +1,23 @@
+package net.powermatcher.monitoring.csv;
+
+import net.powermatcher.api.monitoring.events.AgentEvent;
+
+/**
+ * This <code>enum</code> determines which {@link AgentEvent} an {@link AgentEventLogger} drops when its buffer is full,
+ * because the events arrive faster than they can be written.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The oldest event in the buffer is dropped to make room for the new one, so the log keeps up with the present.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The new event is dropped, so the log has no gaps until the buffer is full.
+     */
+    DROP_NEWEST
+}
@@ -0,0 +1,220 @@
+package net.powermatcher.monitoring.csv;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link RollingCSVWriter} writes comma separated lines to a log file that stays open between the writes. The name of
+ * the log file may contain a date format between the delimiters '::', in which case the writer moves on to a new file
+ * when the formatted date changes. A new file starts with the header row.
+ *
+ * This class is not thread safe; the {@link CSVLogger} only uses it from the thread that dumps the logs.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+class RollingCSVWriter
+    implements Closeable {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final Pattern DATE_PATTERN = Pattern.compile("::(\\w*)::");
+
+    /**
+     * Counts the bytes that are actually written to the file, after the buffering and the character encoding.
+     */
+    private final class CountingOutputStream
+        extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesWritten++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesWritten += len;
+        }
+    }
+
+    private final File logLocation;
+    private final String fileNamePattern;
+    private final SimpleDateFormat fileDateFormat;
+    private final String[] header;
+    private final String separator;
+    private final FsyncPolicy fsyncPolicy;
+    private final int bufferSize;
+
+    private File file;
+    private FileOutputStream fileStream;
+    private Writer writer;
+
+    private long bytesWritten;
+    private long recordsWritten;
+
+    /**
+     * @param logLocation
+     *            the directory of the log files
+     * @param fileNamePattern
+     *            the name of the log files, which may contain a date format between the delimiters '::'
+     * @param header
+     *            the header row of a new log file, or <code>null</code> when there is none
+     * @param separator
+     *            the field separator
+     * @param fsyncPolicy
+     *            when the lines are forced to the storage device
+     * @param bufferSize
+     *            the size of the write buffer in characters
+     */
+    RollingCSVWriter(File logLocation,
+                     String fileNamePattern,
+                     String[] header,
+                     String separator,
+                     FsyncPolicy fsyncPolicy,
+                     int bufferSize) {
+        this.logLocation = logLocation;
+        // in case somebody forgets the extension
+        this.fileNamePattern = fileNamePattern.endsWith(".csv") ? fileNamePattern : fileNamePattern + ".csv";
+        Matcher matcher = DATE_PATTERN.matcher(this.fileNamePattern);
+        fileDateFormat = matcher.find() ? new SimpleDateFormat(matcher.group(1)) : null;
+        this.header = header;
+        this.separator = separator;
+        this.fsyncPolicy = fsyncPolicy;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Makes sure the file for the given date is open, closing the file of the previous date if it differs.
+     *
+     * @param date
+     *            the date of the lines that will be written next
+     * @throws IOException
+     *             when the new file could not be opened
+     */
+    void rollOver(Date date) throws IOException {
+        File newFile = getFile(date);
+        if (newFile.equals(file) && writer != null) {
+            return;
+        }
+        close();
+
+        boolean isNew = !newFile.exists() || newFile.length() == 0;
+        fileStream = new FileOutputStream(newFile, true);
+        writer = new BufferedWriter(new OutputStreamWriter(new CountingOutputStream(fileStream),
+                                                           Charset.defaultCharset()),
+                                    bufferSize);
+        file = newFile;
+        if (isNew && header != null) {
+            write(header);
+        }
+    }
+
+    /**
+     * @param date
+     *            the date for which the name is determined
+     * @return the log file for the given date
+     */
+    File getFile(Date date) {
+        String fileName = fileNamePattern;
+        if (fileDateFormat != null) {
+            fileName = DATE_PATTERN.matcher(fileName).replaceAll(Matcher.quoteReplacement(fileDateFormat.format(date)));
+        }
+        return new File(logLocation, fileName);
+    }
+
+    /**
+     * @return the file that is currently open, or <code>null</code> when none is open yet
+     */
+    File getCurrentFile() {
+        return file;
+    }
+
+    /**
+     * Writes a line to the buffer of the current file, with a separator after each field.
+     *
+     * @param fields
+     *            the fields of the line
+     * @throws IOException
+     *             when the buffer could not be written to the file
+     */
+    void writeLine(String[] fields) throws IOException {
+        if (writer == null) {
+            rollOver(new Date());
+        }
+        write(fields);
+        recordsWritten++;
+    }
+
+    private void write(String[] fields) throws IOException {
+        for (String field : fields) {
+            writer.write(field);
+            writer.write(separator);
+        }
+        writer.write(LINE_SEPARATOR);
+    }
+
+    /**
+     * Hands the buffered lines to the operating system, and forces them to the storage device when the
+     * {@link FsyncPolicy} is {@link FsyncPolicy#EVERY_DUMP}.
+     *
+     * @throws IOException
+     *             when the lines could not be written
+     */
+    void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+            if (fsyncPolicy == FsyncPolicy.EVERY_DUMP) {
+                fileStream.getFD().sync();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered lines and closes the current file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            try {
+                writer.flush();
+                if (fsyncPolicy != FsyncPolicy.NEVER) {
+                    fileStream.getFD().sync();
+                }
+            } finally {
+                writer.close();
+                writer = null;
+                fileStream = null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes that have been written to the log files, including the header rows
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of lines that have been written, not counting the header rows
+     */
+    long getRecordsWritten() {
+        return recordsWritten;
+    }
+}
@@ -0,0 +1,152 @@
+package net.powermatcher.monitoring.csv.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.api.monitoring.events.IncomingPriceUpdateEvent;
+import net.powermatcher.monitoring.csv.CSVLogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * JUnit tests for the {@link CSVLogger} class.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class CSVLoggerTest {
+
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("electricity", "EUR", 10, 0, 10);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CSVLogger createLogger(String fileNamePattern, String fsyncPolicy) {
+        return createLogger(fileNamePattern, fsyncPolicy, 65536, "DROP_OLDEST");
+    }
+
+    private CSVLogger createLogger(String fileNamePattern,
+                                   String fsyncPolicy,
+                                   int bufferCapacity,
+                                   String overflowPolicy) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("eventType", "PRICE_EVENT");
+        properties.put("logFilenamePattern", fileNamePattern);
+        properties.put("dateFormat", "yyyy-MM-dd HH:mm:ss");
+        properties.put("separator", ";");
+        properties.put("logLocation", folder.getRoot().getAbsolutePath());
+        // Long enough that the logs are only dumped when the logger is deactivated
+        properties.put("logUpdateRate", "3600");
+        properties.put("loggerId", "csvLogger");
+        properties.put("fsyncPolicy", fsyncPolicy);
+        properties.put("bufferCapacity", String.valueOf(bufferCapacity));
+        properties.put("overflowPolicy", overflowPolicy);
+
+        CSVLogger logger = new CSVLogger();
+        logger.activate(properties);
+        return logger;
+    }
+
+    private static void logPrices(CSVLogger logger, int count) {
+        for (int ix = 0; ix < count; ix++) {
+            PriceUpdate priceUpdate = new PriceUpdate(new Price(MARKET_BASIS, ix % 10), ix);
+            logger.handleAgentEvent(new IncomingPriceUpdateEvent("cluster", "agent" + ix, "session", new Date(),
+                                                                 priceUpdate));
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), Charset.defaultCharset());
+    }
+
+    @Test
+    public void testAllRecordsWrittenOnDeactivate() throws IOException {
+        CSVLogger logger = createLogger("prices.csv", "EVERY_DUMP");
+        logPrices(logger, 5000);
+        logger.deactivate();
+
+        File file = new File(folder.getRoot(), "prices.csv");
+        List<String> lines = readLines(file);
+        assertEquals(5001, lines.size());
+        assertTrue(lines.get(0).startsWith("logTime;clusterId;id;"));
+        assertTrue(lines.get(5000).contains(";agent4999;"));
+        assertEquals(5000, logger.getRecordsWritten());
+        assertEquals(file.length(), logger.getBytesWritten());
+    }
+
+    @Test
+    public void testHeaderOnlyInNewFile() throws IOException {
+        CSVLogger logger = createLogger("prices", "NEVER");
+        logPrices(logger, 10);
+        logger.deactivate();
+
+        logger = createLogger("prices", "ON_CLOSE");
+        logPrices(logger, 10);
+        logger.deactivate();
+
+        List<String> lines = readLines(new File(folder.getRoot(), "prices.csv"));
+        assertEquals(21, lines.size());
+        int headers = 0;
+        for (String line : lines) {
+            if (line.startsWith("logTime;")) {
+                headers++;
+            }
+        }
+        assertEquals(1, headers);
+    }
+
+    @Test
+    public void testDateInFileName() throws IOException {
+        CSVLogger logger = createLogger("prices_::yyyy::.csv", "ON_CLOSE");
+        logPrices(logger, 10);
+        logger.deactivate();
+
+        String year = new SimpleDateFormat("yyyy").format(new Date());
+        assertEquals(11, readLines(new File(folder.getRoot(), "prices_" + year + ".csv")).size());
+    }
+
+    @Test
+    public void testDropOldest() throws IOException {
+        CSVLogger logger = createLogger("prices.csv", "NEVER", 100, "DROP_OLDEST");
+        logPrices(logger, 1000);
+        assertEquals(100, logger.getPendingEvents());
+        assertEquals(900, logger.getDroppedEvents());
+        assertTrue(logger.getLagMillis() >= 0);
+        logger.deactivate();
+
+        List<String> lines = readLines(new File(folder.getRoot(), "prices.csv"));
+        assertEquals(101, lines.size());
+        assertTrue(lines.get(1).contains(";agent900;"));
+        assertTrue(lines.get(100).contains(";agent999;"));
+        assertEquals(0, logger.getPendingEvents());
+    }
+
+    @Test
+    public void testDropNewest() throws IOException {
+        CSVLogger logger = createLogger("prices.csv", "NEVER", 100, "DROP_NEWEST");
+        logPrices(logger, 1000);
+        assertEquals(900, logger.getDroppedEvents());
+        assertEquals(100, logger.getMaxPendingEvents());
+        logger.deactivate();
+
+        List<String> lines = readLines(new File(folder.getRoot(), "prices.csv"));
+        assertEquals(101, lines.size());
+        assertTrue(lines.get(1).contains(";agent0;"));
+        assertTrue(lines.get(100).contains(";agent99;"));
+    }
+}
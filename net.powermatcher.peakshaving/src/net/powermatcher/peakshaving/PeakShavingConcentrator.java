@@ -11,6 +11,7 @@ import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.MatcherEndpoint;
 import net.powermatcher.api.data.ArrayBid;
 import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.data.Price;
 import net.powermatcher.api.data.PriceStep;
 import net.powermatcher.api.monitoring.ObservableAgent;
@@ -163,27 +164,30 @@ public class PeakShavingConcentrator
         Bid originalBid = info.getOriginalBid();
         Bid transformedBid = info.getSentBid();
 
-        PriceStep priceStep = price.toPriceStep();
-        double transformedDemand = transformedBid.getDemandAt(priceStep);
-        double realDemand = originalBid.getDemandAt(priceStep);
+        // Walk over the price step indices, to avoid creating a PriceStep for each step
+        MarketBasis marketBasis = price.getMarketBasis();
+        int maximumPriceStep = marketBasis.getPriceSteps() - 1;
+        int priceStep = marketBasis.priceToStep(price.getPriceValue());
+        double transformedDemand = transformedBid.demandAt(priceStep);
+        double realDemand = originalBid.demandAt(priceStep);
 
         if (transformedDemand < realDemand) {
             // Increase the price step until this is no longer true
-            while (transformedDemand < realDemand && !priceStep.isMaximum()) {
-                priceStep = priceStep.increment();
-                realDemand = originalBid.getDemandAt(priceStep);
+            while (transformedDemand < realDemand && priceStep < maximumPriceStep) {
+                priceStep++;
+                realDemand = originalBid.demandAt(priceStep);
             }
         } else if (transformedDemand > realDemand) {
             // Decrease the price step until this is no longer true
-            while (transformedDemand > realDemand && !priceStep.isMinimum()) {
-                priceStep = priceStep.decrement();
-                realDemand = originalBid.getDemandAt(priceStep);
+            while (transformedDemand > realDemand && priceStep > 0) {
+                priceStep--;
+                realDemand = originalBid.demandAt(priceStep);
             }
         }
 
-        allocatedFlow = originalBid.getDemandAt(priceStep);
+        allocatedFlow = realDemand;
 
-        return priceStep.toPrice();
+        return PriceStep.of(marketBasis, priceStep).toPrice();
     }
 
     /**
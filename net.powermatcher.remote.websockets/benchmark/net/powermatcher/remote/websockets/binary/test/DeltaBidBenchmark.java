@@ -0,0 +1,104 @@
+package net.powermatcher.remote.websockets.binary.test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+
+/**
+ * Simple benchmark that compares the size of slowly changing bids when they are sent in full, as deltas of the
+ * previous bid and in full with permessage-deflate. Each bid changes the demand at a few random price steps. It
+ * prints the average size per bid. The deflated sizes are given with and without context takeover, as the
+ * permessage-deflate extension allows both. This is not a unit test; run it using the main method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class DeltaBidBenchmark {
+    private static final int BIDS = 1000;
+
+    public static void main(String[] args) {
+        System.out.println("price steps;changes per bid;full (B);delta (B);deflated (B);deflated, no takeover (B)");
+        benchmark(100, 3);
+        benchmark(1000, 5);
+    }
+
+    private static void benchmark(int priceSteps, int changes) {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, priceSteps - 1);
+        ByteBufferPool pool = new ByteBufferPool();
+        PmBinaryCodec fullCodec = new PmBinaryCodec(pool, false, false);
+        PmBinaryCodec deltaCodec = new PmBinaryCodec(pool, false, true);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        Deflater noTakeover = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] deflated = new byte[16 * priceSteps + 1024];
+
+        double[] base = new double[priceSteps];
+        for (int ix = 0; ix < priceSteps; ix++) {
+            base[ix] = 1000 * (priceSteps - ix);
+        }
+        double[] demand = Arrays.copyOf(base, priceSteps);
+        Random random = new Random(42);
+
+        // The market basis is only defined in the first message, so that one is left out
+        BidUpdate first = new BidUpdate(new ArrayBid(marketBasis, demand), 0);
+        fullCodec.release(fullCodec.encodeBidUpdate(1, first));
+        deltaCodec.release(deltaCodec.encodeBidUpdate(1, first));
+
+        long fullSize = 0, deltaSize = 0, deflatedSize = 0, noTakeoverSize = 0;
+        for (int bidNumber = 1; bidNumber <= BIDS; bidNumber++) {
+            for (int ix = 0; ix < changes; ix++) {
+                int priceStep = random.nextInt(priceSteps);
+                // Stays between the demand of the neighbouring price steps, so the bid remains descending
+                demand[priceStep] = base[priceStep] + random.nextInt(800) - 400;
+            }
+            BidUpdate bidUpdate = new BidUpdate(new ArrayBid(marketBasis, Arrays.copyOf(demand, priceSteps)),
+                                                bidNumber);
+
+            ByteBuffer buffer = fullCodec.encodeBidUpdate(1, bidUpdate);
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            fullCodec.release(buffer);
+            fullSize += bytes.length;
+
+            buffer = deltaCodec.encodeBidUpdate(1, bidUpdate);
+            deltaSize += buffer.remaining();
+            deltaCodec.release(buffer);
+
+            deflatedSize += deflate(deflater, bytes, deflated);
+            noTakeover.reset();
+            noTakeoverSize += deflate(noTakeover, bytes, deflated);
+        }
+        deflater.end();
+        noTakeover.end();
+
+        System.out.printf("%d;%d;%d;%d;%d;%d%n",
+                          priceSteps,
+                          changes,
+                          fullSize / BIDS,
+                          deltaSize / BIDS,
+                          deflatedSize / BIDS,
+                          noTakeoverSize / BIDS);
+    }
+
+    /**
+     * Compresses one message as permessage-deflate does, which leaves out the last 4 bytes of the flush.
+     *
+     * @return the compressed size
+     */
+    private static int deflate(Deflater deflater, byte[] bytes, byte[] output) {
+        deflater.setInput(bytes);
+        int size = 0;
+        int count;
+        do {
+            count = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+            size += count;
+        } while (count == output.length);
+        return size - 4;
+    }
+}
@@ -0,0 +1,90 @@
+package net.powermatcher.remote.websockets.binary.test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.json.PmJsonSerializer;
+
+/**
+ * Simple benchmark that compares the size of an encoded {@link ArrayBid} and the time of an encode and decode round
+ * trip of the {@link PmJsonSerializer} and the {@link PmBinaryCodec}, for a growing number of price steps. Websocket
+ * I/O is not included. This is not a unit test; run it using the main method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PmBinaryCodecBenchmark {
+    private static final int[] PRICE_STEPS = { 100, 1000 };
+    private static final int ROUNDS = 20000;
+
+    public static void main(String[] args) {
+        System.out.println("price steps;JSON (B);binary (B);float (B);JSON round trip (us);binary round trip (us)");
+        for (int priceSteps : PRICE_STEPS) {
+            benchmark(priceSteps);
+        }
+    }
+
+    private static void benchmark(int priceSteps) {
+        BidUpdate bidUpdate = new BidUpdate(createBid(new Random(1), priceSteps), 1);
+        PmJsonSerializer serializer = new PmJsonSerializer();
+        ByteBufferPool pool = new ByteBufferPool();
+        PmBinaryCodec sender = new PmBinaryCodec(pool, false);
+        PmBinaryCodec receiver = new PmBinaryCodec(pool, false);
+
+        int jsonSize = serializer.serializeBidUpdate(bidUpdate).getBytes().length;
+        int binarySize = size(new PmBinaryCodec(pool, false), bidUpdate);
+        int floatSize = size(new PmBinaryCodec(pool, true), bidUpdate);
+
+        // Warm up, then measure
+        runJson(serializer, bidUpdate);
+        runBinary(sender, receiver, bidUpdate);
+        double json = runJson(serializer, bidUpdate);
+        double binary = runBinary(sender, receiver, bidUpdate);
+        System.out.printf("%d;%d;%d;%d;%.2f;%.2f%n", priceSteps, jsonSize, binarySize, floatSize, json, binary);
+    }
+
+    private static int size(PmBinaryCodec codec, BidUpdate bidUpdate) {
+        ByteBuffer buffer = codec.encodeBidUpdate(bidUpdate);
+        int size = buffer.remaining();
+        codec.release(buffer);
+        return size;
+    }
+
+    private static double runJson(PmJsonSerializer serializer, BidUpdate bidUpdate) {
+        int rounds = ROUNDS / 10;
+        long start = System.nanoTime();
+        for (int ix = 0; ix < rounds; ix++) {
+            serializer.deserialize(serializer.serializeBidUpdate(bidUpdate));
+        }
+        return (System.nanoTime() - start) / 1000.0 / rounds;
+    }
+
+    private static double runBinary(PmBinaryCodec sender, PmBinaryCodec receiver, BidUpdate bidUpdate) {
+        byte[] bytes = new byte[ByteBufferPool.DEFAULT_BUFFER_SIZE];
+        long start = System.nanoTime();
+        for (int ix = 0; ix < ROUNDS; ix++) {
+            ByteBuffer buffer = sender.encodeBidUpdate(bidUpdate);
+            int length = buffer.remaining();
+            buffer.get(bytes, 0, length);
+            sender.release(buffer);
+            receiver.decode(bytes, 0, length);
+        }
+        return (System.nanoTime() - start) / 1000.0 / ROUNDS;
+    }
+
+    private static ArrayBid createBid(Random random, int priceSteps) {
+        MarketBasis marketBasis = new MarketBasis("Electricity", "EUR", priceSteps, 0, 1);
+        double[] demand = new double[priceSteps];
+        double value = 1000 * random.nextDouble();
+        for (int ix = 0; ix < priceSteps; ix++) {
+            value -= random.nextDouble();
+            demand[ix] = value;
+        }
+        return new ArrayBid(marketBasis, demand);
+    }
+}
@@ -0,0 +1,94 @@
+package net.powermatcher.remote.websockets.binary.test;
+
+import java.nio.ByteBuffer;
+
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+
+/**
+ * Simple benchmark that compares sending the price updates of many agents on one market basis as one message per
+ * agent with sending them in batches of {@link PmBinaryCodec#MAX_PRICE_BATCH} over a multiplexed connection. It
+ * prints the number of messages, their total size and the time to encode them. This is not a unit test; run it using
+ * the main method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PriceBatchBenchmark {
+    private static final MarketBasis MB = new MarketBasis("Electricity", "EUR", 100, 0, 1);
+    private static final int[] AGENT_COUNTS = { 500, 5000 };
+    private static final int ROUNDS = 1000;
+
+    public static void main(String[] args) {
+        System.out.println("agents;mode;messages;size (B);encode (ms)");
+        for (int agents : AGENT_COUNTS) {
+            benchmark(agents);
+        }
+    }
+
+    private static void benchmark(int agents) {
+        PmBinaryCodec codec = new PmBinaryCodec(new ByteBufferPool(), false);
+        int[] channels = new int[agents];
+        PriceUpdate[] priceUpdates = new PriceUpdate[agents];
+        for (int ix = 0; ix < agents; ix++) {
+            channels[ix] = ix + 1;
+            priceUpdates[ix] = new PriceUpdate(new Price(MB, 0.5), 1000 + ix);
+        }
+        // The market basis is only defined in the first message, so that one is left out
+        codec.release(codec.encodePriceUpdate(priceUpdates[0]));
+
+        int[] single = encodeSingle(codec, priceUpdates);
+        int[] batched = encodeBatches(codec, channels, priceUpdates);
+
+        // Warm up, then measure
+        for (int ix = 0; ix < ROUNDS; ix++) {
+            encodeSingle(codec, priceUpdates);
+            encodeBatches(codec, channels, priceUpdates);
+        }
+        long start = System.nanoTime();
+        for (int ix = 0; ix < ROUNDS; ix++) {
+            encodeSingle(codec, priceUpdates);
+        }
+        double singleTime = (System.nanoTime() - start) / 1e6 / ROUNDS;
+        start = System.nanoTime();
+        for (int ix = 0; ix < ROUNDS; ix++) {
+            encodeBatches(codec, channels, priceUpdates);
+        }
+        double batchedTime = (System.nanoTime() - start) / 1e6 / ROUNDS;
+
+        System.out.printf("%d;single;%d;%d;%.3f%n", agents, single[0], single[1], singleTime);
+        System.out.printf("%d;batched;%d;%d;%.3f%n", agents, batched[0], batched[1], batchedTime);
+    }
+
+    /**
+     * @return the number of messages and their total size
+     */
+    private static int[] encodeSingle(PmBinaryCodec codec, PriceUpdate[] priceUpdates) {
+        int size = 0;
+        for (PriceUpdate priceUpdate : priceUpdates) {
+            ByteBuffer buffer = codec.encodePriceUpdate(priceUpdate);
+            size += buffer.remaining();
+            codec.release(buffer);
+        }
+        return new int[] { priceUpdates.length, size };
+    }
+
+    /**
+     * @return the number of messages and their total size
+     */
+    private static int[] encodeBatches(PmBinaryCodec codec, int[] channels, PriceUpdate[] priceUpdates) {
+        int messages = 0;
+        int size = 0;
+        for (int offset = 0; offset < priceUpdates.length; offset += PmBinaryCodec.MAX_PRICE_BATCH) {
+            int count = Math.min(PmBinaryCodec.MAX_PRICE_BATCH, priceUpdates.length - offset);
+            ByteBuffer buffer = codec.encodePriceUpdates(channels, priceUpdates, offset, count);
+            size += buffer.remaining();
+            codec.release(buffer);
+            messages++;
+        }
+        return new int[] { messages, size };
+    }
+}
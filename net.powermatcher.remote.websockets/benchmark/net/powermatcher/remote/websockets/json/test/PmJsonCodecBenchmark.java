@@ -0,0 +1,141 @@
+package net.powermatcher.remote.websockets.json.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.remote.websockets.json.PmJsonCodec;
+import net.powermatcher.remote.websockets.json.PmJsonSerializer;
+
+/**
+ * Simple benchmark that compares the time to encode and to decode an {@link ArrayBid}, and the memory allocated to
+ * encode it, of the {@link PmJsonSerializer} and the {@link PmJsonCodec}, for a growing number of price steps. Each
+ * implementation is warmed up for several passes, and the median of the measured passes is printed, so the
+ * implementation that happens to run first is not penalized by the JIT compiler. The allocation is only measured on a
+ * JVM that supports {@link com.sun.management.ThreadMXBean}. This is not a unit test; run it using the main method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PmJsonCodecBenchmark {
+    private static final int[] PRICE_STEPS = { 100, 1000 };
+    private static final int ROUNDS = 20000;
+    private static final int WARMUP_PASSES = 5;
+    private static final int MEASURED_PASSES = 5;
+
+    private interface Encoder {
+        String encode(BidUpdate bidUpdate);
+    }
+
+    private interface Decoder {
+        Object decode(String message);
+    }
+
+    public static void main(String[] args) {
+        final PmJsonSerializer serializer = new PmJsonSerializer();
+        final PmJsonCodec codec = new PmJsonCodec();
+        Encoder serializerEncoder = new Encoder() {
+            @Override
+            public String encode(BidUpdate bidUpdate) {
+                return serializer.serializeBidUpdate(bidUpdate);
+            }
+        };
+        Encoder codecEncoder = new Encoder() {
+            @Override
+            public String encode(BidUpdate bidUpdate) {
+                return codec.encodeBidUpdate(bidUpdate);
+            }
+        };
+        Decoder serializerDecoder = new Decoder() {
+            @Override
+            public Object decode(String message) {
+                return serializer.deserialize(message);
+            }
+        };
+        Decoder codecDecoder = new Decoder() {
+            @Override
+            public Object decode(String message) {
+                return codec.decode(message);
+            }
+        };
+
+        System.out.println("price steps;implementation;encode (us);decode (us);allocated per encode (kB)");
+        for (int priceSteps : PRICE_STEPS) {
+            BidUpdate bidUpdate = new BidUpdate(createBid(new Random(1), priceSteps), 1);
+            String message = serializer.serializeBidUpdate(bidUpdate);
+            benchmark(priceSteps, "PmJsonSerializer", serializerEncoder, serializerDecoder, bidUpdate, message);
+            benchmark(priceSteps, "PmJsonCodec", codecEncoder, codecDecoder, bidUpdate, message);
+        }
+    }
+
+    private static void benchmark(int priceSteps,
+                                  String name,
+                                  Encoder encoder,
+                                  Decoder decoder,
+                                  BidUpdate bidUpdate,
+                                  String message) {
+        // Warm up, then measure
+        for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+            encode(encoder, bidUpdate);
+            decode(decoder, message);
+        }
+        double[] encodeTimes = new double[MEASURED_PASSES];
+        double[] decodeTimes = new double[MEASURED_PASSES];
+        for (int pass = 0; pass < MEASURED_PASSES; pass++) {
+            encodeTimes[pass] = encode(encoder, bidUpdate);
+            decodeTimes[pass] = decode(decoder, message);
+        }
+        double encode = median(encodeTimes);
+        double decode = median(decodeTimes);
+
+        long before = allocatedBytes();
+        for (int ix = 0; ix < 100; ix++) {
+            encoder.encode(bidUpdate);
+        }
+        double allocated = (allocatedBytes() - before) / 1024.0 / 100;
+        System.out.printf("%d;%s;%.1f;%.1f;%.1f%n", priceSteps, name, encode, decode, allocated);
+    }
+
+    private static double encode(Encoder encoder, BidUpdate bidUpdate) {
+        long start = System.nanoTime();
+        for (int ix = 0; ix < ROUNDS; ix++) {
+            encoder.encode(bidUpdate);
+        }
+        return (System.nanoTime() - start) / 1000.0 / ROUNDS;
+    }
+
+    private static double decode(Decoder decoder, String message) {
+        long start = System.nanoTime();
+        for (int ix = 0; ix < ROUNDS; ix++) {
+            decoder.decode(message);
+        }
+        return (System.nanoTime() - start) / 1000.0 / ROUNDS;
+    }
+
+    private static double median(double[] times) {
+        Arrays.sort(times);
+        return times[times.length / 2];
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static ArrayBid createBid(Random random, int priceSteps) {
+        MarketBasis marketBasis = new MarketBasis("Electricity", "EUR", priceSteps, 0, 1);
+        double[] demand = new double[priceSteps];
+        double value = 1000 * random.nextDouble();
+        for (int ix = 0; ix < priceSteps; ix++) {
+            value -= random.nextDouble();
+            demand[ix] = value;
+        }
+        return new ArrayBid(marketBasis, demand);
+    }
+}
@@ -0,0 +1,96 @@
+package net.powermatcher.remote.websockets.transport.test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.powermatcher.remote.websockets.test.MockWebSocketSession;
+import net.powermatcher.remote.websockets.transport.OutboundQueue;
+
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Simple benchmark that offers price updates to an {@link OutboundQueue} faster than a slow remote side acknowledges
+ * them. The remote side is a session that completes each write after a fixed delay. It prints how long the offers
+ * took, how many messages were sent and coalesced, and the latency from offering a message to having it sent. This
+ * is not a unit test; run it using the main method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class OutboundQueueBenchmark {
+    private static final int MESSAGES = 10000;
+    private static final long OFFER_INTERVAL_NANOS = 111000;
+    private static final int[] PEER_DELAYS_MS = { 20, 200 };
+
+    /**
+     * A session of which every write completes after a delay.
+     */
+    private static final class SlowSession
+        extends MockWebSocketSession {
+        private final ScheduledExecutorService scheduler;
+        private final long delayMillis;
+
+        SlowSession(ScheduledExecutorService scheduler, long delayMillis) {
+            super(null);
+            this.scheduler = scheduler;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void sendString(String text, final WriteCallback callback) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callback.writeSuccess();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("peer delay (ms);offer time (ms);sent;coalesced;max depth;average latency (ms);"
+                           + "max latency (ms)");
+        for (int delay : PEER_DELAYS_MS) {
+            benchmark(delay);
+        }
+    }
+
+    private static void benchmark(int delayMillis) throws InterruptedException {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        OutboundQueue queue = new OutboundQueue(new SlowSession(scheduler, delayMillis),
+                                                OutboundQueue.DEFAULT_CAPACITY);
+
+        long start = System.nanoTime();
+        for (int ix = 0; ix < MESSAGES; ix++) {
+            // Offers about 9 price updates per millisecond
+            while (System.nanoTime() - start < ix * OFFER_INTERVAL_NANOS) {
+                Thread.yield();
+            }
+            final String price = "{\"price\":" + ix + "}";
+            queue.offer(new OutboundQueue.TextMessage("price") {
+                @Override
+                protected String encode() {
+                    return price;
+                }
+            });
+        }
+        double offerMillis = (System.nanoTime() - start) / 1e6;
+
+        // Waits for the last price update to be written
+        while (queue.getDepth() > 0) {
+            Thread.sleep(delayMillis);
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+
+        System.out.printf("%d;%.0f;%d;%d;%d;%.1f;%.1f%n",
+                          delayMillis,
+                          offerMillis,
+                          queue.getSentCount(),
+                          queue.getCoalescedCount(),
+                          queue.getMaxDepth(),
+                          queue.getAverageLatencyMillis(),
+                          queue.getMaxLatencyMillis());
+    }
+}
@@ -0,0 +1,27 @@
+package net.powermatcher.remote.websockets.binary;
+
+/**
+ * Thrown by the {@link PmBinaryCodec} when a delta of a bid is received, while the bid it is based on has not been
+ * received. The receiver should ask for a full bid with {@link PmBinaryCodec#encodeResync(BaseBidMismatchException)}.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class BaseBidMismatchException
+    extends IllegalArgumentException {
+    private static final long serialVersionUID = 6212409452934738107L;
+
+    private final int channel;
+
+    BaseBidMismatchException(int channel, int baseBidNumber) {
+        super("Missing base bid " + baseBidNumber + " of a delta");
+        this.channel = channel;
+    }
+
+    /**
+     * @return the channel of the delta, which is negative when the connection is not multiplexed
+     */
+    int getChannel() {
+        return channel;
+    }
+}
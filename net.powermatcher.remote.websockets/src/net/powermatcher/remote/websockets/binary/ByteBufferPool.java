@@ -0,0 +1,81 @@
+package net.powermatcher.remote.websockets.binary;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of little-endian heap {@link ByteBuffer}s of the same size, so the messages can be encoded without allocating
+ * a new buffer each time. A message that does not fit gets a buffer of its own, which is not pooled.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class ByteBufferPool {
+
+    /**
+     * The default size of the buffers in bytes, which fits an array bid of 2000 price steps.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The default maximum number of buffers that are kept in the pool.
+     */
+    public static final int DEFAULT_MAX_POOLED = 64;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     * Creates a pool with the default buffer size and maximum.
+     */
+    public ByteBufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * @param bufferSize
+     *            the size of the buffers in bytes
+     * @param maxPooled
+     *            the maximum number of buffers that are kept in the pool
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @param minCapacity
+     *            the number of bytes that should fit in the buffer
+     * @return an empty little-endian buffer of at least minCapacity bytes
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > bufferSize) {
+            return ByteBuffer.allocate(minCapacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer may not be used after it has been released.
+     *
+     * @param buffer
+     *            a buffer that has been acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+            buffers.offer(buffer);
+        } else if (buffer.capacity() == bufferSize) {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,877 @@
+package net.powermatcher.remote.websockets.binary;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBid;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.data.PricePoint;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.remote.websockets.data.ClusterInfoModel;
+import net.powermatcher.remote.websockets.data.PmMessage;
+import net.powermatcher.remote.websockets.json.ModelMapper;
+import net.powermatcher.remote.websockets.json.PmJsonCodec;
+import net.powermatcher.remote.websockets.json.PmJsonSerializer;
+
+/**
+ * Implements a compact binary encoding of the messages that {@link PmJsonSerializer} encodes as JSON. It is used when
+ * both sides agree on the {@link #SUBPROTOCOL} when the websocket is opened; otherwise they fall back to JSON.
+ *
+ * Each message starts with the version and the {@link PmMessage.PayloadType}. Numbers are little-endian, demand
+ * arrays are sent as raw doubles (or floats, when configured) and bid numbers and lengths as unsigned varints. A
+ * {@link MarketBasis} is sent in full only the first time, after that it is referred to by a number. Because of this
+ * a codec holds the state of one connection, and its messages must be sent in the order in which they are encoded.
+ *
+ * Decoded messages are returned as a {@link PmMessage} with the same payloads as those of {@link PmJsonCodec}, so they
+ * can be handled in the same way.
+ *
+ * With the {@link #MULTIPLEXED_SUBPROTOCOL} one connection carries many agents. Each agent gets its own channel, which
+ * is opened and closed with a message of its own, and each message carries the number of its channel after the
+ * header. The price updates of many channels can be sent in a single batch. The market bases are shared by all
+ * channels of the connection.
+ *
+ * When deltas are enabled, which requires the {@link #DELTA_SUBPROTOCOL} or the {@link #MULTIPLEXED_SUBPROTOCOL}, an
+ * {@link ArrayBid} is sent as the ranges of price steps that differ from the previous bid
+ * of its channel, whenever that is smaller than the full bid. The delta names the bid number of its base. The receiver
+ * keeps the last bid of each channel, and throws a {@link BaseBidMismatchException} when it does not have the base.
+ * It should then send {@link #encodeResync(BaseBidMismatchException)}, which is decoded as a
+ * {@link PmMessage.PayloadType#RESYNC} message, after which the sender sends its last bid again in full with
+ * {@link #encodeResentBid(int)}. Opening or closing a channel also restarts its deltas from a full bid.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PmBinaryCodec {
+
+    /**
+     * The websocket subprotocol of this encoding.
+     */
+    public static final String SUBPROTOCOL = "powermatcher.binary.v1";
+
+    /**
+     * The websocket subprotocol of this encoding in which bids may be sent as deltas.
+     */
+    public static final String DELTA_SUBPROTOCOL = "powermatcher.binary.delta.v1";
+
+    /**
+     * The websocket subprotocol of the JSON encoding, which a client offers next to the binary one.
+     */
+    public static final String JSON_SUBPROTOCOL = "powermatcher.json";
+
+    /**
+     * The websocket subprotocol of this encoding with many agents on one connection.
+     */
+    public static final String MULTIPLEXED_SUBPROTOCOL = "powermatcher.binary.mux.v1";
+
+    /**
+     * The maximum number of price updates in one batch, so that a batch fits a buffer of the {@link ByteBufferPool}.
+     */
+    public static final int MAX_PRICE_BATCH = 512;
+
+    /**
+     * Receives the messages of a multiplexed connection.
+     */
+    public static interface ChannelHandler {
+        /**
+         * Called when the remote side has opened a channel for an agent.
+         *
+         * @param channel
+         *            the number of the channel
+         * @param agentId
+         *            the id of the remote agent
+         */
+        void channelOpened(int channel, String agentId);
+
+        /**
+         * Called when the remote side has closed a channel.
+         *
+         * @param channel
+         *            the number of the channel
+         */
+        void channelClosed(int channel);
+
+        /**
+         * Called for each message that has been received on a channel, including each price update of a batch.
+         *
+         * @param channel
+         *            the number of the channel
+         * @param message
+         *            the decoded message
+         */
+        void messageReceived(int channel, PmMessage message);
+    }
+
+    static final byte VERSION = 1;
+
+    static final byte TYPE_BID = 0;
+    static final byte TYPE_PRICE_UPDATE = 1;
+    static final byte TYPE_CLUSTERINFO = 2;
+    static final byte TYPE_OPEN = 3;
+    static final byte TYPE_CLOSE = 4;
+    static final byte TYPE_PRICE_BATCH = 5;
+    static final byte TYPE_RESYNC = 6;
+
+    /**
+     * The channel of the messages that are not multiplexed, which is not written.
+     */
+    private static final int NO_CHANNEL = -1;
+
+    static final byte DEMAND_DOUBLES = 0;
+    static final byte DEMAND_FLOATS = 1;
+    static final byte PRICE_POINTS = 2;
+    static final byte DELTA_DOUBLES = 3;
+    static final byte DELTA_FLOATS = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The space for the header, the channel, the market basis reference, the bid number and the bid encoding.
+     */
+    private static final int HEADER_SIZE = 2 + 5 + 5 + 5 + 1 + 5;
+
+    /**
+     * The maximum size of a price update in a batch: the channel, the market basis reference, the bid number and the
+     * price.
+     */
+    private static final int BATCHED_PRICE_SIZE = 5 + 5 + 5 + 8;
+
+    /**
+     * The demand of a bid as the receiver has it, which is the base of the next delta.
+     */
+    private static final class BaseBid {
+        final int bidNumber;
+        final MarketBasis marketBasis;
+        final double[] demand;
+
+        BaseBid(int bidNumber, MarketBasis marketBasis, double[] demand) {
+            this.bidNumber = bidNumber;
+            this.marketBasis = marketBasis;
+            this.demand = demand;
+        }
+    }
+
+    private final ByteBufferPool pool;
+    private final boolean floatDemand;
+    private final boolean deltaBids;
+
+    /**
+     * The numbers of the market bases that have been sent.
+     */
+    private final Map<MarketBasis, Integer> sentMarketBases = new HashMap<MarketBasis, Integer>();
+
+    /**
+     * The market bases that have been received, by their numbers.
+     */
+    private final Map<Integer, MarketBasis> receivedMarketBases = new HashMap<Integer, MarketBasis>();
+
+    /**
+     * The last bid that has been sent on each channel, when deltas are enabled.
+     */
+    private final Map<Integer, BaseBid> sentBids = new HashMap<Integer, BaseBid>();
+
+    /**
+     * The last bid of each channel that the remote side has asked for again.
+     */
+    private final Map<Integer, BaseBid> resyncBids = new HashMap<Integer, BaseBid>();
+
+    /**
+     * The last bid that has been received on each channel. This is guarded by the lock on the receivedMarketBases.
+     */
+    private final Map<Integer, BaseBid> receivedBids = new HashMap<Integer, BaseBid>();
+
+    /**
+     * Creates a codec that sends each bid in full.
+     *
+     * @param pool
+     *            the pool from which the buffers of the encoded messages are taken
+     * @param floatDemand
+     *            when true, the demand of an {@link ArrayBid} is sent as floats instead of doubles, which halves the
+     *            size of a bid at the cost of precision
+     */
+    public PmBinaryCodec(ByteBufferPool pool, boolean floatDemand) {
+        this(pool, floatDemand, false);
+    }
+
+    /**
+     * @param pool
+     *            the pool from which the buffers of the encoded messages are taken
+     * @param floatDemand
+     *            when true, the demand of an {@link ArrayBid} is sent as floats instead of doubles, which halves the
+     *            size of a bid at the cost of precision
+     * @param deltaBids
+     *            when true, an {@link ArrayBid} is sent as the difference with the previous bid of its channel, when
+     *            that is smaller
+     */
+    public PmBinaryCodec(ByteBufferPool pool, boolean floatDemand, boolean deltaBids) {
+        this.pool = pool;
+        this.floatDemand = floatDemand;
+        this.deltaBids = deltaBids;
+    }
+
+    /**
+     * Encodes a {@link BidUpdate}.
+     *
+     * @param bidUpdate
+     *            the bid update to encode
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public ByteBuffer encodeBidUpdate(BidUpdate bidUpdate) {
+        return encodeBidUpdate(NO_CHANNEL, bidUpdate);
+    }
+
+    /**
+     * Encodes a {@link BidUpdate} for a channel of a multiplexed connection.
+     *
+     * @param channel
+     *            the number of the channel
+     * @param bidUpdate
+     *            the bid update to encode
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public synchronized ByteBuffer encodeBidUpdate(int channel, BidUpdate bidUpdate) {
+        // A newer bid replaces the one that should have been sent again
+        resyncBids.remove(channel);
+        Bid bid = bidUpdate.getBid();
+        MarketBasis marketBasis = bid.getMarketBasis();
+
+        ByteBuffer buffer;
+        if (bid instanceof PointBid) {
+            PricePoint[] pricePoints = ((PointBid) bid).getPricePoints();
+            buffer = pool.acquire(HEADER_SIZE + marketBasisSize(marketBasis) + 5 + 16 * pricePoints.length);
+            putHeader(buffer, TYPE_BID, channel);
+            putMarketBasis(buffer, marketBasis);
+            putVarint(buffer, bidUpdate.getBidNumber());
+            buffer.put(PRICE_POINTS);
+            putVarint(buffer, pricePoints.length);
+            for (PricePoint pricePoint : pricePoints) {
+                buffer.putDouble(pricePoint.getPrice().getPriceValue());
+                buffer.putDouble(pricePoint.getDemand());
+            }
+            sentBids.remove(channel);
+        } else {
+            double[] demand = bid.toArrayBid().getDemand();
+            if (floatDemand) {
+                for (int ix = 0; ix < demand.length; ix++) {
+                    demand[ix] = (float) demand[ix];
+                }
+            }
+            int elementSize = floatDemand ? 4 : 8;
+            int fullSize = 5 + elementSize * demand.length;
+            BaseBid base = sentBids.get(channel);
+            int deltaSize = Integer.MAX_VALUE;
+            if (base != null && base.marketBasis.equals(marketBasis)) {
+                deltaSize = deltaSize(base.demand, demand, elementSize);
+            }
+
+            buffer = pool.acquire(HEADER_SIZE + marketBasisSize(marketBasis) + Math.min(fullSize, deltaSize));
+            putHeader(buffer, TYPE_BID, channel);
+            putMarketBasis(buffer, marketBasis);
+            putVarint(buffer, bidUpdate.getBidNumber());
+            if (deltaSize < fullSize) {
+                buffer.put(floatDemand ? DELTA_FLOATS : DELTA_DOUBLES);
+                putVarint(buffer, base.bidNumber);
+                putDelta(buffer, base.demand, demand);
+            } else {
+                putFullDemand(buffer, demand);
+            }
+            if (deltaBids) {
+                sentBids.put(channel, new BaseBid(bidUpdate.getBidNumber(), marketBasis, demand));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Determines the maximum size of the delta between two demand arrays, which consists of the bid number of the
+     * base, the number of ranges, and the gap, length and demand of each range.
+     */
+    private static int deltaSize(double[] base, double[] demand, int elementSize) {
+        int size = 5 + 5;
+        int ix = 0;
+        while (ix < demand.length) {
+            if (changed(base, demand, ix)) {
+                int end = rangeEnd(base, demand, ix);
+                size += 5 + 5 + elementSize * (end - ix);
+                ix = end;
+            } else {
+                ix++;
+            }
+        }
+        return size;
+    }
+
+    private void putDelta(ByteBuffer buffer, double[] base, double[] demand) {
+        int ranges = 0;
+        for (int ix = 0; ix < demand.length; ix++) {
+            if (changed(base, demand, ix) && (ix == 0 || !changed(base, demand, ix - 1))) {
+                ranges++;
+            }
+        }
+        putVarint(buffer, ranges);
+
+        int previousEnd = 0;
+        int ix = 0;
+        while (ix < demand.length) {
+            if (changed(base, demand, ix)) {
+                int end = rangeEnd(base, demand, ix);
+                putVarint(buffer, ix - previousEnd);
+                putVarint(buffer, end - ix);
+                putDemand(buffer, demand, ix, end);
+                previousEnd = end;
+                ix = end;
+            } else {
+                ix++;
+            }
+        }
+    }
+
+    private static boolean changed(double[] base, double[] demand, int ix) {
+        return Double.doubleToLongBits(base[ix]) != Double.doubleToLongBits(demand[ix]);
+    }
+
+    private static int rangeEnd(double[] base, double[] demand, int start) {
+        int end = start + 1;
+        while (end < demand.length && changed(base, demand, end)) {
+            end++;
+        }
+        return end;
+    }
+
+    private void putFullDemand(ByteBuffer buffer, double[] demand) {
+        buffer.put(floatDemand ? DEMAND_FLOATS : DEMAND_DOUBLES);
+        putVarint(buffer, demand.length);
+        putDemand(buffer, demand, 0, demand.length);
+    }
+
+    private void putDemand(ByteBuffer buffer, double[] demand, int from, int to) {
+        for (int ix = from; ix < to; ix++) {
+            if (floatDemand) {
+                buffer.putFloat((float) demand[ix]);
+            } else {
+                buffer.putDouble(demand[ix]);
+            }
+        }
+    }
+
+    /**
+     * Encodes a {@link PriceUpdate}.
+     *
+     * @param priceUpdate
+     *            the price update to encode
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public synchronized ByteBuffer encodePriceUpdate(PriceUpdate priceUpdate) {
+        MarketBasis marketBasis = priceUpdate.getPrice().getMarketBasis();
+        ByteBuffer buffer = pool.acquire(HEADER_SIZE + marketBasisSize(marketBasis) + 8);
+        putHeader(buffer, TYPE_PRICE_UPDATE, NO_CHANNEL);
+        putMarketBasis(buffer, marketBasis);
+        putVarint(buffer, priceUpdate.getBidNumber());
+        buffer.putDouble(priceUpdate.getPrice().getPriceValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the clusterId and {@link MarketBasis} of a cluster.
+     *
+     * @param clusterId
+     *            the id of the cluster
+     * @param marketBasis
+     *            the market basis of the cluster
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public ByteBuffer encodeClusterInfo(String clusterId, MarketBasis marketBasis) {
+        return encodeClusterInfo(NO_CHANNEL, clusterId, marketBasis);
+    }
+
+    /**
+     * Encodes the clusterId and {@link MarketBasis} of a cluster for a channel of a multiplexed connection.
+     *
+     * @param channel
+     *            the number of the channel
+     * @param clusterId
+     *            the id of the cluster
+     * @param marketBasis
+     *            the market basis of the cluster
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public synchronized ByteBuffer encodeClusterInfo(int channel, String clusterId, MarketBasis marketBasis) {
+        ByteBuffer buffer = pool.acquire(HEADER_SIZE + marketBasisSize(marketBasis) + stringSize(clusterId));
+        putHeader(buffer, TYPE_CLUSTERINFO, channel);
+        putMarketBasis(buffer, marketBasis);
+        putString(buffer, clusterId);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the price updates of many channels of a multiplexed connection in one message.
+     *
+     * @param channels
+     *            the numbers of the channels
+     * @param priceUpdates
+     *            the price update of each channel
+     * @param offset
+     *            the index of the first price update to encode
+     * @param count
+     *            the number of price updates to encode, at most {@link #MAX_PRICE_BATCH}
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public synchronized ByteBuffer encodePriceUpdates(int[] channels,
+                                                      PriceUpdate[] priceUpdates,
+                                                      int offset,
+                                                      int count) {
+        int size = HEADER_SIZE + count * BATCHED_PRICE_SIZE;
+        MarketBasis previous = null;
+        for (int ix = offset; ix < offset + count; ix++) {
+            MarketBasis marketBasis = priceUpdates[ix].getPrice().getMarketBasis();
+            if (!marketBasis.equals(previous)) {
+                size += marketBasisSize(marketBasis);
+                previous = marketBasis;
+            }
+        }
+
+        ByteBuffer buffer = pool.acquire(size);
+        putHeader(buffer, TYPE_PRICE_BATCH, NO_CHANNEL);
+        putVarint(buffer, count);
+        for (int ix = offset; ix < offset + count; ix++) {
+            Price price = priceUpdates[ix].getPrice();
+            putVarint(buffer, channels[ix]);
+            putMarketBasis(buffer, price.getMarketBasis());
+            putVarint(buffer, priceUpdates[ix].getBidNumber());
+            buffer.putDouble(price.getPriceValue());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the opening of a channel of a multiplexed connection.
+     *
+     * @param channel
+     *            the number of the channel
+     * @param agentId
+     *            the id of the agent that uses the channel
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public synchronized ByteBuffer encodeOpen(int channel, String agentId) {
+        forgetSentBid(channel);
+        ByteBuffer buffer = pool.acquire(HEADER_SIZE + stringSize(agentId));
+        putHeader(buffer, TYPE_OPEN, channel);
+        putString(buffer, agentId);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the closing of a channel of a multiplexed connection.
+     *
+     * @param channel
+     *            the number of the channel
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public synchronized ByteBuffer encodeClose(int channel) {
+        forgetSentBid(channel);
+        ByteBuffer buffer = pool.acquire(HEADER_SIZE);
+        putHeader(buffer, TYPE_CLOSE, channel);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the request to send the next bid of a channel in full, because the base of a delta was missing.
+     *
+     * @param mismatch
+     *            the exception that has been thrown when the delta was decoded
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending
+     */
+    public ByteBuffer encodeResync(BaseBidMismatchException mismatch) {
+        ByteBuffer buffer = pool.acquire(HEADER_SIZE);
+        putHeader(buffer, TYPE_RESYNC, mismatch.getChannel());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the last bid again in full, because the remote side has asked for it with a
+     * {@link PmMessage.PayloadType#RESYNC} message.
+     *
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending, or
+     *         <code>null</code> when a newer bid has been encoded since the remote side asked for it
+     */
+    public ByteBuffer encodeResentBid() {
+        return encodeResentBid(NO_CHANNEL);
+    }
+
+    /**
+     * Encodes the last bid of a channel of a multiplexed connection again in full, because the remote side has asked
+     * for it with a {@link PmMessage.PayloadType#RESYNC} message.
+     *
+     * @param channel
+     *            the number of the channel
+     * @return a buffer from the pool that is ready to be sent, which should be released after sending, or
+     *         <code>null</code> when a newer bid has been encoded since the remote side asked for it
+     */
+    public synchronized ByteBuffer encodeResentBid(int channel) {
+        BaseBid bid = resyncBids.remove(channel);
+        if (bid == null) {
+            return null;
+        }
+        int elementSize = floatDemand ? 4 : 8;
+        ByteBuffer buffer = pool.acquire(HEADER_SIZE + marketBasisSize(bid.marketBasis) + 5
+                                         + elementSize * bid.demand.length);
+        putHeader(buffer, TYPE_BID, channel);
+        putMarketBasis(buffer, bid.marketBasis);
+        putVarint(buffer, bid.bidNumber);
+        putFullDemand(buffer, bid.demand);
+        sentBids.put(channel, bid);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer of an encoded message to the pool.
+     *
+     * @param buffer
+     *            the buffer that has been sent
+     */
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    /**
+     * Decodes a binary message. The payload of the returned {@link PmMessage} is a {@link BidUpdate}, a
+     * {@link PriceUpdate} or a {@link ClusterInfoModel}, depending on its {@link PmMessage.PayloadType}. A
+     * {@link PmMessage.PayloadType#RESYNC} message has no payload; the last bid should then be sent with
+     * {@link #encodeResentBid()}.
+     *
+     * @param buffer
+     *            the array that holds the message
+     * @param offset
+     *            the start of the message in the array
+     * @param length
+     *            the length of the message
+     * @return a {@link PmMessage} containing payload, or <code>null</code> when the message has been handled by the
+     *         codec itself
+     * @throws BaseBidMismatchException
+     *             when the message is a delta of a bid that has not been received
+     * @throws IllegalArgumentException
+     *             when the message could not be decoded
+     */
+    public PmMessage decode(byte[] buffer, int offset, int length) {
+        ByteBuffer in = ByteBuffer.wrap(buffer, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (receivedMarketBases) {
+            try {
+                byte type = getHeader(in);
+                if (type == TYPE_RESYNC) {
+                    return resync(NO_CHANNEL) ? createResyncMessage() : null;
+                }
+                return decodeMessage(type, NO_CHANNEL, in);
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Message is too short", e);
+            }
+        }
+    }
+
+    /**
+     * Decodes a binary message of a multiplexed connection and passes it to the handler. A batch of price updates is
+     * passed as one message per channel. A request to send the last bid of a channel again is passed as a
+     * {@link PmMessage.PayloadType#RESYNC} message, after which {@link #encodeResentBid(int)} should be sent. The
+     * handler is called by the thread that decodes the message, and it may encode and send messages.
+     *
+     * @param buffer
+     *            the array that holds the message
+     * @param offset
+     *            the start of the message in the array
+     * @param length
+     *            the length of the message
+     * @param handler
+     *            the handler that receives the decoded messages
+     * @throws BaseBidMismatchException
+     *             when the message is a delta of a bid that has not been received
+     * @throws IllegalArgumentException
+     *             when the message could not be decoded
+     */
+    public void decode(byte[] buffer, int offset, int length, ChannelHandler handler) {
+        ByteBuffer in = ByteBuffer.wrap(buffer, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (receivedMarketBases) {
+            try {
+                byte type = getHeader(in);
+                switch (type) {
+                case TYPE_OPEN:
+                    int channel = getVarint(in);
+                    receivedBids.remove(channel);
+                    forgetSentBid(channel);
+                    handler.channelOpened(channel, getString(in));
+                    break;
+                case TYPE_CLOSE:
+                    channel = getVarint(in);
+                    receivedBids.remove(channel);
+                    forgetSentBid(channel);
+                    handler.channelClosed(channel);
+                    break;
+                case TYPE_PRICE_BATCH:
+                    int count = getLength(in, 3 + 8);
+                    for (int ix = 0; ix < count; ix++) {
+                        channel = getVarint(in);
+                        handler.messageReceived(channel, decodeMessage(TYPE_PRICE_UPDATE, channel, in));
+                    }
+                    break;
+                case TYPE_RESYNC:
+                    channel = getVarint(in);
+                    if (resync(channel)) {
+                        handler.messageReceived(channel, createResyncMessage());
+                    }
+                    break;
+                default:
+                    channel = getVarint(in);
+                    handler.messageReceived(channel, decodeMessage(type, channel, in));
+                    break;
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Message is too short", e);
+            }
+        }
+    }
+
+    private static byte getHeader(ByteBuffer in) {
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + version);
+        }
+        return in.get();
+    }
+
+    /**
+     * Forgets the base of the next delta of a channel, so its next bid is sent in full.
+     */
+    private synchronized void forgetSentBid(int channel) {
+        sentBids.remove(channel);
+        resyncBids.remove(channel);
+    }
+
+    /**
+     * Keeps the last bid of a channel to be sent again in full, instead of as the base of the next delta.
+     *
+     * @return false when there is no bid to send again
+     */
+    private synchronized boolean resync(int channel) {
+        BaseBid lastBid = sentBids.remove(channel);
+        if (lastBid == null) {
+            return false;
+        }
+        resyncBids.put(channel, lastBid);
+        return true;
+    }
+
+    private static PmMessage createResyncMessage() {
+        PmMessage message = new PmMessage();
+        message.setPayloadType(PmMessage.PayloadType.RESYNC);
+        return message;
+    }
+
+    private PmMessage decodeMessage(byte type, int channel, ByteBuffer in) {
+        if (type != TYPE_BID && type != TYPE_PRICE_UPDATE && type != TYPE_CLUSTERINFO) {
+            throw new IllegalArgumentException("Unknown message type " + type);
+        }
+        MarketBasis marketBasis = getMarketBasis(in);
+
+        PmMessage message = new PmMessage();
+        switch (type) {
+        case TYPE_BID:
+            message.setPayloadType(PmMessage.PayloadType.BID);
+            message.setPayload(decodeBid(in, channel, marketBasis));
+            break;
+        case TYPE_PRICE_UPDATE:
+            int bidNumber = getVarint(in);
+            message.setPayloadType(PmMessage.PayloadType.PRICE_UPDATE);
+            message.setPayload(new PriceUpdate(new Price(marketBasis, in.getDouble()), bidNumber));
+            break;
+        case TYPE_CLUSTERINFO:
+            ClusterInfoModel clusterInfo = new ClusterInfoModel();
+            clusterInfo.setMarketBasis(ModelMapper.convertMarketBasis(marketBasis));
+            clusterInfo.setClusterId(getString(in));
+            message.setPayloadType(PmMessage.PayloadType.CLUSTERINFO);
+            message.setPayload(clusterInfo);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown message type " + type);
+        }
+        return message;
+    }
+
+    private BidUpdate decodeBid(ByteBuffer in, int channel, MarketBasis marketBasis) {
+        int bidNumber = getVarint(in);
+        byte encoding = in.get();
+        if (encoding == PRICE_POINTS) {
+            int length = getLength(in, 16);
+            PricePoint[] pricePoints = new PricePoint[length];
+            for (int ix = 0; ix < length; ix++) {
+                double price = in.getDouble();
+                pricePoints[ix] = new PricePoint(marketBasis, price, in.getDouble());
+            }
+            receivedBids.remove(channel);
+            return new BidUpdate(new PointBid(marketBasis, pricePoints), bidNumber);
+        }
+
+        double[] demand;
+        if (encoding == DEMAND_DOUBLES || encoding == DEMAND_FLOATS) {
+            boolean floats = encoding == DEMAND_FLOATS;
+            demand = new double[getLength(in, floats ? 4 : 8)];
+            getDemand(in, demand, 0, demand.length, floats);
+        } else if (encoding == DELTA_DOUBLES || encoding == DELTA_FLOATS) {
+            demand = applyDelta(in, channel, marketBasis, encoding == DELTA_FLOATS);
+        } else {
+            throw new IllegalArgumentException("Unknown bid encoding " + encoding);
+        }
+        BidUpdate bidUpdate = new BidUpdate(new ArrayBid(marketBasis, demand), bidNumber);
+        receivedBids.put(channel, new BaseBid(bidNumber, marketBasis, demand));
+        return bidUpdate;
+    }
+
+    private double[] applyDelta(ByteBuffer in, int channel, MarketBasis marketBasis, boolean floats) {
+        int baseBidNumber = getVarint(in);
+        BaseBid base = receivedBids.remove(channel);
+        if (base == null || base.bidNumber != baseBidNumber || !base.marketBasis.equals(marketBasis)) {
+            throw new BaseBidMismatchException(channel, baseBidNumber);
+        }
+
+        double[] demand = Arrays.copyOf(base.demand, base.demand.length);
+        int ranges = getLength(in, 2);
+        int start = 0;
+        for (int range = 0; range < ranges; range++) {
+            start += getVarint(in);
+            int length = getLength(in, floats ? 4 : 8);
+            if (start < 0 || length > demand.length - start) {
+                throw new IllegalArgumentException("Invalid delta range " + start + "+" + length);
+            }
+            getDemand(in, demand, start, start + length, floats);
+            start += length;
+        }
+        return demand;
+    }
+
+    private static void getDemand(ByteBuffer in, double[] demand, int from, int to, boolean floats) {
+        for (int ix = from; ix < to; ix++) {
+            demand[ix] = floats ? in.getFloat() : in.getDouble();
+        }
+    }
+
+    private static void putHeader(ByteBuffer buffer, byte type, int channel) {
+        buffer.put(VERSION);
+        buffer.put(type);
+        if (channel != NO_CHANNEL) {
+            putVarint(buffer, channel);
+        }
+    }
+
+    /**
+     * Writes the number of the market basis, with the lowest bit set when it is followed by its definition.
+     */
+    private void putMarketBasis(ByteBuffer buffer, MarketBasis marketBasis) {
+        Integer id = sentMarketBases.get(marketBasis);
+        if (id != null) {
+            putVarint(buffer, id << 1);
+        } else {
+            id = sentMarketBases.size();
+            sentMarketBases.put(marketBasis, id);
+            putVarint(buffer, (id << 1) | 1);
+            putString(buffer, marketBasis.getCommodity());
+            putString(buffer, marketBasis.getCurrency());
+            putVarint(buffer, marketBasis.getPriceSteps());
+            buffer.putDouble(marketBasis.getMinimumPrice());
+            buffer.putDouble(marketBasis.getMaximumPrice());
+        }
+    }
+
+    private int marketBasisSize(MarketBasis marketBasis) {
+        if (sentMarketBases.containsKey(marketBasis)) {
+            return 0;
+        }
+        return stringSize(marketBasis.getCommodity()) + stringSize(marketBasis.getCurrency()) + 5 + 16;
+    }
+
+    private MarketBasis getMarketBasis(ByteBuffer in) {
+        int reference = getVarint(in);
+        Integer id = reference >>> 1;
+        if ((reference & 1) != 0) {
+            String commodity = getString(in);
+            String currency = getString(in);
+            int priceSteps = getVarint(in);
+            double minimumPrice = in.getDouble();
+            double maximumPrice = in.getDouble();
+            // Only looked up, since a remote agent should not be able to add canonical instances
+            MarketBasis marketBasis = MarketBasis.canonicalIfPresent(new MarketBasis(commodity,
+                                                                                     currency,
+                                                                                     priceSteps,
+                                                                                     minimumPrice,
+                                                                                     maximumPrice));
+            receivedMarketBases.put(id, marketBasis);
+            return marketBasis;
+        }
+        MarketBasis marketBasis = receivedMarketBases.get(id);
+        if (marketBasis == null) {
+            throw new IllegalArgumentException("Unknown market basis " + id);
+        }
+        return marketBasis;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Reads a length and checks that the message holds that many elements of the given size.
+     */
+    private static int getLength(ByteBuffer in, int elementSize) {
+        int length = getVarint(in);
+        if (length < 0 || length > in.remaining() / elementSize) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static int stringSize(String value) {
+        return 5 + 3 * value.length();
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = getLength(in, 1);
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
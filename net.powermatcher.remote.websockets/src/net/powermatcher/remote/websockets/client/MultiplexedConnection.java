@@ -0,0 +1,438 @@
+package net.powermatcher.remote.websockets.client;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.data.PmMessage;
+import net.powermatcher.remote.websockets.transport.OutboundQueue;
+
+import org.eclipse.jetty.websocket.api.CloseStatus;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A websocket that is shared by all {@link WebsocketClient}s that are configured to be multiplexed and connect to the
+ * same URL. It uses the {@link PmBinaryCodec#MULTIPLEXED_SUBPROTOCOL}, in which each client has a channel of its own.
+ *
+ * The connection is opened when the first client attaches and closed when the last one detaches. The reconnect,
+ * compression and encoding settings of the first client are used. A channel that has been closed by the server is
+ * opened again when the connection is checked, in the same way as a lost connection is opened again. All messages are
+ * sent through an {@link OutboundQueue}, in which a newer bid of a channel replaces the one that has not been sent yet.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+@WebSocket()
+class MultiplexedConnection
+    implements PmBinaryCodec.ChannelHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiplexedConnection.class);
+
+    /**
+     * The open connections, by their URL.
+     */
+    private static final Map<String, MultiplexedConnection> CONNECTIONS = new HashMap<String, MultiplexedConnection>();
+
+    private final String url;
+    private final int reconnectDelay, connectTimeout;
+    private final boolean floatDemand, deltaBids, permessageDeflate;
+    private final int outboundQueueCapacity;
+
+    private final WebSocketClient client = new WebSocketClient();
+    private final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1);
+    private ScheduledFuture<?> scheduledFuture;
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+
+    private volatile Session remoteSession;
+
+    /**
+     * The codec of the current connection, or <code>null</code> when it is not connected.
+     */
+    private volatile PmBinaryCodec codec;
+
+    /**
+     * The queue of the messages of the current connection, or <code>null</code> when it is not connected.
+     */
+    private volatile OutboundQueue outboundQueue;
+
+    private final AtomicInteger channelGenerator = new AtomicInteger();
+    private final Map<Integer, WebsocketClient> clients = new ConcurrentHashMap<Integer, WebsocketClient>();
+    private final Map<WebsocketClient, Integer> channels = new ConcurrentHashMap<WebsocketClient, Integer>();
+
+    /**
+     * The channels that have been opened on the current connection.
+     */
+    private final Set<Integer> openChannels = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    private MultiplexedConnection(WebsocketClient.Config config) {
+        url = config.powermatcherUrl();
+        reconnectDelay = config.reconnectTimeout();
+        connectTimeout = config.connectTimeout();
+        floatDemand = config.floatDemand();
+        deltaBids = config.deltaBids();
+        permessageDeflate = config.permessageDeflate();
+        outboundQueueCapacity = config.outboundQueueCapacity();
+    }
+
+    /**
+     * Adds a client to the connection to its URL, and opens the connection if it is the first client.
+     *
+     * @param config
+     *            the configuration of the client, of which the URL and the settings of the connection are used
+     * @param websocketClient
+     *            the client that gets a channel on the connection
+     * @return the connection
+     * @throws Exception
+     *             when the websocket client could not be started
+     */
+    static MultiplexedConnection attach(WebsocketClient.Config config, WebsocketClient websocketClient)
+        throws Exception {
+        synchronized (CONNECTIONS) {
+            MultiplexedConnection connection = CONNECTIONS.get(config.powermatcherUrl());
+            if (connection == null) {
+                connection = new MultiplexedConnection(config);
+                connection.start();
+                CONNECTIONS.put(connection.url, connection);
+            }
+            connection.addChannel(websocketClient);
+            return connection;
+        }
+    }
+
+    /**
+     * Removes a client from its connection, and closes the connection if it was the last client.
+     *
+     * @param websocketClient
+     *            the client that leaves the connection
+     */
+    void detach(WebsocketClient websocketClient) {
+        synchronized (CONNECTIONS) {
+            removeChannel(websocketClient);
+            if (channels.isEmpty()) {
+                // Only forget the URL when it still refers to this connection
+                if (CONNECTIONS.get(url) == this) {
+                    CONNECTIONS.remove(url);
+                }
+                stop();
+            }
+        }
+    }
+
+    /**
+     * @param url
+     *            the URL of the server
+     * @return the connection to the URL, or <code>null</code> when no client is attached to it
+     */
+    static MultiplexedConnection getConnection(String url) {
+        synchronized (CONNECTIONS) {
+            return CONNECTIONS.get(url);
+        }
+    }
+
+    private void start() throws Exception {
+        try {
+            client.start();
+        } catch (Exception e) {
+            LOGGER.warn("Could not start websocket client: " + e.getMessage(), e);
+            throw e;
+        }
+
+        Runnable reconnectJob = new Runnable() {
+            @Override
+            public void run() {
+                checkConnection();
+            }
+        };
+        scheduledFuture = executorService.scheduleAtFixedRate(reconnectJob, 1, reconnectDelay, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens the connection when it has been lost, or else the channels that have been closed by the server.
+     */
+    void checkConnection() {
+        if (isConnected()) {
+            openChannels();
+        } else {
+            connect();
+        }
+    }
+
+    private void stop() {
+        scheduledFuture.cancel(true);
+        executorService.shutdown();
+        closeOutboundQueue();
+        if (isConnected()) {
+            remoteSession.close(new CloseStatus(0, "Normal disconnect"));
+        }
+        try {
+            client.stop();
+        } catch (Exception e) {
+            LOGGER.warn("Could not stop websocket client: " + e.getMessage(), e);
+        }
+    }
+
+    private void connect() {
+        try {
+            ClientUpgradeRequest request = new ClientUpgradeRequest();
+            request.setSubProtocols(PmBinaryCodec.MULTIPLEXED_SUBPROTOCOL);
+            if (permessageDeflate) {
+                request.addExtensions("permessage-deflate");
+            }
+            LOGGER.info("Connecting to : {}", url);
+            client.connect(this, new URI(url), request).get(connectTimeout, TimeUnit.SECONDS);
+        } catch (URISyntaxException e) {
+            LOGGER.error("Malformed URL for powermatcher websocket endpoint. Reason {}", e);
+        } catch (Exception e) {
+            LOGGER.error("Unable to connect to remote agent. Reason {}", e);
+        }
+    }
+
+    private boolean isConnected() {
+        Session session = remoteSession;
+        return session != null && session.isOpen() && codec != null;
+    }
+
+    /**
+     * @param websocketClient
+     *            a client of this connection
+     * @return whether the channel of the client is open
+     */
+    boolean isChannelOpen(WebsocketClient websocketClient) {
+        Integer channel = channels.get(websocketClient);
+        return channel != null && openChannels.contains(channel) && isConnected();
+    }
+
+    /**
+     * Chooses the encoding the server has agreed on, and opens the channels of the clients.
+     *
+     * @param session
+     *            the new websocket session
+     */
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        if (!PmBinaryCodec.MULTIPLEXED_SUBPROTOCOL.equals(session.getUpgradeResponse().getAcceptedSubProtocol())) {
+            LOGGER.error("The server at {} does not support multiplexed connections", url);
+            session.close(new CloseStatus(1002, "Multiplexing is not supported"));
+            return;
+        }
+        openChannels.clear();
+        codec = new PmBinaryCodec(bufferPool, floatDemand, deltaBids);
+        outboundQueue = new OutboundQueue(session, outboundQueueCapacity);
+        remoteSession = session;
+        openChannels();
+    }
+
+    /**
+     *
+     * @param statusCode
+     * @param reason
+     */
+    @OnWebSocketClose
+    public void onDisconnect(int statusCode, String reason) {
+        LOGGER.info("Connection closed: {} - {}", statusCode, reason);
+        remoteSession = null;
+        codec = null;
+        closeOutboundQueue();
+        openChannels.clear();
+        for (WebsocketClient websocketClient : clients.values()) {
+            websocketClient.remoteDisconnected();
+        }
+    }
+
+    /**
+     * Handle Websocket receive binary message
+     *
+     * @param buffer
+     *            the array that holds the message
+     * @param offset
+     *            the start of the message in the array
+     * @param length
+     *            the length of the message
+     */
+    @OnWebSocketMessage
+    public void onMessage(byte[] buffer, int offset, int length) {
+        PmBinaryCodec currentCodec = codec;
+        if (currentCodec == null) {
+            return;
+        }
+        try {
+            currentCodec.decode(buffer, offset, length, this);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unable to understand binary message from remote agent: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void channelOpened(int channel, String agentId) {
+        LOGGER.warn("Ignoring the opening of channel {} by the server", channel);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void channelClosed(int channel) {
+        openChannels.remove(channel);
+        WebsocketClient websocketClient = clients.get(channel);
+        if (websocketClient != null) {
+            LOGGER.info("Channel {} of agent {} has been closed by the server", channel, websocketClient.getAgentId());
+            websocketClient.remoteDisconnected();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageReceived(int channel, PmMessage message) {
+        WebsocketClient websocketClient = clients.get(channel);
+        if (message.getPayloadType() == PmMessage.PayloadType.RESYNC) {
+            resendBid(channel);
+        } else if (websocketClient == null) {
+            LOGGER.warn("Got a message on channel {}, which has no client", channel);
+        } else {
+            websocketClient.handleMessage(message);
+        }
+    }
+
+    /**
+     * Queues a bid update on the channel of the client, where it replaces the bid update that has not been sent yet.
+     *
+     * @param websocketClient
+     *            the client that sends the bid update
+     * @param update
+     *            the bid update to send
+     * @return false when the channel of the client is not open
+     */
+    boolean sendBidUpdate(WebsocketClient websocketClient, final BidUpdate update) {
+        final Integer channel = channels.get(websocketClient);
+        final PmBinaryCodec currentCodec = codec;
+        OutboundQueue queue = outboundQueue;
+        if (channel == null || currentCodec == null || queue == null || !openChannels.contains(channel)) {
+            return false;
+        }
+        return queue.offer(new OutboundQueue.BinaryMessage(OutboundQueue.key(PmMessage.PayloadType.BID, channel),
+                                                           currentCodec) {
+            @Override
+            protected ByteBuffer encode() {
+                return currentCodec.encodeBidUpdate(channel, update);
+            }
+        });
+    }
+
+    /**
+     * Sends the last bid of a channel again in full, because the server did not have the base of its delta.
+     */
+    private void resendBid(final int channel) {
+        final PmBinaryCodec currentCodec = codec;
+        OutboundQueue queue = outboundQueue;
+        if (currentCodec == null || queue == null) {
+            return;
+        }
+        // Not keyed, so it does not replace a newer bid, which is sent in full anyway
+        queue.offer(new OutboundQueue.BinaryMessage(null, currentCodec) {
+            @Override
+            protected ByteBuffer encode() {
+                return currentCodec.encodeResentBid(channel);
+            }
+        });
+    }
+
+    /**
+     * @return the queue of the messages of the current connection, or <code>null</code> when it is not connected
+     */
+    OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    private void addChannel(WebsocketClient websocketClient) {
+        int channel = channelGenerator.incrementAndGet();
+        clients.put(channel, websocketClient);
+        channels.put(websocketClient, channel);
+        if (isConnected()) {
+            openChannels();
+        }
+    }
+
+    private void removeChannel(WebsocketClient websocketClient) {
+        Integer channel = channels.remove(websocketClient);
+        if (channel == null) {
+            return;
+        }
+        clients.remove(channel);
+        final PmBinaryCodec currentCodec = codec;
+        OutboundQueue queue = outboundQueue;
+        if (openChannels.remove(channel) && currentCodec != null && queue != null) {
+            final int closedChannel = channel;
+            boolean queued = queue.offer(new OutboundQueue.BinaryMessage(null, currentCodec) {
+                @Override
+                protected ByteBuffer encode() {
+                    return currentCodec.encodeClose(closedChannel);
+                }
+            });
+            if (!queued) {
+                LOGGER.warn("Unable to close channel {}, not connected", channel);
+            }
+        }
+    }
+
+    /**
+     * Opens the channels of the clients that are not open on the current connection.
+     */
+    private void openChannels() {
+        final PmBinaryCodec currentCodec = codec;
+        OutboundQueue queue = outboundQueue;
+        if (currentCodec == null || queue == null) {
+            return;
+        }
+        for (Map.Entry<Integer, WebsocketClient> entry : clients.entrySet()) {
+            final int channel = entry.getKey();
+            final String agentId = entry.getValue().getAgentId();
+            if (openChannels.add(channel)) {
+                boolean queued = queue.offer(new OutboundQueue.BinaryMessage(OutboundQueue.key("OPEN", channel),
+                                                                             currentCodec) {
+                    @Override
+                    protected ByteBuffer encode() {
+                        return currentCodec.encodeOpen(channel, agentId);
+                    }
+                });
+                if (!queued) {
+                    openChannels.remove(channel);
+                    LOGGER.warn("Unable to open channel {}, not connected", channel);
+                }
+            }
+        }
+    }
+
+    private void closeOutboundQueue() {
+        OutboundQueue queue = outboundQueue;
+        if (queue != null) {
+            outboundQueue = null;
+            queue.close();
+            LOGGER.debug("Closed the outbound queue of {}: {}", url, queue);
+        }
+    }
+}
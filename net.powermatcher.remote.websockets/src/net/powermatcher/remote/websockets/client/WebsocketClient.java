@@ -1,8 +1,8 @@
 package net.powermatcher.remote.websockets.client;
 
-import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
@@ -18,17 +18,19 @@ import net.powermatcher.core.BaseMatcherEndpoint;
 import net.powermatcher.core.bidcache.AggregatedBid;
 import net.powermatcher.core.concentrator.BidHistoryStore;
 import net.powermatcher.core.concentrator.SentBidInformation;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
 import net.powermatcher.remote.websockets.data.ClusterInfoModel;
 import net.powermatcher.remote.websockets.data.PmMessage;
 import net.powermatcher.remote.websockets.data.PmMessage.PayloadType;
-import net.powermatcher.remote.websockets.data.PriceUpdateModel;
 import net.powermatcher.remote.websockets.json.ModelMapper;
-import net.powermatcher.remote.websockets.json.PmJsonSerializer;
+import net.powermatcher.remote.websockets.json.PmJsonCodec;
+import net.powermatcher.remote.websockets.transport.OutboundQueue;
 
 import org.eclipse.jetty.websocket.api.CloseStatus;
 import org.eclipse.jetty.websocket.api.Session;
-import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
@@ -48,7 +50,10 @@ import com.google.gson.JsonSyntaxException;
 
 /**
  * WebSocket implementation of an {@link MatcherEndpointProxy}. Enabled two agents to communicate via WebSockets and
- * JSON over a TCP connection.
+ * JSON over a TCP connection. When configured, the client offers the {@link PmBinaryCodec} when it connects, and uses
+ * it when the server accepts it. A multiplexed client does not open a websocket of its own, but gets a channel on a
+ * {@link MultiplexedConnection} that it shares with the other multiplexed clients that connect to the same URL. The
+ * bids are sent through an {@link OutboundQueue}, in which a newer bid replaces the one that has not been sent yet.
  *
  * @author FAN
  * @version 2.0
@@ -62,6 +67,8 @@ public class WebsocketClient
 
     private static final Logger LOGGER = LoggerFactory.getLogger(WebsocketClient.class);
 
+    private static final PmJsonCodec JSON_CODEC = new PmJsonCodec();
+
     @Meta.OCD(description = "Remote client over websockets configuration")
     public static interface Config {
         @Meta.AD(deflt = "matcherendpointproxy", description = "The unique identifier of the agent")
@@ -80,6 +87,47 @@ public class WebsocketClient
         @Meta.AD(deflt = "1000",
                  description = "Mimimum time between two BidUpdates generated by the Concentratro in milliseconds")
         long minTimeBetweenBidUpdates();
+
+        @Meta.AD(deflt = "900",
+                 required = false,
+                 description = "Number of sent BidUpdates that are remembered to handle the PriceUpdates that "
+                               + "refer to them")
+        int bidHistorySize();
+
+        @Meta.AD(deflt = "true",
+                 required = false,
+                 description = "When true, the compact binary protocol is used if the server supports it")
+        boolean binaryProtocol();
+
+        @Meta.AD(deflt = "false",
+                 required = false,
+                 description = "When true, the demand of bids is sent as floats instead of doubles in the binary "
+                               + "protocol, which halves the size of the bids at the cost of precision")
+        boolean floatDemand();
+
+        @Meta.AD(deflt = "false",
+                 required = false,
+                 description = "When true, the agent shares one websocket with the other multiplexed agents that "
+                               + "connect to the same URL")
+        boolean multiplexed();
+
+        @Meta.AD(deflt = "true",
+                 required = false,
+                 description = "When true, a bid is sent as the price steps that changed since the previous bid "
+                               + "in the binary protocol, when the server supports it and it is smaller")
+        boolean deltaBids();
+
+        @Meta.AD(deflt = "false",
+                 required = false,
+                 description = "When true, the client asks the server to compress the messages with "
+                               + "permessage-deflate")
+        boolean permessageDeflate();
+
+        @Meta.AD(deflt = "1024",
+                 required = false,
+                 description = "The maximum number of messages that may wait to be sent to the server, apart from "
+                               + "bids that replace older ones, before the connection is closed")
+        int outboundQueueCapacity();
     }
 
     private URI powermatcherUrl;
@@ -102,7 +150,28 @@ public class WebsocketClient
 
     private final AtomicInteger bidNumberGenerator = new AtomicInteger();
 
-    private final BidHistoryStore sentBids = new BidHistoryStore();
+    private volatile BidHistoryStore sentBids = new BidHistoryStore();
+
+    private boolean binaryProtocol, floatDemand, deltaBids, permessageDeflate;
+
+    private int outboundQueueCapacity;
+
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+
+    /**
+     * The codec of the binary messages of the current connection, or <code>null</code> when JSON is used.
+     */
+    private volatile PmBinaryCodec binaryCodec;
+
+    /**
+     * The queue of the messages to the server, or <code>null</code> when it is not connected.
+     */
+    private volatile OutboundQueue outboundQueue;
+
+    /**
+     * The shared connection of a multiplexed client, or <code>null</code> when it has a websocket of its own.
+     */
+    private MultiplexedConnection multiplexedConnection;
 
     /**
      * OSGi calls this method to activate a managed service.
@@ -127,9 +196,20 @@ public class WebsocketClient
         reconnectDelay = config.reconnectTimeout();
         connectTimeout = config.connectTimeout();
         minTimeBetweenBidUpdates = config.minTimeBetweenBidUpdates();
+        sentBids = new BidHistoryStore(config.bidHistorySize());
+        binaryProtocol = config.binaryProtocol();
+        floatDemand = config.floatDemand();
+        deltaBids = config.deltaBids();
+        permessageDeflate = config.permessageDeflate();
+        outboundQueueCapacity = config.outboundQueueCapacity();
 
         this.bundleContext = bundleContext;
 
+        if (config.multiplexed()) {
+            multiplexedConnection = MultiplexedConnection.attach(config, this);
+            return;
+        }
+
         client = new WebSocketClient();
         try {
             client.start();
@@ -155,6 +235,12 @@ public class WebsocketClient
      */
     @Deactivate
     public void deactivate() {
+        if (multiplexedConnection != null) {
+            multiplexedConnection.detach(this);
+            multiplexedConnection = null;
+            unregisterMatcherEndpoint();
+            return;
+        }
         try {
             client.stop();
         } catch (Exception e) {
@@ -175,6 +261,16 @@ public class WebsocketClient
             // Try to setup a new websocket connection.
             try {
                 ClientUpgradeRequest request = new ClientUpgradeRequest();
+                if (binaryProtocol && deltaBids) {
+                    request.setSubProtocols(PmBinaryCodec.DELTA_SUBPROTOCOL,
+                                            PmBinaryCodec.SUBPROTOCOL,
+                                            PmBinaryCodec.JSON_SUBPROTOCOL);
+                } else if (binaryProtocol) {
+                    request.setSubProtocols(PmBinaryCodec.SUBPROTOCOL, PmBinaryCodec.JSON_SUBPROTOCOL);
+                }
+                if (permessageDeflate) {
+                    request.addExtensions("permessage-deflate");
+                }
                 Future<Session> connectFuture = client.connect(this, powermatcherUrl, request);
                 LOGGER.info("Connecting to : {}", request.getRequestURI());
 
@@ -205,9 +301,33 @@ public class WebsocketClient
      * @return true when connected, false otherwise
      */
     public boolean isRemoteConnected() {
+        if (multiplexedConnection != null) {
+            return multiplexedConnection.isChannelOpen(this);
+        }
         return remoteSession != null && remoteSession.isOpen();
     }
 
+    /**
+     * Chooses the encoding the server has agreed on, before any message of the new connection is handled.
+     *
+     * @param session
+     *            the new websocket session
+     */
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        String subProtocol = session.getUpgradeResponse().getAcceptedSubProtocol();
+        if (PmBinaryCodec.DELTA_SUBPROTOCOL.equals(subProtocol)) {
+            binaryCodec = new PmBinaryCodec(bufferPool, floatDemand, true);
+            LOGGER.info("Using the binary protocol with delta bids");
+        } else if (PmBinaryCodec.SUBPROTOCOL.equals(subProtocol)) {
+            binaryCodec = new PmBinaryCodec(bufferPool, floatDemand);
+            LOGGER.info("Using the binary protocol");
+        } else {
+            binaryCodec = null;
+        }
+        outboundQueue = new OutboundQueue(session, outboundQueueCapacity);
+    }
+
     /**
      *
      * @param statusCode
@@ -217,7 +337,23 @@ public class WebsocketClient
     public void onDisconnect(int statusCode, String reason) {
         LOGGER.info("Connection closed: {} - {}", statusCode, reason);
         remoteSession = null;
-        unconfigure();
+        OutboundQueue queue = outboundQueue;
+        if (queue != null) {
+            outboundQueue = null;
+            queue.close();
+            LOGGER.debug("Closed the outbound queue: {}", queue);
+        }
+        remoteDisconnected();
+    }
+
+    /**
+     * Disconnects the local agents when the connection to the remote agent has been lost.
+     */
+    void remoteDisconnected() {
+        // A channel that has not received the cluster information yet has not been configured
+        if (getStatus().isConnected()) {
+            unconfigure();
+        }
         unregisterMatcherEndpoint();
     }
 
@@ -232,41 +368,95 @@ public class WebsocketClient
         LOGGER.debug("Received message from remote agent {}", message);
 
         try {
-            // Decode the JSON data
-            PmJsonSerializer serializer = new PmJsonSerializer();
-            PmMessage pmMessage = serializer.deserialize(message);
-
-            if (!getStatus().isConnected()) {
-                if (pmMessage.getPayloadType() == PayloadType.CLUSTERINFO) {
-                    // Sync marketbasis and clusterid with local session, for new
-                    // connections
-                    ClusterInfoModel clusterInfo = (ClusterInfoModel) pmMessage.getPayload();
-                    configure(ModelMapper.convertMarketBasis(clusterInfo.getMarketBasis()),
-                              clusterInfo.getClusterId(),
-                              minTimeBetweenBidUpdates);
-
-                    // Register the MatcherEndpoint with the OSGI runtime, to make it available for connections
-                    registerMatcherEndpoint();
-                } else {
-                    LOGGER.warn("Got unexpected message type [{}], expected CLUSTERINFO", pmMessage.getPayloadType());
-                }
-            } else {
-                // Handle specific message
-                if (pmMessage.getPayloadType() == PayloadType.PRICE_UPDATE) {
-                    // Relay price update to local agents
-                    PriceUpdate priceUpdate = ModelMapper.mapPriceUpdate((PriceUpdateModel) pmMessage.getPayload());
-
-                    SentBidInformation info = sentBids.retrieveAggregatedBid(priceUpdate.getBidNumber());
-                    publishPrice(priceUpdate.getPrice(), info.getOriginalBid());
-                } else {
-                    LOGGER.warn("Got unexpected message type [{}], expected PRICE_UPDATE", pmMessage.getPayloadType());
-                }
-            }
+            handleMessage(JSON_CODEC.decode(message));
         } catch (JsonSyntaxException e) {
             LOGGER.warn("Unable to understand message from remote agent: {}", message);
         }
     }
 
+    /**
+     * Handle Websocket receive binary message
+     *
+     * @param buffer
+     *            the array that holds the message
+     * @param offset
+     *            the start of the message in the array
+     * @param length
+     *            the length of the message
+     */
+    @OnWebSocketMessage
+    public void onMessage(byte[] buffer, int offset, int length) {
+        PmBinaryCodec codec = binaryCodec;
+        if (codec == null) {
+            LOGGER.warn("Ignoring binary message from remote agent, JSON was agreed on");
+            return;
+        }
+        try {
+            PmMessage pmMessage = codec.decode(buffer, offset, length);
+            if (pmMessage != null) {
+                handleMessage(pmMessage);
+            }
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unable to understand binary message from remote agent: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Handles a message from the remote agent, which is the cluster information, a price update or a request to send
+     * the last bid again.
+     *
+     * @param pmMessage
+     *            the decoded message
+     */
+    void handleMessage(PmMessage pmMessage) {
+        if (pmMessage.getPayloadType() == PayloadType.RESYNC) {
+            resendBid();
+        } else if (!getStatus().isConnected()) {
+            if (pmMessage.getPayloadType() == PayloadType.CLUSTERINFO) {
+                // Sync marketbasis and clusterid with local session, for new
+                // connections
+                ClusterInfoModel clusterInfo = (ClusterInfoModel) pmMessage.getPayload();
+                configure(ModelMapper.convertMarketBasis(clusterInfo.getMarketBasis()),
+                          clusterInfo.getClusterId(),
+                          minTimeBetweenBidUpdates);
+
+                // Register the MatcherEndpoint with the OSGI runtime, to make it available for connections
+                registerMatcherEndpoint();
+            } else {
+                LOGGER.warn("Got unexpected message type [{}], expected CLUSTERINFO", pmMessage.getPayloadType());
+            }
+        } else {
+            // Handle specific message
+            if (pmMessage.getPayloadType() == PayloadType.PRICE_UPDATE) {
+                // Relay price update to local agents
+                PriceUpdate priceUpdate = (PriceUpdate) pmMessage.getPayload();
+
+                SentBidInformation info = sentBids.retrieveAggregatedBid(priceUpdate.getBidNumber());
+                publishPrice(priceUpdate.getPrice(), info.getOriginalBid());
+            } else {
+                LOGGER.warn("Got unexpected message type [{}], expected PRICE_UPDATE", pmMessage.getPayloadType());
+            }
+        }
+    }
+
+    /**
+     * Sends the last bid again in full, because the server did not have the base of its delta.
+     */
+    private void resendBid() {
+        final PmBinaryCodec codec = binaryCodec;
+        OutboundQueue queue = outboundQueue;
+        if (codec == null || queue == null) {
+            return;
+        }
+        // Not keyed, so it does not replace a newer bid, which is sent in full anyway
+        queue.offer(new OutboundQueue.BinaryMessage(null, codec) {
+            @Override
+            protected ByteBuffer encode() {
+                return codec.encodeResentBid();
+            }
+        });
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -288,19 +478,38 @@ public class WebsocketClient
      * @return bidupdate containing bidnumber and published bid
      */
     private BidUpdate publishBid(AggregatedBid newBid) {
-        BidUpdate update = new BidUpdate(newBid, bidNumberGenerator.incrementAndGet());
-        PmJsonSerializer serializer = new PmJsonSerializer();
-        String message = serializer.serializeBidUpdate(update);
+        final BidUpdate update = new BidUpdate(newBid, bidNumberGenerator.incrementAndGet());
 
         if (isRemoteConnected()) {
-            try {
-                remoteSession.getRemote().sendString(message);
-                LOGGER.debug("Sent bid update to server {}", update);
-                return update;
-            } catch (IOException | WebSocketException | NullPointerException e) {
-                LOGGER.error("Unable to send new bid to remote agent. Reason {}", e);
+            final PmBinaryCodec codec = binaryCodec;
+            OutboundQueue queue = outboundQueue;
+            boolean queued;
+            // A newer bid replaces the one that has not been sent yet
+            if (multiplexedConnection != null) {
+                queued = multiplexedConnection.sendBidUpdate(this, update);
+            } else if (queue == null) {
+                queued = false;
+            } else if (codec != null) {
+                queued = queue.offer(new OutboundQueue.BinaryMessage(PayloadType.BID, codec) {
+                    @Override
+                    protected ByteBuffer encode() {
+                        return codec.encodeBidUpdate(update);
+                    }
+                });
+            } else {
+                queued = queue.offer(new OutboundQueue.TextMessage(PayloadType.BID) {
+                    @Override
+                    protected String encode() {
+                        return JSON_CODEC.encodeBidUpdate(update);
+                    }
+                });
+            }
+            if (!queued) {
+                LOGGER.info("Can not send new bid, the connection has been closed");
                 return null;
             }
+            LOGGER.debug("Queued bid update for server {}", update);
+            return update;
         } else {
             LOGGER.info("Can not send new bid, not connected (remote.isOpen={})",
                         remoteSession == null ? false : remoteSession.isOpen());
@@ -308,6 +517,16 @@ public class WebsocketClient
         }
     }
 
+    /**
+     * @return the queue of the messages to the server, or <code>null</code> when it is not connected
+     */
+    public OutboundQueue getOutboundQueue() {
+        if (multiplexedConnection != null) {
+            return multiplexedConnection.getOutboundQueue();
+        }
+        return outboundQueue;
+    }
+
     /**
      * Register the MatcherEndpoint service
      */
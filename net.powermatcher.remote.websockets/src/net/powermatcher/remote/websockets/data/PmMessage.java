@@ -10,10 +10,11 @@ package net.powermatcher.remote.websockets.data;
  */
 public class PmMessage {
     /**
-     * Type indicator for the payload type.
+     * Type indicator for the payload type. A RESYNC message has no payload; it is only used by the binary protocol to
+     * ask for the last bid in full.
      */
     public enum PayloadType {
-        BID, PRICE_UPDATE, CLUSTERINFO
+        BID, PRICE_UPDATE, CLUSTERINFO, RESYNC
     }
 
     /**
@@ -117,7 +117,8 @@ public class ModelMapper {
     }
 
     /**
-     * Convert a {@link MarketBasisModel} to a {@link MarketBasis}
+     * Convert a {@link MarketBasisModel} to a {@link MarketBasis}. The market basis comes from a remote agent, so the
+     * canonical instance is only used when it already exists.
      *
      * @param marketBasisModel
      *            the market basis model
@@ -127,6 +128,6 @@ public class ModelMapper {
         MarketBasis marketBasis = new MarketBasis(marketBasisModel.getCommodity(), marketBasisModel.getCurrency(),
                                                   marketBasisModel.getPriceSteps(), marketBasisModel.getMinimumPrice(),
                                                   marketBasisModel.getMaximumPrice());
-        return marketBasis;
+        return MarketBasis.canonicalIfPresent(marketBasis);
     }
 }
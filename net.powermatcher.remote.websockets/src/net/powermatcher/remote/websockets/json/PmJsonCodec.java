@@ -0,0 +1,380 @@
+package net.powermatcher.remote.websockets.json;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Arrays;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBid;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.data.PricePoint;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.remote.websockets.data.ClusterInfoModel;
+import net.powermatcher.remote.websockets.data.PmMessage;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Implements the JSON encoding of {@link PmJsonSerializer}, but writes and reads the messages as a stream, straight
+ * from and to the net.powermatcher.api types, without reflection and without the intermediate models. The output is
+ * the same as that of {@link PmJsonSerializer}, so both ends can use either of them.
+ *
+ * A {@link PmJsonCodec} has no state of its own, so one instance can be shared by all connections. Each thread reuses
+ * its own output buffer.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PmJsonCodec {
+
+    /**
+     * A {@link Writer} on a {@link StringBuilder} that can be reused, unlike a StringWriter it is not synchronized.
+     */
+    private static final class StringBuilderWriter
+        extends Writer {
+        private final StringBuilder builder = new StringBuilder(1024);
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            builder.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(int c) {
+            builder.append((char) c);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            builder.append(str, off, off + len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The buffers of the messages are kept per thread, and are only shrunk when they have grown very large.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private final ThreadLocal<StringBuilderWriter> writers = new ThreadLocal<StringBuilderWriter>() {
+        @Override
+        protected StringBuilderWriter initialValue() {
+            return new StringBuilderWriter();
+        }
+    };
+
+    /**
+     * Encodes a {@link BidUpdate} to JSON.
+     *
+     * @param bidUpdate
+     *            the bid update to encode
+     * @return a JSON string with the bid update wrapped in a {@link PmMessage}
+     */
+    public String encodeBidUpdate(BidUpdate bidUpdate) {
+        Bid bid = bidUpdate.getBid();
+        JsonWriter out = startMessage(PmMessage.PayloadType.BID);
+        try {
+            writeMarketBasis(out, bid.getMarketBasis());
+            // Include either pricepoints or demand, not both.
+            if (bid instanceof PointBid) {
+                out.name("pricePoints").beginArray();
+                for (PricePoint pricePoint : ((PointBid) bid).getPricePoints()) {
+                    out.beginObject();
+                    out.name("price").value(pricePoint.getPrice().getPriceValue());
+                    out.name("demand").value(pricePoint.getDemand());
+                    out.endObject();
+                }
+                out.endArray();
+            } else {
+                ArrayBid arrayBid = bid.toArrayBid();
+                out.name("demand").beginArray();
+                for (int ix = 0; ix < arrayBid.getMarketBasis().getPriceSteps(); ix++) {
+                    out.value(arrayBid.demandAt(ix));
+                }
+                out.endArray();
+            }
+            out.name("bidNumber").value(bidUpdate.getBidNumber());
+            return endMessage(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to a string", e);
+        }
+    }
+
+    /**
+     * Encodes a {@link PriceUpdate} to JSON.
+     *
+     * @param priceUpdate
+     *            the price update to encode
+     * @return a JSON string with the price update wrapped in a {@link PmMessage}
+     */
+    public String encodePriceUpdate(PriceUpdate priceUpdate) {
+        JsonWriter out = startMessage(PmMessage.PayloadType.PRICE_UPDATE);
+        try {
+            writeMarketBasis(out, priceUpdate.getPrice().getMarketBasis());
+            out.name("bidNumber").value(priceUpdate.getBidNumber());
+            out.name("priceValue").value(priceUpdate.getPrice().getPriceValue());
+            return endMessage(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to a string", e);
+        }
+    }
+
+    /**
+     * Encodes a clusterId and {@link MarketBasis} to JSON.
+     *
+     * @param clusterId
+     *            the id of the cluster
+     * @param marketBasis
+     *            the market basis of the cluster
+     * @return a JSON string with clusterId and {@link MarketBasis} wrapped in a {@link PmMessage}
+     */
+    public String encodeClusterInfo(String clusterId, MarketBasis marketBasis) {
+        JsonWriter out = startMessage(PmMessage.PayloadType.CLUSTERINFO);
+        try {
+            writeMarketBasis(out, marketBasis);
+            out.name("clusterId").value(clusterId);
+            return endMessage(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to a string", e);
+        }
+    }
+
+    private JsonWriter startMessage(PmMessage.PayloadType payloadType) {
+        StringBuilderWriter writer = writers.get();
+        if (writer.builder.capacity() > MAX_RETAINED_CAPACITY) {
+            writer = new StringBuilderWriter();
+            writers.set(writer);
+        }
+        writer.builder.setLength(0);
+        JsonWriter out = new JsonWriter(writer);
+        // Gson escapes <, >, &, = and ' by default, so PmJsonSerializer does too
+        out.setHtmlSafe(true);
+        try {
+            out.beginObject();
+            out.name("payloadType").value(payloadType.name());
+            out.name("payload").beginObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to a string", e);
+        }
+        return out;
+    }
+
+    private String endMessage(JsonWriter out) throws IOException {
+        out.endObject();
+        out.endObject();
+        return writers.get().builder.toString();
+    }
+
+    private static void writeMarketBasis(JsonWriter out, MarketBasis marketBasis) throws IOException {
+        out.name("marketBasis").beginObject();
+        out.name("commodity").value(marketBasis.getCommodity());
+        out.name("currency").value(marketBasis.getCurrency());
+        out.name("priceSteps").value(marketBasis.getPriceSteps());
+        out.name("minimumPrice").value(marketBasis.getMinimumPrice());
+        out.name("maximumPrice").value(marketBasis.getMaximumPrice());
+        out.endObject();
+    }
+
+    /**
+     * The fields of any of the payloads, which may arrive in any order.
+     */
+    private static final class Payload {
+        MarketBasis marketBasis;
+        double[] demand;
+        double[] pricePoints;
+        int bidNumber;
+        double priceValue;
+        String clusterId;
+    }
+
+    /**
+     * Decodes a JSON message. The payload of the returned {@link PmMessage} is a {@link BidUpdate}, a
+     * {@link PriceUpdate} or a {@link ClusterInfoModel}, depending on its {@link PmMessage.PayloadType}.
+     *
+     * @param message
+     *            the JSON string
+     * @return a {@link PmMessage} containing payload.
+     * @throws JsonSyntaxException
+     *             when the message could not be decoded
+     */
+    public PmMessage decode(String message) {
+        JsonReader in = new JsonReader(new StringReader(message));
+        try {
+            PmMessage.PayloadType payloadType = null;
+            Payload payload = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("payloadType".equals(name)) {
+                    payloadType = PmMessage.PayloadType.valueOf(in.nextString());
+                } else if ("payload".equals(name) && in.peek() == JsonToken.BEGIN_OBJECT) {
+                    payload = readPayload(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (payloadType == null || payload == null) {
+                throw new JsonSyntaxException("Missing payloadType or payload");
+            }
+
+            PmMessage pmMessage = new PmMessage();
+            pmMessage.setPayloadType(payloadType);
+            pmMessage.setPayload(createPayload(payloadType, payload));
+            return pmMessage;
+        } catch (IOException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static Object createPayload(PmMessage.PayloadType payloadType, Payload payload) {
+        switch (payloadType) {
+        case BID:
+            Bid bid;
+            // Include either pricepoints or demand and not both.
+            if (payload.pricePoints == null || payload.pricePoints.length == 0) {
+                bid = new ArrayBid(payload.marketBasis, payload.demand);
+            } else {
+                PricePoint[] pricePoints = new PricePoint[payload.pricePoints.length / 2];
+                for (int ix = 0; ix < pricePoints.length; ix++) {
+                    pricePoints[ix] = new PricePoint(payload.marketBasis,
+                                                     payload.pricePoints[2 * ix],
+                                                     payload.pricePoints[2 * ix + 1]);
+                }
+                bid = new PointBid(payload.marketBasis, pricePoints);
+            }
+            return new BidUpdate(bid, payload.bidNumber);
+        case PRICE_UPDATE:
+            return new PriceUpdate(new Price(payload.marketBasis, payload.priceValue), payload.bidNumber);
+        case CLUSTERINFO:
+            ClusterInfoModel clusterInfo = new ClusterInfoModel();
+            clusterInfo.setClusterId(payload.clusterId);
+            clusterInfo.setMarketBasis(ModelMapper.convertMarketBasis(payload.marketBasis));
+            return clusterInfo;
+        default:
+            throw new JsonSyntaxException("Unknown payloadType " + payloadType);
+        }
+    }
+
+    private static Payload readPayload(JsonReader in) throws IOException {
+        Payload payload = new Payload();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.skipValue();
+            } else if ("marketBasis".equals(name)) {
+                payload.marketBasis = readMarketBasis(in);
+            } else if ("demand".equals(name)) {
+                payload.demand = readDoubles(in);
+            } else if ("pricePoints".equals(name)) {
+                payload.pricePoints = readPricePoints(in);
+            } else if ("bidNumber".equals(name)) {
+                payload.bidNumber = in.nextInt();
+            } else if ("priceValue".equals(name)) {
+                payload.priceValue = in.nextDouble();
+            } else if ("clusterId".equals(name)) {
+                payload.clusterId = in.nextString();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return payload;
+    }
+
+    private static MarketBasis readMarketBasis(JsonReader in) throws IOException {
+        String commodity = null;
+        String currency = null;
+        int priceSteps = 0;
+        double minimumPrice = 0;
+        double maximumPrice = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if ("commodity".equals(name)) {
+                commodity = in.nextString();
+            } else if ("currency".equals(name)) {
+                currency = in.nextString();
+            } else if ("priceSteps".equals(name)) {
+                priceSteps = in.nextInt();
+            } else if ("minimumPrice".equals(name)) {
+                minimumPrice = in.nextDouble();
+            } else if ("maximumPrice".equals(name)) {
+                maximumPrice = in.nextDouble();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        // Only looked up, since a remote agent should not be able to add canonical instances
+        return MarketBasis.canonicalIfPresent(new MarketBasis(commodity,
+                                                              currency,
+                                                              priceSteps,
+                                                              minimumPrice,
+                                                              maximumPrice));
+    }
+
+    /**
+     * Reads an array of numbers, growing the array when needed.
+     */
+    private static double[] readDoubles(JsonReader in) throws IOException {
+        double[] values = new double[16];
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[count++] = in.nextDouble();
+        }
+        in.endArray();
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Reads the price points as an array of alternating prices and demands.
+     */
+    private static double[] readPricePoints(JsonReader in) throws IOException {
+        double[] values = new double[16];
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (count + 2 > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            double price = 0;
+            double demand = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("price".equals(name)) {
+                    price = in.nextDouble();
+                } else if ("demand".equals(name)) {
+                    demand = in.nextDouble();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            values[count++] = price;
+            values[count++] = demand;
+        }
+        in.endArray();
+        return Arrays.copyOf(values, count);
+    }
+}
@@ -16,7 +16,8 @@ import com.google.gson.GsonBuilder;
 
 /**
  * Implements a serializer for the net.powermatcher.api.data data types to JSON. Items are wrapped in a
- * {@link PmMessage} and correct type is set.
+ * {@link PmMessage} and correct type is set. The websocket endpoints use the faster {@link PmJsonCodec}, which
+ * produces the same JSON.
  *
  * @author FAN
  * @version 2.0
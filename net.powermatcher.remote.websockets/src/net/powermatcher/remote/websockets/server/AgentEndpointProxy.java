@@ -1,34 +1,38 @@
 package net.powermatcher.remote.websockets.server;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.api.monitoring.events.OutgoingBidUpdateEvent;
 import net.powermatcher.core.BaseAgentEndpoint;
-import net.powermatcher.remote.websockets.data.BidModel;
+import net.powermatcher.remote.websockets.binary.BaseBidMismatchException;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
 import net.powermatcher.remote.websockets.data.PmMessage;
-import net.powermatcher.remote.websockets.json.ModelMapper;
-import net.powermatcher.remote.websockets.json.PmJsonSerializer;
+import net.powermatcher.remote.websockets.json.PmJsonCodec;
+import net.powermatcher.remote.websockets.transport.OutboundQueue;
 
 import org.eclipse.jetty.websocket.api.Session;
-import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 
+import com.google.gson.JsonSyntaxException;
+
 /**
  * WebSocket implementation of an {@link AgentEndpointProxy}. Enabled two agents to communicate via WebSockets and JSON
- * over a TCP connection.
+ * over a TCP connection, or using the {@link PmBinaryCodec} when the remote agent has asked for it. The messages to the
+ * remote agent are sent through an {@link OutboundQueue}, so a slow remote agent does not hold up the local matcher.
  *
  * @author FAN
  * @version 2.0
@@ -37,14 +41,37 @@ public class AgentEndpointProxy
     extends BaseAgentEndpoint
     implements WebSocketListener {
 
+    private static final PmJsonCodec JSON_CODEC = new PmJsonCodec();
+
     private final BundleContext bundleContext;
     private final String desiredParentId;
     private ServiceRegistration<?> serviceRegistration;
     private Session remoteSession;
 
+    /**
+     * The codec of the binary messages, or <code>null</code> when JSON is used.
+     */
+    private final PmBinaryCodec binaryCodec;
+
+    private final int outboundQueueCapacity;
+
+    /**
+     * The queue of the messages to the remote agent, or <code>null</code> when it is not connected.
+     */
+    private volatile OutboundQueue outboundQueue;
+
     public AgentEndpointProxy(BundleContext bundleContext, String desiredParentId) {
+        this(bundleContext, desiredParentId, null, OutboundQueue.DEFAULT_CAPACITY);
+    }
+
+    public AgentEndpointProxy(BundleContext bundleContext,
+                              String desiredParentId,
+                              PmBinaryCodec binaryCodec,
+                              int outboundQueueCapacity) {
         this.bundleContext = bundleContext;
         this.desiredParentId = desiredParentId;
+        this.binaryCodec = binaryCodec;
+        this.outboundQueueCapacity = outboundQueueCapacity;
     }
 
     @Override
@@ -62,6 +89,7 @@ public class AgentEndpointProxy
 
         String agentId = "remote-" + remoteSession.getRemoteAddress().getHostString() + "-" + remoteAgentId;
         init(agentId, desiredParentId);
+        outboundQueue = new OutboundQueue(remoteSession, outboundQueueCapacity);
 
         Hashtable<String, Object> properties = new Hashtable<String, Object>();
         properties.put("agentId", agentId);
@@ -100,7 +128,26 @@ public class AgentEndpointProxy
 
     @Override
     public void onWebSocketBinary(byte[] buffer, int offset, int length) {
-        // Do nothing, we ignore all binary messages
+        if (binaryCodec == null) {
+            LOGGER.warn("Ignoring binary message from remote agent {}, JSON was agreed on", getAgentId());
+            return;
+        }
+        try {
+            PmMessage pmMessage = binaryCodec.decode(buffer, offset, length);
+            if (pmMessage != null) {
+                handleMessage(pmMessage);
+            }
+        } catch (final BaseBidMismatchException e) {
+            LOGGER.info("Asking remote agent {} for a full bid: {}", getAgentId(), e.getMessage());
+            send(new OutboundQueue.BinaryMessage(null, binaryCodec) {
+                @Override
+                protected ByteBuffer encode() {
+                    return binaryCodec.encodeResync(e);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unable to understand binary message from remote agent {}: {}", getAgentId(), e.getMessage());
+        }
     }
 
     @Override
@@ -116,10 +163,25 @@ public class AgentEndpointProxy
 
     @Override
     public void onWebSocketText(String message) {
-        // Decode the JSON data
-        PmJsonSerializer serializer = new PmJsonSerializer();
-        PmMessage pmMessage = serializer.deserialize(message);
-        BidUpdate newBid = ModelMapper.mapBidUpdate((BidModel) pmMessage.getPayload());
+        try {
+            handleMessage(JSON_CODEC.decode(message));
+        } catch (JsonSyntaxException e) {
+            LOGGER.warn("Unable to understand message from remote agent {}: {}", getAgentId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the bid of the remote agent to the local matcher.
+     *
+     * @param pmMessage
+     *            the decoded message of the remote agent
+     */
+    private void handleMessage(PmMessage pmMessage) {
+        if (pmMessage.getPayloadType() != PmMessage.PayloadType.BID) {
+            LOGGER.warn("Got unexpected message type [{}], expected BID", pmMessage.getPayloadType());
+            return;
+        }
+        BidUpdate newBid = (BidUpdate) pmMessage.getPayload();
 
         AgentEndpoint.Status currentStatus = getStatus();
         if (currentStatus.isConnected()) {
@@ -143,6 +205,11 @@ public class AgentEndpointProxy
             serviceRegistration = null;
             reg.unregister();
         }
+        OutboundQueue queue = outboundQueue;
+        if (queue != null) {
+            queue.close();
+            LOGGER.debug("Closed the outbound queue of {}: {}", getAgentId(), queue);
+        }
         if (remoteSession != null && remoteSession.isOpen()) {
             remoteSession.close();
             remoteSession = null;
@@ -154,17 +221,24 @@ public class AgentEndpointProxy
      * {@inheritDoc}
      */
     @Override
-    public void handlePriceUpdate(PriceUpdate priceUpdate) {
+    public void handlePriceUpdate(final PriceUpdate priceUpdate) {
         super.handlePriceUpdate(priceUpdate);
 
-        // Create price update message
-        PmJsonSerializer serializer = new PmJsonSerializer();
-        String message = serializer.serializePriceUpdate(priceUpdate);
-
-        try {
-            remoteSession.getRemote().sendString(message);
-        } catch (IOException | WebSocketException | NullPointerException e) {
-            LOGGER.warn("Unable to send price update to remote agent, reason {}", e);
+        // A newer price update replaces the one that has not been sent yet
+        if (binaryCodec != null) {
+            send(new OutboundQueue.BinaryMessage(PmMessage.PayloadType.PRICE_UPDATE, binaryCodec) {
+                @Override
+                protected ByteBuffer encode() {
+                    return binaryCodec.encodePriceUpdate(priceUpdate);
+                }
+            });
+        } else {
+            send(new OutboundQueue.TextMessage(PmMessage.PayloadType.PRICE_UPDATE) {
+                @Override
+                protected String encode() {
+                    return JSON_CODEC.encodePriceUpdate(priceUpdate);
+                }
+            });
         }
     }
 
@@ -176,16 +250,46 @@ public class AgentEndpointProxy
         super.connectToMatcher(session);
 
         // Local matcher is connected, provide cluster information to remote // agent.
-        PmJsonSerializer serializer = new PmJsonSerializer();
         AgentEndpoint.Status currentStatus = getStatus();
-        String message = serializer.serializeClusterInfo(currentStatus.getClusterId(), currentStatus.getMarketBasis());
-        try {
-            remoteSession.getRemote().sendString(message);
-        } catch (IOException | WebSocketException | NullPointerException e) {
-            LOGGER.warn("Unable to send price update to remote agent, reason {}", e);
+        final String clusterId = currentStatus.getClusterId();
+        final MarketBasis marketBasis = currentStatus.getMarketBasis();
+        if (binaryCodec != null) {
+            send(new OutboundQueue.BinaryMessage(null, binaryCodec) {
+                @Override
+                protected ByteBuffer encode() {
+                    return binaryCodec.encodeClusterInfo(clusterId, marketBasis);
+                }
+            });
+        } else {
+            send(new OutboundQueue.TextMessage(null) {
+                @Override
+                protected String encode() {
+                    return JSON_CODEC.encodeClusterInfo(clusterId, marketBasis);
+                }
+            });
         }
     }
 
+    /**
+     * Queues a message for the remote agent.
+     *
+     * @param message
+     *            the message to send
+     */
+    private void send(OutboundQueue.Message message) {
+        OutboundQueue queue = outboundQueue;
+        if (queue == null || !queue.offer(message)) {
+            LOGGER.warn("Unable to send message to remote agent {}, not connected", getAgentId());
+        }
+    }
+
+    /**
+     * @return the queue of the messages to the remote agent, or <code>null</code> when it is not connected
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
     @Override
     public synchronized void matcherEndpointDisconnected(net.powermatcher.api.Session session) {
         super.matcherEndpointDisconnected(session);
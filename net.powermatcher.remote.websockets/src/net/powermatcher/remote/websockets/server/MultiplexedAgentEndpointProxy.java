@@ -0,0 +1,384 @@
+package net.powermatcher.remote.websockets.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.api.monitoring.ObservableAgent;
+import net.powermatcher.api.monitoring.events.OutgoingBidUpdateEvent;
+import net.powermatcher.core.BaseAgentEndpoint;
+import net.powermatcher.remote.websockets.binary.BaseBidMismatchException;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.data.PmMessage;
+import net.powermatcher.remote.websockets.transport.OutboundQueue;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Carries many remote agents over one websocket, using the {@link PmBinaryCodec#MULTIPLEXED_SUBPROTOCOL}. Each channel
+ * that the remote side opens is registered as an {@link AgentEndpoint} of its own, which works like an
+ * {@link AgentEndpointProxy}.
+ *
+ * The price updates of the channels are not sent one by one. They are collected for a short delay after the first
+ * one, and then sent in batches, so a matcher that publishes a price to all its agents results in a single message.
+ * While they wait, a newer price update of a channel replaces the older one. All messages go through an
+ * {@link OutboundQueue}, so a slow remote side does not hold up the local matchers.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class MultiplexedAgentEndpointProxy
+    implements WebSocketListener, PmBinaryCodec.ChannelHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiplexedAgentEndpointProxy.class);
+
+    private final BundleContext bundleContext;
+    private final String desiredParentId;
+    private final PmBinaryCodec codec;
+    private final ScheduledExecutorService scheduler;
+    private final long priceBatchDelay;
+    private final int outboundQueueCapacity;
+
+    private final Map<Integer, ChannelEndpoint> channels = new ConcurrentHashMap<Integer, ChannelEndpoint>();
+
+    private volatile Session remoteSession;
+
+    /**
+     * The queue of the messages to the remote side, or <code>null</code> when it is not connected.
+     */
+    private volatile OutboundQueue outboundQueue;
+
+    /**
+     * The price updates that wait to be sent, by the channel they are for.
+     */
+    private final Map<Integer, PriceUpdate> pendingPriceUpdates = new LinkedHashMap<Integer, PriceUpdate>();
+    private boolean flushScheduled;
+
+    private final Runnable flushJob = new Runnable() {
+        @Override
+        public void run() {
+            flushPriceUpdates();
+        }
+    };
+
+    /**
+     * @param bundleContext
+     *            the context in which the agents of the channels are registered
+     * @param desiredParentId
+     *            the id of the matcher to which the agents of the channels should be connected
+     * @param codec
+     *            the codec of the connection
+     * @param scheduler
+     *            the scheduler that sends the batches of price updates
+     * @param priceBatchDelay
+     *            the number of milliseconds that price updates are collected before they are sent
+     * @param outboundQueueCapacity
+     *            the maximum number of messages that may wait to be sent, apart from the ones that are replaced
+     */
+    public MultiplexedAgentEndpointProxy(BundleContext bundleContext,
+                                         String desiredParentId,
+                                         PmBinaryCodec codec,
+                                         ScheduledExecutorService scheduler,
+                                         long priceBatchDelay,
+                                         int outboundQueueCapacity) {
+        this.bundleContext = bundleContext;
+        this.desiredParentId = desiredParentId;
+        this.codec = codec;
+        this.scheduler = scheduler;
+        this.priceBatchDelay = priceBatchDelay;
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session remoteSession) {
+        this.remoteSession = remoteSession;
+        outboundQueue = new OutboundQueue(remoteSession, outboundQueueCapacity);
+        LOGGER.debug("Connected to multiplexed remote agents on {}", remoteSession.getRemoteAddress());
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] buffer, int offset, int length) {
+        try {
+            codec.decode(buffer, offset, length, this);
+        } catch (final BaseBidMismatchException e) {
+            LOGGER.info("Asking remote agent for a full bid: {}", e.getMessage());
+            send(new OutboundQueue.BinaryMessage(null, codec) {
+                @Override
+                protected ByteBuffer encode() {
+                    return codec.encodeResync(e);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unable to understand binary message from {}: {}",
+                        remoteSession.getRemoteAddress(),
+                        e.getMessage());
+        }
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+        LOGGER.warn("Ignoring text message from {}, the multiplexed protocol is binary",
+                    remoteSession.getRemoteAddress());
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        OutboundQueue queue = outboundQueue;
+        if (queue != null) {
+            queue.close();
+            LOGGER.debug("Closed the outbound queue of {}: {}", remoteSession.getRemoteAddress(), queue);
+        }
+        for (ChannelEndpoint channel : channels.values()) {
+            channel.deactivate();
+        }
+        channels.clear();
+        LOGGER.debug("Disconnected multiplexed session, code = {}, reason = {}", statusCode, reason);
+    }
+
+    @Override
+    public void onWebSocketError(Throwable ex) {
+        LOGGER.warn("Error during communication", ex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void channelOpened(int channel, String remoteAgentId) {
+        if (channels.containsKey(channel)) {
+            LOGGER.warn("Ignoring the opening of channel {}, it is already open", channel);
+            return;
+        }
+        String agentId = "remote-" + remoteSession.getRemoteAddress().getHostString() + "-" + remoteAgentId;
+        ChannelEndpoint endpoint = new ChannelEndpoint(channel);
+        channels.put(channel, endpoint);
+        endpoint.activate(agentId);
+        LOGGER.debug("Opened channel {} for remote agent {}", channel, remoteAgentId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void channelClosed(int channel) {
+        ChannelEndpoint endpoint = channels.remove(channel);
+        if (endpoint != null) {
+            endpoint.deactivate();
+        }
+        dropPriceUpdate(channel);
+    }
+
+    /**
+     * Sends the bid of a remote agent to the local matcher of its channel.
+     */
+    @Override
+    public void messageReceived(int channel, PmMessage message) {
+        ChannelEndpoint endpoint = channels.get(channel);
+        if (endpoint == null) {
+            LOGGER.warn("Got a message on channel {}, which is not open", channel);
+        } else if (message.getPayloadType() != PmMessage.PayloadType.BID) {
+            LOGGER.warn("Got unexpected message type [{}], expected BID", message.getPayloadType());
+        } else {
+            endpoint.handleRemoteBid((BidUpdate) message.getPayload());
+        }
+    }
+
+    /**
+     * Adds a price update to the next batch, and schedules the batch if it is the first one. A price update of the
+     * channel that has not been sent yet is replaced.
+     */
+    private void queuePriceUpdate(int channel, PriceUpdate priceUpdate) {
+        synchronized (pendingPriceUpdates) {
+            pendingPriceUpdates.put(channel, priceUpdate);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                scheduler.schedule(flushJob, priceBatchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Forgets the price update of a channel that has not been sent yet, because the channel has been closed. A channel
+     * that is opened again with the same number should not get a price of the bid of its previous session.
+     */
+    private void dropPriceUpdate(int channel) {
+        synchronized (pendingPriceUpdates) {
+            pendingPriceUpdates.remove(channel);
+        }
+    }
+
+    /**
+     * Queues a batch of the price updates that have been collected. The batch is only filled when it is sent, so the
+     * price updates that come in while the remote side is busy are added to it, or replace the ones in it.
+     */
+    private void flushPriceUpdates() {
+        synchronized (pendingPriceUpdates) {
+            flushScheduled = false;
+        }
+        send(new PriceBatch());
+    }
+
+    /**
+     * A batch of at most {@link PmBinaryCodec#MAX_PRICE_BATCH} price updates. There is only one batch waiting in the
+     * queue at a time; when more price updates are pending than fit in it, the next batch is queued after it.
+     */
+    private class PriceBatch
+        extends OutboundQueue.BinaryMessage {
+
+        PriceBatch() {
+            super(PmMessage.PayloadType.PRICE_UPDATE, codec);
+        }
+
+        @Override
+        protected ByteBuffer encode() {
+            int[] batchChannels;
+            PriceUpdate[] batch;
+            boolean more;
+            synchronized (pendingPriceUpdates) {
+                int count = Math.min(PmBinaryCodec.MAX_PRICE_BATCH, pendingPriceUpdates.size());
+                batchChannels = new int[count];
+                batch = new PriceUpdate[count];
+                Iterator<Map.Entry<Integer, PriceUpdate>> it = pendingPriceUpdates.entrySet().iterator();
+                for (int ix = 0; ix < count; ix++) {
+                    Map.Entry<Integer, PriceUpdate> entry = it.next();
+                    batchChannels[ix] = entry.getKey();
+                    batch[ix] = entry.getValue();
+                    it.remove();
+                }
+                more = !pendingPriceUpdates.isEmpty();
+            }
+            if (more) {
+                send(new PriceBatch());
+            }
+            return batch.length == 0 ? null : codec.encodePriceUpdates(batchChannels, batch, 0, batch.length);
+        }
+    }
+
+    /**
+     * Queues a message for the remote side.
+     *
+     * @param message
+     *            the message to send
+     */
+    private void send(OutboundQueue.Message message) {
+        OutboundQueue queue = outboundQueue;
+        if (queue == null || !queue.offer(message)) {
+            LOGGER.warn("Unable to send message to remote agents, not connected");
+        }
+    }
+
+    /**
+     * @return the queue of the messages to the remote side, or <code>null</code> when it is not connected
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * The {@link AgentEndpoint} of one channel.
+     */
+    private class ChannelEndpoint
+        extends BaseAgentEndpoint {
+
+        private final int channel;
+        private ServiceRegistration<?> serviceRegistration;
+
+        ChannelEndpoint(int channel) {
+            this.channel = channel;
+        }
+
+        void activate(String agentId) {
+            init(agentId, desiredParentId);
+            serviceRegistration = bundleContext.registerService(new String[] { ObservableAgent.class.getName(),
+                                                                              AgentEndpoint.class.getName() },
+                                                                this,
+                                                                null);
+        }
+
+        void handleRemoteBid(BidUpdate newBid) {
+            AgentEndpoint.Status currentStatus = getStatus();
+            if (currentStatus.isConnected()) {
+                net.powermatcher.api.Session session = currentStatus.getSession();
+                publishEvent(new OutgoingBidUpdateEvent(currentStatus.getClusterId(),
+                                                        getAgentId(),
+                                                        session.getSessionId(),
+                                                        now(),
+                                                        newBid));
+                LOGGER.debug("Sending bid [{}] to {}", newBid, session.getAgentId());
+                session.updateBid(newBid);
+            } else {
+                LOGGER.warn("Got a message, while not connected? {}", newBid);
+            }
+        }
+
+        @Override
+        public void deactivate() {
+            if (serviceRegistration != null) {
+                ServiceRegistration<?> reg = serviceRegistration;
+                serviceRegistration = null;
+                reg.unregister();
+            }
+            super.deactivate();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void handlePriceUpdate(PriceUpdate priceUpdate) {
+            super.handlePriceUpdate(priceUpdate);
+            queuePriceUpdate(channel, priceUpdate);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void connectToMatcher(net.powermatcher.api.Session session) {
+            super.connectToMatcher(session);
+
+            // Local matcher is connected, provide cluster information to the remote agent of this channel.
+            AgentEndpoint.Status currentStatus = getStatus();
+            final String clusterId = currentStatus.getClusterId();
+            final MarketBasis marketBasis = currentStatus.getMarketBasis();
+            Object key = OutboundQueue.key(PmMessage.PayloadType.CLUSTERINFO, channel);
+            send(new OutboundQueue.BinaryMessage(key, codec) {
+                @Override
+                protected ByteBuffer encode() {
+                    return codec.encodeClusterInfo(channel, clusterId, marketBasis);
+                }
+            });
+        }
+
+        /**
+         * Closes the channel, so the remote agent knows that it has to open it again.
+         */
+        @Override
+        public synchronized void matcherEndpointDisconnected(net.powermatcher.api.Session session) {
+            super.matcherEndpointDisconnected(session);
+            if (channels.remove(channel) != null) {
+                deactivate();
+                dropPriceUpdate(channel);
+                send(new OutboundQueue.BinaryMessage(null, codec) {
+                    @Override
+                    protected ByteBuffer encode() {
+                        return codec.encodeClose(channel);
+                    }
+                });
+            }
+        }
+    }
+}
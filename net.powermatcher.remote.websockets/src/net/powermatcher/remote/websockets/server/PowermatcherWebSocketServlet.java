@@ -1,10 +1,14 @@
 package net.powermatcher.remote.websockets.server;
 
 import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
@@ -14,11 +18,16 @@ import org.osgi.framework.BundleContext;
 
 import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
 import aQute.bnd.annotation.metatype.Configurable;
 import aQute.bnd.annotation.metatype.Meta;
 
 /**
- * Servlet which activates the PowerMatcher WebSocket communication.
+ * Servlet which activates the PowerMatcher WebSocket communication. A client that offers the
+ * {@link PmBinaryCodec#MULTIPLEXED_SUBPROTOCOL} gets a {@link MultiplexedAgentEndpointProxy}, which carries many
+ * agents. A client that offers the {@link PmBinaryCodec#DELTA_SUBPROTOCOL} or the {@link PmBinaryCodec#SUBPROTOCOL}
+ * gets the binary encoding, any other client gets JSON. The permessage-deflate extension is used when the client asks
+ * for it, unless it has been disabled.
  *
  * @author FAN
  * @version 2.0
@@ -39,16 +48,56 @@ public class PowermatcherWebSocketServlet
         @Meta.AD(deflt = "/powermatcher/websocket",
                  description = "The path of the URL on which this servlet can be reached")
         String alias();
+
+        @Meta.AD(deflt = "5",
+                 required = false,
+                 description = "The number of milliseconds that the price updates for multiplexed agents are "
+                               + "collected, before they are sent in one message")
+        long priceBatchDelay();
+
+        @Meta.AD(deflt = "true",
+                 required = false,
+                 description = "When true, the messages are compressed with permessage-deflate if the client asks "
+                               + "for it")
+        boolean permessageDeflate();
+
+        @Meta.AD(deflt = "1024",
+                 required = false,
+                 description = "The maximum number of messages that may wait to be sent to a remote agent, apart "
+                               + "from bids and prices that replace older ones, before the connection is closed")
+        int outboundQueueCapacity();
     }
 
     private String desiredParentId;
+    private long priceBatchDelay;
+    private boolean permessageDeflate;
+    private int outboundQueueCapacity;
     private BundleContext bundleContext;
 
+    /**
+     * Sends the batches of price updates of the multiplexed connections.
+     */
+    private ScheduledThreadPoolExecutor priceBatchScheduler;
+
+    /**
+     * The buffers for the binary messages, which are shared by all connections.
+     */
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+
     @Activate
     public void activate(BundleContext bundleContext, Map<String, Object> properties) {
         this.bundleContext = bundleContext;
         Config config = Configurable.createConfigurable(Config.class, properties);
         desiredParentId = config.desiredParentId();
+        priceBatchDelay = config.priceBatchDelay();
+        permessageDeflate = config.permessageDeflate();
+        outboundQueueCapacity = config.outboundQueueCapacity();
+        priceBatchScheduler = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @Deactivate
+    public void deactivate() {
+        priceBatchScheduler.shutdown();
     }
 
     @Override
@@ -69,10 +118,39 @@ public class PowermatcherWebSocketServlet
     @Override
     public void configure(WebSocketServletFactory wssf) {
         wssf.setCreator(this);
+        if (!permessageDeflate) {
+            wssf.getExtensionFactory().unregister("permessage-deflate");
+        }
     }
 
     @Override
     public Object createWebSocket(ServletUpgradeRequest req, ServletUpgradeResponse resp) {
-        return new AgentEndpointProxy(bundleContext, desiredParentId);
+        if (req.getSubProtocols().contains(PmBinaryCodec.MULTIPLEXED_SUBPROTOCOL)) {
+            resp.setAcceptedSubProtocol(PmBinaryCodec.MULTIPLEXED_SUBPROTOCOL);
+            return new MultiplexedAgentEndpointProxy(bundleContext,
+                                                     desiredParentId,
+                                                     new PmBinaryCodec(bufferPool, false),
+                                                     priceBatchScheduler,
+                                                     priceBatchDelay,
+                                                     outboundQueueCapacity);
+        }
+        if (req.getSubProtocols().contains(PmBinaryCodec.DELTA_SUBPROTOCOL)) {
+            resp.setAcceptedSubProtocol(PmBinaryCodec.DELTA_SUBPROTOCOL);
+            return new AgentEndpointProxy(bundleContext,
+                                          desiredParentId,
+                                          new PmBinaryCodec(bufferPool, false),
+                                          outboundQueueCapacity);
+        }
+        if (req.getSubProtocols().contains(PmBinaryCodec.SUBPROTOCOL)) {
+            resp.setAcceptedSubProtocol(PmBinaryCodec.SUBPROTOCOL);
+            return new AgentEndpointProxy(bundleContext,
+                                          desiredParentId,
+                                          new PmBinaryCodec(bufferPool, false),
+                                          outboundQueueCapacity);
+        }
+        if (req.getSubProtocols().contains(PmBinaryCodec.JSON_SUBPROTOCOL)) {
+            resp.setAcceptedSubProtocol(PmBinaryCodec.JSON_SUBPROTOCOL);
+        }
+        return new AgentEndpointProxy(bundleContext, desiredParentId, null, outboundQueueCapacity);
     }
 }
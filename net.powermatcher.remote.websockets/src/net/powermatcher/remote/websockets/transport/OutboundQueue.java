@@ -0,0 +1,442 @@
+package net.powermatcher.remote.websockets.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The queue of the messages that are sent over one websocket. The messages are sent asynchronously, one at a time and
+ * in the order in which they have been offered, so the thread that offers a message never waits for the network.
+ *
+ * A message with a key replaces the message with the same key that has not been sent yet, and takes its place in the
+ * queue. This way a slow remote side gets the latest bid or price instead of all of them. The messages are encoded
+ * just before they are sent, so a {@link PmBinaryCodec} encodes them in the order in which they are sent.
+ *
+ * The number of messages with a key is limited by the number of keys. The number of messages without a key is
+ * limited by the capacity of the queue. When that is exceeded the remote side can not keep up, and the session is
+ * closed, after which the endpoints reconnect as after any other error.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class OutboundQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboundQueue.class);
+
+    /**
+     * The default maximum number of messages without a key that wait to be sent.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * A message that is encoded when it is sent.
+     */
+    public abstract static class Message {
+        private final Object key;
+
+        /**
+         * @param key
+         *            the key of the message, or <code>null</code> when it should never be replaced
+         */
+        protected Message(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Encodes and sends the message, and lets the callback know when it has been sent.
+         */
+        abstract void send(RemoteEndpoint remote, WriteCallback callback);
+    }
+
+    /**
+     * A text message, such as the JSON encoding of a message.
+     */
+    public abstract static class TextMessage
+        extends Message {
+
+        /**
+         * @param key
+         *            the key of the message, or <code>null</code> when it should never be replaced
+         */
+        protected TextMessage(Object key) {
+            super(key);
+        }
+
+        /**
+         * @return the text to send
+         */
+        protected abstract String encode();
+
+        @Override
+        void send(RemoteEndpoint remote, WriteCallback callback) {
+            remote.sendString(encode(), callback);
+        }
+    }
+
+    /**
+     * A binary message that is encoded by a {@link PmBinaryCodec}, of which the buffer is released after it is sent.
+     */
+    public abstract static class BinaryMessage
+        extends Message {
+        private final PmBinaryCodec codec;
+
+        /**
+         * @param key
+         *            the key of the message, or <code>null</code> when it should never be replaced
+         * @param codec
+         *            the codec that encodes the message
+         */
+        protected BinaryMessage(Object key, PmBinaryCodec codec) {
+            super(key);
+            this.codec = codec;
+        }
+
+        /**
+         * @return a buffer of the codec that is ready to be sent, or <code>null</code> when there is nothing to send
+         */
+        protected abstract ByteBuffer encode();
+
+        @Override
+        void send(RemoteEndpoint remote, final WriteCallback callback) {
+            final ByteBuffer buffer = encode();
+            if (buffer == null) {
+                callback.writeSuccess();
+                return;
+            }
+            remote.sendBytes(buffer, new WriteCallback() {
+                @Override
+                public void writeSuccess() {
+                    codec.release(buffer);
+                    callback.writeSuccess();
+                }
+
+                @Override
+                public void writeFailed(Throwable x) {
+                    codec.release(buffer);
+                    callback.writeFailed(x);
+                }
+            });
+        }
+    }
+
+    /**
+     * The key of a type of message on a channel of a multiplexed connection.
+     */
+    private static final class ChannelKey {
+        private final Object type;
+        private final int channel;
+
+        ChannelKey(Object type, int channel) {
+            this.type = type;
+            this.channel = channel;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + channel;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ChannelKey)) {
+                return false;
+            }
+            ChannelKey other = (ChannelKey) obj;
+            return channel == other.channel && type.equals(other.type);
+        }
+    }
+
+    /**
+     * @param type
+     *            the type of the message
+     * @param channel
+     *            the number of the channel
+     * @return a key that is the same for all messages of the type on the channel
+     */
+    public static Object key(Object type, int channel) {
+        return new ChannelKey(type, channel);
+    }
+
+    /**
+     * The place of a message in the queue, which keeps the time at which the first message was offered.
+     */
+    private static final class Slot {
+        Message message;
+        final long offeredNanos;
+
+        Slot(Message message, long offeredNanos) {
+            this.message = message;
+            this.offeredNanos = offeredNanos;
+        }
+    }
+
+    private final Session session;
+    private final int capacity;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+    private final Map<Object, Slot> slotsByKey = new HashMap<Object, Slot>();
+    private int unkeyedCount;
+    private boolean sending;
+    private boolean closed;
+
+    private int maxDepth;
+    private long sentCount, coalescedCount, failedCount;
+    private long totalLatencyNanos, maxLatencyNanos;
+
+    /**
+     * @param session
+     *            the session over which the messages are sent
+     * @param capacity
+     *            the maximum number of messages without a key that wait to be sent
+     */
+    public OutboundQueue(Session session, int capacity) {
+        this.session = session;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a message to the queue, or replaces the waiting message with the same key. If no message is being sent,
+     * the calling thread starts sending it, without waiting for it to be sent.
+     *
+     * @param message
+     *            the message to send
+     * @return false when the queue has been closed, or when it is full and the session is closed
+     */
+    public boolean offer(Message message) {
+        boolean overflow = false;
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            if (message.key != null) {
+                Slot slot = slotsByKey.get(message.key);
+                if (slot != null) {
+                    slot.message = message;
+                    coalescedCount++;
+                    return true;
+                }
+            }
+            if (message.key == null && unkeyedCount >= capacity) {
+                overflow = true;
+                closed = true;
+                slots.clear();
+                slotsByKey.clear();
+            } else {
+                Slot slot = new Slot(message, System.nanoTime());
+                slots.add(slot);
+                if (message.key == null) {
+                    unkeyedCount++;
+                } else {
+                    slotsByKey.put(message.key, slot);
+                }
+                maxDepth = Math.max(maxDepth, slots.size());
+                if (sending) {
+                    return true;
+                }
+                sending = true;
+            }
+        }
+
+        if (overflow) {
+            LOGGER.warn("More than {} messages are waiting to be sent to {}, closing the session",
+                        capacity,
+                        session.getRemoteAddress());
+            session.close(StatusCode.POLICY_VIOLATION, "Outbound queue is full");
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Sends the messages one by one. When a message is sent asynchronously, its callback continues with the next one.
+     */
+    private void drain() {
+        while (true) {
+            Slot slot;
+            synchronized (lock) {
+                slot = closed ? null : slots.poll();
+                if (slot == null) {
+                    sending = false;
+                    return;
+                }
+                if (slot.message.key == null) {
+                    unkeyedCount--;
+                } else {
+                    slotsByKey.remove(slot.message.key);
+                }
+            }
+
+            SendCallback callback = new SendCallback(slot.offeredNanos);
+            try {
+                slot.message.send(session.getRemote(), callback);
+            } catch (RuntimeException e) {
+                callback.writeFailed(e);
+            }
+            if (!callback.continueInline()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the result of a message, and continues sending if the thread that sent it has left.
+     */
+    private final class SendCallback
+        implements WriteCallback {
+        private final long offeredNanos;
+        private boolean done;
+        private boolean detached;
+
+        SendCallback(long offeredNanos) {
+            this.offeredNanos = offeredNanos;
+        }
+
+        @Override
+        public void writeSuccess() {
+            complete(null);
+        }
+
+        @Override
+        public void writeFailed(Throwable x) {
+            complete(x);
+        }
+
+        private void complete(Throwable failure) {
+            boolean resume;
+            synchronized (lock) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                resume = detached;
+                if (failure == null) {
+                    long latency = System.nanoTime() - offeredNanos;
+                    sentCount++;
+                    totalLatencyNanos += latency;
+                    maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                } else {
+                    failedCount++;
+                }
+            }
+            if (failure != null) {
+                LOGGER.warn("Unable to send message to {}, reason {}", session.getRemoteAddress(), failure);
+            }
+            if (resume) {
+                drain();
+            }
+        }
+
+        /**
+         * @return true when the message has already been sent, so the thread that sent it should continue with the
+         *         next one; otherwise this callback continues when it is sent
+         */
+        boolean continueInline() {
+            synchronized (lock) {
+                detached = !done;
+                return done;
+            }
+        }
+    }
+
+    /**
+     * Drops the messages that wait to be sent. Messages that are offered after this are ignored.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            slots.clear();
+            slotsByKey.clear();
+            unkeyedCount = 0;
+        }
+    }
+
+    /**
+     * @return the number of messages that wait to be sent
+     */
+    public int getDepth() {
+        synchronized (lock) {
+            return slots.size();
+        }
+    }
+
+    /**
+     * @return the largest number of messages that have been waiting at the same time
+     */
+    public int getMaxDepth() {
+        synchronized (lock) {
+            return maxDepth;
+        }
+    }
+
+    /**
+     * @return the number of messages that have been sent
+     */
+    public long getSentCount() {
+        synchronized (lock) {
+            return sentCount;
+        }
+    }
+
+    /**
+     * @return the number of messages that have been replaced by a newer message before they were sent
+     */
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * @return the number of messages that could not be sent
+     */
+    public long getFailedCount() {
+        synchronized (lock) {
+            return failedCount;
+        }
+    }
+
+    /**
+     * @return the average time in milliseconds between offering a message and having it sent
+     */
+    public double getAverageLatencyMillis() {
+        synchronized (lock) {
+            return sentCount == 0 ? 0 : totalLatencyNanos / 1e6 / sentCount;
+        }
+    }
+
+    /**
+     * @return the longest time in milliseconds between offering a message and having it sent
+     */
+    public double getMaxLatencyMillis() {
+        synchronized (lock) {
+            return maxLatencyNanos / 1e6;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return String.format("OutboundQueue[depth=%d, maxDepth=%d, sent=%d, coalesced=%d, failed=%d, "
+                                 + "averageLatency=%.3f ms, maxLatency=%.3f ms]",
+                                 slots.size(),
+                                 maxDepth,
+                                 sentCount,
+                                 coalescedCount,
+                                 failedCount,
+                                 sentCount == 0 ? 0 : totalLatencyNanos / 1e6 / sentCount,
+                                 maxLatencyNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package net.powermatcher.remote.websockets.binary.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.remote.websockets.binary.BaseBidMismatchException;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.data.PmMessage;
+import net.powermatcher.remote.websockets.test.RecordingChannelHandler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the delta bids of the {@link PmBinaryCodec} class, on a multiplexed connection between an agent
+ * side that sends bids and a matcher side that receives them.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PmBinaryCodecDeltaTest {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 100, 0, 99);
+    private static final int CHANNEL = 7;
+
+    private final ByteBufferPool pool = new ByteBufferPool();
+    private final PmBinaryCodec agentSide = new PmBinaryCodec(pool, false, true);
+    private PmBinaryCodec matcherSide = new PmBinaryCodec(pool, false, true);
+
+    private final double[] demand = new double[MB.getPriceSteps()];
+    private int bidNumber;
+
+    /**
+     * The size of the last message that has been sent.
+     */
+    private int lastSize;
+
+    @Before
+    public void setUp() {
+        for (int ix = 0; ix < demand.length; ix++) {
+            demand[ix] = 1000 - 10 * ix;
+        }
+        send(agentSide, matcherSide, agentSide.encodeOpen(CHANNEL, "agent"));
+    }
+
+    private RecordingChannelHandler send(PmBinaryCodec from, PmBinaryCodec to, ByteBuffer buffer) {
+        lastSize = buffer.remaining();
+        byte[] bytes = new byte[lastSize];
+        buffer.get(bytes);
+        from.release(buffer);
+        RecordingChannelHandler handler = new RecordingChannelHandler();
+        to.decode(bytes, 0, bytes.length, handler);
+        return handler;
+    }
+
+    /**
+     * Changes the demand at one price step, and returns the new bid.
+     */
+    private BidUpdate nextBid(int priceStep) {
+        demand[priceStep] += 0.5;
+        return new BidUpdate(new ArrayBid(MB, Arrays.copyOf(demand, demand.length)), ++bidNumber);
+    }
+
+    private static byte[] toBytes(PmBinaryCodec codec, ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        codec.release(buffer);
+        return bytes;
+    }
+
+    /**
+     * Drops the next bid, so the matcher side does not have the base of the delta after it, and lets the matcher side
+     * ask for the last bid again.
+     */
+    private void loseBaseBid(int priceStep) {
+        agentSide.release(agentSide.encodeBidUpdate(CHANNEL, nextBid(priceStep)));
+        ByteBuffer buffer = agentSide.encodeBidUpdate(CHANNEL, nextBid(priceStep + 1));
+        try {
+            send(agentSide, matcherSide, buffer);
+            fail("Expected a BaseBidMismatchException");
+        } catch (BaseBidMismatchException e) {
+            RecordingChannelHandler agentHandler = send(matcherSide, agentSide, matcherSide.encodeResync(e));
+            assertEquals(1, agentHandler.getMessages().size());
+            assertEquals(CHANNEL, (int) agentHandler.getMessageChannels().get(0));
+            assertEquals(PmMessage.PayloadType.RESYNC, agentHandler.getMessages().get(0).getPayloadType());
+        }
+    }
+
+    private void assertReceived(BidUpdate expected, RecordingChannelHandler handler) {
+        assertEquals(1, handler.getMessages().size());
+        assertEquals(CHANNEL, (int) handler.getMessageChannels().get(0));
+        assertEquals(expected, handler.getMessages().get(0).getPayload());
+    }
+
+    private void assertFullSize() {
+        assertTrue("Expected a full bid, got " + lastSize + " bytes", lastSize > 8 * demand.length);
+    }
+
+    private void assertDeltaSize() {
+        assertTrue("Expected a delta, got " + lastSize + " bytes", lastSize < 50);
+    }
+
+    @Test
+    public void testDeltaRoundTrip() {
+        BidUpdate first = nextBid(3);
+        assertReceived(first, send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, first)));
+        assertFullSize();
+
+        for (int ix = 0; ix < 5; ix++) {
+            BidUpdate next = nextBid(10 * ix);
+            assertReceived(next, send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, next)));
+            assertDeltaSize();
+        }
+    }
+
+    @Test
+    public void testDeltaAfterCloseAndReopenByMatcher() {
+        BidUpdate first = nextBid(3);
+        send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, first));
+        send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, nextBid(4)));
+
+        RecordingChannelHandler agentHandler = send(matcherSide, agentSide, matcherSide.encodeClose(CHANNEL));
+        assertEquals(Arrays.asList(CHANNEL), agentHandler.getClosed());
+        send(agentSide, matcherSide, agentSide.encodeOpen(CHANNEL, "agent"));
+
+        // The first bid after the channel has been opened again is sent in full, after that as a delta again
+        BidUpdate reopened = nextBid(5);
+        assertReceived(reopened, send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, reopened)));
+        assertFullSize();
+        BidUpdate delta = nextBid(6);
+        assertReceived(delta, send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, delta)));
+        assertDeltaSize();
+    }
+
+    @Test
+    public void testDeltaAfterCloseAndReopenByAgent() {
+        send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, nextBid(3)));
+        send(agentSide, matcherSide, agentSide.encodeClose(CHANNEL));
+        send(agentSide, matcherSide, agentSide.encodeOpen(CHANNEL, "agent"));
+
+        BidUpdate reopened = nextBid(5);
+        assertReceived(reopened, send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, reopened)));
+        assertFullSize();
+    }
+
+    @Test
+    public void testResyncSendsLastBidAgain() {
+        send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, nextBid(3)));
+        loseBaseBid(4);
+        BidUpdate lastBid = new BidUpdate(new ArrayBid(MB, Arrays.copyOf(demand, demand.length)), bidNumber);
+
+        // The last bid is sent again in full, with its own bid number, and is the base of the next delta
+        assertReceived(lastBid, send(agentSide, matcherSide, agentSide.encodeResentBid(CHANNEL)));
+        assertFullSize();
+        assertNull(agentSide.encodeResentBid(CHANNEL));
+        BidUpdate next = nextBid(7);
+        assertReceived(next, send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, next)));
+        assertDeltaSize();
+    }
+
+    @Test
+    public void testNewerBidReplacesResentBid() {
+        send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, nextBid(3)));
+        loseBaseBid(4);
+
+        BidUpdate newer = nextBid(6);
+        assertReceived(newer, send(agentSide, matcherSide, agentSide.encodeBidUpdate(CHANNEL, newer)));
+        assertFullSize();
+        assertNull(agentSide.encodeResentBid(CHANNEL));
+    }
+
+    @Test
+    public void testResyncWithoutChannel() {
+        PmBinaryCodec sender = new PmBinaryCodec(pool, false, true);
+        PmBinaryCodec receiver = new PmBinaryCodec(pool, false, true);
+        byte[] first = toBytes(sender, sender.encodeBidUpdate(nextBid(3)));
+        receiver.decode(first, 0, first.length);
+        sender.release(sender.encodeBidUpdate(nextBid(4)));
+        BidUpdate missed = nextBid(5);
+        byte[] delta = toBytes(sender, sender.encodeBidUpdate(missed));
+
+        BaseBidMismatchException mismatch = null;
+        try {
+            receiver.decode(delta, 0, delta.length);
+            fail("Expected a BaseBidMismatchException");
+        } catch (BaseBidMismatchException e) {
+            mismatch = e;
+        }
+        byte[] resync = toBytes(receiver, receiver.encodeResync(mismatch));
+        assertEquals(PmMessage.PayloadType.RESYNC, sender.decode(resync, 0, resync.length).getPayloadType());
+
+        byte[] resent = toBytes(sender, sender.encodeResentBid());
+        assertEquals(missed, receiver.decode(resent, 0, resent.length).getPayload());
+    }
+}
@@ -0,0 +1,151 @@
+package net.powermatcher.remote.websockets.binary.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBid;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.data.ClusterInfoModel;
+import net.powermatcher.remote.websockets.data.MarketBasisModel;
+import net.powermatcher.remote.websockets.data.PmMessage;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link PmBinaryCodec} class.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PmBinaryCodecTest {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 10, 0, 9);
+
+    private final ByteBufferPool pool = new ByteBufferPool();
+    private final PmBinaryCodec sender = new PmBinaryCodec(pool, false);
+    private final PmBinaryCodec receiver = new PmBinaryCodec(pool, false);
+
+    /**
+     * Copies the encoded message into a larger array, so decoding also has to respect the offset.
+     */
+    static byte[] toBytes(ByteBuffer buffer, int offset) {
+        byte[] bytes = new byte[offset + buffer.remaining() + 3];
+        buffer.get(bytes, offset, buffer.remaining());
+        return bytes;
+    }
+
+    private PmMessage roundTrip(PmBinaryCodec encoder, PmBinaryCodec decoder, ByteBuffer buffer) {
+        int length = buffer.remaining();
+        byte[] bytes = toBytes(buffer, 5);
+        buffer.flip();
+        encoder.release(buffer);
+        return decoder.decode(bytes, 5, length);
+    }
+
+    @Test
+    public void testArrayBidRoundTrip() {
+        BidUpdate bidUpdate = new BidUpdate(new ArrayBid(MB, new double[] { 9, 8, 7.5, 6, 5, 0.1, -1, -2, -3, -1e9 }),
+                                            300);
+        PmMessage message = roundTrip(sender, receiver, sender.encodeBidUpdate(bidUpdate));
+
+        assertEquals(PmMessage.PayloadType.BID, message.getPayloadType());
+        assertEquals(bidUpdate, message.getPayload());
+    }
+
+    @Test
+    public void testFloatDemand() {
+        PmBinaryCodec floatSender = new PmBinaryCodec(pool, true);
+        double[] demand = new double[] { 9, 8, 7.5, 6, 5, 0.1, -1, -2, -3, -4 };
+        ByteBuffer buffer = floatSender.encodeBidUpdate(new BidUpdate(new ArrayBid(MB, demand), 1));
+        assertTrue(buffer.remaining() < sender.encodeBidUpdate(new BidUpdate(new ArrayBid(MB, demand), 1))
+                                              .remaining());
+        BidUpdate decoded = (BidUpdate) roundTrip(floatSender, receiver, buffer).getPayload();
+
+        double[] decodedDemand = decoded.getBid().toArrayBid().getDemand();
+        for (int ix = 0; ix < demand.length; ix++) {
+            assertEquals((float) demand[ix], decodedDemand[ix], 0);
+        }
+    }
+
+    @Test
+    public void testPointBidRoundTrip() {
+        BidUpdate bidUpdate = new BidUpdate(new PointBid.Builder(MB).add(1, 10).add(5, 2).add(8, -4).build(), 7);
+        PmMessage message = roundTrip(sender, receiver, sender.encodeBidUpdate(bidUpdate));
+
+        assertEquals(PmMessage.PayloadType.BID, message.getPayloadType());
+        assertEquals(bidUpdate, message.getPayload());
+    }
+
+    @Test
+    public void testPriceUpdateRoundTrip() {
+        PriceUpdate priceUpdate = new PriceUpdate(new Price(MB, 4.5), 12);
+        PmMessage message = roundTrip(sender, receiver, sender.encodePriceUpdate(priceUpdate));
+
+        assertEquals(PmMessage.PayloadType.PRICE_UPDATE, message.getPayloadType());
+        assertEquals(priceUpdate, message.getPayload());
+    }
+
+    @Test
+    public void testClusterInfoRoundTrip() {
+        PmMessage message = roundTrip(sender, receiver, sender.encodeClusterInfo("clusteré", MB));
+
+        assertEquals(PmMessage.PayloadType.CLUSTERINFO, message.getPayloadType());
+        ClusterInfoModel clusterInfo = (ClusterInfoModel) message.getPayload();
+        assertEquals("clusteré", clusterInfo.getClusterId());
+        MarketBasisModel marketBasis = clusterInfo.getMarketBasis();
+        assertEquals(MB.getCommodity(), marketBasis.getCommodity());
+        assertEquals(MB.getCurrency(), marketBasis.getCurrency());
+        assertEquals(MB.getPriceSteps(), marketBasis.getPriceSteps());
+        assertEquals(MB.getMinimumPrice(), marketBasis.getMinimumPrice(), 0);
+        assertEquals(MB.getMaximumPrice(), marketBasis.getMaximumPrice(), 0);
+    }
+
+    @Test
+    public void testMarketBasisIsSentOnce() {
+        PriceUpdate priceUpdate = new PriceUpdate(new Price(MB, 4.5), 12);
+        ByteBuffer first = sender.encodePriceUpdate(priceUpdate);
+        int firstLength = first.remaining();
+        roundTrip(sender, receiver, first);
+        ByteBuffer second = sender.encodePriceUpdate(priceUpdate);
+        assertTrue(second.remaining() < firstLength);
+
+        assertEquals(priceUpdate, roundTrip(sender, receiver, second).getPayload());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownMarketBasis() {
+        PriceUpdate priceUpdate = new PriceUpdate(new Price(MB, 4.5), 12);
+        sender.release(sender.encodePriceUpdate(priceUpdate));
+        // The receiver has missed the definition of the market basis
+        roundTrip(sender, receiver, sender.encodePriceUpdate(priceUpdate));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedVersion() {
+        receiver.decode(new byte[] { 99, 0, 0 }, 0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedMessage() {
+        ByteBuffer buffer = sender.encodePriceUpdate(new PriceUpdate(new Price(MB, 4.5), 12));
+        int length = buffer.remaining();
+        receiver.decode(toBytes(buffer, 0), 0, length - 4);
+    }
+
+    @Test
+    public void testPoolReusesBuffers() {
+        ByteBufferPool smallPool = new ByteBufferPool(1024, 1);
+        ByteBuffer buffer = smallPool.acquire(100);
+        smallPool.release(buffer);
+        assertTrue(buffer == smallPool.acquire(10));
+        // A message that does not fit gets a buffer of its own
+        assertEquals(2048, smallPool.acquire(2048).capacity());
+    }
+}
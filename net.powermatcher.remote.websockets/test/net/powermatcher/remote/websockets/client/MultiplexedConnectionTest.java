@@ -0,0 +1,258 @@
+package net.powermatcher.remote.websockets.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.mock.MockContext;
+import net.powermatcher.remote.websockets.binary.BaseBidMismatchException;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.test.MockBundleContext;
+import net.powermatcher.remote.websockets.test.MockWebSocketSession;
+import net.powermatcher.remote.websockets.test.RecordingChannelHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link MultiplexedConnection} class. The websocket is replaced by a
+ * {@link MockWebSocketSession}, and the messages are decoded as the server would.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class MultiplexedConnectionTest {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 10, 0, 9);
+
+    /**
+     * Each test gets a URL of its own, which nothing listens on.
+     */
+    private static final AtomicInteger URL_GENERATOR = new AtomicInteger();
+
+    private final ByteBufferPool pool = new ByteBufferPool();
+    private final MockBundleContext bundleContext = new MockBundleContext();
+    private final List<WebsocketClient> activeClients = new ArrayList<WebsocketClient>();
+
+    private String url;
+    private WebsocketClient first, second;
+    private MultiplexedConnection connection;
+    private PmBinaryCodec serverCodec;
+
+    @Before
+    public void setUp() throws Exception {
+        url = "ws://localhost:1/powermatcher/test" + URL_GENERATOR.incrementAndGet();
+        first = createClient("agent1");
+        second = createClient("agent2");
+        connection = MultiplexedConnection.getConnection(url);
+        serverCodec = new PmBinaryCodec(pool, false, true);
+    }
+
+    @After
+    public void tearDown() {
+        for (WebsocketClient client : new ArrayList<WebsocketClient>(activeClients)) {
+            deactivate(client);
+        }
+    }
+
+    private WebsocketClient createClient(String agentId) throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("agentId", agentId);
+        properties.put("powermatcherUrl", url);
+        properties.put("multiplexed", true);
+        properties.put("reconnectTimeout", 3600);
+        properties.put("connectTimeout", 1);
+        properties.put("minTimeBetweenBidUpdates", 0);
+        properties.put("deltaBids", true);
+
+        WebsocketClient client = new WebsocketClient();
+        client.setContext(new MockContext(0));
+        client.activate(bundleContext.getBundleContext(), properties);
+        activeClients.add(client);
+        return client;
+    }
+
+    private void deactivate(WebsocketClient client) {
+        activeClients.remove(client);
+        client.deactivate();
+    }
+
+    private MockWebSocketSession connect() {
+        MockWebSocketSession session = new MockWebSocketSession(PmBinaryCodec.MULTIPLEXED_SUBPROTOCOL);
+        connection.onConnect(session);
+        return session;
+    }
+
+    private RecordingChannelHandler receive(MockWebSocketSession session) {
+        return RecordingChannelHandler.receive(session, serverCodec);
+    }
+
+    private void sendToClient(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        serverCodec.release(buffer);
+        connection.onMessage(bytes, 0, bytes.length);
+    }
+
+    private static BidUpdate createBidUpdate(double maxDemand, int bidNumber) {
+        return new BidUpdate(new ArrayBid(MB, new double[] { maxDemand, 5, 4, 4, 3, 3, 2, 2, 1, 0 }), bidNumber);
+    }
+
+    @Test
+    public void testClientsShareConnection() {
+        assertNotNull(connection);
+        assertFalse(first.isRemoteConnected());
+        assertFalse(connection.sendBidUpdate(first, new BidUpdate(new ArrayBid(MB, new double[10]), 1)));
+    }
+
+    @Test
+    public void testConnectOpensChannels() {
+        RecordingChannelHandler server = receive(connect());
+
+        assertEquals(2, server.getOpened().size());
+        assertNotEquals(server.getOpened().get("agent1"), server.getOpened().get("agent2"));
+        assertTrue(first.isRemoteConnected());
+        assertTrue(second.isRemoteConnected());
+    }
+
+    @Test
+    public void testUnsupportedSubProtocolIsClosed() {
+        MockWebSocketSession session = new MockWebSocketSession(PmBinaryCodec.SUBPROTOCOL);
+        connection.onConnect(session);
+
+        assertEquals(1002, session.getCloseCode());
+        assertTrue(session.getSentBytes().isEmpty());
+        assertFalse(first.isRemoteConnected());
+    }
+
+    @Test
+    public void testClusterInfoConfiguresClient() {
+        int channel = receive(connect()).getOpened().get("agent1");
+        sendToClient(serverCodec.encodeClusterInfo(channel, "cluster", MB));
+
+        assertTrue(first.getStatus().isConnected());
+        assertEquals("cluster", first.getStatus().getClusterId());
+        assertFalse(second.getStatus().isConnected());
+        assertEquals(1, bundleContext.getServices().size());
+        assertSame(first, bundleContext.getServices().get(0));
+    }
+
+    @Test
+    public void testBidIsSentOnChannel() {
+        MockWebSocketSession session = connect();
+        int channel = receive(session).getOpened().get("agent2");
+        BidUpdate bidUpdate = new BidUpdate(new ArrayBid(MB, new double[] { 5, 5, 4, 4, 3, 3, 2, 2, 1, 0 }), 1);
+
+        assertTrue(connection.sendBidUpdate(second, bidUpdate));
+        RecordingChannelHandler server = receive(session);
+        assertEquals(1, server.getMessages().size());
+        assertEquals(channel, (int) server.getMessageChannels().get(0));
+        assertEquals(bidUpdate, server.getMessages().get(0).getPayload());
+    }
+
+    @Test
+    public void testResyncResendsLastBid() {
+        MockWebSocketSession session = connect();
+        int channel = receive(session).getOpened().get("agent1");
+        assertTrue(connection.sendBidUpdate(first, createBidUpdate(5, 1)));
+        receive(session);
+        assertTrue(connection.sendBidUpdate(first, createBidUpdate(6, 2)));
+        session.clearSentBytes();
+        BidUpdate lastBid = createBidUpdate(7, 3);
+        assertTrue(connection.sendBidUpdate(first, lastBid));
+
+        // The server missed the second bid, so it can not decode the delta of the last one
+        try {
+            receive(session);
+            fail("Expected a BaseBidMismatchException");
+        } catch (BaseBidMismatchException e) {
+            session.clearSentBytes();
+            sendToClient(serverCodec.encodeResync(e));
+        }
+
+        RecordingChannelHandler server = receive(session);
+        assertEquals(1, server.getMessages().size());
+        assertEquals(channel, (int) server.getMessageChannels().get(0));
+        assertEquals(lastBid, server.getMessages().get(0).getPayload());
+    }
+
+    @Test
+    public void testChannelClosedByServerIsReopened() {
+        MockWebSocketSession session = connect();
+        Map<String, Integer> channels = receive(session).getOpened();
+        int channel = channels.get("agent1");
+        sendToClient(serverCodec.encodeClusterInfo(channel, "cluster", MB));
+        sendToClient(serverCodec.encodeClose(channel));
+
+        assertFalse(first.isRemoteConnected());
+        assertFalse(first.getStatus().isConnected());
+        assertTrue(bundleContext.getServices().isEmpty());
+        assertTrue(second.isRemoteConnected());
+
+        connection.checkConnection();
+        RecordingChannelHandler server = receive(session);
+        assertEquals(1, server.getOpened().size());
+        assertEquals(channel, (int) server.getOpened().get("agent1"));
+        assertTrue(first.isRemoteConnected());
+    }
+
+    @Test
+    public void testReconnectOpensAllChannels() {
+        MockWebSocketSession session = connect();
+        Map<String, Integer> channels = receive(session).getOpened();
+        sendToClient(serverCodec.encodeClusterInfo(channels.get("agent1"), "cluster", MB));
+        connection.onDisconnect(1006, "Connection lost");
+
+        assertFalse(first.isRemoteConnected());
+        assertFalse(first.getStatus().isConnected());
+        assertFalse(second.isRemoteConnected());
+
+        serverCodec = new PmBinaryCodec(pool, false, true);
+        RecordingChannelHandler server = receive(connect());
+        assertEquals(channels, server.getOpened());
+        assertTrue(first.isRemoteConnected());
+        assertTrue(second.isRemoteConnected());
+    }
+
+    @Test
+    public void testDetachClosesChannel() {
+        MockWebSocketSession session = connect();
+        int channel = receive(session).getOpened().get("agent1");
+        deactivate(first);
+
+        RecordingChannelHandler server = receive(session);
+        assertEquals(1, server.getClosed().size());
+        assertEquals(channel, (int) server.getClosed().get(0));
+        assertTrue(session.isOpen());
+    }
+
+    @Test
+    public void testLastDetachRemovesConnection() throws Exception {
+        deactivate(first);
+        assertSame(connection, MultiplexedConnection.getConnection(url));
+        deactivate(second);
+        assertNull(MultiplexedConnection.getConnection(url));
+
+        createClient("agent3");
+        MultiplexedConnection newConnection = MultiplexedConnection.getConnection(url);
+        assertNotNull(newConnection);
+        assertNotSame(connection, newConnection);
+    }
+}
@@ -0,0 +1,102 @@
+package net.powermatcher.remote.websockets.json.test;
+
+import static org.junit.Assert.assertEquals;
+
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBid;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.remote.websockets.data.ClusterInfoModel;
+import net.powermatcher.remote.websockets.data.PmMessage;
+import net.powermatcher.remote.websockets.json.PmJsonCodec;
+import net.powermatcher.remote.websockets.json.PmJsonSerializer;
+
+import org.junit.Test;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * JUnit tests for the {@link PmJsonCodec} class, which should produce the same JSON as the {@link PmJsonSerializer}.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class PmJsonCodecTest {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 10, 0, 9);
+
+    /**
+     * Gson escapes these characters by default.
+     */
+    private static final MarketBasis HTML_MB = new MarketBasis("<heat & 'gas'>", "a=b", 5, -1.5, 1e10);
+
+    private final PmJsonCodec codec = new PmJsonCodec();
+    private final PmJsonSerializer serializer = new PmJsonSerializer();
+
+    @Test
+    public void testArrayBidSameAsSerializer() {
+        BidUpdate bidUpdate = new BidUpdate(new ArrayBid(MB, new double[] { 9, 8, 7.5, 6, 5, 0.1, -1, -2, -3, -1e9 }),
+                                            300);
+        String json = codec.encodeBidUpdate(bidUpdate);
+
+        assertEquals(serializer.serializeBidUpdate(bidUpdate), json);
+        assertEquals(bidUpdate, codec.decode(json).getPayload());
+    }
+
+    @Test
+    public void testPointBidSameAsSerializer() {
+        BidUpdate bidUpdate = new BidUpdate(new PointBid.Builder(HTML_MB).add(-1, 10).add(0.5, 2).build(), 7);
+        String json = codec.encodeBidUpdate(bidUpdate);
+
+        assertEquals(serializer.serializeBidUpdate(bidUpdate), json);
+        assertEquals(bidUpdate.getBid().toArrayBid(),
+                     ((BidUpdate) codec.decode(json).getPayload()).getBid().toArrayBid());
+    }
+
+    @Test
+    public void testPriceUpdateSameAsSerializer() {
+        PriceUpdate priceUpdate = new PriceUpdate(new Price(HTML_MB, 0.25), 12);
+        String json = codec.encodePriceUpdate(priceUpdate);
+
+        assertEquals(serializer.serializePriceUpdate(priceUpdate), json);
+        PmMessage message = codec.decode(json);
+        assertEquals(PmMessage.PayloadType.PRICE_UPDATE, message.getPayloadType());
+        assertEquals(priceUpdate, message.getPayload());
+    }
+
+    @Test
+    public void testClusterInfoSameAsSerializer() {
+        String clusterId = "<cluster> & 'x'=\"y\" é ";
+        String json = codec.encodeClusterInfo(clusterId, HTML_MB);
+
+        assertEquals(serializer.serializeClusterInfo(clusterId, HTML_MB), json);
+        PmMessage message = codec.decode(json);
+        assertEquals(PmMessage.PayloadType.CLUSTERINFO, message.getPayloadType());
+        ClusterInfoModel clusterInfo = (ClusterInfoModel) message.getPayload();
+        assertEquals(clusterId, clusterInfo.getClusterId());
+        assertEquals(HTML_MB.getCommodity(), clusterInfo.getMarketBasis().getCommodity());
+    }
+
+    @Test
+    public void testDecodeIgnoresFieldOrderAndUnknownFields() {
+        String json = "{\"payload\":{\"bidNumber\":4,\"extra\":{\"a\":[1,2]},\"priceValue\":3.0,"
+                      + "\"marketBasis\":{\"maximumPrice\":9.0,\"minimumPrice\":0.0,\"priceSteps\":10,"
+                      + "\"currency\":\"EUR\",\"commodity\":\"electricity\"}},\"payloadType\":\"PRICE_UPDATE\"}";
+
+        assertEquals(new PriceUpdate(new Price(MB, 3), 4), codec.decode(json).getPayload());
+    }
+
+    @Test
+    public void testSerializerDecodesCodecOutput() {
+        PriceUpdate priceUpdate = new PriceUpdate(new Price(MB, 4.5), 1);
+        PmMessage message = serializer.deserialize(codec.encodePriceUpdate(priceUpdate));
+
+        assertEquals(PmMessage.PayloadType.PRICE_UPDATE, message.getPayloadType());
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void testMalformedMessage() {
+        codec.decode("{\"payloadType\":\"BID\",\"payload\":{\"demand\":[1,");
+    }
+}
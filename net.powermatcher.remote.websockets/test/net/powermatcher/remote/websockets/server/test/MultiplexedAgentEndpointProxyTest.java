@@ -0,0 +1,248 @@
+package net.powermatcher.remote.websockets.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.data.ArrayBid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.BaseAgentEndpoint;
+import net.powermatcher.mock.MockContext;
+import net.powermatcher.mock.MockMatcherAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.data.ClusterInfoModel;
+import net.powermatcher.remote.websockets.data.PmMessage;
+import net.powermatcher.remote.websockets.server.MultiplexedAgentEndpointProxy;
+import net.powermatcher.remote.websockets.test.MockBundleContext;
+import net.powermatcher.remote.websockets.test.MockWebSocketSession;
+import net.powermatcher.remote.websockets.test.RecordingChannelHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link MultiplexedAgentEndpointProxy} class. The websocket is replaced by a
+ * {@link MockWebSocketSession}, and the messages are encoded and decoded as the remote side would.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class MultiplexedAgentEndpointProxyTest {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 10, 0, 9);
+
+    private final ByteBufferPool pool = new ByteBufferPool();
+    private final MockBundleContext bundleContext = new MockBundleContext();
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    private final MockWebSocketSession session = new MockWebSocketSession(PmBinaryCodec.MULTIPLEXED_SUBPROTOCOL);
+    private final PmBinaryCodec remoteCodec = new PmBinaryCodec(pool, false, true);
+
+    private MultiplexedAgentEndpointProxy proxy;
+
+    @Before
+    public void setUp() {
+        proxy = new MultiplexedAgentEndpointProxy(bundleContext.getBundleContext(),
+                                                  "matcher",
+                                                  new PmBinaryCodec(pool, false, true),
+                                                  scheduler,
+                                                  50,
+                                                  1024);
+        proxy.onWebSocketConnect(session);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private void sendToProxy(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        remoteCodec.release(buffer);
+        proxy.onWebSocketBinary(bytes, 0, bytes.length);
+    }
+
+    private RecordingChannelHandler receive() {
+        return RecordingChannelHandler.receive(session, remoteCodec);
+    }
+
+    /**
+     * Opens a channel, and sets the context of its agent, as the runtime does when it is registered.
+     */
+    private BaseAgentEndpoint openChannel(int channel, String agentId) {
+        sendToProxy(remoteCodec.encodeOpen(channel, agentId));
+        List<Object> services = bundleContext.getServices();
+        BaseAgentEndpoint endpoint = (BaseAgentEndpoint) services.get(services.size() - 1);
+        endpoint.setContext(new MockContext(0));
+        return endpoint;
+    }
+
+    private void flushPriceUpdates() throws InterruptedException {
+        // The delayed batches still run after a shutdown
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testOpenRegistersAgentEndpoint() {
+        AgentEndpoint endpoint = openChannel(3, "device");
+
+        assertEquals(1, bundleContext.getServices().size());
+        assertEquals("remote-127.0.0.1-device", endpoint.getAgentId());
+        assertEquals("matcher", endpoint.getDesiredParentId());
+    }
+
+    @Test
+    public void testClusterInfoIsSentWhenMatcherConnects() {
+        AgentEndpoint endpoint = openChannel(3, "device");
+        new SimpleSession(endpoint, new MockMatcherAgent("matcher", "cluster", MB)).connect();
+
+        RecordingChannelHandler remote = receive();
+        assertEquals(1, remote.getMessages().size());
+        assertEquals(3, (int) remote.getMessageChannels().get(0));
+        PmMessage message = remote.getMessages().get(0);
+        assertEquals(PmMessage.PayloadType.CLUSTERINFO, message.getPayloadType());
+        assertEquals("cluster", ((ClusterInfoModel) message.getPayload()).getClusterId());
+    }
+
+    @Test
+    public void testBidIsSentToMatcher() {
+        AgentEndpoint endpoint = openChannel(3, "device");
+        MockMatcherAgent matcher = new MockMatcherAgent("matcher", "cluster", MB);
+        new SimpleSession(endpoint, matcher).connect();
+        BidUpdate bidUpdate = new BidUpdate(new ArrayBid(MB, new double[] { 5, 5, 4, 4, 3, 3, 2, 2, 1, 0 }), 1);
+
+        sendToProxy(remoteCodec.encodeBidUpdate(3, bidUpdate));
+        assertEquals(bidUpdate, matcher.getLastReceivedBid());
+    }
+
+    @Test
+    public void testPriceUpdatesAreBatched() throws InterruptedException {
+        MockMatcherAgent[] matchers = new MockMatcherAgent[3];
+        for (int ix = 0; ix < matchers.length; ix++) {
+            matchers[ix] = new MockMatcherAgent("matcher", "cluster", MB);
+            new SimpleSession(openChannel(ix + 1, "device" + ix), matchers[ix]).connect();
+        }
+        receive();
+
+        for (int ix = 0; ix < matchers.length; ix++) {
+            matchers[ix].publishPrice(new PriceUpdate(new Price(MB, ix), 1));
+        }
+        // The newer price of the first channel replaces the one that is waiting
+        matchers[0].publishPrice(new PriceUpdate(new Price(MB, 7), 2));
+        flushPriceUpdates();
+
+        assertEquals(1, session.getSentBytes().size());
+        RecordingChannelHandler remote = receive();
+        assertEquals(3, remote.getMessages().size());
+        for (int ix = 0; ix < matchers.length; ix++) {
+            int channel = remote.getMessageChannels().get(ix);
+            PriceUpdate priceUpdate = (PriceUpdate) remote.getMessages().get(ix).getPayload();
+            if (channel == 1) {
+                assertEquals(new PriceUpdate(new Price(MB, 7), 2), priceUpdate);
+            } else {
+                assertEquals(new PriceUpdate(new Price(MB, channel - 1), 1), priceUpdate);
+            }
+        }
+    }
+
+    @Test
+    public void testCloseDeactivatesChannel() {
+        AgentEndpoint endpoint = openChannel(3, "device");
+        MockMatcherAgent matcher = new MockMatcherAgent("matcher", "cluster", MB);
+        new SimpleSession(endpoint, matcher).connect();
+        receive();
+
+        sendToProxy(remoteCodec.encodeClose(3));
+        assertTrue(bundleContext.getServices().isEmpty());
+        assertFalse(endpoint.getStatus().isConnected());
+        // The remote side closed the channel itself, so it is not closed again
+        assertTrue(receive().getClosed().isEmpty());
+    }
+
+    @Test
+    public void testMatcherDisconnectClosesChannel() {
+        AgentEndpoint endpoint = openChannel(3, "device");
+        SimpleSession matcherSession = new SimpleSession(endpoint, new MockMatcherAgent("matcher", "cluster", MB));
+        matcherSession.connect();
+        receive();
+
+        matcherSession.disconnect();
+        assertTrue(bundleContext.getServices().isEmpty());
+        RecordingChannelHandler remote = receive();
+        assertEquals(1, remote.getClosed().size());
+        assertEquals(3, (int) remote.getClosed().get(0));
+
+        // The remote side opens the channel again when it reconnects
+        AgentEndpoint reopened = openChannel(3, "device");
+        new SimpleSession(reopened, new MockMatcherAgent("matcher", "cluster", MB)).connect();
+        assertEquals(1, bundleContext.getServices().size());
+        assertEquals(PmMessage.PayloadType.CLUSTERINFO, receive().getMessages().get(0).getPayloadType());
+    }
+
+    @Test
+    public void testCloseDropsPendingPriceUpdate() throws InterruptedException {
+        MockMatcherAgent[] matchers = new MockMatcherAgent[2];
+        for (int ix = 0; ix < matchers.length; ix++) {
+            matchers[ix] = new MockMatcherAgent("matcher", "cluster", MB);
+            new SimpleSession(openChannel(ix + 1, "device" + ix), matchers[ix]).connect();
+        }
+        receive();
+        for (int ix = 0; ix < matchers.length; ix++) {
+            matchers[ix].publishPrice(new PriceUpdate(new Price(MB, ix), 1));
+        }
+
+        sendToProxy(remoteCodec.encodeClose(1));
+        // The remote side opens the channel again, and should not get the price of the bid of the closed channel
+        openChannel(1, "device0");
+        flushPriceUpdates();
+
+        RecordingChannelHandler remote = receive();
+        assertEquals(1, remote.getMessages().size());
+        assertEquals(2, (int) remote.getMessageChannels().get(0));
+    }
+
+    @Test
+    public void testMatcherDisconnectDropsPendingPriceUpdate() throws InterruptedException {
+        AgentEndpoint endpoint = openChannel(3, "device");
+        MockMatcherAgent matcher = new MockMatcherAgent("matcher", "cluster", MB);
+        SimpleSession matcherSession = new SimpleSession(endpoint, matcher);
+        matcherSession.connect();
+        receive();
+
+        matcher.publishPrice(new PriceUpdate(new Price(MB, 3), 1));
+        matcherSession.disconnect();
+        flushPriceUpdates();
+
+        // Only the close is sent, no price after it
+        RecordingChannelHandler remote = receive();
+        assertEquals(Arrays.asList(3), remote.getClosed());
+        assertTrue(remote.getMessages().isEmpty());
+    }
+
+    @Test
+    public void testWebSocketCloseDeactivatesAllChannels() {
+        AgentEndpoint first = openChannel(1, "device1");
+        openChannel(2, "device2");
+        MockMatcherAgent matcher = new MockMatcherAgent("matcher", "cluster", MB);
+        new SimpleSession(first, matcher).connect();
+
+        proxy.onWebSocketClose(1006, "Connection lost");
+        assertTrue(bundleContext.getServices().isEmpty());
+        assertFalse(first.getStatus().isConnected());
+        assertNull(matcher.getSession());
+    }
+}
@@ -0,0 +1,73 @@
+package net.powermatcher.remote.websockets.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Keeps the services that are registered through its {@link BundleContext}, until their registration is
+ * unregistered. The other methods of the context do nothing.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class MockBundleContext {
+
+    private final List<Object> services = new ArrayList<Object>();
+
+    private final BundleContext bundleContext;
+
+    public MockBundleContext() {
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("registerService".equals(method.getName())) {
+                    return register(args[1]);
+                }
+                return null;
+            }
+        };
+        bundleContext = (BundleContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                               new Class<?>[] { BundleContext.class },
+                                                               handler);
+    }
+
+    /**
+     * @return the context that registers the services in this mock
+     */
+    public BundleContext getBundleContext() {
+        return bundleContext;
+    }
+
+    /**
+     * @return a copy of the services that are registered
+     */
+    public synchronized List<Object> getServices() {
+        return new ArrayList<Object>(services);
+    }
+
+    private synchronized ServiceRegistration<?> register(final Object service) {
+        services.add(service);
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("unregister".equals(method.getName())) {
+                    unregister(service);
+                }
+                return null;
+            }
+        };
+        return (ServiceRegistration<?>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                              new Class<?>[] { ServiceRegistration.class },
+                                                              handler);
+    }
+
+    private synchronized void unregister(Object service) {
+        services.remove(service);
+    }
+}
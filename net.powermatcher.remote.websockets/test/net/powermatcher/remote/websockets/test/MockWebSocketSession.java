@@ -0,0 +1,267 @@
+package net.powermatcher.remote.websockets.test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.CloseStatus;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.UpgradeResponse;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * A websocket {@link Session} that keeps the messages that are sent to it. The asynchronous writes succeed at once,
+ * unless they have been set to wait for {@link #completeWrites()}.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class MockWebSocketSession
+    implements Session, RemoteEndpoint {
+
+    private final UpgradeResponse upgradeResponse = new UpgradeResponse();
+    private final InetSocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 12345);
+
+    private final List<byte[]> sentBytes = new ArrayList<byte[]>();
+    private final List<String> sentStrings = new ArrayList<String>();
+    private final List<WriteCallback> pendingWrites = new ArrayList<WriteCallback>();
+
+    private boolean open = true;
+    private boolean completeWritesLater;
+    private int closeCode;
+    private String closeReason;
+
+    /**
+     * @param subProtocol
+     *            the subprotocol that has been agreed on, or <code>null</code> for none
+     */
+    public MockWebSocketSession(String subProtocol) {
+        upgradeResponse.setAcceptedSubProtocol(subProtocol);
+    }
+
+    /**
+     * @param completeWritesLater
+     *            when true, the writes wait until {@link #completeWrites()} is called
+     */
+    public synchronized void setCompleteWritesLater(boolean completeWritesLater) {
+        this.completeWritesLater = completeWritesLater;
+    }
+
+    /**
+     * Lets the writes that are waiting succeed.
+     *
+     * @return the number of writes that have been completed
+     */
+    public int completeWrites() {
+        List<WriteCallback> callbacks;
+        synchronized (this) {
+            callbacks = new ArrayList<WriteCallback>(pendingWrites);
+            pendingWrites.clear();
+        }
+        for (WriteCallback callback : callbacks) {
+            callback.writeSuccess();
+        }
+        return callbacks.size();
+    }
+
+    /**
+     * @return a copy of the binary messages that have been sent
+     */
+    public synchronized List<byte[]> getSentBytes() {
+        return new ArrayList<byte[]>(sentBytes);
+    }
+
+    /**
+     * Forgets the binary messages that have been sent.
+     */
+    public synchronized void clearSentBytes() {
+        sentBytes.clear();
+    }
+
+    /**
+     * @return a copy of the text messages that have been sent
+     */
+    public synchronized List<String> getSentStrings() {
+        return new ArrayList<String>(sentStrings);
+    }
+
+    /**
+     * @return the status code with which the session has been closed, or 0 when it is open
+     */
+    public synchronized int getCloseCode() {
+        return closeCode;
+    }
+
+    /**
+     * @return the reason with which the session has been closed, or <code>null</code> when it is open
+     */
+    public synchronized String getCloseReason() {
+        return closeReason;
+    }
+
+    private void write(WriteCallback callback) {
+        boolean completeNow;
+        synchronized (this) {
+            completeNow = !completeWritesLater;
+            if (!completeNow) {
+                pendingWrites.add(callback);
+            }
+        }
+        if (completeNow) {
+            callback.writeSuccess();
+        }
+    }
+
+    @Override
+    public void sendBytes(ByteBuffer data, WriteCallback callback) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        synchronized (this) {
+            sentBytes.add(bytes);
+        }
+        write(callback);
+    }
+
+    @Override
+    public void sendString(String text, WriteCallback callback) {
+        synchronized (this) {
+            sentStrings.add(text);
+        }
+        write(callback);
+    }
+
+    @Override
+    public void sendBytes(ByteBuffer data) {
+        throw new UnsupportedOperationException("Only the asynchronous writes are supported");
+    }
+
+    @Override
+    public Future<Void> sendBytesByFuture(ByteBuffer data) {
+        throw new UnsupportedOperationException("Only the asynchronous writes are supported");
+    }
+
+    @Override
+    public void sendPartialBytes(ByteBuffer fragment, boolean isLast) {
+        throw new UnsupportedOperationException("Only the asynchronous writes are supported");
+    }
+
+    @Override
+    public void sendPartialString(String fragment, boolean isLast) {
+        throw new UnsupportedOperationException("Only the asynchronous writes are supported");
+    }
+
+    @Override
+    public void sendPing(ByteBuffer applicationData) {
+    }
+
+    @Override
+    public void sendPong(ByteBuffer applicationData) {
+    }
+
+    @Override
+    public void sendString(String text) {
+        throw new UnsupportedOperationException("Only the asynchronous writes are supported");
+    }
+
+    @Override
+    public Future<Void> sendStringByFuture(String text) {
+        throw new UnsupportedOperationException("Only the asynchronous writes are supported");
+    }
+
+    @Override
+    public BatchMode getBatchMode() {
+        return BatchMode.OFF;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        close(1000, null);
+    }
+
+    @Override
+    public void close(CloseStatus closeStatus) {
+        close(closeStatus.getCode(), closeStatus.getPhrase());
+    }
+
+    @Override
+    public synchronized void close(int statusCode, String reason) {
+        open = false;
+        closeCode = statusCode;
+        closeReason = reason;
+    }
+
+    @Override
+    public void disconnect() {
+        close(1006, "Disconnected");
+    }
+
+    @Override
+    public long getIdleTimeout() {
+        return 0;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public WebSocketPolicy getPolicy() {
+        return null;
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return "13";
+    }
+
+    @Override
+    public RemoteEndpoint getRemote() {
+        return this;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public UpgradeRequest getUpgradeRequest() {
+        return null;
+    }
+
+    @Override
+    public UpgradeResponse getUpgradeResponse() {
+        return upgradeResponse;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isSecure() {
+        return false;
+    }
+
+    @Override
+    public void setIdleTimeout(long ms) {
+    }
+
+    @Override
+    public SuspendToken suspend() {
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+package net.powermatcher.remote.websockets.test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.data.PmMessage;
+
+/**
+ * Keeps what is decoded from the messages of a multiplexed connection, in the order in which it is decoded.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class RecordingChannelHandler
+    implements PmBinaryCodec.ChannelHandler {
+
+    private final Map<String, Integer> opened = new LinkedHashMap<String, Integer>();
+    private final List<Integer> closed = new ArrayList<Integer>();
+    private final List<Integer> messageChannels = new ArrayList<Integer>();
+    private final List<PmMessage> messages = new ArrayList<PmMessage>();
+
+    /**
+     * Decodes the binary messages that have been sent on a session, and forgets them.
+     *
+     * @param session
+     *            the session on which the messages have been sent
+     * @param codec
+     *            the codec of the receiving side
+     * @return the handler that has received the decoded messages
+     */
+    public static RecordingChannelHandler receive(MockWebSocketSession session, PmBinaryCodec codec) {
+        RecordingChannelHandler handler = new RecordingChannelHandler();
+        for (byte[] bytes : session.getSentBytes()) {
+            codec.decode(bytes, 0, bytes.length, handler);
+        }
+        session.clearSentBytes();
+        return handler;
+    }
+
+    @Override
+    public void channelOpened(int channel, String agentId) {
+        opened.put(agentId, channel);
+    }
+
+    @Override
+    public void channelClosed(int channel) {
+        closed.add(channel);
+    }
+
+    @Override
+    public void messageReceived(int channel, PmMessage message) {
+        messageChannels.add(channel);
+        messages.add(message);
+    }
+
+    /**
+     * @return the channels that have been opened, by the id of their agent
+     */
+    public Map<String, Integer> getOpened() {
+        return opened;
+    }
+
+    /**
+     * @return the channels that have been closed
+     */
+    public List<Integer> getClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the channel of each received message
+     */
+    public List<Integer> getMessageChannels() {
+        return messageChannels;
+    }
+
+    /**
+     * @return the received messages
+     */
+    public List<PmMessage> getMessages() {
+        return messages;
+    }
+}
@@ -0,0 +1,197 @@
+package net.powermatcher.remote.websockets.transport.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.powermatcher.remote.websockets.binary.ByteBufferPool;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+import net.powermatcher.remote.websockets.test.MockWebSocketSession;
+import net.powermatcher.remote.websockets.transport.OutboundQueue;
+
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link OutboundQueue} class. The websocket is replaced by a {@link MockWebSocketSession}, which
+ * can hold on to the writes to act as a slow remote side.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class OutboundQueueTest {
+    private final MockWebSocketSession session = new MockWebSocketSession(null);
+
+    /**
+     * The texts of the messages in the order in which they have been encoded.
+     */
+    private final List<String> encoded = new ArrayList<String>();
+
+    private OutboundQueue.Message message(Object key, final String text) {
+        return new OutboundQueue.TextMessage(key) {
+            @Override
+            protected String encode() {
+                encoded.add(text);
+                return text;
+            }
+        };
+    }
+
+    /**
+     * Completes the writes until the queue is empty, as a slow remote side eventually does.
+     */
+    private void completeAllWrites() {
+        while (session.completeWrites() > 0) {
+            // Each completed write sends the next message, which waits again
+        }
+    }
+
+    @Test
+    public void testMessagesAreSentInOrder() {
+        OutboundQueue queue = new OutboundQueue(session, 10);
+        assertTrue(queue.offer(message(null, "a")));
+        assertTrue(queue.offer(message("bid", "b")));
+        assertTrue(queue.offer(message(null, "c")));
+
+        assertEquals(Arrays.asList("a", "b", "c"), session.getSentStrings());
+        assertEquals(0, queue.getDepth());
+        assertEquals(3, queue.getSentCount());
+        assertEquals(0, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void testKeyedMessageReplacesWaitingMessage() {
+        session.setCompleteWritesLater(true);
+        OutboundQueue queue = new OutboundQueue(session, 10);
+        assertTrue(queue.offer(message(null, "first")));
+        assertTrue(queue.offer(message("bid", "bid1")));
+        assertTrue(queue.offer(message(null, "other")));
+        assertTrue(queue.offer(message("bid", "bid2")));
+        assertTrue(queue.offer(message("price", "price1")));
+        assertTrue(queue.offer(message("bid", "bid3")));
+        assertEquals(3, queue.getDepth());
+        assertEquals(2, queue.getCoalescedCount());
+
+        completeAllWrites();
+        // The latest bid takes the place of the first one, and the replaced bids are never encoded
+        assertEquals(Arrays.asList("first", "bid3", "other", "price1"), session.getSentStrings());
+        assertEquals(session.getSentStrings(), encoded);
+        assertEquals(4, queue.getSentCount());
+        assertEquals(3, queue.getMaxDepth());
+    }
+
+    @Test
+    public void testMessageThatIsBeingSentIsNotReplaced() {
+        session.setCompleteWritesLater(true);
+        OutboundQueue queue = new OutboundQueue(session, 10);
+        assertTrue(queue.offer(message("bid", "bid1")));
+        assertTrue(queue.offer(message("bid", "bid2")));
+
+        completeAllWrites();
+        assertEquals(Arrays.asList("bid1", "bid2"), session.getSentStrings());
+        assertEquals(0, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void testChannelKeys() {
+        assertEquals(OutboundQueue.key("bid", 3), OutboundQueue.key("bid", 3));
+        assertFalse(OutboundQueue.key("bid", 3).equals(OutboundQueue.key("bid", 4)));
+        assertFalse(OutboundQueue.key("bid", 3).equals(OutboundQueue.key("price", 3)));
+    }
+
+    @Test
+    public void testOverflowClosesSession() {
+        session.setCompleteWritesLater(true);
+        OutboundQueue queue = new OutboundQueue(session, 2);
+        assertTrue(queue.offer(message(null, "sending")));
+        assertTrue(queue.offer(message(null, "waiting1")));
+        assertTrue(queue.offer(message(null, "waiting2")));
+        // Messages with a key do not count towards the capacity
+        for (int ix = 0; ix < 5; ix++) {
+            assertTrue(queue.offer(message("bid" + ix, "bid" + ix)));
+        }
+        assertTrue(session.isOpen());
+
+        assertFalse(queue.offer(message(null, "overflow")));
+        assertFalse(session.isOpen());
+        assertEquals(StatusCode.POLICY_VIOLATION, session.getCloseCode());
+        assertEquals(0, queue.getDepth());
+
+        // The waiting messages have been dropped, and later ones are refused
+        assertFalse(queue.offer(message(null, "later")));
+        completeAllWrites();
+        assertEquals(Arrays.asList("sending"), session.getSentStrings());
+    }
+
+    @Test
+    public void testCloseDropsWaitingMessages() {
+        session.setCompleteWritesLater(true);
+        OutboundQueue queue = new OutboundQueue(session, 10);
+        assertTrue(queue.offer(message(null, "sending")));
+        assertTrue(queue.offer(message(null, "waiting")));
+
+        queue.close();
+        assertEquals(0, queue.getDepth());
+        assertFalse(queue.offer(message(null, "later")));
+        completeAllWrites();
+        assertEquals(Arrays.asList("sending"), session.getSentStrings());
+        assertEquals(1, queue.getSentCount());
+        // Closing the queue leaves the session to its owner
+        assertTrue(session.isOpen());
+    }
+
+    @Test
+    public void testFailedMessageIsSkipped() {
+        OutboundQueue queue = new OutboundQueue(session, 10);
+        assertTrue(queue.offer(new OutboundQueue.TextMessage(null) {
+            @Override
+            protected String encode() {
+                throw new IllegalStateException("Unable to encode");
+            }
+        }));
+        assertTrue(queue.offer(message(null, "next")));
+
+        assertEquals(Arrays.asList("next"), session.getSentStrings());
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(1, queue.getSentCount());
+    }
+
+    @Test
+    public void testBinaryMessageWithoutBufferIsSkipped() {
+        final PmBinaryCodec codec = new PmBinaryCodec(new ByteBufferPool(), false);
+        OutboundQueue queue = new OutboundQueue(session, 10);
+        assertTrue(queue.offer(new OutboundQueue.BinaryMessage(null, codec) {
+            @Override
+            protected ByteBuffer encode() {
+                return null;
+            }
+        }));
+        assertTrue(queue.offer(new OutboundQueue.BinaryMessage(null, codec) {
+            @Override
+            protected ByteBuffer encode() {
+                return codec.encodeClose(1);
+            }
+        }));
+
+        assertEquals(1, session.getSentBytes().size());
+        assertEquals(0, queue.getFailedCount());
+    }
+
+    @Test
+    public void testLatencyIsMeasuredUntilWritten() throws InterruptedException {
+        session.setCompleteWritesLater(true);
+        OutboundQueue queue = new OutboundQueue(session, 10);
+        assertTrue(queue.offer(message(null, "slow")));
+        Thread.sleep(20);
+        completeAllWrites();
+
+        assertEquals(1, queue.getSentCount());
+        assertTrue(queue.getMaxLatencyMillis() >= 20);
+        assertEquals(queue.getMaxLatencyMillis(), queue.getAverageLatencyMillis(), 1e-9);
+    }
+}
@@ -0,0 +1,150 @@
+package net.powermatcher.runtime.sessions.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.MockMatcherAgent;
+import net.powermatcher.runtime.SessionManager;
+import net.powermatcher.test.helpers.PropertiesBuilder;
+
+/**
+ * Simple benchmark that compares the throughput of bid and price updates through the sessions of the
+ * {@link SessionManager}, with the updates delivered directly (the default) and through the mailboxes of the agents.
+ * Each update does a small amount of work in the receiving agent. This is not a unit test; run it using the main
+ * method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class SessionDeliveryBenchmark {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 10, 0, 1);
+    private static final int AGENTS = 100;
+    private static final int SENDERS = 4;
+    private static final int UPDATES = 200000;
+    private static final int WORK = 200;
+
+    private static volatile double sink;
+
+    /**
+     * Simulates the work that an agent does to handle an update.
+     */
+    static void work() {
+        double value = 0;
+        for (int ix = 0; ix < WORK; ix++) {
+            value += Math.sqrt(ix);
+        }
+        sink = value;
+    }
+
+    private static class CountingMatcher
+        extends MockMatcherAgent {
+        final AtomicLong received = new AtomicLong();
+        final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+
+        CountingMatcher() {
+            super("matcher", "cluster", MB);
+        }
+
+        @Override
+        public void connectToAgent(Session session) {
+            super.connectToAgent(session);
+            sessions.add(session);
+        }
+
+        @Override
+        public void handleBidUpdate(Session session, BidUpdate bidUpdate) {
+            work();
+            received.incrementAndGet();
+        }
+    }
+
+    private static class CountingAgent
+        extends MockDeviceAgent {
+        static final AtomicLong RECEIVED = new AtomicLong();
+
+        CountingAgent(String agentId) {
+            super(agentId, "matcher");
+        }
+
+        @Override
+        public void handlePriceUpdate(PriceUpdate priceUpdate) {
+            work();
+            RECEIVED.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("mode;bids/s;prices/s");
+        for (int run = 0; run < 3; run++) {
+            benchmark(false);
+            benchmark(true);
+        }
+        // The threads of the PowerMatcherContext are not daemon threads
+        System.exit(0);
+    }
+
+    private static void benchmark(boolean mailboxes) throws InterruptedException {
+        SessionManager sessionManager = new SessionManager();
+        sessionManager.activate(new PropertiesBuilder().add("agentMailboxes", mailboxes).build());
+        final CountingMatcher matcher = new CountingMatcher();
+        sessionManager.addMatcherEndpoint(matcher);
+        final CountingAgent[] agents = new CountingAgent[AGENTS];
+        for (int ix = 0; ix < AGENTS; ix++) {
+            agents[ix] = new CountingAgent("agent" + ix);
+            sessionManager.addAgentEndpoint(agents[ix]);
+        }
+
+        // Several threads send bids, each for its own part of the agents
+        final BidUpdate bidUpdate = new BidUpdate(Bid.flatDemand(MB, 1), 1);
+        long start = System.nanoTime();
+        Thread[] senders = new Thread[SENDERS];
+        for (int sender = 0; sender < SENDERS; sender++) {
+            final int first = sender;
+            senders[sender] = new Thread() {
+                @Override
+                public void run() {
+                    for (int ix = first; ix < UPDATES; ix += SENDERS) {
+                        agents[ix % AGENTS].sendBid(bidUpdate);
+                    }
+                }
+            };
+            senders[sender].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        while (matcher.received.get() < UPDATES) {
+            Thread.yield();
+        }
+        double bidsPerSecond = UPDATES / ((System.nanoTime() - start) / 1e9);
+
+        // The matcher sends prices to all its agents
+        CountingAgent.RECEIVED.set(0);
+        PriceUpdate priceUpdate = new PriceUpdate(new Price(MB, 0.5), 1);
+        start = System.nanoTime();
+        for (int round = 0; round < UPDATES / AGENTS; round++) {
+            for (Session session : matcher.sessions) {
+                session.updatePrice(priceUpdate);
+            }
+        }
+        while (CountingAgent.RECEIVED.get() < UPDATES) {
+            Thread.yield();
+        }
+        double pricesPerSecond = UPDATES / ((System.nanoTime() - start) / 1e9);
+
+        System.out.printf("%s;%.0f;%.0f%n", mailboxes ? "mailbox" : "direct", bidsPerSecond, pricesPerSecond);
+
+        for (CountingAgent agent : agents) {
+            sessionManager.removeAgentEndpoint(agent);
+        }
+        sessionManager.removeMatcherEndpoint(matcher);
+    }
+}
@@ -0,0 +1,109 @@
+package net.powermatcher.runtime.sessions.test;
+
+import java.util.Arrays;
+
+import net.powermatcher.api.MatcherEndpoint;
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.mock.MockContext;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.MockMatcherAgent;
+import net.powermatcher.runtime.SessionManager;
+
+/**
+ * Simple benchmark that measures how long it takes the {@link SessionManager} to connect a large cluster, with an
+ * auctioneer, a layer of concentrators and the device agents below them. The device agents are added first, then the
+ * concentrators and the auctioneer last, so every agent is waiting for its parent when that parent gets connected.
+ * The agents are added one by one (as OSGi does) and using the bulk methods of the {@link SessionManager}. This is not
+ * a unit test; run it using the main method, optionally with the number of device agents as argument.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class SessionStartupBenchmark {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 10, 0, 1);
+    private static final int CONCENTRATORS = 100;
+
+    /**
+     * An agent that is a matcher for its own children.
+     */
+    private static class BenchmarkConcentrator
+        extends MockDeviceAgent
+        implements MatcherEndpoint {
+        BenchmarkConcentrator(String agentId) {
+            super(agentId, "auctioneer");
+        }
+
+        @Override
+        public void connectToAgent(Session session) {
+            session.setMarketBasis(MB);
+        }
+
+        @Override
+        public void agentEndpointDisconnected(Session session) {
+        }
+
+        @Override
+        public void handleBidUpdate(Session session, BidUpdate bidUpdate) {
+        }
+    }
+
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        System.out.println("mode;devices;add devices (ms);add concentrators (ms);add auctioneer (ms);connected");
+        for (int run = 0; run < 3; run++) {
+            benchmark(devices, false);
+            benchmark(devices, true);
+        }
+    }
+
+    private static void benchmark(int devices, boolean bulk) {
+        SessionManager sessionManager = new SessionManager(new MockContext(0));
+        MockDeviceAgent[] deviceAgents = new MockDeviceAgent[devices];
+        for (int ix = 0; ix < devices; ix++) {
+            deviceAgents[ix] = new MockDeviceAgent("device" + ix, "concentrator" + (ix % CONCENTRATORS));
+        }
+        BenchmarkConcentrator[] concentrators = new BenchmarkConcentrator[CONCENTRATORS];
+        for (int ix = 0; ix < CONCENTRATORS; ix++) {
+            concentrators[ix] = new BenchmarkConcentrator("concentrator" + ix);
+        }
+        MockMatcherAgent auctioneer = new MockMatcherAgent("auctioneer", "cluster", MB);
+
+        long start = System.nanoTime();
+        if (bulk) {
+            sessionManager.addAgentEndpoints(Arrays.asList(deviceAgents));
+        } else {
+            for (MockDeviceAgent device : deviceAgents) {
+                sessionManager.addAgentEndpoint(device);
+            }
+        }
+        long devicesAdded = System.nanoTime();
+        if (bulk) {
+            sessionManager.addMatcherEndpoints(Arrays.asList(concentrators));
+            sessionManager.addAgentEndpoints(Arrays.asList(concentrators));
+        } else {
+            for (BenchmarkConcentrator concentrator : concentrators) {
+                sessionManager.addMatcherEndpoint(concentrator);
+                sessionManager.addAgentEndpoint(concentrator);
+            }
+        }
+        long concentratorsAdded = System.nanoTime();
+        sessionManager.addMatcherEndpoint(auctioneer);
+        long auctioneerAdded = System.nanoTime();
+
+        int connected = 0;
+        for (MockDeviceAgent device : deviceAgents) {
+            if (device.getSession() != null) {
+                connected++;
+            }
+        }
+        System.out.printf("%s;%d;%.0f;%.0f;%.0f;%d%n",
+                          bulk ? "bulk" : "single",
+                          devices,
+                          (devicesAdded - start) / 1e6,
+                          (concentratorsAdded - devicesAdded) / 1e6,
+                          (auctioneerAdded - concentratorsAdded) / 1e6,
+                          connected);
+    }
+}
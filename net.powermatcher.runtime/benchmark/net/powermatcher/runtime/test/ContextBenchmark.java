@@ -0,0 +1,166 @@
+package net.powermatcher.runtime.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import net.powermatcher.runtime.PowerMatcherContext;
+import net.powermatcher.runtime.TimingWheelContext;
+import net.powermatcher.runtime.VirtualThreadContext;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+
+/**
+ * Simple benchmark that compares how well the {@link PowerMatcherContext}, the {@link VirtualThreadContext} and the
+ * {@link TimingWheelContext} keep up with a large number of periodic agents. Each agent runs a task at a fixed rate,
+ * which does a small amount of work. Some of the agents block for a while during each run, as if they wait for a
+ * device or the network. It also measures how long it takes to schedule and cancel a large number of tasks. This is
+ * not a unit test; run it using the main method.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class ContextBenchmark {
+    private static final int AGENTS = 50000;
+    private static final long PERIOD_MILLIS = 1000;
+    private static final int BLOCKING_EVERY = 100;
+    private static final long BLOCKING_MILLIS = 20;
+    private static final long DURATION_MILLIS = 10000;
+    private static final int WORK = 50;
+    private static final int SCHEDULED_TASKS = 100000;
+
+    private static volatile double sink;
+
+    private static final AtomicLong RUNS = new AtomicLong();
+    private static final AtomicLong TOTAL_LATENESS = new AtomicLong();
+    private static final AtomicLong MAX_LATENESS = new AtomicLong();
+
+    /**
+     * The periodic task of an agent, which keeps track of how late each run starts.
+     */
+    private static class PeriodicAgent
+        implements Runnable {
+        private final boolean blocking;
+        private long expectedNanos;
+
+        PeriodicAgent(boolean blocking, long firstNanos) {
+            this.blocking = blocking;
+            expectedNanos = firstNanos;
+        }
+
+        @Override
+        public void run() {
+            long lateness = Math.max(0, System.nanoTime() - expectedNanos);
+            expectedNanos += TimeUnit.MILLISECONDS.toNanos(PERIOD_MILLIS);
+            RUNS.incrementAndGet();
+            TOTAL_LATENESS.addAndGet(lateness);
+            long max = MAX_LATENESS.get();
+            while (lateness > max && !MAX_LATENESS.compareAndSet(max, lateness)) {
+                max = MAX_LATENESS.get();
+            }
+
+            double value = 0;
+            for (int ix = 0; ix < WORK; ix++) {
+                value += Math.sqrt(ix);
+            }
+            sink = value;
+            if (blocking) {
+                try {
+                    Thread.sleep(BLOCKING_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("context;blocking agents;runs;expected runs;average lateness (ms);max lateness (ms);"
+                           + "threads");
+        for (boolean blocking : new boolean[] { false, true }) {
+            benchmark("pool", new PowerMatcherContext(), blocking);
+            VirtualThreadContext virtualThreadContext = new VirtualThreadContext();
+            benchmark(virtualThreadContext.isUsingVirtualThreads() ? "virtual" : "elastic",
+                      virtualThreadContext,
+                      blocking);
+            benchmark("wheel", new TimingWheelContext(), blocking);
+        }
+
+        System.out.println();
+        System.out.println("context;schedule (ns/task);cancel (ns/task)");
+        for (int run = 0; run < 3; run++) {
+            benchmarkScheduling("pool", new PowerMatcherContext());
+            benchmarkScheduling("virtual", new VirtualThreadContext());
+            benchmarkScheduling("wheel", new TimingWheelContext());
+        }
+    }
+
+    private static void benchmarkScheduling(String name, FlexiblePowerContext context) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>(SCHEDULED_TASKS);
+        long start = System.nanoTime();
+        for (int ix = 0; ix < SCHEDULED_TASKS; ix++) {
+            futures.add(context.scheduleAtFixedRate(task,
+                                                    Measure.valueOf(60000 + ix, SI.MILLI(SI.SECOND)),
+                                                    Measure.valueOf(PERIOD_MILLIS, SI.MILLI(SI.SECOND))));
+        }
+        long scheduled = System.nanoTime();
+        for (ScheduledFuture<?> future : futures) {
+            future.cancel(false);
+        }
+        long cancelled = System.nanoTime();
+        System.out.printf("%s;%d;%d%n",
+                          name,
+                          (scheduled - start) / SCHEDULED_TASKS,
+                          (cancelled - scheduled) / SCHEDULED_TASKS);
+        ((ExecutorService) context).shutdownNow();
+    }
+
+    private static void benchmark(String name, FlexiblePowerContext context, boolean blocking)
+        throws InterruptedException {
+        RUNS.set(0);
+        TOTAL_LATENESS.set(0);
+        MAX_LATENESS.set(0);
+
+        // The agents start spread over the first period
+        long start = System.nanoTime();
+        List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>(AGENTS);
+        for (int ix = 0; ix < AGENTS; ix++) {
+            long delayMillis = ix * PERIOD_MILLIS / AGENTS;
+            PeriodicAgent agent = new PeriodicAgent(blocking && ix % BLOCKING_EVERY == 0,
+                                                    start + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+            futures.add(context.scheduleAtFixedRate(agent,
+                                                    Measure.valueOf(delayMillis, SI.MILLI(SI.SECOND)),
+                                                    Measure.valueOf(PERIOD_MILLIS, SI.MILLI(SI.SECOND))));
+        }
+        Thread.sleep(DURATION_MILLIS);
+        int threads = Thread.activeCount();
+        for (ScheduledFuture<?> future : futures) {
+            future.cancel(false);
+        }
+        long runs = RUNS.get();
+
+        System.out.printf("%s;%s;%d;%d;%.1f;%.1f;%d%n",
+                          name,
+                          blocking,
+                          runs,
+                          AGENTS * (DURATION_MILLIS / PERIOD_MILLIS),
+                          TOTAL_LATENESS.get() / 1e6 / Math.max(1, runs),
+                          MAX_LATENESS.get() / 1e6,
+                          threads);
+        if (context instanceof TimingWheelContext) {
+            System.out.println(((TimingWheelContext) context).getStatistics());
+        }
+        ((ExecutorService) context).shutdownNow();
+    }
+}
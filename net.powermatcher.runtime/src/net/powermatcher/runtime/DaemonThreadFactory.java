@@ -0,0 +1,24 @@
+package net.powermatcher.runtime;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a name that consists of a prefix and a sequence number.
+ */
+class DaemonThreadFactory
+    implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
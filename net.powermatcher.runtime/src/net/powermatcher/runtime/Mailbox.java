@@ -0,0 +1,82 @@
+package net.powermatcher.runtime;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Mailbox} runs the messages for a single agent one after the other, in the order in which they have been
+ * given to it, on the threads of a {@link FlexiblePowerContext}. At most 1 thread at a time is running messages of the
+ * same {@link Mailbox}, so the agent does not need to lock to handle them and a message is never handled while another
+ * one is still in progress.
+ *
+ * To be fair to the other mailboxes, a thread runs at most {@link #BATCH_SIZE} messages before the rest of the
+ * messages are given to the {@link FlexiblePowerContext} again.
+ *
+ * This class is thread-safe.
+ */
+class Mailbox
+    implements Executor, Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Mailbox.class);
+
+    static final int BATCH_SIZE = 64;
+
+    private final String agentId;
+    private final FlexiblePowerContext context;
+    private final Queue<Runnable> messages = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    Mailbox(String agentId, FlexiblePowerContext context) {
+        this.agentId = agentId;
+        this.context = context;
+    }
+
+    /**
+     * Adds a message to this {@link Mailbox}. This does not wait for the message to be handled.
+     *
+     * @param message
+     *            The message, which will be run after all the messages that have been added before it
+     */
+    @Override
+    public void execute(Runnable message) {
+        messages.add(message);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            context.submit(this);
+        }
+    }
+
+    /**
+     * Runs the messages in this {@link Mailbox}, which should only be called by the {@link FlexiblePowerContext}.
+     */
+    @Override
+    public void run() {
+        try {
+            for (int count = 0; count < BATCH_SIZE; count++) {
+                Runnable message = messages.poll();
+                if (message == null) {
+                    break;
+                }
+                try {
+                    message.run();
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Unexpected exception while handling a message for agent [" + agentId + "]", ex);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // Messages may have been added after the last poll, or there were more than fit in a batch
+            if (!messages.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
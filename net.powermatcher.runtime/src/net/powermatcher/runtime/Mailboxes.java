@@ -0,0 +1,54 @@
+package net.powermatcher.runtime;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+
+/**
+ * Holds the {@link Mailbox} of each agent that uses one, which all run their messages on the same
+ * {@link FlexiblePowerContext}.
+ *
+ * This class is thread-safe.
+ */
+class Mailboxes {
+    private final FlexiblePowerContext context;
+
+    /**
+     * The {@link Mailbox} of each agent that uses one, by agentId.
+     */
+    private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+
+    Mailboxes(FlexiblePowerContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Gets the {@link Mailbox} of an agent. A new {@link Mailbox} is created when the agent does not have one yet.
+     *
+     * @param agentId
+     *            The agentId of the agent
+     * @return The {@link Mailbox} of the agent
+     */
+    Mailbox getMailbox(String agentId) {
+        Mailbox mailbox = mailboxes.get(agentId);
+        if (mailbox == null) {
+            Mailbox newMailbox = new Mailbox(agentId, context);
+            mailbox = mailboxes.putIfAbsent(agentId, newMailbox);
+            if (mailbox == null) {
+                mailbox = newMailbox;
+            }
+        }
+        return mailbox;
+    }
+
+    /**
+     * Removes the {@link Mailbox} of an agent. Messages that are already in it will still be handled.
+     *
+     * @param agentId
+     *            The agentId of the agent
+     */
+    void removeMailbox(String agentId) {
+        mailboxes.remove(agentId);
+    }
+}
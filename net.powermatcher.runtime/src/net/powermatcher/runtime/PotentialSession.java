@@ -17,14 +17,29 @@ public class PotentialSession {
     private static final Logger LOGGER = LoggerFactory.getLogger(PotentialSession.class);
 
     private final AgentEndpoint agentEndpoint;
+    private volatile Mailboxes mailboxes;
     private MatcherEndpoint matcherEndpoint;
     private volatile SessionImpl session;
 
     public PotentialSession(AgentEndpoint agentEndpoint) {
+        this(agentEndpoint, null);
+    }
+
+    /**
+     * Creates a new {@link PotentialSession}.
+     *
+     * @param agentEndpoint
+     *            The {@link AgentEndpoint} that wants to connect to its desired parent
+     * @param mailboxes
+     *            The {@link Mailboxes} through which the sessions deliver their updates, or <code>null</code> when the
+     *            updates should be delivered directly
+     */
+    PotentialSession(AgentEndpoint agentEndpoint, Mailboxes mailboxes) {
         if (agentEndpoint == null) {
             throw new NullPointerException("Agent can not be null");
         }
         this.agentEndpoint = agentEndpoint;
+        this.mailboxes = mailboxes;
     }
 
     public AgentEndpoint getAgentEndpoint() {
@@ -54,6 +69,21 @@ public class PotentialSession {
         this.matcherEndpoint = matcherEndpoint;
     }
 
+    /**
+     * Changes how the sessions deliver their updates. The current session (if any) is disconnected, because it keeps
+     * delivering its updates the way it did when it was created.
+     *
+     * @param mailboxes
+     *            The {@link Mailboxes} through which the sessions deliver their updates, or <code>null</code> when the
+     *            updates should be delivered directly
+     */
+    synchronized void setMailboxes(Mailboxes mailboxes) {
+        if (this.mailboxes != mailboxes) {
+            disconnect();
+            this.mailboxes = mailboxes;
+        }
+    }
+
     /**
      * Try to build an actual {@link Session}
      *
@@ -64,7 +94,7 @@ public class PotentialSession {
             Status matcherStatus = matcherEndpoint.getStatus();
             Status agentStatus = agentEndpoint.getStatus();
             if (matcherStatus.isConnected() && !agentStatus.isConnected()) {
-                session = new SessionImpl(agentEndpoint, matcherEndpoint, this);
+                session = createSession();
                 synchronized (session) {
                     try {
                         // This synchronized block makes sure the whole connection is made before updates can be sent
@@ -90,6 +120,18 @@ public class PotentialSession {
         return false;
     }
 
+    private SessionImpl createSession() {
+        Mailboxes currentMailboxes = mailboxes;
+        if (currentMailboxes == null) {
+            return new SessionImpl(agentEndpoint, matcherEndpoint, this);
+        }
+        return new SessionImpl(agentEndpoint,
+                               matcherEndpoint,
+                               this,
+                               currentMailboxes.getMailbox(agentEndpoint.getAgentId()),
+                               currentMailboxes.getMailbox(matcherEndpoint.getAgentId()));
+    }
+
     /**
      * This method is called from the {@link SessionImpl} when the session is disconnected. The {@link MatcherEndpoint},
      * the {@link AgentEndpoint} or the {@link SessionManager} can trigger a disconnect.
@@ -1,6 +1,7 @@
 package net.powermatcher.runtime;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.MatcherEndpoint;
@@ -12,21 +13,61 @@ import net.powermatcher.api.messages.PriceUpdate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The implementation of the {@link Session} that is created by the {@link SessionManager}. By default the updates are
+ * passed directly to the other side, while holding the lock on this session. When the {@link Mailbox}es of the agents
+ * are given, the updates are added to the {@link Mailbox} of the receiving agent instead and this method returns
+ * immediately.
+ */
 public class SessionImpl
     implements Session {
     private static final Logger LOGGER = LoggerFactory.getLogger(SessionImpl.class);
 
+    /**
+     * The session ids consist of a random prefix, which makes them unique between runs, and a sequence number. This
+     * is much cheaper than a random UUID for each session.
+     */
+    private static final String SESSION_ID_PREFIX = UUID.randomUUID().toString() + "-";
+    private static final AtomicLong SESSION_COUNT = new AtomicLong();
+
     private final String sessionId;
     private final AgentEndpoint agentEndpoint;
     private final MatcherEndpoint matcherEndpoint;
     private final PotentialSession potentialSession;
     private final String agentId, matcherId, clusterId;
+    private final Mailbox agentMailbox, matcherMailbox;
     private MarketBasis marketBasis;
 
     private volatile boolean connected;
 
     public SessionImpl(AgentEndpoint agentEndpoint, MatcherEndpoint matcherEndpoint, PotentialSession potentialSession) {
-        sessionId = UUID.randomUUID().toString();
+        this(agentEndpoint, matcherEndpoint, potentialSession, null, null);
+    }
+
+    /**
+     * Creates a new {@link SessionImpl} that delivers the updates through the {@link Mailbox}es of the agents.
+     *
+     * @param agentEndpoint
+     *            The {@link AgentEndpoint} of this session
+     * @param matcherEndpoint
+     *            The {@link MatcherEndpoint} of this session
+     * @param potentialSession
+     *            The {@link PotentialSession} that has created this session
+     * @param agentMailbox
+     *            The {@link Mailbox} of the agentEndpoint, which handles the price updates, or <code>null</code> to
+     *            deliver them directly
+     * @param matcherMailbox
+     *            The {@link Mailbox} of the matcherEndpoint, which handles the bid updates, or <code>null</code> to
+     *            deliver them directly
+     */
+    SessionImpl(AgentEndpoint agentEndpoint,
+                MatcherEndpoint matcherEndpoint,
+                PotentialSession potentialSession,
+                Mailbox agentMailbox,
+                Mailbox matcherMailbox) {
+        this.agentMailbox = agentMailbox;
+        this.matcherMailbox = matcherMailbox;
+        sessionId = SESSION_ID_PREFIX + Long.toHexString(SESSION_COUNT.incrementAndGet());
         this.agentEndpoint = agentEndpoint;
         this.matcherEndpoint = matcherEndpoint;
         this.potentialSession = potentialSession;
@@ -80,7 +121,24 @@ public class SessionImpl
     }
 
     @Override
-    public synchronized void updatePrice(PriceUpdate priceUpdate) {
+    public void updatePrice(final PriceUpdate priceUpdate) {
+        if (agentMailbox == null) {
+            deliverPrice(priceUpdate);
+        } else if (isConnectedForMailbox()) {
+            agentMailbox.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (connected) {
+                        agentEndpoint.handlePriceUpdate(priceUpdate);
+                    }
+                }
+            });
+        } else {
+            LOGGER.debug("Sending a price update while not connected from agent [" + agentId + "]");
+        }
+    }
+
+    private synchronized void deliverPrice(PriceUpdate priceUpdate) {
         if (connected) {
             agentEndpoint.handlePriceUpdate(priceUpdate);
         } else {
@@ -89,7 +147,24 @@ public class SessionImpl
     }
 
     @Override
-    public synchronized void updateBid(BidUpdate bidUpdate) {
+    public void updateBid(final BidUpdate bidUpdate) {
+        if (matcherMailbox == null) {
+            deliverBid(bidUpdate);
+        } else if (isConnectedForMailbox()) {
+            matcherMailbox.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (connected) {
+                        matcherEndpoint.handleBidUpdate(SessionImpl.this, bidUpdate);
+                    }
+                }
+            });
+        } else {
+            LOGGER.debug("Sending a bid update while not connected from agent [" + agentId + "]");
+        }
+    }
+
+    private synchronized void deliverBid(BidUpdate bidUpdate) {
         if (connected) {
             matcherEndpoint.handleBidUpdate(this, bidUpdate);
         } else {
@@ -97,6 +172,21 @@ public class SessionImpl
         }
     }
 
+    /**
+     * Checks if an update can be added to a {@link Mailbox}. This only takes the lock on this session when it is not
+     * connected, to wait for a connection that is being made.
+     *
+     * @return true when this session is connected
+     */
+    private boolean isConnectedForMailbox() {
+        if (connected) {
+            return true;
+        }
+        synchronized (this) {
+            return connected;
+        }
+    }
+
     @Override
     public synchronized void disconnect() {
         connected = false;
@@ -1,15 +1,25 @@
 package net.powermatcher.runtime;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.powermatcher.api.Agent;
 import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.AgentEndpointGroup;
 import net.powermatcher.api.MatcherEndpoint;
 import net.powermatcher.api.Session;
 
@@ -17,8 +27,11 @@ import org.flexiblepower.context.FlexiblePowerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
 import aQute.bnd.annotation.component.Reference;
+import aQute.bnd.annotation.metatype.Configurable;
+import aQute.bnd.annotation.metatype.Meta;
 
 /**
  * The {@link SessionManager} is an OSGi Component which is responsible for connecting PowerMatcher Agents. To be
@@ -26,18 +39,110 @@ import aQute.bnd.annotation.component.Reference;
  * of the {@link MatcherEndpoint} and the desiredParentId of the {@link AgentEndpoint}. Connections are represented by
  * an {@link Session} instance.
  *
+ * All agents get the same {@link FlexiblePowerContext}. By default this is a {@link PowerMatcherContext}, which runs
+ * the tasks on a fixed number of threads. When the {@value #CONTEXT_PROPERTY} system property is set to
+ * <code>virtual</code>, it is a {@link VirtualThreadContext} instead, which runs each task on its own (virtual) thread.
+ * When it is set to <code>wheel</code>, it is a {@link TimingWheelContext}, which is meant for a very large number of
+ * periodic tasks and whose tick duration in milliseconds is set by the {@value #TICK_PROPERTY} system property.
+ * This is a system property and not part of the configuration, because OSGi already adds the agents (and gives them
+ * their context) before the configuration is known.
+ *
+ * Optionally each agent gets a {@link Mailbox} on the {@link FlexiblePowerContext}. The sessions then add the bid and
+ * price updates to the {@link Mailbox} of the receiving agent, instead of calling the agent directly while holding a
+ * lock on the session. An agent then handles its updates one at a time, in the order in which they were sent, and the
+ * sending agent never waits for the receiving agent.
+ *
  * @author FAN
  * @version 2.0
  */
-@Component(immediate = true)
+@Component(immediate = true, designate = SessionManager.Config.class)
 public class SessionManager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SessionManager.class);
 
-    // This part is for giving each agent an instance of the PowerMatcherContext without setting it twice
-    private final FlexiblePowerContext runtimeContext = new PowerMatcherContext();
+    @Meta.OCD
+    public interface Config {
+        @Meta.AD(deflt = "false",
+                 required = false,
+                 description = "When true, each agent handles its bid and price updates one at a time from its own "
+                               + "mailbox, instead of on the thread of the sending agent.")
+        boolean agentMailboxes();
+    }
+
+    /**
+     * The name of the system property that selects the {@link FlexiblePowerContext} that is given to the agents.
+     */
+    public static final String CONTEXT_PROPERTY = "net.powermatcher.runtime.context";
+
+    /**
+     * The name of the system property that sets the duration of a tick of the {@link TimingWheelContext}, in
+     * milliseconds.
+     */
+    public static final String TICK_PROPERTY = "net.powermatcher.runtime.context.tick";
+
+    // This part is for giving each agent an instance of the FlexiblePowerContext without setting it twice
+    private final FlexiblePowerContext runtimeContext;
+    private final Mailboxes mailboxes;
     private final Set<String> agents = new ConcurrentSkipListSet<String>();
 
+    private volatile boolean agentMailboxes = false;
+
+    /**
+     * Creates a {@link SessionManager} with the {@link FlexiblePowerContext} that is selected by the
+     * {@value #CONTEXT_PROPERTY} system property.
+     */
+    public SessionManager() {
+        this(createContext(System.getProperty(CONTEXT_PROPERTY, "pool")));
+    }
+
+    /**
+     * Creates a {@link SessionManager} that gives the agents the given {@link FlexiblePowerContext}.
+     *
+     * @param runtimeContext
+     *            the {@link FlexiblePowerContext} of the agents
+     */
+    public SessionManager(FlexiblePowerContext runtimeContext) {
+        this.runtimeContext = runtimeContext;
+        mailboxes = new Mailboxes(runtimeContext);
+    }
+
+    private static FlexiblePowerContext createContext(String type) {
+        if ("virtual".equals(type)) {
+            return new VirtualThreadContext();
+        } else if ("wheel".equals(type)) {
+            return new TimingWheelContext(Long.getLong(TICK_PROPERTY, TimingWheelContext.DEFAULT_TICK_MILLIS),
+                                          TimingWheelContext.DEFAULT_WHEEL_SIZE,
+                                          Runtime.getRuntime().availableProcessors() * 2);
+        } else if (!"pool".equals(type)) {
+            LOGGER.warn("Unknown value [{}] for {}, using the default context", type, CONTEXT_PROPERTY);
+        }
+        return new PowerMatcherContext();
+    }
+
+    /**
+     * OSGi calls this method to activate the {@link SessionManager}.
+     *
+     * @param properties
+     *            the configuration properties
+     */
+    @Activate
+    public void activate(Map<String, ?> properties) {
+        Config config = Configurable.createConfigurable(Config.class, properties);
+        agentMailboxes = config.agentMailboxes();
+
+        // The agents that have been added before the activation are reconnected when their delivery changes
+        for (MatcherNode node : nodes.values()) {
+            synchronized (node) {
+                for (PotentialSession ps : node.children.values()) {
+                    ps.setMailboxes(agentMailboxes ? mailboxes : null);
+                }
+            }
+        }
+        for (String matcherId : nodes.keySet()) {
+            connectChildren(matcherId);
+        }
+    }
+
     private void addAgent(Agent agent) {
         if (agents.add(agent.getAgentId())) {
             agent.setContext(runtimeContext);
@@ -46,18 +151,60 @@ public class SessionManager {
 
     private void removeAgent(Agent agent) {
         agents.remove(agent.getAgentId());
+        mailboxes.removeMailbox(agent.getAgentId());
+    }
+
+    /**
+     * The {@link MatcherEndpoint} with a certain agentId (if it has been added) and the {@link PotentialSession}s of
+     * the {@link AgentEndpoint}s that want it as their parent. All its fields are guarded by the lock on the node
+     * itself, so agents with different parents can be added and connected at the same time.
+     */
+    private static final class MatcherNode {
+        private final String matcherId;
+        private final Map<String, PotentialSession> children = new LinkedHashMap<String, PotentialSession>();
+        private MatcherEndpoint matcherEndpoint;
+
+        /**
+         * Set when this node has been removed from the map of nodes, which means it may no longer be changed.
+         */
+        private boolean removed;
+
+        MatcherNode(String matcherId) {
+            this.matcherId = matcherId;
+        }
     }
 
     /**
-     * Data structure with all the {@link PotentialSession}s. Key of the map is the agentId, the value is a list with
-     * all the {@link PotentialSession}s with that agent.
+     * The {@link MatcherNode}s, by the agentId of the matcher. A node is removed when it has no
+     * {@link MatcherEndpoint} and no children anymore.
      */
-    private final Map<String, List<PotentialSession>> potentialSessions = new HashMap<String, List<PotentialSession>>();
+    private final ConcurrentMap<String, MatcherNode> nodes = new ConcurrentHashMap<String, MatcherNode>();
 
     /**
-     * Map with references to all the known {@link MatcherEndpoint}s. Key of the map is the agentId.
+     * Gets the {@link MatcherNode} of a matcher, or creates it when it does not exist. The caller should check that
+     * the node has not been removed after it has locked it.
      */
-    private final Map<String, MatcherEndpoint> matcherEndpoints = new HashMap<String, MatcherEndpoint>();
+    private MatcherNode getOrCreateNode(String matcherId) {
+        MatcherNode node = nodes.get(matcherId);
+        if (node == null) {
+            MatcherNode newNode = new MatcherNode(matcherId);
+            node = nodes.putIfAbsent(matcherId, newNode);
+            if (node == null) {
+                node = newNode;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Removes the node when it is empty. The caller should hold the lock on the node.
+     */
+    private void removeIfEmpty(MatcherNode node) {
+        if (node.matcherEndpoint == null && node.children.isEmpty()) {
+            node.removed = true;
+            nodes.remove(node.matcherId, node);
+        }
+    }
 
     /**
      * Informs the SessionManager that there is a new {@link MatcherEndpoint}.
@@ -68,29 +215,58 @@ public class SessionManager {
     @Reference(dynamic = true, multiple = true, optional = true)
     public void addMatcherEndpoint(MatcherEndpoint matcherEndpoint) {
         addAgent(matcherEndpoint);
+        if (registerMatcherEndpoint(matcherEndpoint)) {
+            connectChildren(matcherEndpoint.getAgentId());
+        }
+    }
 
-        String agentId = matcherEndpoint.getAgentId();
-        synchronized (potentialSessions) {
-            // Check for duplicate
-            if (matcherEndpoints.containsKey(agentId)) {
-                LOGGER.warn("MatcherEndpoint added with agentId " + agentId
-                            + ", but it already exists. Ignoring the new one...");
-                return;
+    /**
+     * Adds many {@link MatcherEndpoint}s at once, for example when a whole cluster is started. This does the same as
+     * calling {@link #addMatcherEndpoint(MatcherEndpoint)} for each of them, but their waiting children are connected
+     * in a single pass after all of them have been added, in parallel for the different matchers.
+     *
+     * @param matcherEndpoints
+     *            the new {@link MatcherEndpoint}s
+     */
+    public void addMatcherEndpoints(Collection<? extends MatcherEndpoint> matcherEndpoints) {
+        List<String> matcherIds = new ArrayList<String>(matcherEndpoints.size());
+        for (MatcherEndpoint matcherEndpoint : matcherEndpoints) {
+            addAgent(matcherEndpoint);
+            if (registerMatcherEndpoint(matcherEndpoint)) {
+                matcherIds.add(matcherEndpoint.getAgentId());
             }
+        }
+        connectChildrenInParallel(matcherIds);
+    }
 
-            if (!potentialSessions.containsKey(agentId)) {
-                potentialSessions.put(agentId, new ArrayList<PotentialSession>());
-            }
-            matcherEndpoints.put(agentId, matcherEndpoint);
+    /**
+     * Adds the {@link MatcherEndpoint} to its {@link MatcherNode}, without connecting anything yet.
+     *
+     * @return true when it has been added, false when there already was a {@link MatcherEndpoint} with its agentId
+     */
+    private boolean registerMatcherEndpoint(MatcherEndpoint matcherEndpoint) {
+        String agentId = matcherEndpoint.getAgentId();
+        while (true) {
+            MatcherNode node = getOrCreateNode(agentId);
+            synchronized (node) {
+                if (node.removed) {
+                    continue;
+                }
+                // Check for duplicate
+                if (node.matcherEndpoint != null) {
+                    LOGGER.warn("MatcherEndpoint added with agentId " + agentId
+                                + ", but it already exists. Ignoring the new one...");
+                    return false;
+                }
 
-            for (PotentialSession ps : potentialSessions.get(agentId)) {
-                ps.setMatcherEndpoint(matcherEndpoint);
+                node.matcherEndpoint = matcherEndpoint;
+                for (PotentialSession ps : node.children.values()) {
+                    ps.setMatcherEndpoint(matcherEndpoint);
+                }
+                LOGGER.debug("MatcherEndpoint with id [{}] added", agentId);
+                return true;
             }
-
-            LOGGER.debug("MatcherEndpoint with id [{}] added", agentId);
         }
-
-        tryConnect();
     }
 
     /**
@@ -103,15 +279,22 @@ public class SessionManager {
     public void removeMatcherEndpoint(MatcherEndpoint matcherEndpoint) {
         removeAgent(matcherEndpoint);
 
-        String agentId = matcherEndpoint.getAgentId();
-
-        synchronized (potentialSessions) {
-            for (PotentialSession ps : potentialSessions.get(agentId)) {
+        MatcherNode node = nodes.get(matcherEndpoint.getAgentId());
+        if (node == null) {
+            return;
+        }
+        synchronized (node) {
+            if (node.matcherEndpoint != matcherEndpoint) {
+                // This is a duplicate that has been ignored
+                return;
+            }
+            for (PotentialSession ps : node.children.values()) {
                 // PotentialSessions are disconnected, but are not removed
                 ps.disconnect();
                 ps.setMatcherEndpoint(null);
             }
-            matcherEndpoints.remove(agentId);
+            node.matcherEndpoint = null;
+            removeIfEmpty(node);
         }
     }
 
@@ -125,28 +308,111 @@ public class SessionManager {
     public void addAgentEndpoint(AgentEndpoint agentEndpoint) {
         addAgent(agentEndpoint);
 
-        String agentId = agentEndpoint.getAgentId();
-        String matcherId = agentEndpoint.getDesiredParentId();
-        synchronized (potentialSessions) {
-            if (!potentialSessions.containsKey(matcherId)) {
-                potentialSessions.put(matcherId, new ArrayList<PotentialSession>());
+        boolean connected = false;
+        while (true) {
+            MatcherNode node = getOrCreateNode(agentEndpoint.getDesiredParentId());
+            synchronized (node) {
+                if (node.removed) {
+                    continue;
+                }
+                PotentialSession ps = addChild(node, agentEndpoint);
+                if (ps != null) {
+                    connected = ps.tryConnect();
+                }
+                break;
+            }
+        }
+
+        if (connected) {
+            // The agent may be a matcher itself, whose children could not connect until now
+            connectChildren(agentEndpoint.getAgentId());
+        }
+    }
+
+    /**
+     * Adds many {@link AgentEndpoint}s at once, for example when a whole cluster is started. This does the same as
+     * calling {@link #addAgentEndpoint(AgentEndpoint)} for each of them, but the lock of each matcher is only taken
+     * once and the new agents are connected in a single pass after all of them have been added, in parallel for the
+     * different matchers.
+     *
+     * @param agentEndpoints
+     *            the new {@link AgentEndpoint}s
+     */
+    public void addAgentEndpoints(Collection<? extends AgentEndpoint> agentEndpoints) {
+        Map<String, List<AgentEndpoint>> agentEndpointsByMatcher = new LinkedHashMap<String, List<AgentEndpoint>>();
+        for (AgentEndpoint agentEndpoint : agentEndpoints) {
+            addAgent(agentEndpoint);
+            List<AgentEndpoint> list = agentEndpointsByMatcher.get(agentEndpoint.getDesiredParentId());
+            if (list == null) {
+                list = new ArrayList<AgentEndpoint>();
+                agentEndpointsByMatcher.put(agentEndpoint.getDesiredParentId(), list);
             }
-            // Check if it already exists
-            for (PotentialSession ps : potentialSessions.get(matcherId)) {
-                if (agentId.equals(ps.getAgentId())) {
-                    LOGGER.warn("AgentEndpoint added with agentId {}, but it already exists. Ignoring the new one...",
-                                agentId);
-                    return;
+            list.add(agentEndpoint);
+        }
+
+        for (Entry<String, List<AgentEndpoint>> entry : agentEndpointsByMatcher.entrySet()) {
+            while (true) {
+                MatcherNode node = getOrCreateNode(entry.getKey());
+                synchronized (node) {
+                    if (node.removed) {
+                        continue;
+                    }
+                    for (AgentEndpoint agentEndpoint : entry.getValue()) {
+                        addChild(node, agentEndpoint);
+                    }
+                    break;
                 }
             }
+        }
+
+        connectChildrenInParallel(agentEndpointsByMatcher.keySet());
+    }
 
-            PotentialSession ps = new PotentialSession(agentEndpoint);
-            ps.setMatcherEndpoint(matcherEndpoints.get(matcherId));
-            potentialSessions.get(matcherId).add(ps);
-            LOGGER.debug("AgentEndpoint with id [{}] added", agentId);
+    /**
+     * Informs the SessionManager that there is a new {@link AgentEndpointGroup}. All its {@link AgentEndpoint}s are
+     * added using {@link #addAgentEndpoints(Collection)}.
+     *
+     * @param agentEndpointGroup
+     *            the new {@link AgentEndpointGroup}
+     */
+    @Reference(dynamic = true, multiple = true, optional = true)
+    public void addAgentEndpointGroup(AgentEndpointGroup agentEndpointGroup) {
+        addAgentEndpoints(agentEndpointGroup.getAgentEndpoints());
+    }
+
+    /**
+     * Informs the SessionManager that an {@link AgentEndpointGroup} has been removed. It will disconnect any existing
+     * Sessions with its {@link AgentEndpoint}s.
+     *
+     * @param agentEndpointGroup
+     *            the {@link AgentEndpointGroup} to be removed
+     */
+    public void removeAgentEndpointGroup(AgentEndpointGroup agentEndpointGroup) {
+        for (AgentEndpoint agentEndpoint : agentEndpointGroup.getAgentEndpoints()) {
+            removeAgentEndpoint(agentEndpoint);
+        }
+    }
+
+    /**
+     * Adds a {@link PotentialSession} for the {@link AgentEndpoint} to the children of the node, without connecting
+     * it yet. The caller should hold the lock on the node.
+     *
+     * @return the new {@link PotentialSession}, or <code>null</code> when there already was an {@link AgentEndpoint}
+     *         with its agentId
+     */
+    private PotentialSession addChild(MatcherNode node, AgentEndpoint agentEndpoint) {
+        String agentId = agentEndpoint.getAgentId();
+        // Check if it already exists
+        if (node.children.containsKey(agentId)) {
+            LOGGER.warn("AgentEndpoint added with agentId {}, but it already exists. Ignoring the new one...", agentId);
+            return null;
         }
 
-        tryConnect();
+        PotentialSession ps = new PotentialSession(agentEndpoint, agentMailboxes ? mailboxes : null);
+        ps.setMatcherEndpoint(node.matcherEndpoint);
+        node.children.put(agentId, ps);
+        LOGGER.debug("AgentEndpoint with id [{}] added", agentId);
+        return ps;
     }
 
     /**
@@ -160,42 +426,89 @@ public class SessionManager {
         removeAgent(agentEndpoint);
 
         String agentId = agentEndpoint.getAgentId();
-        String matcherId = agentEndpoint.getDesiredParentId();
-        PotentialSession currentSession = null;
-        synchronized (potentialSessions) {
-            Iterator<PotentialSession> it = potentialSessions.get(matcherId).iterator();
-            while (it.hasNext()) {
-                PotentialSession ps = it.next();
-                if (agentId.equals(ps.getAgentId())) {
-                    currentSession = ps;
-                    it.remove();
-                    break;
-                }
+        MatcherNode node = nodes.get(agentEndpoint.getDesiredParentId());
+        if (node == null) {
+            return;
+        }
+        PotentialSession currentSession;
+        synchronized (node) {
+            currentSession = node.children.get(agentId);
+            if (currentSession == null || currentSession.getAgentEndpoint() != agentEndpoint) {
+                return;
             }
+            node.children.remove(agentId);
+            removeIfEmpty(node);
         }
-        if (currentSession != null) {
-            currentSession.disconnect();
+        currentSession.disconnect();
+    }
+
+    /**
+     * Calls {@link #connectChildren(String)} for each of the matchers. When there is more than one matcher and more
+     * than one processor, this is done in parallel by a temporary pool of threads, because the subtrees of different
+     * matchers are guarded by different locks. This method returns when all of them are done.
+     *
+     * @param matcherIds
+     *            the agentIds of the matchers
+     */
+    private void connectChildrenInParallel(Collection<String> matcherIds) {
+        int threads = Math.min(matcherIds.size(), Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            for (String matcherId : matcherIds) {
+                connectChildren(matcherId);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                                                                new DaemonThreadFactory("powermatcher-connect"));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(matcherIds.size());
+            for (final String matcherId : matcherIds) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        connectChildren(matcherId);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOGGER.error("Could not connect the agents: " + ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            executor.shutdown();
         }
     }
 
     /**
-     * See if there is a {@link PotentialSession} that can be connected. Since one new Session can lead to another, this
-     * is tried until nothing changes.
+     * Tries to connect the children of a matcher that are still waiting. Each child that gets connected may be a
+     * matcher itself, so its children are tried next. This goes down through the tree from the given matcher and only
+     * visits the matchers that got connected.
+     *
+     * @param matcherId
+     *            the agentId of the matcher
      */
-    private void tryConnect() {
-        // TODO do something more efficient? We could build some tree and try to connect agents from top to bottom.
-        boolean somethingChanged;
-        do {
-            somethingChanged = false;
-            synchronized (potentialSessions) {
-                for (List<PotentialSession> list : potentialSessions.values()) {
-                    for (PotentialSession ps : list) {
-                        if (ps.tryConnect()) {
-                            somethingChanged = true;
-                        }
+    private void connectChildren(String matcherId) {
+        Queue<String> matcherIds = new ArrayDeque<String>();
+        matcherIds.add(matcherId);
+        while (!matcherIds.isEmpty()) {
+            MatcherNode node = nodes.get(matcherIds.poll());
+            if (node == null) {
+                continue;
+            }
+            synchronized (node) {
+                if (node.matcherEndpoint == null) {
+                    continue;
+                }
+                for (PotentialSession ps : node.children.values()) {
+                    if (ps.tryConnect()) {
+                        matcherIds.add(ps.getAgentId());
                     }
                 }
             }
-        } while (somethingChanged);
+        }
     }
 }
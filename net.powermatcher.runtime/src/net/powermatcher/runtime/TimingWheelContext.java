@@ -0,0 +1,569 @@
+package net.powermatcher.runtime;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FlexiblePowerContext} that keeps track of the scheduled tasks in a hashed timing wheel, which makes it
+ * suitable for a very large number of periodic tasks (for example 100k simulated devices).
+ *
+ * The wheel is an array of buckets, one for each tick. A task is added to the bucket of the tick in which it is due,
+ * modulo the size of the wheel, together with the number of rounds the wheel still has to make before it is due.
+ * Scheduling and cancelling a task are therefore O(1), and they only add the task to a lock-free queue that the wheel
+ * thread processes at the next tick. The {@link PowerMatcherContext} keeps the tasks in a heap instead, which takes
+ * O(log n) and a lock that is shared by all the threads.
+ *
+ * Once per tick the wheel thread collects all the tasks of that tick that are due and hands them to the worker
+ * threads in batches of {@link #BATCH_SIZE}. A task runs at most one tick after it is due, so the tick duration is
+ * the resolution of this context. How far the wheel thread lags behind is kept in the {@link Statistics}.
+ *
+ * A periodic task is scheduled again when a run has finished, so 2 runs of the same task never overlap. When a run
+ * throws an exception, it is logged and the task is not run again.
+ */
+public class TimingWheelContext
+    extends AbstractExecutorService
+    implements FlexiblePowerContext {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimingWheelContext.class);
+
+    /**
+     * The default duration of a tick in milliseconds.
+     */
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    /**
+     * The default number of buckets of the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * The maximum number of due tasks that a worker thread runs as a single batch.
+     */
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * A snapshot of the statistics of the wheel thread.
+     */
+    public static class Statistics {
+        private final long ticks;
+        private final long totalTickLagNanos;
+        private final long maxTickLagNanos;
+        private final long dispatched;
+        private final int maxDueInTick;
+        private final int scheduled;
+
+        Statistics(long ticks,
+                   long totalTickLagNanos,
+                   long maxTickLagNanos,
+                   long dispatched,
+                   int maxDueInTick,
+                   int scheduled) {
+            this.ticks = ticks;
+            this.totalTickLagNanos = totalTickLagNanos;
+            this.maxTickLagNanos = maxTickLagNanos;
+            this.dispatched = dispatched;
+            this.maxDueInTick = maxDueInTick;
+            this.scheduled = scheduled;
+        }
+
+        /**
+         * @return The number of ticks that have been processed
+         */
+        public long getTicks() {
+            return ticks;
+        }
+
+        /**
+         * @return The average time between the end of a tick and the moment its tasks were collected, in microseconds
+         */
+        public long getAverageTickLagMicros() {
+            return ticks == 0 ? 0 : totalTickLagNanos / ticks / 1000;
+        }
+
+        /**
+         * @return The maximum time between the end of a tick and the moment its tasks were collected, in microseconds
+         */
+        public long getMaxTickLagMicros() {
+            return maxTickLagNanos / 1000;
+        }
+
+        /**
+         * @return The number of tasks that have been handed to the worker threads when they were due
+         */
+        public long getDispatched() {
+            return dispatched;
+        }
+
+        /**
+         * @return The maximum number of tasks that were due in a single tick
+         */
+        public int getMaxDueInTick() {
+            return maxDueInTick;
+        }
+
+        /**
+         * @return The number of tasks that are in the wheel, waiting until they are due
+         */
+        public int getScheduled() {
+            return scheduled;
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics [ticks=" + ticks + ", averageTickLagMicros=" + getAverageTickLagMicros()
+                   + ", maxTickLagMicros=" + getMaxTickLagMicros() + ", dispatched=" + dispatched
+                   + ", maxDueInTick=" + maxDueInTick + ", scheduled=" + scheduled + "]";
+        }
+    }
+
+    /**
+     * A task in the wheel. The fields that place it in a bucket are only used by the wheel thread.
+     *
+     * @param <V>
+     *            The result type of the task
+     */
+    private final class Task<V>
+        extends FutureTask<V>
+        implements RunnableScheduledFuture<V> {
+        /**
+         * The period in nanoseconds, which is positive for a fixed rate, negative for a fixed delay and 0 for a task
+         * that runs once.
+         */
+        private final long period;
+
+        private volatile long deadlineNanos;
+
+        private long remainingRounds;
+        private Bucket bucket;
+        private Task<?> previous, next;
+
+        Task(Callable<V> callable, long deadlineNanos) {
+            super(callable);
+            this.deadlineNanos = deadlineNanos;
+            period = 0;
+        }
+
+        Task(Runnable runnable, V result, long deadlineNanos, long period) {
+            super(runnable, result);
+            this.deadlineNanos = deadlineNanos;
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                deadlineNanos = period > 0 ? deadlineNanos + period : System.nanoTime() - period;
+                addToWheel(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                cancelledTasks.add(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            LOGGER.error("An scheduled execution has thrown an exception: " + t.getMessage(), t);
+            super.setException(t);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * A bucket of the wheel, which is a doubly linked list of tasks. Only used by the wheel thread.
+     */
+    private static final class Bucket {
+        private Task<?> head, tail;
+        private int size;
+
+        void add(Task<?> task) {
+            task.bucket = this;
+            task.previous = tail;
+            task.next = null;
+            if (tail == null) {
+                head = task;
+            } else {
+                tail.next = task;
+            }
+            tail = task;
+            size++;
+        }
+
+        void remove(Task<?> task) {
+            if (task.previous == null) {
+                head = task.next;
+            } else {
+                task.previous.next = task.next;
+            }
+            if (task.next == null) {
+                tail = task.previous;
+            } else {
+                task.next.previous = task.previous;
+            }
+            task.bucket = null;
+            task.previous = null;
+            task.next = null;
+            size--;
+        }
+
+        /**
+         * Removes the tasks that are due in this round from this bucket and adds them to the list.
+         */
+        void expire(List<Task<?>> due) {
+            Task<?> task = head;
+            while (task != null) {
+                Task<?> next = task.next;
+                if (task.remainingRounds <= 0) {
+                    remove(task);
+                    due.add(task);
+                } else {
+                    task.remainingRounds--;
+                }
+                task = next;
+            }
+        }
+    }
+
+    /**
+     * Runs a batch of due tasks on a worker thread.
+     */
+    private static final class Batch
+        implements Runnable {
+        private final List<Task<?>> tasks;
+
+        Batch(List<Task<?>> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        public void run() {
+            for (Task<?> task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ThreadPoolExecutor executor;
+    private final Thread wheelThread;
+    private final long startNanos;
+
+    private final Queue<Task<?>> newTasks = new ConcurrentLinkedQueue<Task<?>>();
+    private final Queue<Task<?>> cancelledTasks = new ConcurrentLinkedQueue<Task<?>>();
+
+    private volatile boolean shutdown;
+
+    // Statistics, only written by the wheel thread
+    private volatile long ticks;
+    private volatile long totalTickLagNanos;
+    private volatile long maxTickLagNanos;
+    private volatile long dispatched;
+    private volatile int maxDueInTick;
+    private volatile int scheduled;
+
+    /**
+     * Creates a {@link TimingWheelContext} with a tick of {@value #DEFAULT_TICK_MILLIS} ms,
+     * {@value #DEFAULT_WHEEL_SIZE} buckets and 2 worker threads per processor.
+     */
+    public TimingWheelContext() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates a {@link TimingWheelContext}.
+     *
+     * @param tickMillis
+     *            The duration of a tick in milliseconds, which is the resolution of the scheduled tasks
+     * @param wheelSize
+     *            The number of buckets of the wheel, which is rounded up to a power of 2
+     * @param threads
+     *            The number of worker threads that run the tasks
+     */
+    public TimingWheelContext(long tickMillis, int wheelSize, int threads) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis should be positive");
+        } else if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("wheelSize should be between 1 and 2^30");
+        } else if (threads <= 0) {
+            throw new IllegalArgumentException("threads should be positive");
+        }
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int ix = 0; ix < size; ix++) {
+            wheel[ix] = new Bucket();
+        }
+        mask = size - 1;
+
+        executor = new ThreadPoolExecutor(threads,
+                                          threads,
+                                          0,
+                                          TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<Runnable>(),
+                                          new DaemonThreadFactory("powermatcher-wheel-worker"));
+        startNanos = System.nanoTime();
+        wheelThread = new DaemonThreadFactory("powermatcher-wheel").newThread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        });
+        wheelThread.start();
+    }
+
+    /**
+     * @return A snapshot of the statistics of the wheel thread
+     */
+    public Statistics getStatistics() {
+        return new Statistics(ticks, totalTickLagNanos, maxTickLagNanos, dispatched, maxDueInTick, scheduled);
+    }
+
+    private void addToWheel(Task<?> task) {
+        if (task.deadlineNanos - System.nanoTime() <= 0) {
+            // Due already, so there is no need to wait for the next tick
+            dispatch(task);
+        } else {
+            newTasks.add(task);
+        }
+    }
+
+    private void dispatch(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException ex) {
+            LOGGER.debug("Task not run, because the context has been shut down");
+        }
+    }
+
+    private void runWheel() {
+        long tick = 0;
+        List<Task<?>> due = new ArrayList<Task<?>>();
+        while (!shutdown) {
+            long tickEnd = startNanos + (tick + 1) * tickNanos;
+            long waitNanos;
+            while ((waitNanos = tickEnd - System.nanoTime()) > 0 && !shutdown) {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+            if (shutdown) {
+                break;
+            }
+
+            long lag = System.nanoTime() - tickEnd;
+            totalTickLagNanos += lag;
+            if (lag > maxTickLagNanos) {
+                maxTickLagNanos = lag;
+            }
+
+            removeCancelledTasks();
+            addNewTasks(tick);
+            wheel[(int) (tick & mask)].expire(due);
+            dispatchDueTasks(due);
+            ticks = ++tick;
+        }
+    }
+
+    private void removeCancelledTasks() {
+        Task<?> task;
+        while ((task = cancelledTasks.poll()) != null) {
+            if (task.bucket != null) {
+                task.bucket.remove(task);
+                scheduled--;
+            }
+        }
+    }
+
+    private void addNewTasks(long tick) {
+        Task<?> task;
+        while ((task = newTasks.poll()) != null) {
+            if (task.isCancelled()) {
+                continue;
+            }
+            long taskTick = (task.deadlineNanos - startNanos) / tickNanos;
+            task.remainingRounds = (taskTick - tick) / wheel.length;
+            // A task that should have been in an earlier tick goes in the current one
+            wheel[(int) (Math.max(taskTick, tick) & mask)].add(task);
+            scheduled++;
+        }
+    }
+
+    private void dispatchDueTasks(List<Task<?>> due) {
+        int size = due.size();
+        if (size == 0) {
+            return;
+        }
+        scheduled -= size;
+        dispatched += size;
+        if (size > maxDueInTick) {
+            maxDueInTick = size;
+        }
+        for (int from = 0; from < size; from += BATCH_SIZE) {
+            dispatch(new Batch(new ArrayList<Task<?>>(due.subList(from, Math.min(size, from + BATCH_SIZE)))));
+        }
+        due.clear();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(currentTimeMillis());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        start(new Task<Void>(command, null, System.nanoTime(), 0));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new Task<T>(runnable, value, System.nanoTime(), 0);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new Task<T>(callable, System.nanoTime());
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return start(new Task<Void>(task, null, System.nanoTime(), 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return start(new Task<T>(task, result, System.nanoTime(), 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return start(new Task<T>(task, System.nanoTime()));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return start(new Task<Void>(command, null, deadlineNanos(delay), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return start(new Task<V>(callable, deadlineNanos(delay)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return start(new Task<Void>(command, null, deadlineNanos(initialDelay), periodNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return start(new Task<Void>(command, null, deadlineNanos(initialDelay), -periodNanos(delay)));
+    }
+
+    private <V> Task<V> start(Task<V> task) {
+        if (isShutdown()) {
+            throw new RejectedExecutionException("The context has been shut down");
+        }
+        addToWheel(task);
+        return task;
+    }
+
+    private static long deadlineNanos(Measurable<Duration> delay) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay.longValue(PowerMatcherContext.MS)));
+    }
+
+    private static long periodNanos(Measurable<Duration> period) {
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(period.longValue(PowerMatcherContext.MS));
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("The period should be positive");
+        }
+        return periodNanos;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(wheelThread);
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        return executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return !wheelThread.isAlive() && executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        wheelThread.join(Math.max(1, unit.toMillis(timeout)));
+        return executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+               && !wheelThread.isAlive();
+    }
+}
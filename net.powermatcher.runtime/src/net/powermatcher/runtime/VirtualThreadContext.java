@@ -0,0 +1,308 @@
+package net.powermatcher.runtime;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FlexiblePowerContext} that only uses a single thread to keep track of the scheduled tasks and that runs the
+ * tasks themselves on threads that are created when they are needed. On a Java runtime that supports virtual threads,
+ * each task runs on a new virtual thread. Otherwise an unbounded pool of platform threads is used, which creates a new
+ * thread whenever all the others are busy and stops threads that have been idle for a minute.
+ *
+ * Unlike the {@link PowerMatcherContext}, which has a fixed number of threads, a task that blocks (for example on
+ * network I/O) does not prevent the other tasks from running.
+ *
+ * A periodic task is scheduled again when a run has finished, so 2 runs of the same task never overlap. When a run
+ * takes longer than the period of a fixed rate task, the next run starts right after it. When a run throws an
+ * exception, it is logged and the task is not run again.
+ */
+public class VirtualThreadContext
+    extends AbstractExecutorService
+    implements FlexiblePowerContext {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreadContext.class);
+
+    /**
+     * A task that runs on the executor, after it has been handed over by the timer thread when it is due.
+     *
+     * @param <V>
+     *            The result type of the task
+     */
+    private final class Task<V>
+        extends FutureTask<V>
+        implements RunnableScheduledFuture<V> {
+        /**
+         * The period in nanoseconds, which is positive for a fixed rate, negative for a fixed delay and 0 for a task
+         * that runs once.
+         */
+        private final long period;
+
+        private volatile long triggerNanos;
+        private volatile Future<?> timerFuture;
+
+        private final Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        };
+
+        Task(Callable<V> callable, long triggerNanos) {
+            super(callable);
+            this.triggerNanos = triggerNanos;
+            period = 0;
+        }
+
+        Task(Runnable runnable, V result, long triggerNanos, long period) {
+            super(runnable, result);
+            this.triggerNanos = triggerNanos;
+            this.period = period;
+        }
+
+        /**
+         * Hands this task to the timer, or directly to the executor when it is already due.
+         */
+        void start() {
+            long delay = triggerNanos - System.nanoTime();
+            if (delay <= 0) {
+                dispatch();
+            } else if (!isCancelled()) {
+                timerFuture = timer.schedule(dispatch, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void dispatch() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                // The context has been shut down
+                super.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                triggerNanos = period > 0 ? triggerNanos + period : System.nanoTime() - period;
+                start();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<?> currentTimerFuture = timerFuture;
+            if (currentTimerFuture != null) {
+                currentTimerFuture.cancel(false);
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            LOGGER.error("An scheduled execution has thrown an exception: " + t.getMessage(), t);
+            super.setException(t);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(triggerNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    public VirtualThreadContext() {
+        timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("powermatcher-timer"));
+        timer.setRemoveOnCancelPolicy(true);
+
+        ExecutorService virtualThreadExecutor = createVirtualThreadExecutor();
+        virtualThreads = virtualThreadExecutor != null;
+        if (virtualThreads) {
+            executor = virtualThreadExecutor;
+        } else {
+            executor = new ThreadPoolExecutor(0,
+                                              Integer.MAX_VALUE,
+                                              1,
+                                              TimeUnit.MINUTES,
+                                              new SynchronousQueue<Runnable>(),
+                                              new DaemonThreadFactory("powermatcher-worker"));
+        }
+        LOGGER.debug("Created a VirtualThreadContext, using virtual threads: {}", virtualThreads);
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread. This uses reflection, because virtual threads
+     * are not part of the Java version this bundle is compiled against.
+     *
+     * @return The executor, or <code>null</code> when this Java runtime does not support virtual threads
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.warn("Could not create virtual threads, using platform threads instead", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return true when the tasks run on virtual threads, false when they run on platform threads
+     */
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(currentTimeMillis());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        new Task<Void>(command, null, System.nanoTime(), 0).start();
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new Task<T>(runnable, value, System.nanoTime(), 0);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new Task<T>(callable, System.nanoTime());
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return start(new Task<Void>(task, null, System.nanoTime(), 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return start(new Task<T>(task, result, System.nanoTime(), 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return start(new Task<T>(task, System.nanoTime()));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return start(new Task<Void>(command, null, triggerNanos(delay), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return start(new Task<V>(callable, triggerNanos(delay)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return start(new Task<Void>(command, null, triggerNanos(initialDelay), periodNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return start(new Task<Void>(command, null, triggerNanos(initialDelay), -periodNanos(delay)));
+    }
+
+    private <V> Task<V> start(Task<V> task) {
+        if (isShutdown()) {
+            throw new RejectedExecutionException("The context has been shut down");
+        }
+        task.start();
+        return task;
+    }
+
+    private static long triggerNanos(Measurable<Duration> delay) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay.longValue(PowerMatcherContext.MS)));
+    }
+
+    private static long periodNanos(Measurable<Duration> period) {
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(period.longValue(PowerMatcherContext.MS));
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("The period should be positive");
+        }
+        return periodNanos;
+    }
+
+    @Override
+    public void shutdown() {
+        timer.shutdown();
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = timer.shutdownNow();
+        tasks.addAll(executor.shutdownNow());
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return timer.isTerminated() && executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return timer.awaitTermination(timeout, unit)
+               && executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+}
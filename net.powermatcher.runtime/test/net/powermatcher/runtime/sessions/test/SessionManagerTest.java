@@ -6,12 +6,26 @@ import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import net.powermatcher.api.AgentEndpoint;
+import net.powermatcher.api.AgentEndpointGroup;
+import net.powermatcher.api.MatcherEndpoint;
 import net.powermatcher.api.Session;
+import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
 import net.powermatcher.mock.MockContext;
 import net.powermatcher.mock.MockDeviceAgent;
 import net.powermatcher.mock.MockMatcherAgent;
 import net.powermatcher.runtime.SessionManager;
+import net.powermatcher.test.helpers.PropertiesBuilder;
 
 import org.junit.After;
 import org.junit.Before;
@@ -33,6 +47,7 @@ public class SessionManagerTest {
     private static final String AUCTIONEER_NAME = "auctioneer";
     private static final String AGENT_ID = "testAgent";
     private static final String CLUSTER_ID = "testCluster";
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("something", "YYY", 10, 0, 1);
 
     private SessionManager sessionManager;
     private MockMatcherAgent auctioneer;
@@ -40,7 +55,7 @@ public class SessionManagerTest {
 
     @Before
     public void setUp() {
-        auctioneer = new MockMatcherAgent(AUCTIONEER_NAME, CLUSTER_ID, new MarketBasis("something", "YYY", 10, 0, 1));
+        auctioneer = new MockMatcherAgent(AUCTIONEER_NAME, CLUSTER_ID, MARKET_BASIS);
         auctioneer.setContext(new MockContext(0));
 
         sessionManager = new SessionManager();
@@ -123,4 +138,148 @@ public class SessionManagerTest {
         assertThat(session, is(notNullValue()));
     }
 
+    @Test
+    public void testAgentMailboxes() throws InterruptedException {
+        sessionManager.activate(new PropertiesBuilder().add("agentMailboxes", true).build());
+        sessionManager.addAgentEndpoint(testAgent);
+        sessionManager.addMatcherEndpoint(auctioneer);
+        assertThat(testAgent.getSession(), is(notNullValue()));
+
+        // The updates are handled on the thread of the mailbox of the receiving agent
+        BidUpdate bidUpdate = new BidUpdate(Bid.flatDemand(MARKET_BASIS, 1), 1);
+        testAgent.sendBid(bidUpdate);
+        for (int ix = 0; ix < 500 && auctioneer.getLastReceivedBid() == null; ix++) {
+            Thread.sleep(10);
+        }
+        assertThat(auctioneer.getLastReceivedBid(), is(bidUpdate));
+
+        PriceUpdate priceUpdate = new PriceUpdate(new Price(MARKET_BASIS, 0.5), 1);
+        auctioneer.publishPrice(priceUpdate);
+        for (int ix = 0; ix < 500 && testAgent.getLastPriceUpdate() == null; ix++) {
+            Thread.sleep(10);
+        }
+        assertThat(testAgent.getLastPriceUpdate(), is(priceUpdate));
+
+        sessionManager.removeAgentEndpoint(testAgent);
+        assertThat(testAgent.getSession(), is(nullValue()));
+    }
+
+    @Test
+    public void testAgentMailboxesAfterAgentsAdded() {
+        sessionManager.addAgentEndpoint(testAgent);
+        sessionManager.addMatcherEndpoint(auctioneer);
+        Session directSession = testAgent.getSession();
+        assertThat(directSession, is(notNullValue()));
+
+        // OSGi adds the agents before it activates, so the existing sessions are replaced by ones with mailboxes
+        sessionManager.activate(new PropertiesBuilder().add("agentMailboxes", true).build());
+        assertThat(testAgent.getSession(), is(notNullValue()));
+        assertThat(testAgent.getSession() == directSession, is(false));
+    }
+
+    /**
+     * An agent that is a matcher for its own children, which can only connect after it is connected itself.
+     */
+    private static class MockConcentrator
+        extends MockDeviceAgent
+        implements MatcherEndpoint {
+        MockConcentrator(String agentId, String desiredParentId) {
+            super(agentId, desiredParentId);
+        }
+
+        @Override
+        public void connectToAgent(Session session) {
+            session.setMarketBasis(getSession().getMarketBasis());
+        }
+
+        @Override
+        public void agentEndpointDisconnected(Session session) {
+        }
+
+        @Override
+        public void handleBidUpdate(Session session, BidUpdate bidUpdate) {
+        }
+    }
+
+    @Test
+    public void testConnectThroughConcentrators() {
+        MockConcentrator concentrator1 = new MockConcentrator("concentrator1", AUCTIONEER_NAME);
+        MockConcentrator concentrator2 = new MockConcentrator("concentrator2", "concentrator1");
+        MockDeviceAgent leaf = new MockDeviceAgent("leaf", "concentrator2");
+
+        // Added from the bottom up, so nothing can connect until the auctioneer is there
+        sessionManager.addAgentEndpoint(leaf);
+        sessionManager.addMatcherEndpoint(concentrator2);
+        sessionManager.addAgentEndpoint(concentrator2);
+        sessionManager.addMatcherEndpoint(concentrator1);
+        sessionManager.addAgentEndpoint(concentrator1);
+        assertThat(leaf.getSession(), is(nullValue()));
+        assertThat(concentrator1.getSession(), is(nullValue()));
+
+        sessionManager.addMatcherEndpoint(auctioneer);
+        assertThat(concentrator1.getSession().getMatcherId(), is(AUCTIONEER_NAME));
+        assertThat(concentrator2.getSession().getMatcherId(), is("concentrator1"));
+        assertThat(leaf.getSession().getMatcherId(), is("concentrator2"));
+
+        sessionManager.removeMatcherEndpoint(concentrator2);
+        assertThat(leaf.getSession(), is(nullValue()));
+        sessionManager.addMatcherEndpoint(concentrator2);
+        assertThat(leaf.getSession().getMatcherId(), is("concentrator2"));
+    }
+
+    @Test
+    public void testAddEndpointsInBulk() {
+        List<MockConcentrator> concentrators = new ArrayList<MockConcentrator>();
+        List<AgentEndpoint> agentEndpoints = new ArrayList<AgentEndpoint>();
+        List<MockDeviceAgent> leafs = new ArrayList<MockDeviceAgent>();
+        for (int ix = 0; ix < 4; ix++) {
+            MockConcentrator concentrator = new MockConcentrator("concentrator" + ix, AUCTIONEER_NAME);
+            concentrators.add(concentrator);
+            agentEndpoints.add(concentrator);
+            for (int leaf = 0; leaf < 10; leaf++) {
+                leafs.add(new MockDeviceAgent("leaf" + ix + "-" + leaf, concentrator.getAgentId()));
+            }
+        }
+        agentEndpoints.addAll(leafs);
+        // A duplicate is ignored, like when it is added on its own
+        agentEndpoints.add(new MockDeviceAgent("leaf0-0", "concentrator0"));
+
+        sessionManager.addAgentEndpoints(agentEndpoints);
+        sessionManager.addMatcherEndpoints(concentrators);
+        assertThat(leafs.get(0).getSession(), is(nullValue()));
+
+        sessionManager.addMatcherEndpoints(Arrays.asList(auctioneer));
+        for (MockConcentrator concentrator : concentrators) {
+            assertThat(concentrator.getSession().getMatcherId(), is(AUCTIONEER_NAME));
+        }
+        for (MockDeviceAgent leaf : leafs) {
+            assertThat(leaf.getSession(), is(notNullValue()));
+        }
+        assertThat(((MockDeviceAgent) agentEndpoints.get(agentEndpoints.size() - 1)).getSession(), is(nullValue()));
+    }
+
+    @Test
+    public void testAgentEndpointGroup() {
+        final List<MockDeviceAgent> agents = new ArrayList<MockDeviceAgent>();
+        for (int ix = 0; ix < 10; ix++) {
+            agents.add(new MockDeviceAgent("pooled" + ix, AUCTIONEER_NAME));
+        }
+        AgentEndpointGroup group = new AgentEndpointGroup() {
+            @Override
+            public Collection<? extends AgentEndpoint> getAgentEndpoints() {
+                return agents;
+            }
+        };
+
+        sessionManager.addMatcherEndpoint(auctioneer);
+        sessionManager.addAgentEndpointGroup(group);
+        for (MockDeviceAgent agent : agents) {
+            assertThat(agent.getSession().getMatcherId(), is(AUCTIONEER_NAME));
+        }
+
+        sessionManager.removeAgentEndpointGroup(group);
+        for (MockDeviceAgent agent : agents) {
+            assertThat(agent.getSession(), is(nullValue()));
+        }
+    }
 }
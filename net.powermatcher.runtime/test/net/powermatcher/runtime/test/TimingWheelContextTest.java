@@ -0,0 +1,128 @@
+package net.powermatcher.runtime.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.SI;
+
+import net.powermatcher.runtime.TimingWheelContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link TimingWheelContext} class.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class TimingWheelContextTest {
+
+    private TimingWheelContext context;
+
+    @Before
+    public void setUp() {
+        // A small wheel, so the tasks below need more than one round
+        context = new TimingWheelContext(5, 4, 2);
+    }
+
+    @After
+    public void tearDown() {
+        context.shutdownNow();
+    }
+
+    private static Measurable<Duration> millis(long value) {
+        return Measure.valueOf(value, SI.MILLI(SI.SECOND));
+    }
+
+    @Test
+    public void testScheduleAfterSeveralRounds() throws Exception {
+        long start = System.nanoTime();
+        ScheduledFuture<String> future = context.schedule(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }, millis(100));
+
+        assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        // Never early, which would happen when the rounds of the wheel are not counted
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        assertEquals("now", context.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "now";
+            }
+        }).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testScheduleAtFixedRateAndCancel() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(5);
+        ScheduledFuture<?> future = context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                latch.countDown();
+            }
+        }, millis(0), millis(10));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(false));
+        Thread.sleep(20);
+        int runsAfterCancel = runs.get();
+        Thread.sleep(50);
+        assertEquals(runsAfterCancel, runs.get());
+    }
+
+    @Test
+    public void testCancelBeforeDue() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        ScheduledFuture<?> future = context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, millis(30));
+        assertTrue(future.cancel(false));
+
+        Thread.sleep(80);
+        assertEquals(0, runs.get());
+        assertEquals(0, context.getStatistics().getScheduled());
+    }
+
+    @Test
+    public void testStatistics() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(100);
+        for (int ix = 0; ix < 100; ix++) {
+            context.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            }, millis(20));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        TimingWheelContext.Statistics statistics = context.getStatistics();
+        assertEquals(100, statistics.getDispatched());
+        assertTrue(statistics.getMaxDueInTick() > 0);
+        assertTrue(statistics.getTicks() > 0);
+        assertTrue(statistics.getMaxTickLagMicros() >= statistics.getAverageTickLagMicros());
+    }
+}
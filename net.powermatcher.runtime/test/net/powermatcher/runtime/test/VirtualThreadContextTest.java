@@ -0,0 +1,135 @@
+package net.powermatcher.runtime.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measure;
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.SI;
+
+import net.powermatcher.runtime.VirtualThreadContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link VirtualThreadContext} class.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class VirtualThreadContextTest {
+
+    private VirtualThreadContext context;
+
+    @Before
+    public void setUp() {
+        context = new VirtualThreadContext();
+    }
+
+    @After
+    public void tearDown() {
+        context.shutdownNow();
+    }
+
+    private static Measurable<Duration> millis(long value) {
+        return Measure.valueOf(value, SI.MILLI(SI.SECOND));
+    }
+
+    @Test
+    public void testSchedule() throws Exception {
+        long start = System.nanoTime();
+        ScheduledFuture<String> future = context.schedule(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }, millis(50));
+
+        assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void testScheduleAtFixedRateAndCancel() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(5);
+        ScheduledFuture<?> future = context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, millis(0), millis(10));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void testBlockingTaskDoesNotBlockOthers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(10);
+        for (int ix = 0; ix < 10; ix++) {
+            context.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finished.countDown();
+                }
+            });
+        }
+        final CountDownLatch other = new CountDownLatch(1);
+        context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        }, millis(10));
+
+        // There are more blocking tasks than processors, but the other task still runs
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPeriodicTaskStopsAfterException() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        ScheduledFuture<?> future = context.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                throw new IllegalStateException("Expected");
+            }
+        }, millis(0), millis(1));
+
+        for (int ix = 0; ix < 500 && !future.isDone(); ix++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(20);
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testShutdown() throws InterruptedException {
+        context.shutdown();
+        assertTrue(context.isShutdown());
+        assertTrue(context.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,343 @@
+package net.powermatcher.mock;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.SI;
+import javax.measure.unit.Unit;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FlexiblePowerContext} for discrete-event simulations, which runs the tasks in virtual time. The tasks are
+ * kept in a priority queue by the time at which they are due, and they run on the thread that calls one of the run
+ * methods ({@link #runNext()}, {@link #runUntil(long)} or {@link #runFor(long)}). The virtual clock jumps to the time
+ * of each task before it runs, so a simulation runs as fast as the tasks themselves allow.
+ *
+ * A simulation is deterministic: with the same seed, the tasks run in the same order and {@link #getRandom()} gives
+ * the same numbers. Tasks that are due at the same time run in the order in which they were scheduled when no seed is
+ * given. With a seed, their order is shuffled using that seed, to find behavior that depends on it.
+ *
+ * Unlike {@link MockContext}, this context keeps any number of tasks. A periodic task is scheduled again after each
+ * run. When a task throws an exception, it is logged and the task is not run again. Calling {@link Future#get()} on a
+ * task that has not run yet blocks forever, because the tasks only run when the simulation is advanced.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class SimulationContext
+    implements FlexiblePowerContext {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SimulationContext.class);
+
+    private static final Unit<Duration> MS = SI.MILLI(SI.SECOND);
+
+    /**
+     * Orders the tasks by the time they are due, then by the random tie breaker and then by the order in which they
+     * were scheduled.
+     */
+    private static final Comparator<SimulationTask<?>> ORDER = new Comparator<SimulationTask<?>>() {
+        @Override
+        public int compare(SimulationTask<?> task1, SimulationTask<?> task2) {
+            if (task1.time != task2.time) {
+                return task1.time < task2.time ? -1 : 1;
+            } else if (task1.tieBreaker != task2.tieBreaker) {
+                return task1.tieBreaker < task2.tieBreaker ? -1 : 1;
+            } else {
+                return task1.sequence < task2.sequence ? -1 : (task1.sequence > task2.sequence ? 1 : 0);
+            }
+        }
+    };
+
+    /**
+     * A task that runs at a certain virtual time.
+     *
+     * @param <V>
+     *            The result type of the task
+     */
+    private final class SimulationTask<V>
+        extends FutureTask<V>
+        implements RunnableScheduledFuture<V> {
+        /**
+         * The period in milliseconds, which is positive for a fixed rate, negative for a fixed delay and 0 for a task
+         * that runs once.
+         */
+        private final long period;
+
+        private long time;
+        private long sequence;
+        private int tieBreaker;
+
+        SimulationTask(Callable<V> callable, long time) {
+            super(callable);
+            this.time = time;
+            period = 0;
+        }
+
+        SimulationTask(Runnable runnable, V result, long time, long period) {
+            super(runnable, result);
+            this.time = time;
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                time = period > 0 ? time + period : now - period;
+                enqueue(this);
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            LOGGER.error("A simulated task has thrown an exception: " + t.getMessage(), t);
+            failedTasks++;
+            super.setException(t);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+
+    private final PriorityQueue<SimulationTask<?>> queue = new PriorityQueue<SimulationTask<?>>(1024, ORDER);
+    private final Random random;
+    private final boolean shuffleTies;
+
+    private volatile long now;
+    private long sequence;
+    private long executedTasks;
+    private long failedTasks;
+
+    /**
+     * Creates a {@link SimulationContext} in which the tasks that are due at the same time run in the order in which
+     * they were scheduled. {@link #getRandom()} uses the seed 0.
+     *
+     * @param startTimeMillis
+     *            The virtual time at which the simulation starts, in milliseconds since the epoch
+     */
+    public SimulationContext(long startTimeMillis) {
+        now = startTimeMillis;
+        random = new Random(0);
+        shuffleTies = false;
+    }
+
+    /**
+     * Creates a {@link SimulationContext} in which the order of the tasks that are due at the same time is determined
+     * by the seed.
+     *
+     * @param startTimeMillis
+     *            The virtual time at which the simulation starts, in milliseconds since the epoch
+     * @param seed
+     *            The seed for the order of the tasks that are due at the same time and for {@link #getRandom()}
+     */
+    public SimulationContext(long startTimeMillis, long seed) {
+        now = startTimeMillis;
+        random = new Random(seed);
+        shuffleTies = true;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(now);
+    }
+
+    /**
+     * @return The random generator of this simulation, which the simulated agents can use to stay deterministic
+     */
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Runs the next task, after moving the virtual clock to the time at which it is due.
+     *
+     * @return true when a task has been run, false when there are no tasks left
+     */
+    public boolean runNext() {
+        SimulationTask<?> task = poll(Long.MAX_VALUE);
+        if (task == null) {
+            return false;
+        }
+        task.run();
+        return true;
+    }
+
+    /**
+     * Runs all the tasks that are due up to and including the given time, including the tasks that those tasks
+     * schedule. Afterwards the virtual clock is at the given time.
+     *
+     * @param timeMillis
+     *            The virtual time until which the simulation runs, in milliseconds since the epoch
+     * @return The number of tasks that have run
+     */
+    public int runUntil(long timeMillis) {
+        int count = 0;
+        SimulationTask<?> task;
+        while ((task = poll(timeMillis)) != null) {
+            task.run();
+            count++;
+        }
+        synchronized (queue) {
+            if (timeMillis > now) {
+                now = timeMillis;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs the simulation for the given amount of virtual time.
+     *
+     * @param millis
+     *            The amount of virtual time in milliseconds
+     * @return The number of tasks that have run
+     * @see #runUntil(long)
+     */
+    public int runFor(long millis) {
+        return runUntil(now + millis);
+    }
+
+    /**
+     * @return The number of tasks that are waiting to run, which may include tasks that have been cancelled
+     */
+    public int getPendingTaskCount() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return The number of tasks that have run (each run of a periodic task counts)
+     */
+    public long getExecutedTaskCount() {
+        synchronized (queue) {
+            return executedTasks;
+        }
+    }
+
+    /**
+     * @return The number of tasks that have thrown an exception
+     */
+    public long getFailedTaskCount() {
+        synchronized (queue) {
+            return failedTasks;
+        }
+    }
+
+    private <V> SimulationTask<V> enqueue(SimulationTask<V> task) {
+        synchronized (queue) {
+            task.sequence = sequence++;
+            task.tieBreaker = shuffleTies ? random.nextInt() : 0;
+            queue.add(task);
+        }
+        return task;
+    }
+
+    /**
+     * Takes the next task that has not been cancelled and that is due at or before the given time, and moves the
+     * virtual clock to the time it is due.
+     */
+    private SimulationTask<?> poll(long timeMillis) {
+        synchronized (queue) {
+            while (!queue.isEmpty()) {
+                SimulationTask<?> task = queue.peek();
+                if (task.time > timeMillis) {
+                    return null;
+                }
+                queue.poll();
+                if (!task.isCancelled()) {
+                    if (task.time > now) {
+                        now = task.time;
+                    }
+                    executedTasks++;
+                    return task;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static long delayMillis(Measurable<Duration> delay) {
+        return Math.max(0, delay.longValue(MS));
+    }
+
+    private static long periodMillis(Measurable<Duration> period) {
+        long periodMillis = period.longValue(MS);
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("The period should be positive");
+        }
+        return periodMillis;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return enqueue(new SimulationTask<Void>(command, null, now + delayMillis(delay), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return enqueue(new SimulationTask<V>(callable, now + delayMillis(delay)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return enqueue(new SimulationTask<Void>(command, null, now + delayMillis(initialDelay), periodMillis(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return enqueue(new SimulationTask<Void>(command, null, now + delayMillis(initialDelay), -periodMillis(delay)));
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return enqueue(new SimulationTask<T>(task, now));
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return enqueue(new SimulationTask<Void>(task, null, now, 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return enqueue(new SimulationTask<T>(task, result, now, 0));
+    }
+}
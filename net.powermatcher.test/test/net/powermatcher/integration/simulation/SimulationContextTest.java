@@ -0,0 +1,204 @@
+package net.powermatcher.integration.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.SI;
+
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBid;
+import net.powermatcher.core.auctioneer.Auctioneer;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.mock.SimulationContext;
+import net.powermatcher.test.helpers.PropertiesBuilder;
+import net.powermatcher.test.helpers.TestClusterHelper;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link SimulationContext}, which end with a simulated day of a cluster with an
+ * {@link Auctioneer} and a thousand device agents.
+ *
+ * @author FAN
+ * @version 2.0
+ */
+public class SimulationContextTest {
+    private static final long START = 1000000000000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final int AGENTS = 1000;
+    private static final long BID_INTERVAL = 15 * 60 * 1000L;
+
+    private static Measurable<Duration> millis(long value) {
+        return Measure.valueOf(value, SI.MILLI(SI.SECOND));
+    }
+
+    private static Runnable record(final List<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testTasksRunInTimeOrder() throws Exception {
+        SimulationContext context = new SimulationContext(START);
+        List<String> log = new ArrayList<String>();
+        context.schedule(record(log, "c"), millis(300));
+        context.schedule(record(log, "a"), millis(100));
+        context.schedule(record(log, "b1"), millis(200));
+        context.schedule(record(log, "b2"), millis(200));
+        Future<String> future = context.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "now";
+            }
+        });
+
+        assertEquals(5, context.runUntil(START + 1000));
+        assertEquals("[a, b1, b2, c]", log.toString());
+        assertEquals("now", future.get());
+        assertEquals(START + 1000, context.currentTimeMillis());
+        assertFalse(context.runNext());
+    }
+
+    @Test
+    public void testClockFollowsTasks() {
+        final SimulationContext context = new SimulationContext(START);
+        final List<Long> times = new ArrayList<Long>();
+        context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                times.add(context.currentTimeMillis());
+                context.schedule(this, millis(DAY));
+            }
+        }, millis(DAY));
+
+        assertTrue(context.runNext());
+        assertTrue(context.runNext());
+        assertEquals(2, times.size());
+        assertEquals(START + DAY, (long) times.get(0));
+        assertEquals(START + 2 * DAY, (long) times.get(1));
+        assertEquals(1, context.getPendingTaskCount());
+    }
+
+    @Test
+    public void testScheduleAtFixedRateAndCancel() {
+        SimulationContext context = new SimulationContext(START);
+        List<String> log = new ArrayList<String>();
+        ScheduledFuture<?> future = context.scheduleAtFixedRate(record(log, "tick"), millis(0), millis(1000));
+
+        assertEquals(10, context.runFor(9999));
+        assertTrue(future.cancel(false));
+        assertEquals(0, context.runFor(10000));
+        assertEquals(10, log.size());
+        assertEquals(0, context.getPendingTaskCount());
+    }
+
+    @Test
+    public void testFailingTaskIsNotRepeated() {
+        SimulationContext context = new SimulationContext(START);
+        ScheduledFuture<?> future = context.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected by the test");
+            }
+        }, millis(0), millis(1000));
+
+        assertEquals(1, context.runFor(10000));
+        assertTrue(future.isDone());
+        assertEquals(1, context.getFailedTaskCount());
+    }
+
+    @Test
+    public void testSeedDeterminesOrderOfSimultaneousTasks() {
+        assertEquals(simultaneousOrder(42), simultaneousOrder(42));
+        assertFalse(simultaneousOrder(42).equals(simultaneousOrder(43)));
+    }
+
+    private static List<String> simultaneousOrder(long seed) {
+        SimulationContext context = new SimulationContext(START, seed);
+        List<String> log = new ArrayList<String>();
+        for (int ix = 0; ix < 20; ix++) {
+            context.schedule(record(log, "task" + ix), millis(100));
+        }
+        context.runFor(100);
+        return log;
+    }
+
+    @Test
+    public void testSimulateDayOfCluster() {
+        double[] prices1 = simulateDay(7);
+        double[] prices2 = simulateDay(7);
+        for (int ix = 0; ix < AGENTS; ix++) {
+            assertEquals(prices1[ix], prices2[ix], 0);
+        }
+    }
+
+    /**
+     * Simulates a day in which each agent sends a random bid every 15 minutes, at its own random offset within the
+     * first minute. Checks that every agent has received a price for its last bid.
+     *
+     * @return The last price that each agent has received
+     */
+    private static double[] simulateDay(long seed) {
+        final MarketBasis marketBasis = TestClusterHelper.DEFAULT_MB;
+        final SimulationContext context = new SimulationContext(START, seed);
+
+        Auctioneer auctioneer = new Auctioneer();
+        auctioneer.activate(new PropertiesBuilder().agentId("auctioneer")
+                                                   .clusterId("testCluster")
+                                                   .minTimeBetweenPriceUpdates(1000)
+                                                   .marketBasis(marketBasis)
+                                                   .build());
+        auctioneer.setContext(context);
+
+        final int[] bidNumbers = new int[AGENTS];
+        MockDeviceAgent[] agents = new MockDeviceAgent[AGENTS];
+        for (int ix = 0; ix < AGENTS; ix++) {
+            final int agentIx = ix;
+            final MockDeviceAgent agent = new MockDeviceAgent("agent" + ix, "auctioneer");
+            agent.setContext(context);
+            new SimpleSession(agent, auctioneer).connect();
+            agents[ix] = agent;
+
+            context.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    double demand = context.getRandom().nextDouble() * 2000 - 1000;
+                    agent.sendBid(new PointBid.Builder(marketBasis).add(marketBasis.getMinimumPrice(), demand)
+                                                                   .add(marketBasis.getMaximumPrice(), demand - 500)
+                                                                   .build(),
+                                  ++bidNumbers[agentIx]);
+                }
+            }, millis(context.getRandom().nextInt(60000)), millis(BID_INTERVAL));
+        }
+
+        context.runFor(DAY);
+        auctioneer.deactivate();
+
+        assertEquals(START + DAY, context.currentTimeMillis());
+        assertEquals(0, context.getFailedTaskCount());
+        double[] prices = new double[AGENTS];
+        for (int ix = 0; ix < AGENTS; ix++) {
+            assertEquals(DAY / BID_INTERVAL, bidNumbers[ix]);
+            assertNotNull(agents[ix].getLastPriceUpdate());
+            assertEquals(bidNumbers[ix], agents[ix].getLastPriceUpdate().getBidNumber());
+            prices[ix] = agents[ix].getLastPriceUpdate().getPrice().getPriceValue();
+        }
+        return prices;
+    }
+}